@@ -0,0 +1,165 @@
+package org.opensource.proxy;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.load.LoadBackend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Upload throughput of eight connections through one route on one event loop, with
+ * {@code flush=batch} and {@code flush=read}. Each operation writes 256 KiB in {@code chunkSize}
+ * pieces; the {@code writeSyscalls} counter is the write(2)/writev(2) calls of the proxy per
+ * operation, from {@code /proc/self/io} minus the client's own, so it shows how many flushes a
+ * batch saves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class FlushBenchmark {
+
+    private static final int SINK_PORT = 28500;
+    private static final int ROUTE_PORT = 28004;
+    private static final int BYTES_PER_OP = 256 * 1024;
+    private static final Path PROC_IO = Path.of("/proc/self/io");
+
+    @Param({"batch", "read"})
+    public String flush;
+
+    @Param({"512", "65536"})
+    public int chunkSize;
+
+    private LoadBackend sink;
+    private EventLoopRuntime runtime;
+    private RouterServer routerServer;
+    private final LongAdder operations = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if (!Files.isReadable(PROC_IO)) {
+            throw new IllegalStateException("The flush benchmark counts syscalls in " + PROC_IO);
+        }
+        // NIO writes with write(2) and writev(2), which /proc/self/io counts; epoll sends with send(2).
+        Transport transport = Transport.select("nio");
+        sink = new LoadBackend(transport, 1, SINK_PORT, "sink");
+        runtime = new EventLoopRuntime(transport, 1, 1);
+        routerServer = new RouterServer(runtime, new RouterConfig("bench", ROUTE_PORT, "localhost", SINK_PORT,
+                "Flush benchmark", RouteOptions.parse("flush=" + flush)));
+        routerServer.runDaemon();
+        connect(ROUTE_PORT).close();
+    }
+
+    @Benchmark
+    public void upload(Client client, Syscalls syscalls) throws Exception {
+        for (int i = 0; i < BYTES_PER_OP / chunkSize; i++) {
+            client.out.write(client.chunk);
+        }
+        operations.increment();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        routerServer.shutdown();
+        runtime.shutdown();
+        sink.close();
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * One connection per benchmark thread, so the proxy's single event loop has a backlog to batch.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Socket socket;
+        private OutputStream out;
+        private byte[] chunk;
+
+        @Setup(Level.Trial)
+        public void open(FlushBenchmark benchmark) throws Exception {
+            socket = connect(ROUTE_PORT);
+            out = socket.getOutputStream();
+            chunk = new byte[benchmark.chunkSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Every thread reports its share of the process-wide count, so the sum over threads is the
+     * count per operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Syscalls {
+
+        public double writeSyscalls;
+        private long startWrites;
+        private long startOperations;
+
+        @Setup(Level.Iteration)
+        public void start(FlushBenchmark benchmark) throws IOException {
+            startOperations = benchmark.operations.sum();
+            startWrites = writes();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop(FlushBenchmark benchmark, BenchmarkParams params) throws IOException {
+            long writes = writes() - startWrites;
+            long operations = benchmark.operations.sum() - startOperations;
+            long clientWrites = operations * (BYTES_PER_OP / benchmark.chunkSize);
+            writeSyscalls = operations == 0 ? 0 : (double) (writes - clientWrites) / operations / params.getThreads();
+        }
+
+        private static long writes() throws IOException {
+            for (String line : Files.readAllLines(PROC_IO)) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+            throw new IllegalStateException("No syscw in " + PROC_IO);
+        }
+    }
+}
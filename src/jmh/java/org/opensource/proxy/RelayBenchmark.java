@@ -0,0 +1,109 @@
+package org.opensource.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.load.LoadBackend;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echo round trip over one kept-alive connection, through a route and straight to the backend.
+ * Each round trip passes {@link RouterClientHandler#channelRead} and
+ * {@link RouterServerHandler#channelRead} once, so the difference between the two is what the
+ * relay adds; sampled mode reports its p50, p99 and p999.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final int ECHO_PORT = 28400;
+    private static final int ROUTE_PORT = 28003;
+
+    @Param({"64", "4096", "65536"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean viaProxy;
+
+    private LoadBackend echo;
+    private EventLoopRuntime runtime;
+    private RouterServer routerServer;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private byte[] payload;
+    private byte[] received;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Transport transport = Transport.select("auto");
+        echo = new LoadBackend(transport, 1, ECHO_PORT, "echo");
+        runtime = new EventLoopRuntime(transport, 1, 1);
+        routerServer = new RouterServer(runtime, new RouterConfig("bench", ROUTE_PORT, "localhost", ECHO_PORT,
+                "Relay benchmark", RouteOptions.EMPTY));
+        routerServer.runDaemon();
+
+        socket = connect(viaProxy ? ROUTE_PORT : ECHO_PORT);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = socket.getInputStream();
+        payload = new byte[payloadSize];
+        received = new byte[payloadSize];
+    }
+
+    @Benchmark
+    public int roundTrip() throws Exception {
+        out.write(payload);
+        int total = 0;
+        while (total < payloadSize) {
+            int n = in.read(received, total, payloadSize - total);
+            if (n < 0) {
+                throw new IllegalStateException("Connection closed after " + total + " bytes");
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        socket.close();
+        routerServer.shutdown();
+        runtime.shutdown();
+        echo.close();
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
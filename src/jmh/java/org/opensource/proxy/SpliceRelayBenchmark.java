@@ -0,0 +1,118 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk upload throughput through one epoll route with the splice relay on and off.
+ * Each operation pushes 1 MiB, so ops/s equals MiB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpliceRelayBenchmark {
+
+    private static final int SINK_PORT = 28100;
+    private static final int ROUTE_PORT = 28001;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_OP = 16;
+
+    @Param({"false", "true"})
+    public boolean splice;
+
+    private EventLoopGroup sinkGroup;
+    private Channel sinkChannel;
+    private EventLoopRuntime runtime;
+    private RouterServer routerServer;
+    private Socket socket;
+    private OutputStream out;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sinkGroup = new NioEventLoopGroup(1);
+        sinkChannel = new ServerBootstrap()
+                .group(sinkGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new DiscardHandler())
+                .bind(SINK_PORT).sync().channel();
+
+        runtime = new EventLoopRuntime(Transport.select("epoll"), 1, 1);
+        if (runtime.getTransport() != Transport.EPOLL) {
+            throw new IllegalStateException("The splice benchmark needs the epoll transport");
+        }
+        routerServer = new RouterServer(runtime, new RouterConfig("bench", ROUTE_PORT, "localhost", SINK_PORT,
+                "Splice benchmark", RouteOptions.parse("splice=" + splice)));
+        routerServer.runDaemon();
+
+        socket = connect(ROUTE_PORT);
+        out = socket.getOutputStream();
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        for (int i = 0; i < CHUNKS_PER_OP; i++) {
+            out.write(chunk);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        socket.close();
+        routerServer.shutdown();
+        runtime.shutdown();
+        sinkChannel.close().sync();
+        sinkGroup.shutdownGracefully();
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class DiscardHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
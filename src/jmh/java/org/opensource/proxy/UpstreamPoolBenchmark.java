@@ -0,0 +1,112 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from opening a client connection to receiving the first echoed byte, with upstream
+ * pre-warming off ({@code poolIdle=0}) and on. The difference is the connection-setup time the
+ * pool saves per new client; sampled mode also reports the p99 of both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpstreamPoolBenchmark {
+
+    private static final int ECHO_PORT = 28200;
+    private static final int ROUTE_PORT = 28002;
+
+    @Param({"0", "64"})
+    public int poolIdle;
+
+    private EventLoopGroup echoGroup;
+    private Channel echoChannel;
+    private EventLoopRuntime runtime;
+    private RouterServer routerServer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        echoGroup = new NioEventLoopGroup(1);
+        echoChannel = new ServerBootstrap()
+                .group(echoGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new EchoHandler())
+                .bind(ECHO_PORT).sync().channel();
+
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServer = new RouterServer(runtime, new RouterConfig("bench", ROUTE_PORT, "localhost", ECHO_PORT,
+                "Pool benchmark", RouteOptions.parse("poolIdle=" + poolIdle)));
+        routerServer.runDaemon();
+        connect(ROUTE_PORT).close();
+        // Let the pool pre-connect before measuring.
+        Thread.sleep(500);
+    }
+
+    @Benchmark
+    public int connectAndFirstByte() throws Exception {
+        try (Socket socket = new Socket("localhost", ROUTE_PORT)) {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(1);
+            InputStream in = socket.getInputStream();
+            return in.read();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        routerServer.shutdown();
+        runtime.shutdown();
+        echoChannel.close().sync();
+        echoGroup.shutdownGracefully();
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+}
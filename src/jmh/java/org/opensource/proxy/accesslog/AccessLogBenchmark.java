@@ -0,0 +1,80 @@
+package org.opensource.proxy.accesslog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of recording a closed connection on an I/O thread, with the writer thread moving records
+ * to mapped files in a temporary directory, from one thread and from four at once. Appends run far
+ * faster than connections close, so part of them find the ring full and are dropped; the counts
+ * are printed at the end of a trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    private Path directory;
+    private AccessLog log;
+    private InetSocketAddress client;
+    private InetSocketAddress backend;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("access-log-benchmark");
+        log = new AccessLog(directory, 65_536, 64L * 1024 * 1024, 4);
+        log.start();
+        client = new InetSocketAddress(InetAddress.getByName("203.0.113.7"), 50_000);
+        backend = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 8080);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        log.close();
+        System.out.printf("%n%d records written, %d dropped%n", log.getWritten(), log.getDropped());
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean appendOneThread() {
+        return append();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean appendFourThreads() {
+        return append();
+    }
+
+    private boolean append() {
+        return log.append(System.currentTimeMillis(), 1_250, "api", 8080, client, backend, 512, 4096, CloseReason.CLIENT_CLOSED);
+    }
+}
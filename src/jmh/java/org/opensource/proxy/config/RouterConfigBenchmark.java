@@ -0,0 +1,80 @@
+package org.opensource.proxy.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RouterConfig} hashing and comparison as the repository cache and the route table use
+ * them: {@code hashCode}, a hash set lookup with an equal but distinct instance, as every config
+ * read back from disk is, and the field-by-field {@code sameAs} of a reload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterConfigBenchmark {
+
+    @Param({"1000", "100000"})
+    public int routes;
+
+    private RouterConfig[] configs;
+    private RouterConfig[] copies;
+    private Set<RouterConfig> set;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        configs = new RouterConfig[routes];
+        copies = new RouterConfig[routes];
+        set = new HashSet<>();
+        for (int i = 0; i < routes; i++) {
+            configs[i] = config(i);
+            copies[i] = config(i);
+            set.add(configs[i]);
+        }
+    }
+
+    private static RouterConfig config(int i) {
+        // Fresh strings, so equality has to compare contents.
+        return new RouterConfig(new String("route-" + i), 10_000 + i % 50_000, new String("backend-" + i + ".internal"),
+                8080, new String("Route " + i), RouteOptions.parse("tcpNoDelay=true;lb=least-connections;poolIdle=" + i % 16));
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == routes ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return copies[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public boolean setContains() {
+        return set.contains(copies[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean sameAs() {
+        int index = nextIndex();
+        return configs[index].sameAs(copies[index]);
+    }
+}
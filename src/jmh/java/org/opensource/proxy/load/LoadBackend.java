@@ -0,0 +1,128 @@
+package org.opensource.proxy.load;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.opensource.proxy.Transport;
+
+import java.util.Map;
+
+/**
+ * Backend for {@link LoadGenerator}: echoes everything back ({@code echo}) or discards it
+ * ({@code sink}). Echoing stops reading while the client does not keep up, so a slow client never
+ * makes the backend buffer without bound.
+ * <p>
+ * Standalone: {@code mvn -Pbenchmark test-compile exec:exec@load-backend -Dload.args="--port 9000 --mode echo"}
+ */
+public final class LoadBackend implements AutoCloseable {
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+
+    public LoadBackend(Transport transport, int threads, int port, String mode) throws InterruptedException {
+        ChannelHandler handler = switch (mode) {
+            case "echo" -> new EchoHandler();
+            case "sink" -> new SinkHandler();
+            default -> throw new IllegalArgumentException("Unknown backend mode: " + mode);
+        };
+        this.group = transport.newEventLoopGroup(threads, new DefaultThreadFactory("load-backend"));
+        this.channel = new ServerBootstrap()
+                .group(group)
+                .channel(transport.serverChannelClass())
+                .option(ChannelOption.SO_BACKLOG, 4096)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childHandler(handler)
+                .bind(port).sync().channel();
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseArgs(args, Map.of(
+                "port", "9000",
+                "mode", "echo",
+                "threads", String.valueOf(Runtime.getRuntime().availableProcessors()),
+                "transport", "auto"));
+        Transport transport = Transport.select(options.get("transport"));
+        LoadBackend backend = new LoadBackend(transport, Integer.parseInt(options.get("threads")),
+                Integer.parseInt(options.get("port")), options.get("mode"));
+        System.out.printf("%s backend listening on port %s (%s)%n", options.get("mode"), options.get("port"), transport);
+        backend.channel.closeFuture().sync();
+    }
+
+    @ChannelHandler.Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.read();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) future -> {
+                if (future.isSuccess()) {
+                    if (future.channel().isWritable()) {
+                        future.channel().read();
+                    }
+                } else {
+                    future.channel().close();
+                }
+            });
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                ctx.read();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class SinkHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.read();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.read();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
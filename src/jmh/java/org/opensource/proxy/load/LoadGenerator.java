@@ -0,0 +1,351 @@
+package org.opensource.proxy.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.metrics.LatencyHistogram;
+
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed-loop load generator for one route, reporting connections per second, throughput and
+ * latency percentiles. Each of {@code --connections} clients runs one of these loops:
+ * <ul>
+ *     <li>{@code echo} - write {@code --payload} bytes, wait until they all came back, repeat; the
+ *     latency is that round trip</li>
+ *     <li>{@code sink} - write {@code --payload} byte chunks as fast as the route takes them; only
+ *     throughput is reported</li>
+ *     <li>{@code connect} - connect, do one echo round trip, close, repeat; the latency includes the
+ *     connect</li>
+ * </ul>
+ * With {@code --embedded} it starts a {@link LoadBackend} and a route to it in this process, so a
+ * single command gives comparable numbers on one box; {@code --direct} then skips the route for a
+ * baseline, and {@code --routeOptions} sets the route's options. Otherwise {@code --target} names
+ * the route of a running proxy. The first {@code --warmup} seconds are not counted.
+ * <p>
+ * A client only sends once its previous answer arrived, so the latency of a stalled proxy shows up
+ * as fewer requests rather than as a long tail; compare requests per second between runs too.
+ * <p>
+ * {@code mvn -Pbenchmark test-compile exec:exec@load -Dload.args="--embedded --connections 64 --payload 1024"}
+ */
+public final class LoadGenerator {
+
+    private static final int EMBEDDED_ROUTE_PORT = 28300;
+    private static final int EMBEDDED_BACKEND_PORT = 28301;
+    private static final int SINK_WRITES_PER_TASK = 16;
+
+    private final String mode;
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final ByteBuf payload;
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    LoadGenerator(Transport transport, int threads, String mode, String host, int port, int connections, int payloadSize) {
+        if (!mode.equals("echo") && !mode.equals("sink") && !mode.equals("connect")) {
+            throw new IllegalArgumentException("Unknown load mode: " + mode);
+        }
+        if (connections < 1 || payloadSize < 1) {
+            throw new IllegalArgumentException("Connections and payload must be positive");
+        }
+        this.mode = mode;
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.payload = Unpooled.unreleasableBuffer(Unpooled.directBuffer(payloadSize).writeZero(payloadSize).asReadOnly());
+        this.group = transport.newEventLoopGroup(threads, new DefaultThreadFactory("load-client"));
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10_000);
+    }
+
+    /**
+     * Runs the load for {@code warmupSeconds} plus {@code seconds} and prints the report.
+     */
+    void run(int warmupSeconds, int seconds) throws InterruptedException {
+        for (int i = 0; i < connections; i++) {
+            connect();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        report(elapsed);
+    }
+
+    private void connect() {
+        if (!running || group.isShuttingDown()) {
+            return;
+        }
+        ChannelInboundHandlerAdapter client = mode.equals("sink") ? new SinkClient()
+                : new EchoClient(mode.equals("connect") ? System.nanoTime() : 0);
+        bootstrap.clone().handler(client).connect(host, port).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                errors.increment();
+                if (running) {
+                    // Back off instead of spinning on a refused port.
+                    group.schedule(this::connect, 100, TimeUnit.MILLISECONDS);
+                }
+            } else if (measuring) {
+                connects.increment();
+            }
+        });
+    }
+
+    private void report(double elapsed) {
+        Map<String, String> lines = new LinkedHashMap<>();
+        lines.put("target", host + ":" + port);
+        lines.put("mode", mode + ", " + connections + " connections, " + payload.readableBytes() + " byte payload");
+        if (mode.equals("connect")) {
+            // The other modes connect once, during the warmup.
+            lines.put("connections/s", String.format("%.0f", connects.sum() / elapsed));
+        }
+        if (!mode.equals("sink")) {
+            lines.put("requests/s", String.format("%.0f", requests.sum() / elapsed));
+        }
+        lines.put("throughput", String.format("%.1f MiB/s", bytes.sum() / elapsed / (1024 * 1024)));
+        if (latency.getCount() > 0) {
+            lines.put("latency", String.format("p50 %s, p99 %s, p999 %s, max %s",
+                    micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99)),
+                    micros(latency.getValueAtPercentile(99.9)), micros(latency.getValueAtPercentile(100))));
+        }
+        lines.put("errors", String.valueOf(errors.sum()));
+        lines.forEach((key, value) -> System.out.printf("%-14s %s%n", key, value));
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    /**
+     * Echo round trips, on one connection ({@code echo}) or one per connection ({@code connect}).
+     */
+    private class EchoClient extends ChannelInboundHandlerAdapter {
+
+        private final long connectAt;
+        private long sentAt;
+        private int pending;
+
+        EchoClient(long connectAt) {
+            this.connectAt = connectAt;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            sentAt = System.nanoTime();
+            pending = payload.readableBytes();
+            ctx.writeAndFlush(payload.duplicate());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            pending -= ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            if (pending > 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (measuring) {
+                latency.record(now - (connectAt != 0 ? connectAt : sentAt));
+                requests.increment();
+                bytes.add(payload.readableBytes());
+            }
+            if (connectAt != 0) {
+                ctx.close();
+            } else if (running) {
+                send(ctx);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (running && (connectAt == 0 || pending > 0)) {
+                errors.increment();
+            }
+            connect();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Writes while the connection is writable, a few chunks per event loop task so the loop keeps
+     * serving its other connections.
+     */
+    private class SinkClient extends ChannelInboundHandlerAdapter {
+
+        private final ChannelFutureListener written = future -> {
+            if (future.isSuccess() && measuring) {
+                bytes.add(payload.readableBytes());
+            }
+        };
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            pump(ctx);
+        }
+
+        private void pump(ChannelHandlerContext ctx) {
+            Channel channel = ctx.channel();
+            for (int i = 0; i < SINK_WRITES_PER_TASK && running && channel.isWritable(); i++) {
+                ctx.write(payload.duplicate()).addListener(written);
+            }
+            ctx.flush();
+            if (running && channel.isWritable()) {
+                channel.eventLoop().execute(() -> pump(ctx));
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                pump(ctx);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (running) {
+                errors.increment();
+            }
+            connect();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> defaults = new HashMap<>();
+        defaults.put("target", "localhost:" + EMBEDDED_ROUTE_PORT);
+        defaults.put("mode", "echo");
+        defaults.put("connections", "64");
+        defaults.put("payload", "1024");
+        defaults.put("duration", "10");
+        defaults.put("warmup", "3");
+        defaults.put("threads", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        defaults.put("transport", "auto");
+        defaults.put("embedded", "false");
+        defaults.put("direct", "false");
+        defaults.put("routeOptions", "");
+        Map<String, String> options = parseArgs(args, defaults);
+
+        Transport transport = Transport.select(options.get("transport"));
+        int threads = Integer.parseInt(options.get("threads"));
+        String mode = options.get("mode");
+        String target = options.get("target");
+        LoadBackend backend = null;
+        EventLoopRuntime runtime = null;
+        RouterServer routerServer = null;
+        if (Boolean.parseBoolean(options.get("embedded"))) {
+            backend = new LoadBackend(transport, threads, EMBEDDED_BACKEND_PORT, mode.equals("sink") ? "sink" : "echo");
+            if (Boolean.parseBoolean(options.get("direct"))) {
+                target = "localhost:" + EMBEDDED_BACKEND_PORT;
+            } else {
+                runtime = new EventLoopRuntime(transport, 1, threads);
+                routerServer = new RouterServer(runtime, new RouterConfig("load", EMBEDDED_ROUTE_PORT, "localhost",
+                        EMBEDDED_BACKEND_PORT, "Load test", RouteOptions.parse(options.get("routeOptions"))));
+                routerServer.runDaemon();
+                target = "localhost:" + EMBEDDED_ROUTE_PORT;
+            }
+        }
+        int colon = target.lastIndexOf(':');
+        String host = target.substring(0, colon);
+        int port = Integer.parseInt(target.substring(colon + 1));
+        awaitListening(host, port);
+
+        try {
+            new LoadGenerator(transport, threads, mode, host, port, Integer.parseInt(options.get("connections")),
+                    Integer.parseInt(options.get("payload")))
+                    .run(Integer.parseInt(options.get("warmup")), Integer.parseInt(options.get("duration")));
+        } finally {
+            if (routerServer != null) {
+                routerServer.shutdown();
+                runtime.shutdown();
+            }
+            if (backend != null) {
+                backend.close();
+            }
+        }
+    }
+
+    private static void awaitListening(String host, int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Parses {@code --name value} pairs; a name without value is {@code true}.
+     *
+     * @throws IllegalArgumentException on a name not in {@code defaults}
+     */
+    static Map<String, String> parseArgs(String[] args, Map<String, String> defaults) {
+        Map<String, String> options = new HashMap<>(defaults);
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+            if (!args[i].startsWith("--") || !defaults.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", expected one of " + defaults.keySet());
+            }
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(name, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+}
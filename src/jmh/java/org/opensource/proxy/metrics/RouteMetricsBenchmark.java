@@ -0,0 +1,58 @@
+package org.opensource.proxy.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost the route metrics add to the relay. {@code bytesPerRead} is the work done on every
+ * channelRead; the {@code contended} variants hammer one route from four threads, the way
+ * several event loops share a busy route. {@code baseline} is the empty-method floor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteMetricsBenchmark {
+
+    private final RouteMetrics metrics = new RouteMetrics();
+    private int readSize = 16 * 1024;
+    private long latency = 123_456;
+
+    @Benchmark
+    public void baseline() {
+    }
+
+    @Benchmark
+    public void bytesPerRead() {
+        metrics.bytesIn(readSize);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void bytesPerReadContended() {
+        metrics.bytesIn(readSize);
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        metrics.upstreamConnected(latency);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramRecordContended() {
+        metrics.upstreamConnected(latency);
+    }
+}
@@ -0,0 +1,124 @@
+package org.opensource.proxy.routing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.repository.WalRouterConfigRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Onboarding many routes into an empty proxy backed by the write-ahead log store: loading them at
+ * startup, applying them as one bulk change, and adding them one call at a time as the single
+ * route API does. Every run ends once each listener is bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkApplyBenchmark {
+
+    private static final int FIRST_PORT = 29_000;
+
+    @Param({"500"})
+    public int routes;
+
+    @Param({"16"})
+    public int bindParallelism;
+
+    private EventLoopRuntime runtime;
+    private List<RouterConfig> configs;
+    private Path directory;
+    private WalRouterConfigRepository repository;
+    private RouteTableService service;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        runtime = new EventLoopRuntime(1, 4);
+        configs = new ArrayList<>(routes);
+        for (int i = 0; i < routes; i++) {
+            configs.add(new RouterConfig("route-" + i, FIRST_PORT + i, "localhost", 8080, "Bulk benchmark", RouteOptions.EMPTY));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        runtime.shutdown();
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("bulk-benchmark");
+        repository = new WalRouterConfigRepository(directory, null, 100_000);
+        repository.open();
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(0L);
+        applicationConfig.setBindParallelism(bindParallelism);
+        service = new RouteTableService(repository, runtime, applicationConfig);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        for (RouterServer server : service.getListeners()) {
+            server.shutdown();
+        }
+        repository.destroy();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void startup() {
+        service.load(configs).join();
+    }
+
+    @Benchmark
+    public List<BulkResult> bulkApply() {
+        List<BulkResult> results = service.apply(configs);
+        for (BulkResult result : results) {
+            if (!result.isSuccess()) {
+                throw new IllegalStateException(result.getRoutingName() + ": " + result.getError());
+            }
+        }
+        return results;
+    }
+
+    @Benchmark
+    public void oneByOne() {
+        for (RouterConfig config : configs) {
+            service.add(config);
+        }
+        for (RouterConfig config : configs) {
+            service.getListener(config.getRoutingName()).whenBound().join();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.opensource.proxy.routing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.http.HttpRouteMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookups on the connection and request path: by routing name and enter port in a
+ * {@link RouteTable} of {@code routes} entries, and by Host and path in an {@link HttpRouteMatcher}
+ * of one exact host per route plus a wildcard and a catch-all. Keys cycle through every route so
+ * the lookups do not all hit one cache line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteLookupBenchmark {
+
+    private static final int FIRST_PORT = 10_000;
+
+    @Param({"100", "10000"})
+    public int routes;
+
+    private RouteTable table;
+    private String[] names;
+    private String[] hosts;
+    private EventLoopRuntime runtime;
+    private HttpRouteMatcher matcher;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<RouterConfig> configs = new ArrayList<>(routes);
+        names = new String[routes];
+        for (int i = 0; i < routes; i++) {
+            names[i] = "route-" + i;
+            configs.add(new RouterConfig(names[i], FIRST_PORT + i, "backend-" + i, 8080, "", RouteOptions.EMPTY));
+        }
+        table = RouteTable.EMPTY.withRoutes(configs);
+
+        // Targets are built but never started, like a route table under validation.
+        runtime = new EventLoopRuntime(Transport.select("nio"), 1, 1);
+        List<RouteTarget> targets = new ArrayList<>(routes + 2);
+        hosts = new String[routes];
+        for (int i = 0; i < routes; i++) {
+            hosts[i] = "svc-" + i + ".example.com:8080";
+            targets.add(httpTarget("http-" + i, "host=svc-" + i + ".example.com;pathPrefix=/api"));
+        }
+        targets.add(httpTarget("wildcard", "host=*.example.org"));
+        targets.add(httpTarget("default", ""));
+        matcher = new HttpRouteMatcher(targets);
+    }
+
+    private RouteTarget httpTarget(String name, String options) {
+        return new RouteTarget(runtime, new RouterConfig(name, 80, "localhost", 8080, "",
+                RouteOptions.parse("mode=http;" + options)));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        runtime.shutdown();
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == routes ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public RouterConfig byName() {
+        return table.get(names[nextIndex()]);
+    }
+
+    @Benchmark
+    public List<RouterConfig> byPort() {
+        return table.getByPort(FIRST_PORT + nextIndex());
+    }
+
+    @Benchmark
+    public RouteTarget httpExactHost() {
+        return matcher.match(hosts[nextIndex()], "/api/users/42");
+    }
+
+    @Benchmark
+    public RouteTarget httpWildcardHost() {
+        return matcher.match("a.b.example.org", "/index.html");
+    }
+
+    @Benchmark
+    public RouteTarget httpFallback() {
+        return matcher.match("unknown.example.net", "/index.html");
+    }
+}
@@ -0,0 +1,89 @@
+package org.opensource.proxy.routing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link RouteTable} indexes at control-plane scale: lookups by routing name, enter port and
+ * backend, and the cost of publishing the next version after one route changed, which copies
+ * the index maps but shares every untouched per-port and per-backend list. Every tenth backend
+ * serves ten routes, so the backend lookups return lists.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+
+    private static final int FIRST_PORT = 10_000;
+
+    @Param({"100000"})
+    public int routes;
+
+    private RouteTable table;
+    private String[] names;
+    private String[] backends;
+    private RouterConfig[] moved;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<RouterConfig> configs = new ArrayList<>(routes);
+        names = new String[routes];
+        backends = new String[routes];
+        moved = new RouterConfig[routes];
+        for (int i = 0; i < routes; i++) {
+            names[i] = "route-" + i;
+            backends[i] = "backend-" + i / 10 + ".internal";
+            configs.add(new RouterConfig(names[i], FIRST_PORT + i, backends[i], 8080, "", RouteOptions.EMPTY));
+            moved[i] = new RouterConfig(names[i], FIRST_PORT + i, "moved-" + i + ".internal", 8080, "", RouteOptions.EMPTY);
+        }
+        table = RouteTable.EMPTY.withRoutes(configs);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == routes ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public RouterConfig byName() {
+        return table.get(names[nextIndex()]);
+    }
+
+    @Benchmark
+    public List<RouterConfig> byPort() {
+        return table.getByPort(FIRST_PORT + nextIndex());
+    }
+
+    @Benchmark
+    public List<RouterConfig> byBackend() {
+        return table.getByBackend(backends[nextIndex()], 8080);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public RouteTable updateOne() {
+        // Each version is thrown away, so every call starts from the same table.
+        return table.withRoute(moved[nextIndex()]);
+    }
+}
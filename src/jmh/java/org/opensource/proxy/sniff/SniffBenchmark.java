@@ -0,0 +1,95 @@
+package org.opensource.proxy.sniff;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking the route of a sniffed connection: parsing a real ClientHello or an HTTP
+ * request head and looking the name up among {@code routes} routes sharing the port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SniffBenchmark {
+
+    @Param({"10", "10000"})
+    public int routes;
+
+    private EventLoopRuntime runtime;
+    private SniffRouteMatcher matcher;
+    private ByteBuf clientHello;
+    private ByteBuf httpRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        runtime = new EventLoopRuntime(1, 1);
+        List<RouteTarget> targets = new ArrayList<>();
+        for (int i = 0; i < routes; i++) {
+            targets.add(new RouteTarget(runtime, new RouterConfig("r" + i, 443, "localhost", 8443, "",
+                    RouteOptions.parse("mode=sniff;sni=svc" + i + ".example.com;host=web" + i + ".example.com"))));
+        }
+        matcher = new SniffRouteMatcher(targets);
+        clientHello = Unpooled.wrappedBuffer(clientHello("svc" + (routes / 2) + ".example.com"));
+        httpRequest = Unpooled.copiedBuffer("GET /index.html HTTP/1.1\r\nUser-Agent: bench\r\nAccept: */*\r\nHost: web"
+                + (routes / 2) + ".example.com\r\n\r\n", StandardCharsets.US_ASCII);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        runtime.shutdown();
+    }
+
+    @Benchmark
+    public RouteTarget tlsServerName() {
+        return matcher.match(ProtocolSniffer.sniff(clientHello, 0));
+    }
+
+    @Benchmark
+    public RouteTarget httpHost() {
+        return matcher.match(ProtocolSniffer.sniff(httpRequest, 0));
+    }
+
+    private static byte[] clientHello(String serverName) throws Exception {
+        SSLEngine engine = SSLContext.getDefault().createSSLEngine(serverName, 443);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(List.of(new SNIHostName(serverName)));
+        engine.setSSLParameters(parameters);
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+package org.opensource.proxy.tls;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full TLS handshakes per second between a client and a server engine in memory, so only the
+ * crypto and protocol work is measured. {@code provider} picks JDK SSL or OpenSSL (netty-tcnative)
+ * for both sides; with {@code resumption} the client offers the session of the previous handshake,
+ * the way the proxy reconnects to a backend it talked to before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final byte[] PAYLOAD = {1};
+
+    @Param({"jdk", "openssl"})
+    public String provider;
+
+    @Param({"false", "true"})
+    public boolean resumption;
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    public String protocol;
+
+    private SslContext serverContext;
+    private SslContext clientContext;
+    private final ByteBuffer clientToServer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer serverToClient = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer application = ByteBuffer.allocate(64 * 1024);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SslProvider sslProvider = TlsSettings.provider(provider);
+        if (!sslProvider.name().equalsIgnoreCase(provider)) {
+            throw new IllegalStateException(provider + " is not available on this host");
+        }
+        try (InputStream cert = resource("tls/server.crt"); InputStream key = resource("tls/server.key")) {
+            serverContext = SslContextBuilder.forServer(cert, key).sslProvider(sslProvider).protocols(protocol).build();
+        }
+        try (InputStream ca = resource("tls/ca.crt")) {
+            clientContext = SslContextBuilder.forClient().sslProvider(sslProvider).protocols(protocol).trustManager(ca).build();
+        }
+        // As TlsSettings does for upstreamTlsResumption.
+        if (resumption && clientContext.sessionContext() instanceof OpenSslSessionContext sessions) {
+            sessions.setSessionCacheEnabled(true);
+        }
+    }
+
+    @Benchmark
+    public SSLEngine handshake() throws Exception {
+        SSLEngine client = resumption
+                ? clientContext.newEngine(ByteBufAllocator.DEFAULT, "localhost", 8443)
+                : clientContext.newEngine(ByteBufAllocator.DEFAULT);
+        SSLEngine server = serverContext.newEngine(ByteBufAllocator.DEFAULT);
+        try {
+            clientToServer.clear();
+            serverToClient.clear();
+            client.beginHandshake();
+            server.beginHandshake();
+            while (handshaking(client) || handshaking(server)) {
+                step(client, serverToClient, clientToServer);
+                step(server, clientToServer, serverToClient);
+            }
+            // TLS 1.3 tickets arrive after the handshake, BoringSSL sends them with the first record.
+            server.wrap(ByteBuffer.wrap(PAYLOAD), serverToClient);
+            step(client, serverToClient, clientToServer);
+            return client;
+        } finally {
+            ReferenceCountUtil.release(client);
+            ReferenceCountUtil.release(server);
+        }
+    }
+
+    private static boolean handshaking(SSLEngine engine) {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Feeds {@code engine} what the peer wrote, then lets it write its own next flight.
+     */
+    private void step(SSLEngine engine, ByteBuffer in, ByteBuffer out) throws SSLException {
+        in.flip();
+        while (in.hasRemaining()) {
+            application.clear();
+            if (engine.unwrap(in, application).bytesConsumed() == 0) {
+                break;
+            }
+            runTasks(engine);
+        }
+        in.compact();
+        for (;;) {
+            if (engine.wrap(EMPTY, out).bytesProduced() == 0) {
+                break;
+            }
+            runTasks(engine);
+        }
+        runTasks(engine);
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static InputStream resource(String name) {
+        return TlsHandshakeBenchmark.class.getClassLoader().getResourceAsStream(name);
+    }
+}
@@ -0,0 +1,96 @@
+package org.opensource.proxy.udp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flow lookup of a UDP listener at hundreds of thousands of clients, in the {@link FlowTable}
+ * and in a {@code HashMap} keyed by {@link InetSocketAddress} as a baseline. Each lookup uses a
+ * new address equal to the key, as the sender of a received datagram is, in random order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowTableBenchmark {
+
+    private static final int LOOKUPS = 1 << 16;
+
+    @Param({"100000", "500000"})
+    public int flows;
+
+    private EventLoopRuntime runtime;
+    private FlowTable table;
+    private Map<InetSocketAddress, UdpFlow> hashMap;
+    private InetSocketAddress[] senders;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException {
+        runtime = new EventLoopRuntime(1, 1);
+        RouteTarget target = new RouteTarget(runtime, new RouterConfig("bench", 28006, "127.0.0.1", 28601, "", RouteOptions.parse("mode=udp")));
+        table = new FlowTable();
+        hashMap = new HashMap<>();
+        InetSocketAddress[] clients = new InetSocketAddress[flows];
+        for (int i = 0; i < flows; i++) {
+            // A few thousand hosts behind each /16, every one with several source ports.
+            InetAddress address = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+            clients[i] = new InetSocketAddress(address, 1024 + i % 50_000);
+            UdpFlow flow = new UdpFlow(table, null, clients[i], target, target.getBackendNodes().get(0));
+            table.put(flow);
+            hashMap.put(clients[i], flow);
+        }
+        Random random = new Random(42);
+        senders = new InetSocketAddress[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            InetSocketAddress client = clients[random.nextInt(flows)];
+            senders[i] = new InetSocketAddress(client.getAddress(), client.getPort());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        runtime.shutdown();
+    }
+
+    private InetSocketAddress nextSender() {
+        InetSocketAddress sender = senders[next];
+        next = next + 1 & LOOKUPS - 1;
+        return sender;
+    }
+
+    @Benchmark
+    public UdpFlow flowTable() {
+        return table.get(nextSender());
+    }
+
+    @Benchmark
+    public UdpFlow hashMap() {
+        return hashMap.get(nextSender());
+    }
+}
@@ -0,0 +1,131 @@
+package org.opensource.proxy.udp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datagrams per second through a {@code mode=udp} route and straight to the backend. Every
+ * benchmark thread is one client flow with one datagram in flight, so each operation is a
+ * datagram relayed each way: the proxy forwards twice the reported rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class UdpRelayBenchmark {
+
+    private static final int ECHO_PORT = 28600;
+    private static final int ROUTE_PORT = 28005;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean viaProxy;
+
+    private EventLoopGroup echoGroup;
+    private Channel echo;
+    private EventLoopRuntime runtime;
+    private RouterServer routerServer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Transport transport = Transport.select("auto");
+        echoGroup = transport.newEventLoopGroup(1, new DefaultThreadFactory("udp-echo", true));
+        echo = new Bootstrap()
+                .group(echoGroup)
+                .channel(transport.datagramChannelClass())
+                .handler(new EchoHandler())
+                .bind(ECHO_PORT).sync().channel();
+        runtime = new EventLoopRuntime(transport, 1, 1);
+        routerServer = new RouterServer(runtime, new RouterConfig("bench", ROUTE_PORT, "127.0.0.1", ECHO_PORT,
+                "UDP relay benchmark", RouteOptions.parse("mode=udp")));
+        routerServer.runDaemon();
+        routerServer.whenBound().get(5, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        routerServer.shutdown();
+        runtime.shutdown();
+        echo.close().sync();
+        echoGroup.shutdownGracefully();
+    }
+
+    @Benchmark
+    public int roundTrip(Client client) throws IOException {
+        client.payload.clear();
+        client.channel.write(client.payload);
+        client.received.clear();
+        return client.channel.read(client.received);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private DatagramChannel channel;
+        private ByteBuffer payload;
+        private ByteBuffer received;
+
+        @Setup(Level.Trial)
+        public void open(UdpRelayBenchmark benchmark) throws IOException {
+            channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress("127.0.0.1", benchmark.viaProxy ? ROUTE_PORT : ECHO_PORT));
+            payload = ByteBuffer.allocateDirect(benchmark.payloadSize);
+            received = ByteBuffer.allocateDirect(benchmark.payloadSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            ctx.write(new DatagramPacket(packet.content(), packet.sender()));
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.MaxMessagesRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.Locale;
+
+/**
+ * Per-route buffer profile of both sides of a connection, read from {@link RouteOptions}:
+ * <ul>
+ *     <li>{@code bufferProfile} - starting point for the options below: {@code default} keeps
+ *     Netty's sizes, {@code rpc} reads into small buffers (64 to 4096 bytes, starting at 512),
+ *     {@code bulk} into large ones (4 KiB to 1 MiB, starting at 64 KiB)</li>
+ *     <li>{@code allocator} - {@code pooled} direct buffers from the shared arenas, default, or
+ *     {@code unpooled} direct buffers freed on release</li>
+ *     <li>{@code recvBufMin}, {@code recvBufInitial}, {@code recvBufMax} - bounds of the adaptive
+ *     read buffer, which grows after reads that filled it and shrinks after short ones</li>
+ *     <li>{@code recvBufFixed} - read into buffers of exactly this size instead</li>
+ *     <li>{@code maxMessagesPerRead} - buffers one read loop may return, only with {@code flush=batch};
+ *     default 16</li>
+ *     <li>{@code soSndBuf}, {@code soRcvBuf} - SO_SNDBUF and SO_RCVBUF in bytes, 0 leaves the
+ *     kernel's autotuning on</li>
+ * </ul>
+ * Client connections take the profile of the route that serves them; in {@code mode=http} that of
+ * the port's first route.
+ */
+public final class BufferSettings {
+
+    private final ByteBufAllocator allocator;
+    private final RecvByteBufAllocator recvAllocator;
+    private final int soSndBuf;
+    private final int soRcvBuf;
+
+    /**
+     * @throws IllegalArgumentException if a size is out of range or the profile is unknown
+     */
+    public BufferSettings(RouteOptions options) {
+        String profile = options.getString("bufferProfile", "default").trim().toLowerCase(Locale.ROOT);
+        int[] sizes = switch (profile) {
+            case "default" -> new int[]{64, 2048, 65536};
+            case "rpc" -> new int[]{64, 512, 4096};
+            case "bulk" -> new int[]{4096, 65536, 1024 * 1024};
+            default -> throw new IllegalArgumentException("Unknown buffer profile: " + profile);
+        };
+        String allocatorName = options.getString("allocator", "pooled").trim().toLowerCase(Locale.ROOT);
+        this.allocator = switch (allocatorName) {
+            case "pooled" -> PooledByteBufAllocator.DEFAULT;
+            case "unpooled" -> UnpooledByteBufAllocator.DEFAULT;
+            default -> throw new IllegalArgumentException("Unknown allocator: " + allocatorName);
+        };
+
+        int fixed = size(options, "recvBufFixed", 0);
+        MaxMessagesRecvByteBufAllocator recv;
+        if (fixed > 0) {
+            recv = new FixedRecvByteBufAllocator(fixed);
+        } else {
+            int min = size(options, "recvBufMin", sizes[0]);
+            int initial = size(options, "recvBufInitial", sizes[1]);
+            int max = size(options, "recvBufMax", sizes[2]);
+            if (min <= 0 || min > initial || initial > max) {
+                throw new IllegalArgumentException("Read buffer sizes must satisfy 0 < recvBufMin <= recvBufInitial <= recvBufMax: "
+                        + min + ", " + initial + ", " + max);
+            }
+            recv = new AdaptiveRecvByteBufAllocator(min, initial, max);
+        }
+        int maxMessages = options.getInt("maxMessagesPerRead", 16);
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("maxMessagesPerRead must be positive: " + maxMessages);
+        }
+        this.recvAllocator = recv.maxMessagesPerRead(maxMessages);
+        this.soSndBuf = size(options, "soSndBuf", 0);
+        this.soRcvBuf = size(options, "soRcvBuf", 0);
+    }
+
+    private static int size(RouteOptions options, String key, int defaultValue) {
+        int value = options.getInt(key, defaultValue);
+        if (value < 0) {
+            throw new IllegalArgumentException(key + " must not be negative: " + value);
+        }
+        return value;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Applies the profile to an accepted client channel, before anything was read from it.
+     */
+    public void apply(ChannelConfig config) {
+        config.setAllocator(allocator);
+        config.setRecvByteBufAllocator(recvAllocator);
+        if (soSndBuf > 0) {
+            config.setOption(ChannelOption.SO_SNDBUF, soSndBuf);
+        }
+        if (soRcvBuf > 0) {
+            config.setOption(ChannelOption.SO_RCVBUF, soRcvBuf);
+        }
+    }
+
+    /**
+     * Applies the profile to upstream connections, so the socket buffers are sized before the
+     * handshake announces the window.
+     */
+    public void applyClient(Bootstrap b) {
+        b.option(ChannelOption.ALLOCATOR, allocator);
+        b.option(ChannelOption.RCVBUF_ALLOCATOR, recvAllocator);
+        if (soSndBuf > 0) {
+            b.option(ChannelOption.SO_SNDBUF, soSndBuf);
+        }
+        if (soRcvBuf > 0) {
+            b.option(ChannelOption.SO_RCVBUF, soRcvBuf);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.opensource.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads of the control plane: API requests, route persistence, bulk changes and the config
+ * file watcher. On Java 21 and later each task gets a virtual thread, so a request waiting for a
+ * disk write or for ports to bind holds no platform thread. Older JVMs fall back to platform
+ * threads. Virtual threads are looked up at runtime, so one build serves both.
+ * <p>
+ * Connections never run here, they stay on the event loops of {@link EventLoopRuntime}.
+ */
+public final class ControlPlane {
+
+    private static final Logger logger = LoggerFactory.getLogger(ControlPlane.class);
+
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private ControlPlane() {
+    }
+
+    /**
+     * @return whether control-plane tasks run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null on a JVM without them
+     */
+    public static Executor virtualExecutor() {
+        return VIRTUAL_THREADS == null ? null : command -> VIRTUAL_THREADS.newThread(command).start();
+    }
+
+    /**
+     * Starts a long-running control-plane task on a thread of its own: a virtual thread if the JVM
+     * has them, a daemon platform thread otherwise.
+     */
+    public static Thread startThread(String name, Runnable task) {
+        Thread thread;
+        if (VIRTUAL_THREADS != null) {
+            thread = VIRTUAL_THREADS.newThread(task);
+            thread.setName(name);
+        } else {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        }
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "control-plane-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            logger.info("Control plane runs on virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 21, or 19 and 20 without --enable-preview.
+            logger.info("Control plane runs on platform threads, virtual threads need Java 21");
+            return null;
+        }
+    }
+}
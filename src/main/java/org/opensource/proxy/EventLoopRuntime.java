@@ -0,0 +1,99 @@
+package org.opensource.proxy;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.timeout.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide event loops shared by every {@link RouterServer}.
+ * <p>
+ * One acceptor group binds all route listeners and one I/O group serves both the accepted
+ * client channels and their upstream channels, so the thread count depends only on the
+ * configured sizes and not on the number of routes or connections. Each I/O event loop also has
+ * one {@link TimerWheel} for the timeouts of its connections, and all of them share one
+ * {@link AccessLog}.
+ */
+public class EventLoopRuntime {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopRuntime.class);
+
+    private final Transport transport;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final AccessLog accessLog;
+    // Written once in the constructor; each wheel is only touched from its own event loop.
+    private final Map<EventLoop, TimerWheel> timerWheels = new IdentityHashMap<>();
+
+    public EventLoopRuntime(int bossThreads, int workerThreads) {
+        this(Transport.NIO, bossThreads, workerThreads);
+    }
+
+    /**
+     * @param transport     channel implementation used by every listener and upstream connection
+     * @param bossThreads   number of acceptor threads, 0 means Netty's default
+     * @param workerThreads number of I/O threads, 0 means Netty's default (2 * cores)
+     */
+    public EventLoopRuntime(Transport transport, int bossThreads, int workerThreads) {
+        this(transport, bossThreads, workerThreads, AccessLog.DISABLED);
+    }
+
+    /**
+     * @param accessLog where relayed connections are recorded; closed by its owner, not by {@link #shutdown()}
+     */
+    public EventLoopRuntime(Transport transport, int bossThreads, int workerThreads, AccessLog accessLog) {
+        this.transport = transport;
+        this.accessLog = accessLog;
+        this.bossGroup = transport.newEventLoopGroup(bossThreads, new DefaultThreadFactory("router-boss", true));
+        this.workerGroup = transport.newEventLoopGroup(workerThreads, new DefaultThreadFactory("router-worker", true));
+        for (EventExecutor executor : workerGroup) {
+            timerWheels.put((EventLoop) executor, new TimerWheel((EventLoop) executor));
+        }
+        logger.info("Event loop runtime started on {} with {} boss and {} worker threads",
+                transport, countExecutors(bossGroup), countExecutors(workerGroup));
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    /**
+     * @param loop an I/O event loop of this runtime
+     */
+    public TimerWheel getTimerWheel(EventLoop loop) {
+        return timerWheels.get(loop);
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public void shutdown() {
+        logger.info("Shutting down event loop runtime...");
+        workerGroup.shutdownGracefully();
+        bossGroup.shutdownGracefully();
+    }
+
+    private static int countExecutors(EventLoopGroup group) {
+        int count = 0;
+        for (Object ignored : group) {
+            count++;
+        }
+        return count;
+    }
+}
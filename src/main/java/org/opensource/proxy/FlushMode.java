@@ -0,0 +1,30 @@
+package org.opensource.proxy;
+
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.Locale;
+
+/**
+ * When a TCP relay flushes what it read from one side to the other, chosen with the {@code flush}
+ * route option.
+ */
+public enum FlushMode {
+
+    /** Flushes every buffer as it is read, then asks for the next read once the flush is done. */
+    READ,
+
+    /**
+     * Reads on its own while the peer is writable, so one read loop returns up to {@code maxMessagesPerRead} buffers, and
+     * flushes them together with one gathering write once the loop is done.
+     */
+    BATCH;
+
+    public static FlushMode of(RouteOptions options) {
+        String mode = options.getString("flush", "read").trim().toLowerCase(Locale.ROOT);
+        return switch (mode) {
+            case "read" -> READ;
+            case "batch" -> BATCH;
+            default -> throw new IllegalArgumentException("Unknown flush mode: " + mode);
+        };
+    }
+}
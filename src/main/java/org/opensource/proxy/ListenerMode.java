@@ -0,0 +1,41 @@
+package org.opensource.proxy;
+
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.Locale;
+
+/**
+ * How a listener treats the bytes of a client connection, chosen with the {@code mode} route option.
+ */
+public enum ListenerMode {
+
+    /** Relays raw bytes to the single route of the port. */
+    TCP,
+
+    /** Decodes HTTP/1.1 and routes every request on its Host header and path, so routes can share a port. */
+    HTTP,
+
+    /** Routes each connection on its first bytes (TLS SNI, HTTP Host, PROXY header), then relays raw bytes. */
+    SNIFF,
+
+    /** Relays datagrams to the single route of the port, each client address over its own upstream socket. */
+    UDP;
+
+    public static ListenerMode of(RouteOptions options) {
+        String mode = options.getString("mode", "tcp").trim().toLowerCase(Locale.ROOT);
+        return switch (mode) {
+            case "tcp" -> TCP;
+            case "http" -> HTTP;
+            case "sniff" -> SNIFF;
+            case "udp" -> UDP;
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        };
+    }
+
+    /**
+     * @return whether several routes may listen on one port in this mode
+     */
+    public boolean canSharePort() {
+        return this != TCP && this != UDP;
+    }
+}
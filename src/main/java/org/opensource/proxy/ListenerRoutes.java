@@ -0,0 +1,121 @@
+package org.opensource.proxy;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.DomainWildcardMappingBuilder;
+import io.netty.util.Mapping;
+import org.opensource.proxy.http.HttpRouteMatcher;
+import org.opensource.proxy.sniff.SniffRouteMatcher;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The targets one listener serves at a point in time. Immutable, so a listener swaps the whole
+ * set at once and a connection sees either the old or the new routes, never a mix.
+ */
+public final class ListenerRoutes {
+
+    private final ListenerMode mode;
+    private final List<RouteTarget> targets;
+    private final Map<String, RouteTarget> byName = new HashMap<>();
+    private final HttpRouteMatcher httpMatcher;
+    private final SniffRouteMatcher sniffMatcher;
+    private final Mapping<String, SslContext> sniMapping;
+
+    /**
+     * @throws IllegalArgumentException if the routes cannot share the port
+     */
+    ListenerRoutes(ListenerMode mode, List<RouteTarget> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("A listener needs at least one route");
+        }
+        if (targets.size() > 1 && !mode.canSharePort()) {
+            throw new IllegalArgumentException("Only routes in a port-sharing mode can share port "
+                    + targets.get(0).getConfig().getEnterPort());
+        }
+        this.mode = mode;
+        this.targets = Collections.unmodifiableList(targets);
+        for (RouteTarget target : targets) {
+            byName.put(target.getConfig().getRoutingName(), target);
+        }
+        this.httpMatcher = mode == ListenerMode.HTTP ? new HttpRouteMatcher(targets) : null;
+        this.sniffMatcher = mode == ListenerMode.SNIFF ? new SniffRouteMatcher(targets) : null;
+        this.sniMapping = mode == ListenerMode.HTTP ? buildSniMapping(targets) : null;
+    }
+
+    public ListenerMode getMode() {
+        return mode;
+    }
+
+    public List<RouteTarget> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return the target of this routing name, or null
+     */
+    public RouteTarget get(String routingName) {
+        return byName.get(routingName);
+    }
+
+    /**
+     * @return the only target of a TCP listener
+     */
+    public RouteTarget getDefault() {
+        return targets.get(0);
+    }
+
+    /**
+     * @return the Host and path lookup of an HTTP listener, null in other modes
+     */
+    public HttpRouteMatcher getHttpMatcher() {
+        return httpMatcher;
+    }
+
+    /**
+     * TLS is decided per connection before any request is read, so either every HTTP route of a
+     * port terminates TLS or none does. Each route's certificate is picked by SNI from its host;
+     * clients without SNI or with an unknown name get the certificate of the first route.
+     */
+    private static Mapping<String, SslContext> buildSniMapping(List<RouteTarget> targets) {
+        RouteTarget first = targets.get(0);
+        for (RouteTarget target : targets) {
+            if (target.getTls().isTerminating() != first.getTls().isTerminating()) {
+                throw new IllegalArgumentException("Either all or none of the HTTP routes on port "
+                        + first.getConfig().getEnterPort() + " must have a TLS certificate");
+            }
+        }
+        if (!first.getTls().isTerminating()) {
+            return null;
+        }
+        DomainWildcardMappingBuilder<SslContext> builder = new DomainWildcardMappingBuilder<>(first.getTls().getServerContext());
+        Set<String> hosts = new HashSet<>();
+        for (RouteTarget target : targets) {
+            String host = target.getConfig().getOptions().getString("host", "").trim().toLowerCase(Locale.ROOT);
+            // Routes of one host with different path prefixes share the certificate of the first.
+            if (!host.isEmpty() && hosts.add(host)) {
+                builder.add(host, target.getTls().getServerContext());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the certificate lookup of an HTTP listener terminating TLS, null otherwise
+     */
+    public Mapping<String, SslContext> getSniMapping() {
+        return sniMapping;
+    }
+
+    /**
+     * @return the first-bytes lookup of a sniffing listener, null in other modes
+     */
+    public SniffRouteMatcher getSniffMatcher() {
+        return sniffMatcher;
+    }
+}
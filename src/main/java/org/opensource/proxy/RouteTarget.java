@@ -0,0 +1,223 @@
+package org.opensource.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.admission.AdmissionControl;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.balancer.LoadBalancer;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.connection.CaptureSettings;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.health.BackendHealth;
+import org.opensource.proxy.health.HealthChecker;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.proxyprotocol.ProxyProtocolSettings;
+import org.opensource.proxy.timeout.TimerWheel;
+import org.opensource.proxy.timeout.TimeoutSettings;
+import org.opensource.proxy.tls.TlsSettings;
+import org.opensource.proxy.udp.UdpSettings;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Where a listener sends its connections: the backends of one version of a route with their
+ * pools, balancer and health checks. A target is immutable once built. A route change swaps
+ * in a new target. Connections that were opened on the old one keep their upstream channels
+ * and drain there, while its pools and health checks are retired.
+ */
+public class RouteTarget {
+
+    private final EventLoopRuntime runtime;
+    private final RouterConfig config;
+    private final SocketSettings socketSettings;
+    private final FlushMode flushMode;
+    private final BufferSettings buffers;
+    private final TlsSettings tls;
+    private final TimeoutSettings timeouts;
+    private final UdpSettings udp;
+    private final ProxyProtocolSettings proxyProtocol;
+    private final AdmissionControl admission;
+    private final AccessLog accessLog;
+    private final CaptureSettings capture;
+    private final List<BackendNode> backendNodes;
+    private final UpstreamPool[] upstreamPools;
+    private final LoadBalancer loadBalancer;
+    private final HealthChecker healthChecker;
+    private final RouteMetrics metrics;
+    // Open client connections of the route, kept across its versions like the metrics.
+    private final ChannelGroup connections;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Builds the target without opening any connection, so it also serves to validate a route.
+     *
+     * @throws IllegalArgumentException if the route options are invalid
+     */
+    public RouteTarget(EventLoopRuntime runtime, RouterConfig config) {
+        this(runtime, config, new RouteMetrics());
+    }
+
+    /**
+     * @param metrics counters to continue, so a route keeps its metrics across versions
+     */
+    public RouteTarget(EventLoopRuntime runtime, RouterConfig config, RouteMetrics metrics) {
+        this(runtime, config, metrics, new DefaultChannelGroup(config.getRoutingName(), GlobalEventExecutor.INSTANCE));
+    }
+
+    /**
+     * @param connections open connections of the route to continue
+     */
+    public RouteTarget(EventLoopRuntime runtime, RouterConfig config, RouteMetrics metrics, ChannelGroup connections) {
+        this.runtime = runtime;
+        this.config = config;
+        this.metrics = metrics;
+        this.connections = connections;
+        this.socketSettings = new SocketSettings(config.getOptions());
+        this.flushMode = FlushMode.of(config.getOptions());
+        this.buffers = new BufferSettings(config.getOptions());
+        this.tls = TlsSettings.of(config.getOptions());
+        this.timeouts = new TimeoutSettings(config.getOptions());
+        this.udp = new UdpSettings(config.getOptions());
+        this.proxyProtocol = new ProxyProtocolSettings(config.getOptions());
+        this.admission = new AdmissionControl(config.getRoutingName(), config.getOptions(), metrics);
+        this.accessLog = config.getOptions().getBoolean("accessLog", true) ? runtime.getAccessLog() : AccessLog.DISABLED;
+        this.capture = new CaptureSettings(config.getRoutingName(), config.getOptions());
+        List<Backend> backends = config.getBackends();
+        List<BackendNode> nodes = new ArrayList<>(backends.size());
+        this.upstreamPools = new UpstreamPool[backends.size()];
+        for (int i = 0; i < backends.size(); i++) {
+            BackendHealth health = new BackendHealth(config.getRoutingName() + "/" + backends.get(i), config.getOptions());
+            nodes.add(new BackendNode(i, backends.get(i), health));
+            upstreamPools[i] = new UpstreamPool(this, backends.get(i), runtime.getWorkerGroup());
+        }
+        this.backendNodes = Collections.unmodifiableList(nodes);
+        this.loadBalancer = LoadBalancer.create(config.getOptions().getString("lb", "round-robin"), backendNodes);
+        this.healthChecker = new HealthChecker(backendNodes, config.getOptions(), runtime);
+    }
+
+    public RouterConfig getConfig() {
+        return config;
+    }
+
+    Transport getTransport() {
+        return runtime.getTransport();
+    }
+
+    SocketSettings getSocketSettings() {
+        return socketSettings;
+    }
+
+    FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    public BufferSettings getBuffers() {
+        return buffers;
+    }
+
+    public TlsSettings getTls() {
+        return tls;
+    }
+
+    public TimeoutSettings getTimeouts() {
+        return timeouts;
+    }
+
+    public UdpSettings getUdp() {
+        return udp;
+    }
+
+    public ProxyProtocolSettings getProxyProtocol() {
+        return proxyProtocol;
+    }
+
+    public TimerWheel getTimerWheel(EventLoop loop) {
+        return runtime.getTimerWheel(loop);
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return the runtime's access log, or a disabled one if the route opted out with {@code accessLog=false}
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public CaptureSettings getCapture() {
+        return capture;
+    }
+
+    /**
+     * @return the open client connections of this route, those of its earlier versions included
+     */
+    public ChannelGroup getConnections() {
+        return connections;
+    }
+
+    /**
+     * Registers a client connection with this route once it is routed here, and starts capturing it
+     * if it is sampled. Must run on the channel's event loop.
+     *
+     * @param client the client, the PROXY header's source when accepted with one
+     */
+    public ConnectionInfo track(Channel channel, SocketAddress client) {
+        ConnectionInfo info = new ConnectionInfo(config.getRoutingName(), client, capture);
+        info.attach(channel);
+        connections.add(channel);
+        if (capture.sample()) {
+            info.startCapture(channel, 0);
+        }
+        return info;
+    }
+
+    public List<BackendNode> getBackendNodes() {
+        return backendNodes;
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public RouteMetrics getMetrics() {
+        return metrics;
+    }
+
+    public UpstreamPool getUpstreamPool(BackendNode node) {
+        return upstreamPools[node.getIndex()];
+    }
+
+    void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (UpstreamPool upstreamPool : upstreamPools) {
+            upstreamPool.start();
+        }
+        healthChecker.start();
+        admission.start(runtime.getWorkerGroup());
+    }
+
+    /**
+     * Stops the health checks and route-wide shaping and closes the idle pooled channels. Connections already relaying
+     * through this target are left alone and close on their own.
+     */
+    void retire() {
+        healthChecker.stop();
+        for (UpstreamPool upstreamPool : upstreamPools) {
+            upstreamPool.close();
+        }
+        admission.release();
+    }
+}
@@ -1,58 +1,309 @@
 package org.opensource.proxy;
 
-import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FutureListener;
+import org.opensource.proxy.accesslog.CloseReason;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.connection.CaptureHandler;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.proxyprotocol.ProxyHeader;
+import org.opensource.proxy.timeout.ConnectionTimeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 public class RouterClientHandler extends ChannelInboundHandlerAdapter {
 
-    private final String host;
-    private final int port;
+    private final RouterServer routerServer;
+    // Set when the route was already chosen, for example by sniffing the first bytes.
+    private final RouteTarget routeTarget;
+    // Bytes read from the client before this handler took over, sent ahead of everything else.
+    private ByteBuf firstBytes;
     private Channel outboundChannel;
+    private BackendNode backend;
+    private RouteTarget target;
+    private RouteMetrics metrics;
+    private long openedAt;
+    // Start, backend and bytes each way, for the connection API and the access log.
+    private ConnectionInfo connection;
+    // For the access log: why the connection ended if known before it closed.
+    private RouterServerHandler upstreamHandler;
+    private CloseReason closeReason;
+    // Whether the client sent a FIN before the upstream did, which with half-close leads to the upstream closing first.
+    private boolean clientFinishedFirst;
+    private ConnectionTimeout timeout;
+    // Whether a FIN is passed on instead of closing both sides, and whether the client sent one before the relay started.
+    private boolean halfClose;
+    private boolean clientInputShutdown;
+    // Whether reads are flushed once per read loop, and whether the current loop wrote anything.
+    private boolean batchFlush;
+    private boolean flushPending;
+    // With FlushMode.READ, resumes reading from the client once a write to the upstream is done; one per connection.
+    private ChannelFutureListener relayed;
+    // Whether the PROXY header is written to the upstream but not flushed yet.
+    private boolean headerPending;
     private static final Logger logger = LoggerFactory.getLogger(RouterClientHandler.class);
 
-    public RouterClientHandler(String host, int port) {
-        this.host = host;
-        this.port = port;
+    // How long a PROXY header waits for client bytes to share a packet with, for protocols where the server speaks first.
+    private static final long HEADER_FLUSH_DELAY_MILLIS = 10;
+
+    public RouterClientHandler(RouterServer routerServer) {
+        this(routerServer, null, null);
+    }
+
+    /**
+     * @param routeTarget the route of this connection, or null for the listener's route
+     * @param firstBytes bytes already read from the client, or null; released by this handler
+     */
+    public RouterClientHandler(RouterServer routerServer, RouteTarget routeTarget, ByteBuf firstBytes) {
+        this.routerServer = routerServer;
+        this.routeTarget = routeTarget;
+        this.firstBytes = firstBytes;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        Channel inbound = ctx.channel();
+        relayed = future -> {
+            if (future.isSuccess()) {
+                // Keep reading only while the upstream still accepts writes,
+                // otherwise RouterServerHandler resumes us once it drains.
+                if (future.channel().isWritable()) {
+                    inbound.read();
+                }
+            } else {
+                future.channel().close();
+            }
+        };
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        EventLoopGroup group = new NioEventLoopGroup();
-        Bootstrap b = new Bootstrap();
-        b.group(group)
-         .channel(NioSocketChannel.class)
-         .handler(new ChannelInitializer<SocketChannel>() {
-             @Override
-             public void initChannel(SocketChannel ch) throws Exception {
-                 ch.pipeline().addLast(new RouterServerHandler(ctx.channel()));
-             }
-         });
+        final Channel inboundChannel = ctx.channel();
+        // The target is looked up per connection, so route changes apply to new connections only.
+        final RouteTarget target = routeTarget != null ? routeTarget : routerServer.getRoutes().getDefault();
+        final RouteMetrics metrics = target.getMetrics();
+        final long connectStart = System.nanoTime();
+        this.target = target;
+        this.metrics = metrics;
+        openedAt = connectStart;
+        metrics.connectionAccepted();
+        final ConnectionInfo connection = target.track(inboundChannel, ProxyHeader.clientAddress(inboundChannel));
+        this.connection = connection;
+        CaptureHandler capture = connection.getCapture();
+        if (capture != null && firstBytes != null) {
+            capture.record(true, firstBytes);
+        }
+        // splice(2) and TLS cannot pass a FIN on in one direction only.
+        halfClose = target.getTimeouts().isHalfClose() && !target.getSocketSettings().isSplice()
+                && !target.getTls().isTerminating() && !target.getTls().isOriginating();
+        if (halfClose) {
+            inboundChannel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        }
+        batchFlush = target.getFlushMode() == FlushMode.BATCH;
+        timeout = ConnectionTimeout.start(target.getTimerWheel(inboundChannel.eventLoop()), target.getTimeouts(), inboundChannel);
+        final BackendNode backend = target.getLoadBalancer().select(ProxyHeader.clientAddress(inboundChannel));
+        this.backend = backend;
+        backend.connectionOpened();
 
-        ChannelFuture f = b.connect(host, port).sync();
-        outboundChannel = f.channel();
+        // The upstream is registered on the inbound channel's event loop so both sides of the relay
+        // stay on one thread, and acquiring it never blocks: the loop is shared with every other connection.
+        target.getUpstreamPool(backend).acquire(inboundChannel.eventLoop()).addListener((FutureListener<Channel>) future -> {
+            if (!future.isSuccess()) {
+                logger.warn("Failed to connect to {}", backend, future.cause());
+                // Only I/O errors count against the backend, not our own connection cap.
+                if (future.cause() instanceof IOException) {
+                    backend.getHealth().recordFailure();
+                    metrics.upstreamConnectFailed();
+                    closeReason = CloseReason.CONNECT_FAILED;
+                } else {
+                    metrics.connectionRejected();
+                    closeReason = CloseReason.REJECTED;
+                }
+                inboundChannel.close();
+                return;
+            }
+            backend.getHealth().recordSuccess();
+            metrics.upstreamConnected(System.nanoTime() - connectStart);
+            Channel channel = future.getNow();
+            if (!inboundChannel.isActive()) {
+                // The client went away while we were connecting.
+                channel.close();
+                return;
+            }
+            outboundChannel = channel;
+            connection.setBackend(channel.remoteAddress());
+            if (timeout != null) {
+                timeout.setUpstream(channel);
+            }
+            target.getAdmission().shapeUpstream(channel);
+            ByteBuf header = target.getProxyProtocol().encodeHeader(channel.alloc(), inboundChannel);
+            if (header != null) {
+                // Ahead of any TLS handler, and flushed with the first bytes or the ClientHello that follow.
+                channel.write(header, channel.voidPromise());
+                headerPending = !target.getTls().isOriginating();
+            }
+            if (target.getTls().isOriginating()) {
+                // Writes queue in the SslHandler until the handshake with the backend is done.
+                outboundChannel.pipeline().addLast(target.getTls().newUpstreamHandler(channel.alloc(), backend.getBackend()));
+            }
+            upstreamHandler = new RouterServerHandler(inboundChannel, backend, metrics, timeout, target.getFlushMode(), connection);
+            outboundChannel.pipeline().addLast(upstreamHandler);
+            if (firstBytes != null) {
+                ByteBuf bytes = firstBytes;
+                firstBytes = null;
+                headerPending = false;
+                metrics.bytesIn(bytes.readableBytes());
+                connection.addBytesIn(bytes.readableBytes());
+                // Relaying starts once they are written, so nothing can overtake them.
+                outboundChannel.writeAndFlush(bytes).addListener((ChannelFutureListener) written -> {
+                    if (written.isSuccess()) {
+                        startRelay(target, inboundChannel, written.channel());
+                    } else {
+                        written.channel().close();
+                    }
+                });
+            } else {
+                startRelay(target, inboundChannel, outboundChannel);
+            }
+        });
+    }
+
+    private void startRelay(RouteTarget target, Channel inboundChannel, Channel outboundChannel) {
+        // splice(2) would move the encrypted bytes, so TLS routes always copy through buffers.
+        boolean tls = target.getTls().isTerminating() || target.getTls().isOriginating();
+        if (target.getSocketSettings().isSplice() && !tls && inboundChannel instanceof EpollSocketChannel
+                && outboundChannel instanceof EpollSocketChannel) {
+            if (headerPending) {
+                // splice(2) writes to the socket directly, so the header cannot wait for the first bytes.
+                headerPending = false;
+                outboundChannel.flush();
+            }
+            splice((EpollSocketChannel) inboundChannel, (EpollSocketChannel) outboundChannel);
+        } else {
+            if (headerPending) {
+                outboundChannel.eventLoop().schedule(() -> {
+                    if (headerPending) {
+                        headerPending = false;
+                        outboundChannel.flush();
+                    }
+                }, HEADER_FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (halfClose) {
+                outboundChannel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+            }
+            // Connection complete, start to read the first data from both sides.
+            resumeReading(inboundChannel, batchFlush);
+            resumeReading(outboundChannel, batchFlush);
+            if (clientInputShutdown) {
+                shutdownOutputOnFlush(inboundChannel, outboundChannel);
+            }
+        }
+    }
+
+    /**
+     * Moves bytes kernel-to-kernel in both directions with splice(2). Both channels are on the
+     * same event loop and were registered level-triggered by {@link SocketSettings}; reads are
+     * driven by the splice tasks, so channelRead is never called for this connection and its
+     * bytes are not counted in the route metrics.
+     */
+    private static void splice(EpollSocketChannel inbound, EpollSocketChannel outbound) {
+        inbound.config().setAutoRead(true);
+        outbound.config().setAutoRead(true);
+        ChannelFutureListener closeOnFailure = future -> {
+            if (!future.isSuccess()) {
+                closeOnFlush(inbound);
+                closeOnFlush(outbound);
+            }
+        };
+        inbound.spliceTo(outbound, Integer.MAX_VALUE).addListener(closeOnFailure);
+        outbound.spliceTo(inbound, Integer.MAX_VALUE).addListener(closeOnFailure);
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (outboundChannel.isActive()) {
-            outboundChannel.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
-                if (future.isSuccess()) {
-                    ctx.channel().read();
-                } else {
-                    future.channel().close();
-                }
-            });
+        if (timeout != null) {
+            timeout.readFromClient();
+        }
+        if (outboundChannel == null && msg instanceof ByteBuf) {
+            // Still connecting the upstream, for example TLS application data that came with the handshake.
+            firstBytes = firstBytes == null ? (ByteBuf) msg : Unpooled.wrappedBuffer(firstBytes, (ByteBuf) msg);
+            return;
+        }
+        if (msg instanceof ByteBuf) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            metrics.bytesIn(bytes);
+            connection.addBytesIn(bytes);
+        }
+        headerPending = false;
+        if (!outboundChannel.isActive()) {
+            ReferenceCountUtil.release(msg);
+        } else if (batchFlush) {
+            outboundChannel.write(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            flushPending = true;
+            if (!outboundChannel.isWritable()) {
+                // Ends the read loop; RouterServerHandler turns reading back on once the upstream drains.
+                ctx.channel().config().setAutoRead(false);
+            }
+        } else {
+            outboundChannel.writeAndFlush(msg).addListener(relayed);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (flushPending) {
+            flushPending = false;
+            outboundChannel.flush();
         }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            // The client is done sending but may still read the rest of the response.
+            clientFinishedFirst = upstreamHandler == null || !upstreamHandler.isInputShutdown();
+            if (outboundChannel != null) {
+                shutdownOutputOnFlush(ctx.channel(), outboundChannel);
+            } else {
+                clientInputShutdown = true;
+            }
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // The client drained below the low water mark, so pull more from the upstream.
+        if (ctx.channel().isWritable() && outboundChannel != null && outboundChannel.isActive()) {
+            resumeReading(outboundChannel, batchFlush);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (firstBytes != null) {
+            firstBytes.release();
+            firstBytes = null;
+        }
+        if (metrics != null) {
+            metrics.connectionClosed(System.nanoTime() - openedAt);
+            logAccess();
+        }
+        if (backend != null) {
+            backend.connectionClosed();
+        }
         if (outboundChannel != null) {
             closeOnFlush(outboundChannel);
         }
@@ -60,13 +311,77 @@ public class RouterClientHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        logger.error("Exception caught", cause);
+        if (cause instanceof IOException) {
+            // Resets are how many clients hang up; the access log has the record.
+            logger.debug("Client connection failed", cause);
+            closeReason = closeReason != null ? closeReason : CloseReason.CLIENT_CLOSED;
+        } else {
+            logger.error("Exception caught", cause);
+            closeReason = closeReason != null ? closeReason : CloseReason.CLIENT_ERROR;
+        }
         closeOnFlush(ctx.channel());
     }
 
+    private void logAccess() {
+        CloseReason reason = closeReason;
+        if (reason == null) {
+            if (timeout != null && timeout.isExpired()) {
+                reason = CloseReason.TIMEOUT;
+            } else if (upstreamHandler != null && upstreamHandler.isFailed()) {
+                reason = CloseReason.UPSTREAM_ERROR;
+            } else if (outboundChannel != null && !outboundChannel.isActive() && !clientFinishedFirst) {
+                reason = CloseReason.UPSTREAM_CLOSED;
+            } else {
+                reason = CloseReason.CLIENT_CLOSED;
+            }
+        }
+        target.getAccessLog().append(connection.getOpenedAtMillis(), (System.nanoTime() - openedAt) / 1000, target.getConfig().getRoutingName(),
+                routerServer.getEnterPort(), connection.getClient(), connection.getBackend(), connection.getBytesIn(),
+                connection.getBytesOut(), reason);
+    }
+
+    /**
+     * Reads more from {@code ch} once its peer can take the bytes. With {@link FlushMode#BATCH} the
+     * channel reads on its own until the peer stops being writable, so a read loop returns several
+     * buffers that are flushed together; otherwise every buffer is read on request.
+     */
+    static void resumeReading(Channel ch, boolean batchFlush) {
+        if (batchFlush) {
+            ch.config().setAutoRead(true);
+        } else {
+            ch.read();
+        }
+    }
+
     static void closeOnFlush(Channel ch) {
         if (ch.isActive()) {
             ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    /**
+     * Passes on the FIN that {@code from} received: {@code to} shuts its output down once everything
+     * read before the FIN is flushed. Both channels close once both directions are shut down.
+     */
+    static void shutdownOutputOnFlush(Channel from, Channel to) {
+        if (!(to instanceof DuplexChannel) || !to.isActive()) {
+            closeOnFlush(to);
+            from.close();
+            return;
+        }
+        DuplexChannel duplex = (DuplexChannel) to;
+        to.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) written -> {
+            if (!written.isSuccess()) {
+                to.close();
+                from.close();
+                return;
+            }
+            duplex.shutdownOutput().addListener(shut -> {
+                if (!shut.isSuccess() || duplex.isInputShutdown()) {
+                    to.close();
+                    from.close();
+                }
+            });
+        });
+    }
 }
@@ -1,111 +1,446 @@
 package org.opensource.proxy;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.http.HttpProxyHandler;
+import org.opensource.proxy.proxyprotocol.ProxyProtocolHandler;
+import org.opensource.proxy.sniff.SniffHandler;
+import org.opensource.proxy.udp.UdpRelayHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
+/**
+ * One listening port and the routes behind it. The whole lifecycle runs on Netty futures: binding,
+ * the close of the port and draining complete in listeners, so no thread waits for a listener.
+ */
 public class RouterServer {
 
     private static final Logger logger = LoggerFactory.getLogger(RouterServer.class);
 
-    private final int port;
-    private final String destination;
-    private final int destinationPort;
-
-    ChannelFuture f;
-    EventLoopGroup bossGroup;
-    EventLoopGroup workerGroup;
-
-    private ScheduledExecutorService executorService;
-
-    public RouterServer(int port, String destination, int destinationPort) {
-        this.port = port;
-        this.destination = destination;
-        this.destinationPort = destinationPort;
-    }
-
-    public void run() throws Exception {
-        bossGroup = new NioEventLoopGroup(); // (1)
-        workerGroup = new NioEventLoopGroup();
-        try {
-            ServerBootstrap b = new ServerBootstrap(); // (2)
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class) // (3)
-             .option(ChannelOption.SO_BACKLOG, 100)
-             .handler(new LoggingHandler(LogLevel.INFO))
-             .childHandler(new ChannelInitializer<SocketChannel>() { // (4)
-                 @Override
-                 public void initChannel(SocketChannel ch) throws Exception {
-                     ch.pipeline().addLast(new RouterClientHandler(destination, destinationPort));
-                 }
-             });
+    // A port closed by another listener is released on the next select of its event loop.
+    private static final int BIND_ATTEMPTS = 10;
+    private static final long BIND_RETRY_MILLIS = 20;
+
+    // Bounds the bytes queued towards a slow peer before reads from the fast side are paused.
+    public static final WriteBufferWaterMark WRITE_BUFFER_WATER_MARK = new WriteBufferWaterMark(32 * 1024, 64 * 1024);
+
+    private final EventLoopRuntime runtime;
+    private final int enterPort;
+    private final ListenerMode mode;
+    // Settings of the listening socket, fixed at bind time. Routes with other settings need a new listener.
+    private final SocketSettings socketSettings;
+    private volatile ListenerRoutes routes;
+    private volatile boolean stopped;
+    private final CompletableFuture<Void> bound = new CompletableFuture<>();
+    private final CompletableFuture<Void> unbound = new CompletableFuture<>();
 
-            // Bind and start to accept incoming connections.
-            f = b.bind(port).sync(); // (5)
+    // Every open client connection of this listener; closed channels leave the group on their own.
+    private final ChannelGroup connections = new DefaultChannelGroup("route-connections", GlobalEventExecutor.INSTANCE);
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+    private volatile long drainDeadlineNanos;
+    private volatile boolean draining;
+    // Set by whichever comes first of the last connection closing and the drain deadline.
+    private final AtomicBoolean drainFinished = new AtomicBoolean();
+    private volatile ScheduledFuture<?> drainDeadline;
+
+    // The latest bind, under this.
+    private ChannelFuture bindFuture;
+    private int bindAttempts;
+
+    public RouterServer(EventLoopRuntime runtime, RouterConfig config) {
+        this(runtime, List.of(config));
+    }
 
-            // Wait until the server socket is closed.
-            // In this example, this does not happen, but you can do that to gracefully
-            // shut down your server.
-            f.channel().closeFuture().sync();
-            logger.info("closed");
-        } finally {
-            workerGroup.shutdownGracefully();
-            bossGroup.shutdownGracefully();
+    /**
+     * @param configs the routes of one enter port, more than one only in a port-sharing mode
+     * @throws IllegalArgumentException if a route is invalid or the routes cannot share the listener
+     */
+    public RouterServer(EventLoopRuntime runtime, List<RouterConfig> configs) {
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("A listener needs at least one route");
+        }
+        RouterConfig first = configs.get(0);
+        this.runtime = runtime;
+        this.enterPort = first.getEnterPort();
+        this.mode = ListenerMode.of(first.getOptions());
+        this.socketSettings = new SocketSettings(first.getOptions());
+        if (!canUpdate(configs)) {
+            throw new IllegalArgumentException("Routes on port " + enterPort + " must use the same mode and socket options");
+        }
+        List<RouteTarget> targets = new ArrayList<>(configs.size());
+        for (RouterConfig config : configs) {
+            targets.add(new RouteTarget(runtime, config));
+        }
+        if (mode == ListenerMode.UDP && (targets.get(0).getTls().isTerminating() || targets.get(0).getTls().isOriginating())) {
+            throw new IllegalArgumentException("Route " + first.getRoutingName() + " cannot use TLS with mode=udp");
+        }
+        for (RouteTarget target : targets) {
+            if (target.getProxyProtocol().isSending() && (mode == ListenerMode.HTTP || mode == ListenerMode.UDP)
+                    || target.getProxyProtocol().isAccepting() && mode != ListenerMode.TCP) {
+                throw new IllegalArgumentException("Route " + target.getConfig().getRoutingName() + " cannot use the PROXY protocol with mode=" + mode.name().toLowerCase(Locale.ROOT));
+            }
         }
+        this.routes = new ListenerRoutes(mode, targets);
     }
 
+    /**
+     * @return the first route of this listener, the only one unless the port is shared
+     */
+    public RouterConfig getConfig() {
+        return routes.getDefault().getConfig();
+    }
+
+    public int getEnterPort() {
+        return enterPort;
+    }
+
+    /**
+     * @return the routes new connections are sent to; connections keep the targets they started with
+     */
+    public ListenerRoutes getRoutes() {
+        return routes;
+    }
+
+    public List<RouteTarget> getTargets() {
+        return routes.getTargets();
+    }
+
+    /**
+     * @return whether this listener holds exactly these routes, field by field
+     */
+    public boolean hasRoutes(List<RouterConfig> configs) {
+        List<RouteTarget> targets = routes.getTargets();
+        if (targets.size() != configs.size()) {
+            return false;
+        }
+        for (int i = 0; i < configs.size(); i++) {
+            if (!configs.get(i).sameAs(targets.get(i).getConfig())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether {@code configs} can be served by this listener without binding it again
+     */
+    public boolean canUpdate(List<RouterConfig> configs) {
+        for (RouterConfig config : configs) {
+            if (config.getEnterPort() != enterPort || ListenerMode.of(config.getOptions()) != mode
+                    || !socketSettings.equals(new SocketSettings(config.getOptions()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends new connections to {@code configs} from now on. Unchanged routes keep their target,
+     * changed ones get a new target that continues the route's metrics and connection registry.
+     * Connections already open stay on their previous target until they close.
+     *
+     * @throws IllegalArgumentException if a route is invalid or needs a new listener
+     */
+    public synchronized void update(List<RouterConfig> configs) {
+        if (!canUpdate(configs)) {
+            throw new IllegalArgumentException("Routes on port " + enterPort + " need a new listener");
+        }
+        ListenerRoutes previous = routes;
+        List<RouteTarget> targets = new ArrayList<>(configs.size());
+        for (RouterConfig config : configs) {
+            RouteTarget existing = previous.get(config.getRoutingName());
+            if (existing != null && existing.getConfig().sameAs(config)) {
+                targets.add(existing);
+            } else {
+                targets.add(existing != null
+                        ? new RouteTarget(runtime, config, existing.getMetrics(), existing.getConnections())
+                        : new RouteTarget(runtime, config));
+            }
+        }
+        ListenerRoutes next = new ListenerRoutes(mode, targets);
+        targets.forEach(RouteTarget::start);
+        routes = next;
+        for (RouteTarget target : previous.getTargets()) {
+            if (!targets.contains(target)) {
+                target.retire();
+            }
+        }
+        logger.info("Port {} now serves {}", enterPort, configs.stream().map(c -> c.getRoutingName() + " -> " + c.getBackends()).toList());
+    }
+
+    /**
+     * Binds the port without waiting for it. The routes start once the port is bound; a drain that
+     * comes first closes the port as soon as it is bound. A port in use is tried again for a short
+     * while, as one just closed by a listener it replaces. Calling it again returns the same future.
+     *
+     * @return completes once the port is bound, or exceptionally if it cannot be
+     */
+    public synchronized CompletableFuture<Void> start() {
+        if (bindFuture == null) {
+            bind();
+        }
+        return bound;
+    }
+
+    private synchronized void bind() {
+        if (stopped) {
+            // Drained before it was bound.
+            bound.complete(null);
+            unbound.complete(null);
+            return;
+        }
+        bindAttempts++;
+        bindFuture = mode == ListenerMode.UDP ? datagramBootstrap().bind(enterPort) : serverBootstrap().bind(enterPort);
+        bindFuture.addListener((ChannelFutureListener) this::bindComplete);
+    }
+
+    private synchronized void bindComplete(ChannelFuture future) {
+        if (!future.isSuccess() && !stopped && future.cause() instanceof BindException
+                && bindAttempts < BIND_ATTEMPTS && !runtime.getBossGroup().isShuttingDown()) {
+            runtime.getBossGroup().schedule(this::bind, BIND_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        // The event loops are shared with every other route, so they stay up after this listener closes.
+        future.channel().closeFuture().addListener(closed -> {
+            unbound.complete(null);
+            logger.info("Port {} closed", enterPort);
+        });
+        if (!future.isSuccess()) {
+            if (stopped) {
+                // Closed by a drain while binding.
+                bound.complete(null);
+            } else {
+                logger.error("Cannot bind port {}", enterPort, future.cause());
+                bound.completeExceptionally(future.cause());
+            }
+            return;
+        }
+        if (!stopped) {
+            routes.getTargets().forEach(RouteTarget::start);
+        }
+        bound.complete(null);
+    }
+
+    private ServerBootstrap serverBootstrap() {
+        ServerBootstrap b = new ServerBootstrap(); // (1)
+        b.group(runtime.getBossGroup(), runtime.getWorkerGroup()) // (2)
+         .channel(runtime.getTransport().serverChannelClass()) // (3)
+         .option(ChannelOption.SO_BACKLOG, 100)
+         .handler(new LoggingHandler(LogLevel.INFO))
+         .childOption(ChannelOption.AUTO_READ, false)
+         .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WRITE_BUFFER_WATER_MARK)
+         .childHandler(new ChannelInitializer<SocketChannel>() { // (4)
+             @Override
+             public void initChannel(SocketChannel ch) throws Exception {
+                 connections.add(ch);
+                 // Added after the group's own listener, so the group no longer holds the channel here.
+                 ch.closeFuture().addListener(closed -> connectionClosed());
+                 // The routes are fixed for this connection here, route changes apply to new connections only.
+                 ListenerRoutes current = routes;
+                 if (mode != ListenerMode.SNIFF) {
+                     // Sniffed connections read with the default profile until their route is known.
+                     current.getDefault().getBuffers().apply(ch.config());
+                 }
+                 if (mode == ListenerMode.HTTP) {
+                     if (current.getSniMapping() != null) {
+                         ch.pipeline().addLast(new SniHandler(current.getSniMapping()));
+                     }
+                     ch.pipeline().addLast(new HttpServerCodec(), new HttpProxyHandler(RouterServer.this));
+                 } else if (mode == ListenerMode.SNIFF) {
+                     ch.pipeline().addLast(new SniffHandler(RouterServer.this));
+                 } else {
+                     RouteTarget target = current.getDefault();
+                     if (target.getProxyProtocol().isAccepting()) {
+                         // Admission and balancing wait for the client address in the header.
+                         ch.pipeline().addLast(new HAProxyMessageDecoder(), new ProxyProtocolHandler(RouterServer.this, target));
+                         return;
+                     }
+                     if (target.getAdmission().admit(ch) != null) {
+                         ch.close();
+                         return;
+                     }
+                     if (target.getTls().isTerminating()) {
+                         ch.pipeline().addLast(target.getTls().newServerHandler(ch.alloc()));
+                     }
+                     ch.pipeline().addLast(new RouterClientHandler(RouterServer.this, target, null));
+                     target.getAdmission().shapeClient(ch);
+                 }
+             }
+         });
+        socketSettings.applyServer(b, runtime.getTransport());
+        return b;
+    }
+
+    /**
+     * A {@code mode=udp} listener is one datagram socket on a worker event loop, which also
+     * serves the upstream sockets of all its flows.
+     */
+    private Bootstrap datagramBootstrap() {
+        RouteTarget target = routes.getDefault();
+        Bootstrap b = new Bootstrap();
+        b.group(runtime.getWorkerGroup())
+         .channel(runtime.getTransport().datagramChannelClass())
+         .handler(new UdpRelayHandler(this, runtime.getTransport()));
+        target.getBuffers().applyClient(b);
+        b.option(ChannelOption.RCVBUF_ALLOCATOR, target.getUdp().getRecvAllocator());
+        return b;
+    }
+
+    /**
+     * Closes the listener and every open connection right away.
+     */
     public void shutdown() throws Exception {
         // Add logging to indicate when the server is shutting down
         logger.info("Shutting down RouterServer...");
+        drain(0).join();
+        logger.info("RouterServer shut down complete.");
+    }
 
-        // Wait until the server socket is closed.
-        if (f != null && f.channel() != null) {
-            f.channel().close();
-        } else {
-            logger.info("Server socket was already closed or never opened.");
+    /**
+     * Stops accepting at once, then lets open connections finish for up to {@code timeoutMillis}
+     * before closing what is left and releasing the route's resources. When the listener was bound
+     * with {@code reusePort}, another process bound to the same port with it keeps accepting, so the
+     * port is handed over without refusing a connection. Nothing here waits: the port closes in the
+     * background, see {@link #whenUnbound()}. Calling it again returns the same future.
+     *
+     * @return completes once every connection of this listener is closed and the port is released
+     */
+    public synchronized CompletableFuture<Void> drain(long timeoutMillis) {
+        if (draining) {
+            return drained;
         }
+        draining = true;
+        drainDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        stopAccepting();
+        logger.info("Draining {} on port {}: {} open connections, deadline {} ms{}", routeNames(), enterPort, connections.size(), timeoutMillis, socketSettings.isReusePort() ? ", handing the port over to other SO_REUSEPORT listeners" : "");
 
-        // Shut down all event loops to terminate all threads.
-        if (workerGroup != null) {
-            workerGroup.shutdownGracefully();
+        EventLoop loop = runtime.getWorkerGroup().next();
+        if (connections.isEmpty() || timeoutMillis <= 0 || loop.isShuttingDown()) {
+            finishDrain();
         } else {
-            logger.info("WorkerGroup was already shut down or never initialized.");
+            // The close of the last connection finishes the drain, this only enforces the deadline.
+            drainDeadline = loop.schedule(this::finishDrain, timeoutMillis, TimeUnit.MILLISECONDS);
+            if (drainFinished.get()) {
+                drainDeadline.cancel(false);
+            }
+            // A connection may have closed before the drain began.
+            connectionClosed();
+        }
+        return drained;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public boolean isDrained() {
+        return drained.isDone();
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return time left before open connections are closed by force, 0 when not draining
+     */
+    public long getDrainRemainingMillis() {
+        if (!draining || drained.isDone()) {
+            return 0;
         }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(drainDeadlineNanos - System.nanoTime()));
+    }
 
-        if (bossGroup != null) {
-            bossGroup.shutdownGracefully();
+    private void stopAccepting() {
+        stopped = true;
+        if (bindFuture != null) {
+            // Does not wait: a bind in flight fails, which bindComplete takes as a stop.
+            bindFuture.channel().close();
         } else {
-            logger.info("BossGroup was already shut down or never initialized.");
+            unbound.complete(null);
         }
+    }
 
-        // Shutdown the executor service
-        if (executorService != null) {
-            executorService.shutdown();
+    /**
+     * @return completes once the listening socket is closed, or at once if it was never bound; the
+     * port itself may be released a moment later
+     */
+    public CompletableFuture<Void> whenUnbound() {
+        return unbound;
+    }
+
+    private void connectionClosed() {
+        if (draining && connections.isEmpty()) {
+            finishDrain();
         }
+    }
 
-        logger.info("RouterServer shut down complete.");
+    private void finishDrain() {
+        if (!drainFinished.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledFuture<?> deadline = drainDeadline;
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        if (connections.isEmpty()) {
+            release();
+            return;
+        }
+        logger.warn("Drain deadline of {} passed, closing {} connections", routeNames(), connections.size());
+        connections.close().addListener(future -> release());
     }
 
-    public void runDaemon() {
-        executorService = Executors.newSingleThreadScheduledExecutor();
-        executorService.execute(() -> {
-            try {
-                run();
-            } catch (Exception e) {
-                logger.error("Error running RouterServer", e);
-            }
+    private void release() {
+        routes.getTargets().forEach(RouteTarget::retire);
+        // The port may still be closing when the last connection is gone.
+        unbound.whenComplete((ignored, e) -> {
+            drained.complete(null);
+            logger.info("{} on port {} drained", routeNames(), enterPort);
         });
     }
+
+    private String routeNames() {
+        return routes.getTargets().stream().map(target -> target.getConfig().getRoutingName()).collect(Collectors.joining(","));
+    }
+
+    /**
+     * @return completes once the port is bound, or exceptionally if it cannot be
+     */
+    public CompletableFuture<Void> whenBound() {
+        return bound;
+    }
+
+    /**
+     * Same as {@link #start()}; kept for callers that wait on {@link #whenBound()}.
+     */
+    public void runDaemon() {
+        start();
+    }
 }
@@ -1,32 +1,128 @@
 package org.opensource.proxy;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.connection.CaptureSettings;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.timeout.ConnectionTimeout;
+
+import java.io.IOException;
 
 public class RouterServerHandler extends ChannelInboundHandlerAdapter {
 
     private final Channel inboundChannel;
+    private final BackendNode backend;
+    private final RouteMetrics metrics;
+    private final ConnectionTimeout timeout;
+    private final ConnectionInfo connection;
+    private final boolean batchFlush;
+    private boolean flushPending;
+    // Read by RouterClientHandler for the access log once the client closes; both run on one event loop.
+    private boolean failed;
+    private boolean inputShutdown;
+    // With FlushMode.READ, resumes reading from the upstream once a write to the client is done; one per connection.
+    private ChannelFutureListener relayed;
 
-    public RouterServerHandler(Channel inboundChannel) {
-        this.inboundChannel = inboundChannel;
+    public RouterServerHandler(Channel inboundChannel, BackendNode backend, RouteMetrics metrics) {
+        this(inboundChannel, backend, metrics, null, FlushMode.READ,
+                new ConnectionInfo(null, inboundChannel.remoteAddress(), CaptureSettings.NONE));
     }
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        inboundChannel.read();
+    /**
+     * @param timeout timeouts of the client connection, or null if its route has none
+     * @param connection the client connection's info, which counts the bytes sent to the client
+     */
+    public RouterServerHandler(Channel inboundChannel, BackendNode backend, RouteMetrics metrics, ConnectionTimeout timeout,
+                               FlushMode flushMode, ConnectionInfo connection) {
+        this.inboundChannel = inboundChannel;
+        this.backend = backend;
+        this.metrics = metrics;
+        this.timeout = timeout;
+        this.connection = connection;
+        this.batchFlush = flushMode == FlushMode.BATCH;
     }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        inboundChannel.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        Channel upstream = ctx.channel();
+        relayed = future -> {
             if (future.isSuccess()) {
-                ctx.channel().read();
+                // Keep reading only while the client still accepts writes,
+                // otherwise RouterClientHandler resumes us once it drains.
+                if (future.channel().isWritable()) {
+                    upstream.read();
+                }
             } else {
                 future.channel().close();
             }
-        });
+        };
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return whether the upstream sent a FIN
+     */
+    boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            metrics.bytesOut(bytes);
+            connection.addBytesOut(bytes);
+        }
+        if (timeout != null) {
+            timeout.writtenToClient();
+        }
+        if (batchFlush) {
+            inboundChannel.write(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            flushPending = true;
+            if (!inboundChannel.isWritable()) {
+                // Ends the read loop; RouterClientHandler turns reading back on once the client drains.
+                ctx.channel().config().setAutoRead(false);
+            }
+        } else {
+            inboundChannel.writeAndFlush(msg).addListener(relayed);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (flushPending) {
+            flushPending = false;
+            inboundChannel.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // The upstream drained below the low water mark, so pull more from the client.
+        if (ctx.channel().isWritable() && inboundChannel.isActive()) {
+            RouterClientHandler.resumeReading(inboundChannel, batchFlush);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            // The upstream is done sending, the client may still have more to send.
+            inputShutdown = true;
+            RouterClientHandler.shutdownOutputOnFlush(ctx.channel(), inboundChannel);
+        }
+        ctx.fireUserEventTriggered(evt);
     }
 
     @Override
@@ -36,7 +132,12 @@ public class RouterServerHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        cause.printStackTrace();
+        // Not logged here: a reset backend would flood the log from the I/O thread, and the access log records it.
+        failed = true;
+        // Connection resets and other I/O errors from the upstream count as passive health failures.
+        if (cause instanceof IOException) {
+            backend.getHealth().recordFailure();
+        }
         RouterClientHandler.closeOnFlush(ctx.channel());
     }
 }
\ No newline at end of file
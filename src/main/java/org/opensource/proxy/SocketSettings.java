@@ -0,0 +1,115 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.unix.UnixChannelOption;
+import org.opensource.proxy.config.RouteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * Per-route socket options read from {@link RouteOptions}:
+ * <ul>
+ *     <li>{@code tcpNoDelay} - disable Nagle on both sides, default true</li>
+ *     <li>{@code reusePort} - bind the listener with SO_REUSEPORT, native transports only</li>
+ *     <li>{@code quickAck} - set TCP_QUICKACK on both sides, native transports only</li>
+ *     <li>{@code fastOpen} - TCP_FASTOPEN queue length of the listener, 0 disables it</li>
+ *     <li>{@code fastOpenConnect} - use TCP_FASTOPEN_CONNECT for upstream connections</li>
+ *     <li>{@code splice} - relay with splice(2) instead of copying through buffers, epoll only</li>
+ * </ul>
+ * Options the selected transport cannot honour are logged and ignored.
+ */
+public class SocketSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(SocketSettings.class);
+
+    private final boolean tcpNoDelay;
+    private final boolean reusePort;
+    private final boolean quickAck;
+    private final int fastOpen;
+    private final boolean fastOpenConnect;
+    private final boolean splice;
+
+    public SocketSettings(RouteOptions options) {
+        this.tcpNoDelay = options.getBoolean("tcpNoDelay", true);
+        this.reusePort = options.getBoolean("reusePort", false);
+        this.quickAck = options.getBoolean("quickAck", false);
+        this.fastOpen = options.getInt("fastOpen", 0);
+        this.fastOpenConnect = options.getBoolean("fastOpenConnect", false);
+        this.splice = options.getBoolean("splice", false);
+    }
+
+    public boolean isSplice() {
+        return splice;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        SocketSettings other = (SocketSettings) obj;
+        return tcpNoDelay == other.tcpNoDelay && reusePort == other.reusePort && quickAck == other.quickAck
+                && fastOpen == other.fastOpen && fastOpenConnect == other.fastOpenConnect && splice == other.splice;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tcpNoDelay, reusePort, quickAck, fastOpen, fastOpenConnect, splice);
+    }
+
+    void applyServer(ServerBootstrap b, Transport transport) {
+        b.childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (reusePort) {
+            if (transport.isNative()) {
+                b.option(UnixChannelOption.SO_REUSEPORT, true);
+            } else {
+                logger.warn("SO_REUSEPORT is not supported by the {} transport, ignoring it", transport);
+            }
+        }
+        if (fastOpen > 0) {
+            b.option(ChannelOption.TCP_FASTOPEN, fastOpen);
+        }
+        if (quickAck) {
+            ChannelOption<Boolean> option = transport.tcpQuickAckOption();
+            if (option != null) {
+                b.childOption(option, true);
+            } else {
+                logger.warn("TCP_QUICKACK is not supported by the {} transport, ignoring it", transport);
+            }
+        }
+        if (splice) {
+            if (transport == Transport.EPOLL) {
+                // splice(2) only works on level-triggered channels and the mode is fixed at registration.
+                b.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            } else {
+                logger.warn("Splice relay requires the epoll transport, {} will copy through buffers", transport);
+            }
+        }
+    }
+
+    void applyClient(Bootstrap b, Transport transport) {
+        b.option(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (fastOpenConnect) {
+            b.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+        if (splice && transport == Transport.EPOLL) {
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        // Unsupported options were already reported once by applyServer.
+        ChannelOption<Boolean> quickAckOption = transport.tcpQuickAckOption();
+        if (quickAck && quickAckOption != null) {
+            b.option(quickAckOption, true);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.opensource.proxy;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The channel implementations the proxy can run on. Native transports are only used when
+ * their library loads on this host, otherwise {@link #select(String)} falls back to NIO.
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> tcpQuickAckOption() {
+            return null;
+        }
+    },
+
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> tcpQuickAckOption() {
+            return EpollChannelOption.TCP_QUICKACK;
+        }
+    },
+
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new IOUringEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return IOUringSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return IOUringDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> tcpQuickAckOption() {
+            return IOUringChannelOption.TCP_QUICKACK;
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    public abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannelClass();
+
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    /**
+     * @return the TCP_QUICKACK option of this transport, or null if it cannot set it
+     */
+    public abstract ChannelOption<Boolean> tcpQuickAckOption();
+
+    /**
+     * @return whether this transport supports the Linux-only socket options such as SO_REUSEPORT
+     */
+    public boolean isNative() {
+        return this != NIO;
+    }
+
+    /**
+     * Resolves the configured transport name. {@code auto} prefers epoll, {@code io_uring} must be
+     * asked for explicitly, and a transport that is not available here falls back to epoll or NIO.
+     */
+    public static Transport select(String name) {
+        String normalized = name == null ? "auto" : name.trim().toLowerCase(Locale.ROOT);
+        Transport requested = switch (normalized) {
+            case "auto", "", "epoll" -> EPOLL;
+            case "io_uring", "iouring" -> IO_URING;
+            case "nio" -> NIO;
+            default -> throw new IllegalArgumentException("Unknown transport: " + name);
+        };
+        if (requested.isAvailable()) {
+            return requested;
+        }
+        Transport fallback = requested != EPOLL && EPOLL.isAvailable() ? EPOLL : NIO;
+        if (!"auto".equals(normalized) && !normalized.isEmpty()) {
+            logger.warn("Transport {} is not available on this host, falling back to {}", requested, fallback);
+        }
+        return fallback;
+    }
+}
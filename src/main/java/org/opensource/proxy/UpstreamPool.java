@@ -0,0 +1,282 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upstream connections of one backend of a route.
+ * <p>
+ * Every upstream channel is opened through this pool, which enforces the cap on open
+ * connections to the backend. When pre-warming is enabled each I/O event loop also keeps a few idle,
+ * already-connected channels so a new client skips the connect round trip. Idle channels live
+ * on the event loop that will use them, so acquiring one needs no locking and keeps both sides
+ * of the relay on one thread. Pre-warming is only safe for protocols where the upstream waits
+ * for the client to speak first and does not mind idle connections, so it is off by default.
+ * <p>
+ * Route options:
+ * <ul>
+ *     <li>{@code poolIdle} - idle pre-connected channels kept per backend, default 0</li>
+ *     <li>{@code poolMax} - cap on open channels per backend, 0 means unlimited</li>
+ *     <li>{@code poolOrder} - {@code lifo} (default) or {@code fifo} reuse of idle channels</li>
+ *     <li>{@code poolMaxIdleMs} - idle channels older than this are closed, default 60000</li>
+ *     <li>{@code poolCheckMs} - interval of the idle channel health check, default 5000</li>
+ *     <li>{@code poolMaxIdle} - released channels kept idle per event loop, default 64 for
+ *     {@code mode=http} routes, which hand keep-alive connections back after every response, else 1</li>
+ * </ul>
+ */
+public class UpstreamPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamPool.class);
+
+    private static final AttributeKey<Long> IDLE_SINCE = AttributeKey.valueOf("upstreamPool.idleSince");
+
+    private final RouteTarget target;
+    private final Backend backend;
+    private final int idlePerLoop;
+    private final int maxIdlePerLoop;
+    private final boolean reuse;
+    private final int maxConnections;
+    private final boolean lifo;
+    private final long maxIdleNanos;
+    private final long checkIntervalMillis;
+
+    // Written once in the constructor; each LoopPool is only touched from its own event loop.
+    private final Map<EventLoop, LoopPool> loopPools = new IdentityHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final List<ScheduledFuture<?>> healthChecks = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    public UpstreamPool(RouteTarget target, Backend backend, EventLoopGroup group) {
+        RouteOptions options = target.getConfig().getOptions();
+        this.target = target;
+        this.backend = backend;
+        this.maxConnections = options.getInt("poolMax", 0);
+        this.lifo = !"fifo".equalsIgnoreCase(options.getString("poolOrder", "lifo"));
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("poolMaxIdleMs", 60_000));
+        this.checkIntervalMillis = options.getLong("poolCheckMs", 5_000);
+
+        for (EventExecutor executor : group) {
+            loopPools.put((EventLoop) executor, new LoopPool());
+        }
+        int idle = options.getInt("poolIdle", 0);
+        // Spread the idle channels over the event loops, rounding up so every loop keeps at least one.
+        this.idlePerLoop = idle <= 0 ? 0 : (idle + loopPools.size() - 1) / loopPools.size();
+        this.reuse = ListenerMode.of(options) == ListenerMode.HTTP;
+        this.maxIdlePerLoop = Math.max(idlePerLoop, options.getInt("poolMaxIdle", reuse ? 64 : 1));
+    }
+
+    /**
+     * Pre-connects the idle channels and starts the periodic health check.
+     */
+    public void start() {
+        // Released channels also need the health check even when nothing is pre-connected.
+        if (idlePerLoop == 0 && !reuse) {
+            return;
+        }
+        for (EventLoop loop : loopPools.keySet()) {
+            if (idlePerLoop > 0) {
+                loop.execute(() -> fill(loop));
+            }
+            healthChecks.add(loop.scheduleWithFixedDelay(() -> checkIdle(loop),
+                    checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Hands out an upstream channel registered on {@code loop}, taking an idle one when available.
+     * The returned channel has AUTO_READ off and no handlers of the pool left in its pipeline.
+     * Must be called from {@code loop}.
+     */
+    public Future<Channel> acquire(EventLoop loop) {
+        Promise<Channel> promise = loop.newPromise();
+        LoopPool pool = loopPools.get(loop);
+        Channel channel;
+        while (pool != null && (channel = pool.idle.pollFirst()) != null) {
+            if (channel.isActive()) {
+                channel.config().setAutoRead(false);
+                channel.pipeline().remove(IdleUpstreamHandler.INSTANCE);
+                fill(loop);
+                return promise.setSuccess(channel);
+            }
+            channel.close();
+        }
+
+        ChannelFuture f = connect(loop);
+        if (f == null) {
+            return promise.setFailure(new IllegalStateException("Upstream connection limit of " + maxConnections + " reached"));
+        }
+        f.addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                promise.setSuccess(future.channel());
+            } else {
+                promise.setFailure(future.cause());
+            }
+        });
+        fill(loop);
+        return promise;
+    }
+
+    /**
+     * Returns a healthy channel for reuse, for protocols that can hand a connection to the next
+     * client. The caller must have removed its own handlers. Must be called from the channel's loop.
+     */
+    public void release(Channel channel) {
+        LoopPool pool = loopPools.get(channel.eventLoop());
+        if (closed || pool == null || !channel.isActive() || pool.idle.size() >= maxIdlePerLoop) {
+            channel.close();
+            return;
+        }
+        park(pool, channel);
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public void close() {
+        closed = true;
+        for (ScheduledFuture<?> healthCheck : healthChecks) {
+            healthCheck.cancel(false);
+        }
+        for (Map.Entry<EventLoop, LoopPool> entry : loopPools.entrySet()) {
+            LoopPool pool = entry.getValue();
+            if (entry.getKey().isShuttingDown()) {
+                continue;
+            }
+            entry.getKey().execute(() -> {
+                Channel channel;
+                while ((channel = pool.idle.pollFirst()) != null) {
+                    channel.close();
+                }
+            });
+        }
+    }
+
+    private ChannelFuture connect(EventLoop loop) {
+        // Reserve a slot first so concurrent connects on other loops cannot overshoot the cap.
+        for (;;) {
+            int open = openConnections.get();
+            if (maxConnections > 0 && open >= maxConnections) {
+                return null;
+            }
+            if (openConnections.compareAndSet(open, open + 1)) {
+                break;
+            }
+        }
+
+        // AUTO_READ is off: reads are only requested once the peer can take the bytes.
+        Bootstrap b = new Bootstrap();
+        b.group(loop)
+         .channel(target.getTransport().socketChannelClass())
+         .option(ChannelOption.AUTO_READ, false)
+         .option(ChannelOption.WRITE_BUFFER_WATER_MARK, RouterServer.WRITE_BUFFER_WATER_MARK)
+         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, target.getTimeouts().getConnectTimeoutMillis())
+         .handler(new ChannelInboundHandlerAdapter());
+        target.getSocketSettings().applyClient(b, target.getTransport());
+        target.getBuffers().applyClient(b);
+
+        ChannelFuture f = b.connect(backend.getHost(), backend.getPort());
+        f.channel().closeFuture().addListener(future -> openConnections.decrementAndGet());
+        return f;
+    }
+
+    private void fill(EventLoop loop) {
+        LoopPool pool = loopPools.get(loop);
+        while (!closed && pool != null && pool.idle.size() + pool.connecting < idlePerLoop) {
+            ChannelFuture f = connect(loop);
+            if (f == null) {
+                return;
+            }
+            pool.connecting++;
+            f.addListener((ChannelFutureListener) future -> {
+                pool.connecting--;
+                if (future.isSuccess() && !closed) {
+                    park(pool, future.channel());
+                } else if (future.isSuccess()) {
+                    future.channel().close();
+                } else {
+                    logger.debug("Failed to pre-connect {} of route {}", backend, target.getConfig().getRoutingName(), future.cause());
+                }
+            });
+        }
+    }
+
+    private void park(LoopPool pool, Channel channel) {
+        channel.attr(IDLE_SINCE).set(System.nanoTime());
+        channel.pipeline().addLast(IdleUpstreamHandler.INSTANCE);
+        // Reading while idle lets us notice when the upstream closes the connection.
+        channel.config().setAutoRead(true);
+        if (lifo) {
+            pool.idle.addFirst(channel);
+        } else {
+            pool.idle.addLast(channel);
+        }
+    }
+
+    private void checkIdle(EventLoop loop) {
+        LoopPool pool = loopPools.get(loop);
+        long now = System.nanoTime();
+        for (Iterator<Channel> it = pool.idle.iterator(); it.hasNext(); ) {
+            Channel channel = it.next();
+            if (!channel.isActive() || now - channel.attr(IDLE_SINCE).get() > maxIdleNanos) {
+                it.remove();
+                channel.close();
+            }
+        }
+        fill(loop);
+    }
+
+    private static class LoopPool {
+        final Deque<Channel> idle = new ArrayDeque<>();
+        int connecting;
+    }
+
+    /**
+     * Sits in the pipeline of idle channels. Any data from an upstream that should be waiting
+     * for its client means the connection cannot be reused, so it is closed.
+     */
+    @ChannelHandler.Sharable
+    private static class IdleUpstreamHandler extends ChannelInboundHandlerAdapter {
+
+        static final IdleUpstreamHandler INSTANCE = new IdleUpstreamHandler();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
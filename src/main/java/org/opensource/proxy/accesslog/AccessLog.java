@@ -0,0 +1,323 @@
+package org.opensource.proxy.accesslog;
+
+import io.netty.util.internal.MathUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Access log of relayed connections: one fixed-size {@link AccessLogRecord} per connection.
+ * <p>
+ * The I/O threads copy a record into a bounded ring with a compare-and-set on its tail and never
+ * wait: when the ring is full the record is dropped and counted. One writer thread moves
+ * published records in batches into a memory-mapped file, so a record costs no system call, and
+ * starts a new file once one reaches its size. The oldest files beyond the configured count are
+ * deleted. Files are named {@code access-<sequence>-<UTC time>.bin}, start with a 16 byte header
+ * ({@code PXAL}, version, record size) and end at the first record of type 0; read them with
+ * {@link AccessLogReader}.
+ */
+public class AccessLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    /** Drops every record without counting it, for runtimes without an access log. */
+    public static final AccessLog DISABLED = new AccessLog();
+
+    static final byte[] MAGIC = {'P', 'X', 'A', 'L'};
+    static final int VERSION = 1;
+    static final int FILE_HEADER = 16;
+    static final Pattern FILE_NAME = Pattern.compile("access-(\\d{8})-[0-9T]+\\.bin");
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss").withZone(ZoneOffset.UTC);
+    // How long the writer sleeps when the ring is empty; the ring must hold the records of this long.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long fileSize;
+    private final int maxFiles;
+    private final int mask;
+    private final ByteBuffer ring;
+    // Slot i holds the position it was published for plus one; it is free for position p when it holds p.
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private Thread writer;
+    private volatile boolean closed;
+
+    // Only touched by the writer thread.
+    private long head;
+    private long fileSequence;
+    private FileChannel file;
+    private MappedByteBuffer mapped;
+    private boolean failing;
+
+    private AccessLog() {
+        this.enabled = false;
+        this.directory = null;
+        this.fileSize = 0;
+        this.maxFiles = 0;
+        this.mask = 0;
+        this.ring = null;
+        this.sequences = null;
+    }
+
+    /**
+     * @param ringSize records the ring holds, rounded up to a power of two
+     * @param fileSize bytes of a file before the log moves on to the next one
+     * @param maxFiles files kept, the current one included
+     * @throws IllegalArgumentException if a size is out of range
+     */
+    public AccessLog(Path directory, int ringSize, long fileSize, int maxFiles) {
+        if (ringSize <= 0 || ringSize > 1 << 24) {
+            throw new IllegalArgumentException("Access log ring size out of range: " + ringSize);
+        }
+        if (fileSize < FILE_HEADER + AccessLogRecord.SIZE || fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Access log file size out of range: " + fileSize);
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Access log must keep at least one file: " + maxFiles);
+        }
+        int capacity = MathUtil.findNextPositivePowerOfTwo(ringSize);
+        this.enabled = true;
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.maxFiles = maxFiles;
+        this.mask = capacity - 1;
+        this.ring = ByteBuffer.allocateDirect(capacity * AccessLogRecord.SIZE);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts the writer thread. Records appended before are kept in the ring until then.
+     */
+    public synchronized void start() throws IOException {
+        if (!enabled || writer != null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        for (Path existing : files(directory)) {
+            Matcher matcher = FILE_NAME.matcher(existing.getFileName().toString());
+            if (matcher.matches()) {
+                fileSequence = Math.max(fileSequence, Long.parseLong(matcher.group(1)));
+            }
+        }
+        writer = new Thread(this::write, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Access log writing to {}, {} byte files, keeping {}", directory.toAbsolutePath(), fileSize, maxFiles);
+    }
+
+    /**
+     * Queues the record of a connection that just closed. Safe to call from any thread; never
+     * blocks.
+     *
+     * @param client  address of the client, or null if unknown
+     * @param backend address of the backend, or null if no upstream was connected
+     * @return false if the ring was full and the record was dropped
+     */
+    public boolean append(long startMillis, long durationMicros, String route, int enterPort, SocketAddress client,
+                          SocketAddress backend, long bytesIn, long bytesOut, CloseReason reason) {
+        if (!enabled) {
+            return false;
+        }
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long diff = sequences.get(slot) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // The writer has not taken the record of this slot from the previous lap yet.
+                dropped.increment();
+                return false;
+            }
+        }
+        AccessLogRecord.write(ring, slot * AccessLogRecord.SIZE, startMillis, durationMicros, route, enterPort, client,
+                backend, bytesIn, bytesOut, reason);
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * @return records dropped because the ring was full or a file could not be written
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Stops the writer once it has written what was queued, and closes the current file.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            thread = writer;
+        }
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        while (!closed) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        drain();
+        finishFile();
+        logger.info("Access log closed, {} records written, {} dropped", getWritten(), getDropped());
+    }
+
+    /**
+     * @return the number of records taken from the ring
+     */
+    private int drain() {
+        int count = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            if (ensureRoom()) {
+                mapped.put(mapped.position(), ring, slot * AccessLogRecord.SIZE, AccessLogRecord.SIZE);
+                mapped.position(mapped.position() + AccessLogRecord.SIZE);
+                written.incrementAndGet();
+            } else {
+                dropped.increment();
+            }
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return whether the current file has room for a record, after moving on to a new one if needed
+     */
+    private boolean ensureRoom() {
+        if (mapped != null && mapped.remaining() >= AccessLogRecord.SIZE) {
+            return true;
+        }
+        finishFile();
+        try {
+            openFile();
+            failing = false;
+            return true;
+        } catch (IOException e) {
+            if (!failing) {
+                logger.error("Cannot write the access log in {}, dropping records", directory, e);
+                failing = true;
+            }
+            return false;
+        }
+    }
+
+    private void openFile() throws IOException {
+        fileSequence++;
+        String name = String.format("access-%08d-%s.bin", fileSequence, FILE_TIME.format(Instant.now()));
+        FileChannel channel = FileChannel.open(directory.resolve(name),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // Only whole records fit, so a record never straddles two files.
+            long size = FILE_HEADER + (fileSize - FILE_HEADER) / AccessLogRecord.SIZE * AccessLogRecord.SIZE;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.put(MAGIC).putInt(VERSION).putInt(AccessLogRecord.SIZE).putInt(0);
+            file = channel;
+            mapped = buffer;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        deleteOldFiles();
+    }
+
+    private void finishFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            mapped.force();
+            // A file cut short by a shutdown ends with its last record.
+            file.truncate(mapped.position());
+        } catch (IOException e) {
+            logger.warn("Failed to finish access log file", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close access log file", e);
+            }
+            file = null;
+            mapped = null;
+        }
+    }
+
+    private void deleteOldFiles() throws IOException {
+        List<Path> files = files(directory);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    /**
+     * @return the access log files in {@code directory}, oldest first
+     */
+    static List<Path> files(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            List<Path> files = new ArrayList<>();
+            entries.filter(path -> FILE_NAME.matcher(path.getFileName().toString()).matches()).sorted().forEach(files::add);
+            return files;
+        }
+    }
+}
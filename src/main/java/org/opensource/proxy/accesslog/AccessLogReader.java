@@ -0,0 +1,81 @@
+package org.opensource.proxy.accesslog;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Prints access log files as text, one connection per line, or as JSON lines:
+ * <pre>
+ * mvn -q dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:$(cat cp.txt) org.opensource.proxy.accesslog.AccessLogReader [--json] logs/access [file...]
+ * </pre>
+ * A directory stands for all its access log files, oldest first. The file being written can be
+ * read too; it ends at the last record written so far.
+ */
+public final class AccessLogReader {
+
+    private AccessLogReader() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        List<Path> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--json")) {
+                json = true;
+            } else {
+                paths.add(Path.of(arg));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: AccessLogReader [--json] <directory or file>...");
+            System.exit(2);
+        }
+        print(paths, json, System.out);
+    }
+
+    public static void print(List<Path> paths, boolean json, PrintStream out) throws IOException {
+        for (Path path : paths) {
+            for (Path file : Files.isDirectory(path) ? AccessLog.files(path) : List.of(path)) {
+                read(file, record -> out.println(json ? record.toJson().toString() : record.toText()));
+            }
+        }
+    }
+
+    /**
+     * Passes every record of {@code file} to {@code consumer}, in the order they were written.
+     *
+     * @throws IOException if the file cannot be read or is not an access log
+     */
+    public static void read(Path file, Consumer<AccessLogRecord> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < AccessLog.FILE_HEADER) {
+                throw new IOException(file + " is not an access log");
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[AccessLog.MAGIC.length];
+            buf.get(0, magic);
+            if (!Arrays.equals(magic, AccessLog.MAGIC) || buf.getInt(4) != AccessLog.VERSION
+                    || buf.getInt(8) != AccessLogRecord.SIZE) {
+                throw new IOException(file + " is not an access log of version " + AccessLog.VERSION);
+            }
+            for (long offset = AccessLog.FILE_HEADER; offset + AccessLogRecord.SIZE <= size; offset += AccessLogRecord.SIZE) {
+                AccessLogRecord record = AccessLogRecord.read(buf, (int) offset);
+                if (record == null) {
+                    break;
+                }
+                consumer.accept(record);
+            }
+        }
+    }
+}
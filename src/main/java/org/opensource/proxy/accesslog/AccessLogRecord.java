@@ -0,0 +1,214 @@
+package org.opensource.proxy.accesslog;
+
+import com.google.gson.JsonObject;
+import io.netty.util.NetUtil;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * One connection of the access log, and the fixed binary layout it is stored in. Every record
+ * takes {@link #SIZE} bytes, big-endian:
+ * <pre>
+ *  0  type (1 = connection, 0 = end of the written part)
+ *  1  close reason code
+ *  2  enter port, client port, backend port (unsigned shorts)
+ *  8  start, epoch milliseconds
+ * 16  duration, microseconds
+ * 24  bytes from the client, bytes to the client
+ * 40  client address, backend address (16 bytes each, IPv4 mapped into IPv6)
+ * 72  route name, US-ASCII, zero padded and cut at 24 bytes
+ * </pre>
+ */
+public final class AccessLogRecord {
+
+    public static final int SIZE = 96;
+    static final int NAME_LENGTH = 24;
+    static final byte TYPE_CONNECTION = 1;
+
+    private static final int REASON = 1;
+    private static final int ENTER_PORT = 2;
+    private static final int CLIENT_PORT = 4;
+    private static final int BACKEND_PORT = 6;
+    private static final int START = 8;
+    private static final int DURATION = 16;
+    private static final int BYTES_IN = 24;
+    private static final int BYTES_OUT = 32;
+    private static final int CLIENT = 40;
+    private static final int BACKEND = 56;
+    private static final int NAME = 72;
+
+    private final long startMillis;
+    private final long durationMicros;
+    private final String route;
+    private final int enterPort;
+    private final InetSocketAddress client;
+    private final InetSocketAddress backend;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final CloseReason reason;
+
+    private AccessLogRecord(long startMillis, long durationMicros, String route, int enterPort, InetSocketAddress client,
+                            InetSocketAddress backend, long bytesIn, long bytesOut, CloseReason reason) {
+        this.startMillis = startMillis;
+        this.durationMicros = durationMicros;
+        this.route = route;
+        this.enterPort = enterPort;
+        this.client = client;
+        this.backend = backend;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.reason = reason;
+    }
+
+    /**
+     * Writes a record at {@code offset} without touching the buffer's position. Addresses that are
+     * not IP socket addresses are stored as zeros.
+     */
+    static void write(ByteBuffer buf, int offset, long startMillis, long durationMicros, String route, int enterPort,
+                      SocketAddress client, SocketAddress backend, long bytesIn, long bytesOut, CloseReason reason) {
+        buf.put(offset, TYPE_CONNECTION);
+        buf.put(offset + REASON, (byte) reason.getCode());
+        buf.putShort(offset + ENTER_PORT, (short) enterPort);
+        buf.putShort(offset + CLIENT_PORT, (short) port(client));
+        buf.putShort(offset + BACKEND_PORT, (short) port(backend));
+        buf.putLong(offset + START, startMillis);
+        buf.putLong(offset + DURATION, durationMicros);
+        buf.putLong(offset + BYTES_IN, bytesIn);
+        buf.putLong(offset + BYTES_OUT, bytesOut);
+        putAddress(buf, offset + CLIENT, client);
+        putAddress(buf, offset + BACKEND, backend);
+        int length = Math.min(route.length(), NAME_LENGTH);
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            char c = i < length ? route.charAt(i) : 0;
+            buf.put(offset + NAME + i, (byte) (c < 0x80 ? c : '?'));
+        }
+    }
+
+    /**
+     * @return the record at {@code offset}, or null where nothing was written
+     */
+    public static AccessLogRecord read(ByteBuffer buf, int offset) {
+        if (buf.get(offset) != TYPE_CONNECTION) {
+            return null;
+        }
+        int nameLength = 0;
+        while (nameLength < NAME_LENGTH && buf.get(offset + NAME + nameLength) != 0) {
+            nameLength++;
+        }
+        byte[] name = new byte[nameLength];
+        buf.get(offset + NAME, name);
+        return new AccessLogRecord(
+                buf.getLong(offset + START),
+                buf.getLong(offset + DURATION),
+                new String(name, StandardCharsets.US_ASCII),
+                Short.toUnsignedInt(buf.getShort(offset + ENTER_PORT)),
+                getAddress(buf, offset + CLIENT, Short.toUnsignedInt(buf.getShort(offset + CLIENT_PORT))),
+                getAddress(buf, offset + BACKEND, Short.toUnsignedInt(buf.getShort(offset + BACKEND_PORT))),
+                buf.getLong(offset + BYTES_IN),
+                buf.getLong(offset + BYTES_OUT),
+                CloseReason.of(buf.get(offset + REASON)));
+    }
+
+    private static int port(SocketAddress address) {
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getPort() : 0;
+    }
+
+    private static void putAddress(ByteBuffer buf, int offset, SocketAddress address) {
+        InetAddress ip = address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+        byte[] bytes = ip != null ? ip.getAddress() : null;
+        if (bytes != null && bytes.length == 16) {
+            buf.put(offset, bytes);
+            return;
+        }
+        for (int i = 0; i < 16; i++) {
+            buf.put(offset + i, (byte) 0);
+        }
+        if (bytes != null) {
+            buf.put(offset + 10, (byte) 0xFF).put(offset + 11, (byte) 0xFF).put(offset + 12, bytes);
+        }
+    }
+
+    private static InetSocketAddress getAddress(ByteBuffer buf, int offset, int port) {
+        byte[] bytes = new byte[16];
+        buf.get(offset, bytes);
+        try {
+            // Mapped IPv4 addresses come back as Inet4Address.
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public int getEnterPort() {
+        return enterPort;
+    }
+
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    public InetSocketAddress getBackend() {
+        return backend;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public CloseReason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return one line, such as {@code 2026-01-01T00:00:00Z web :8080 192.0.2.1:50000 -> 10.0.0.1:80 in=1 out=2 12.500ms client_closed}
+     */
+    public String toText() {
+        return Instant.ofEpochMilli(startMillis) + " " + route + " :" + enterPort + " " + format(client) + " -> " + format(backend)
+                + " in=" + bytesIn + " out=" + bytesOut + " " + String.format(Locale.ROOT, "%.3fms", durationMicros / 1000.0)
+                + " " + reason.name().toLowerCase(Locale.ROOT);
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("start", Instant.ofEpochMilli(startMillis).toString());
+        json.addProperty("route", route);
+        json.addProperty("enterPort", enterPort);
+        json.addProperty("client", format(client));
+        json.addProperty("backend", format(backend));
+        json.addProperty("bytesIn", bytesIn);
+        json.addProperty("bytesOut", bytesOut);
+        json.addProperty("durationMicros", durationMicros);
+        json.addProperty("reason", reason.name().toLowerCase(Locale.ROOT));
+        return json;
+    }
+
+    private static String format(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        String host = NetUtil.toAddressString(ip);
+        return (ip instanceof Inet4Address ? host : "[" + host + "]") + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,40 @@
+package org.opensource.proxy.accesslog;
+
+/**
+ * Why a relayed connection ended, as recorded in the access log. The code is what is stored, so
+ * existing values must keep theirs.
+ */
+public enum CloseReason {
+
+    UNKNOWN(0),
+    /** The client closed, or reset, the connection. */
+    CLIENT_CLOSED(1),
+    /** The backend closed the connection and the client was closed after it. */
+    UPSTREAM_CLOSED(2),
+    /** No upstream connection could be opened to the backend. */
+    CONNECT_FAILED(3),
+    /** The backend was at its {@code poolMax} connection cap. */
+    REJECTED(4),
+    /** An idle or lifetime timeout of the route closed the connection. */
+    TIMEOUT(5),
+    /** The client connection failed other than by the client closing or resetting it. */
+    CLIENT_ERROR(6),
+    /** The upstream connection was reset or failed. */
+    UPSTREAM_ERROR(7);
+
+    private static final CloseReason[] BY_CODE = values();
+
+    private final int code;
+
+    CloseReason(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static CloseReason of(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : UNKNOWN;
+    }
+}
@@ -0,0 +1,258 @@
+package org.opensource.proxy.admission;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.proxyprotocol.ProxyHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of one route version, read from {@link RouteOptions}:
+ * <ul>
+ *     <li>{@code maxConnections} - open client connections of the route, 0 means unlimited</li>
+ *     <li>{@code maxConnectionsPerIp} - open client connections per client address</li>
+ *     <li>{@code connectRate}, {@code connectBurst} - new connections per second of the route and
+ *     how many may arrive at once, the burst defaults to the rate</li>
+ *     <li>{@code connectRatePerIp}, {@code connectBurstPerIp} - the same per client address</li>
+ *     <li>{@code ipTableSize} - client addresses remembered for the per-address limits, default 65536</li>
+ *     <li>{@code bandwidthIn}, {@code bandwidthOut} - bytes per second towards the backends and
+ *     towards the clients, shared by all connections of the route</li>
+ *     <li>{@code connectionBandwidthIn}, {@code connectionBandwidthOut} - the same per connection</li>
+ * </ul>
+ * Connections are admitted once their route is known, before any upstream is opened, and a
+ * rejected one only costs its accept. Bandwidth is shaped by delaying writes towards each side;
+ * as reads are only requested once the previous write completed, the other side is slowed down
+ * by the usual backpressure rather than by the shaping handlers, which only throttle reads of
+ * channels with AUTO_READ on. Limits apply per route version, connections still open on a
+ * previous version of a changed route do not count.
+ */
+public class AdmissionControl {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final String ROUTE_SHAPER = "admission.routeShaper";
+    private static final String CONNECTION_SHAPER = "admission.connectionShaper";
+    private static final long SHAPER_CHECK_MILLIS = 1000;
+
+    /**
+     * The limit that turned a connection away.
+     */
+    public enum Rejection {
+        ROUTE_CONNECTIONS, IP_CONNECTIONS, ROUTE_RATE, IP_RATE,
+        /** A new client address while every remembered one still has connections open or tokens to refill. */
+        IP_TABLE_FULL;
+
+        public boolean isRate() {
+            return this == ROUTE_RATE || this == IP_RATE;
+        }
+    }
+
+    private final String routingName;
+    private final RouteMetrics metrics;
+    private final int maxConnections;
+    private final int maxConnectionsPerIp;
+    private final TokenBucket connectRate;
+    private final TokenBucket connectRatePerIp;
+    private final IpTable ips;
+    private final long bandwidthIn;
+    private final long bandwidthOut;
+    private final long connectionBandwidthIn;
+    private final long connectionBandwidthOut;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // Created by start, so validating a route schedules nothing.
+    private volatile GlobalTrafficShapingHandler inShaper;
+    private volatile GlobalTrafficShapingHandler outShaper;
+
+    /**
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public AdmissionControl(String routingName, RouteOptions options, RouteMetrics metrics) {
+        this.routingName = routingName;
+        this.metrics = metrics;
+        this.maxConnections = nonNegative(options, "maxConnections");
+        this.maxConnectionsPerIp = nonNegative(options, "maxConnectionsPerIp");
+        this.connectRate = bucket(options, "connectRate", "connectBurst");
+        this.connectRatePerIp = bucket(options, "connectRatePerIp", "connectBurstPerIp");
+        this.bandwidthIn = nonNegative(options, "bandwidthIn");
+        this.bandwidthOut = nonNegative(options, "bandwidthOut");
+        this.connectionBandwidthIn = nonNegative(options, "connectionBandwidthIn");
+        this.connectionBandwidthOut = nonNegative(options, "connectionBandwidthOut");
+        boolean perIp = maxConnectionsPerIp > 0 || connectRatePerIp != null;
+        this.ips = perIp ? new IpTable(options.getInt("ipTableSize", 65536)) : null;
+    }
+
+    private static int nonNegative(RouteOptions options, String key) {
+        int value = options.getInt(key, 0);
+        if (value < 0) {
+            throw new IllegalArgumentException(key + " must not be negative: " + value);
+        }
+        return value;
+    }
+
+    private static TokenBucket bucket(RouteOptions options, String rateKey, String burstKey) {
+        int rate = nonNegative(options, rateKey);
+        return rate == 0 ? null : new TokenBucket(rate, options.getInt(burstKey, rate));
+    }
+
+    /**
+     * Starts the route-wide shaping.
+     */
+    public void start(ScheduledExecutorService executor) {
+        if (bandwidthIn > 0 && inShaper == null) {
+            inShaper = newShaper(executor, bandwidthIn);
+        }
+        if (bandwidthOut > 0 && outShaper == null) {
+            outShaper = newShaper(executor, bandwidthOut);
+        }
+    }
+
+    private static GlobalTrafficShapingHandler newShaper(ScheduledExecutorService executor, long writeLimit) {
+        GlobalTrafficShapingHandler shaper = new GlobalTrafficShapingHandler(executor, writeLimit, 0, SHAPER_CHECK_MILLIS);
+        // Queue no more than a relay keeps in flight before the channel reports it is not writable.
+        shaper.setMaxWriteSize(RouterServer.WRITE_BUFFER_WATER_MARK.high());
+        return shaper;
+    }
+
+    /**
+     * Stops the route-wide shaping clock. Connections still open keep their handlers, which go on
+     * shaping to the limit averaged since the last check.
+     */
+    public void release() {
+        if (inShaper != null) {
+            inShaper.release();
+        }
+        if (outShaper != null) {
+            outShaper.release();
+        }
+    }
+
+    /**
+     * Counts {@code client} against the limits of the route until it closes. Must be called once
+     * per connection, before anything is sent upstream.
+     *
+     * @return null if the connection may proceed, else the limit it hit; rejections are counted in
+     * the route metrics
+     */
+    public Rejection admit(Channel client) {
+        long now = System.nanoTime();
+        Rejection rejection = admit(client, now);
+        if (rejection != null) {
+            metrics.connectionRejected();
+            logger.debug("Rejected {} on route {}: {}", ProxyHeader.clientAddress(client), routingName, rejection);
+        }
+        return rejection;
+    }
+
+    private Rejection admit(Channel client, long now) {
+        IpTable.Entry entry = null;
+        SocketAddress clientAddress = ProxyHeader.clientAddress(client);
+        if (ips != null && clientAddress instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) clientAddress).getAddress();
+            entry = ips.get(address, now);
+            if (entry == null) {
+                return Rejection.IP_TABLE_FULL;
+            }
+            synchronized (entry) {
+                if (maxConnectionsPerIp > 0 && entry.connections >= maxConnectionsPerIp) {
+                    return Rejection.IP_CONNECTIONS;
+                }
+                if (connectRatePerIp != null) {
+                    long next = connectRatePerIp.take(entry.bucket, now);
+                    if (next == TokenBucket.EMPTY) {
+                        return Rejection.IP_RATE;
+                    }
+                    entry.bucket = next;
+                }
+                entry.connections++;
+            }
+        }
+        Rejection rejection = null;
+        if (maxConnections > 0 && connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejection = Rejection.ROUTE_CONNECTIONS;
+        } else if (connectRate != null && !connectRate.tryAcquire(now)) {
+            if (maxConnections > 0) {
+                connections.decrementAndGet();
+            }
+            rejection = Rejection.ROUTE_RATE;
+        }
+        if (rejection != null) {
+            release(entry);
+            return rejection;
+        }
+        IpTable.Entry admitted = entry;
+        client.closeFuture().addListener(future -> {
+            if (maxConnections > 0) {
+                connections.decrementAndGet();
+            }
+            release(admitted);
+        });
+        return null;
+    }
+
+    private static void release(IpTable.Entry entry) {
+        if (entry != null) {
+            synchronized (entry) {
+                entry.connections--;
+            }
+        }
+    }
+
+    /**
+     * Shapes what is written to an admitted client. Call it once the pipeline is complete, the
+     * handlers go first so they see the bytes as they go on the wire.
+     */
+    public void shapeClient(Channel client) {
+        shape(client.pipeline(), outShaper, connectionBandwidthOut);
+    }
+
+    /**
+     * Shapes what is written to an upstream connection of an admitted client.
+     */
+    public void shapeUpstream(Channel upstream) {
+        shape(upstream.pipeline(), inShaper, connectionBandwidthIn);
+    }
+
+    /**
+     * Removes the handlers of {@link #shapeUpstream} before the channel goes back to its pool.
+     */
+    public static void unshapeUpstream(Channel upstream) {
+        ChannelPipeline pipeline = upstream.pipeline();
+        if (pipeline.get(ROUTE_SHAPER) != null) {
+            pipeline.remove(ROUTE_SHAPER);
+        }
+        if (pipeline.get(CONNECTION_SHAPER) != null) {
+            pipeline.remove(CONNECTION_SHAPER);
+        }
+    }
+
+    private static void shape(ChannelPipeline pipeline, GlobalTrafficShapingHandler routeShaper, long connectionLimit) {
+        if (connectionLimit > 0) {
+            ChannelTrafficShapingHandler shaper = new ChannelTrafficShapingHandler(connectionLimit, 0, SHAPER_CHECK_MILLIS);
+            shaper.setMaxWriteSize(RouterServer.WRITE_BUFFER_WATER_MARK.high());
+            pipeline.addFirst(CONNECTION_SHAPER, shaper);
+        }
+        if (routeShaper != null) {
+            pipeline.addFirst(ROUTE_SHAPER, routeShaper);
+        }
+    }
+
+    /**
+     * @return client addresses currently remembered for the per-address limits
+     */
+    public int getTrackedAddresses() {
+        return ips == null ? 0 : ips.size();
+    }
+}
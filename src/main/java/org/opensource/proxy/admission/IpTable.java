@@ -0,0 +1,130 @@
+package org.opensource.proxy.admission;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-client-address admission state with a hard bound on its size.
+ * <p>
+ * Addresses are spread over independently locked stripes, so event loops admitting different
+ * clients rarely meet on a lock. Each stripe is an LRU map: once it is full, a new address takes
+ * the place of the least recently seen one that is idle, with no open connection and a full token
+ * bucket, so forgetting it loses nothing. When none of the oldest few is idle the new address is
+ * refused instead, so a scan from millions of addresses costs a fixed amount of heap and never
+ * resets the counters of clients that are connected.
+ */
+final class IpTable {
+
+    private static final int MAX_STRIPES = 64;
+    // Oldest entries looked at for an idle one when a stripe is full.
+    private static final int EVICTION_SCAN = 8;
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * @param capacity most addresses remembered at once, at least one per stripe
+     */
+    IpTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("IP table size must be positive: " + capacity);
+        }
+        // A power of two no larger than the capacity, so every stripe holds at least one entry.
+        int count = Math.min(MAX_STRIPES, Integer.highestOneBit(capacity));
+        this.stripes = new Stripe[count];
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe((capacity + count - 1) / count);
+        }
+    }
+
+    /**
+     * @return the entry of {@code address}, created if it is not remembered, or null if it is not
+     * and its stripe is full of entries in use
+     */
+    Entry get(InetAddress address, long nowNanos) {
+        int h = address.hashCode();
+        Stripe stripe = stripes[(h ^ h >>> 16) & mask];
+        synchronized (stripe) {
+            Entry entry = stripe.get(address);
+            if (entry == null) {
+                if (stripe.size() >= stripe.capacity && !stripe.evictIdle(nowNanos)) {
+                    return null;
+                }
+                entry = new Entry(nowNanos);
+                stripe.put(address, entry);
+            }
+            return entry;
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * State of one address, guarded by its own monitor.
+     */
+    static final class Entry {
+        int connections;
+        long bucket;
+
+        Entry(long nowNanos) {
+            this.bucket = nowNanos;
+        }
+
+        /**
+         * @return whether forgetting this entry changes no limit: nothing is open and a new entry
+         * would start with the same full bucket
+         */
+        synchronized boolean isIdle(long nowNanos) {
+            return connections == 0 && bucket - nowNanos <= 0;
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<InetAddress, Entry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Removes the least recently seen idle entry among the oldest few. The busy ones looked at
+         * move to the back, so the next scan starts with others.
+         *
+         * @return whether an entry was removed
+         */
+        boolean evictIdle(long nowNanos) {
+            List<InetAddress> busy = new ArrayList<>(EVICTION_SCAN);
+            Iterator<Map.Entry<InetAddress, Entry>> eldest = entrySet().iterator();
+            boolean evicted = false;
+            while (!evicted && busy.size() < EVICTION_SCAN && eldest.hasNext()) {
+                Map.Entry<InetAddress, Entry> candidate = eldest.next();
+                if (candidate.getValue().isIdle(nowNanos)) {
+                    eldest.remove();
+                    evicted = true;
+                } else {
+                    busy.add(candidate.getKey());
+                }
+            }
+            // An access moves an entry to the back of the access order.
+            busy.forEach(this::get);
+            return evicted;
+        }
+    }
+}
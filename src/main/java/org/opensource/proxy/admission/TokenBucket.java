@@ -0,0 +1,60 @@
+package org.opensource.proxy.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled at {@code rate} tokens per second and holding at most {@code burst}.
+ * <p>
+ * It is kept as a single timestamp, the time at which the bucket will be full again (the generic
+ * cell rate algorithm), so taking a token is one compare-and-set with no refill bookkeeping. The
+ * same arithmetic is offered for state held elsewhere, such as the per-address entries of an
+ * {@link IpTable}.
+ */
+final class TokenBucket {
+
+    /**
+     * Returned by {@link #take(long, long)} when no token is left.
+     */
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * @throws IllegalArgumentException if {@code rate} or {@code burst} is not positive
+     */
+    TokenBucket(long rate, long burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + rate + "/s, burst " + burst);
+        }
+        this.intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    boolean tryAcquire(long nowNanos) {
+        for (;;) {
+            long current = fullAt.get();
+            long next = take(current, nowNanos);
+            if (next == EMPTY) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param fullAt the state of a bucket, start with the time it was created at
+     * @return the new state after taking one token, or {@link #EMPTY} if none is left
+     */
+    long take(long fullAt, long nowNanos) {
+        long start = fullAt - nowNanos > 0 ? fullAt : nowNanos;
+        if (start - nowNanos > toleranceNanos) {
+            return EMPTY;
+        }
+        return start + intervalNanos;
+    }
+}
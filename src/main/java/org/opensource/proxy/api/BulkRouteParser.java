@@ -0,0 +1,141 @@
+package org.opensource.proxy.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.repository.RouterConfigCsv;
+import org.opensource.proxy.routing.BulkResult;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Parses the bodies of the bulk endpoints. An entry that cannot be parsed does not fail the
+ * others: it becomes a {@link BulkResult} in place of its route, named by the route if known and by
+ * its position otherwise.
+ */
+final class BulkRouteParser {
+
+    private BulkRouteParser() {
+    }
+
+    /**
+     * @return a {@link RouterConfig} or a {@link BulkResult} per array element
+     * @throws IllegalArgumentException if the body is not a JSON array
+     */
+    static List<Object> parseJsonArray(String body) {
+        JsonArray array;
+        try {
+            array = JsonParser.parseString(body).getAsJsonArray();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IllegalArgumentException("Expected a JSON array of routes");
+        }
+        List<Object> entries = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            entries.add(parseJson(array.get(i), "element " + i));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the header of the config file as well as the lower-case one of {@code /list/csv}.
+     *
+     * @return a {@link RouterConfig} or a {@link BulkResult} per record
+     * @throws IOException if the header cannot be read
+     */
+    static List<Object> parseCsv(Reader body) throws IOException {
+        List<Object> entries = new ArrayList<>();
+        CSVFormat format = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).setIgnoreHeaderCase(true).build();
+        try (CSVParser parser = new CSVParser(body, format)) {
+            for (CSVRecord record : parser) {
+                try {
+                    entries.add(RouterConfigCsv.parseRecord(record));
+                } catch (IllegalArgumentException e) {
+                    String name = record.isMapped("RoutingName") && record.isSet("RoutingName") ? record.get("RoutingName") : "line " + parser.getCurrentLineNumber();
+                    entries.add(BulkResult.failed(name, e.getMessage()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return a {@link RouterConfig}, or a {@link BulkResult} if the line is not a valid route
+     */
+    static Object parseJsonLine(String line, long lineNumber) {
+        try {
+            return parseJson(JsonParser.parseString(line), "line " + lineNumber);
+        } catch (JsonParseException e) {
+            return BulkResult.failed("line " + lineNumber, "Invalid JSON: " + e.getMessage());
+        }
+    }
+
+    private static Object parseJson(JsonElement element, String position) {
+        if (!element.isJsonObject()) {
+            return BulkResult.failed(position, "Expected a JSON object");
+        }
+        JsonObject json = element.getAsJsonObject();
+        JsonElement name = json.get("routingName");
+        String routingName = name != null && name.isJsonPrimitive() ? name.getAsString() : position;
+        try {
+            return new RouterConfig(
+                    string(json, "routingName"),
+                    port(json, "enterPort"),
+                    string(json, "routingDestination"),
+                    port(json, "routingPort"),
+                    json.has("description") && !json.get("description").isJsonNull() ? json.get("description").getAsString() : "",
+                    options(json.get("options")));
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+            return BulkResult.failed(routingName, e.getMessage());
+        }
+    }
+
+    private static String string(JsonObject json, String field) {
+        JsonElement value = json.get(field);
+        if (value == null || value.isJsonNull() || value.getAsString().isBlank()) {
+            throw new IllegalArgumentException("Missing " + field);
+        }
+        return value.getAsString().trim();
+    }
+
+    private static int port(JsonObject json, String field) {
+        JsonElement value = json.get(field);
+        if (value == null || value.isJsonNull()) {
+            throw new IllegalArgumentException("Missing " + field);
+        }
+        return value.getAsInt();
+    }
+
+    /**
+     * Options are given as in the CSV column, {@code "key=value;..."}, as an object of keys and
+     * values, or as {@code /api/list/json} prints them.
+     */
+    private static RouteOptions options(JsonElement options) {
+        if (options == null || options.isJsonNull()) {
+            return RouteOptions.EMPTY;
+        }
+        if (options.isJsonPrimitive()) {
+            return RouteOptions.parse(options.getAsString());
+        }
+        JsonObject values = options.getAsJsonObject();
+        if (values.size() == 1 && values.has("values") && values.get("values").isJsonObject()) {
+            values = values.getAsJsonObject("values");
+        }
+        StringJoiner joiner = new StringJoiner(";");
+        for (Map.Entry<String, JsonElement> entry : values.entrySet()) {
+            joiner.add(entry.getKey() + "=" + entry.getValue().getAsString());
+        }
+        return RouteOptions.parse(joiner.toString());
+    }
+}
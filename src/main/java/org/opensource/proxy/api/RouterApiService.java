@@ -1,6 +1,7 @@
 package org.opensource.proxy.api;
 
 import com.google.gson.Gson;
+import io.netty.channel.Channel;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -10,32 +11,61 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.opensource.proxy.RouteTarget;
 import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.config.RouteOptions;
 import org.opensource.proxy.config.RouterConfig;
-import org.opensource.proxy.repository.RouterConfigRepository;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.metrics.AllocatorStats;
+import org.opensource.proxy.metrics.PrometheusFormat;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.routing.BulkResult;
+import org.opensource.proxy.routing.RouteTable;
+import org.opensource.proxy.routing.RouteTableService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 @Service
 @RestController
 @RequestMapping("/api")
 public class RouterApiService {
 
-    private final RouterConfigRepository repository;
-    public final Map<RouterConfig, RouterServer> routerServerMap;
+    /** Routes of an NDJSON body applied, and saved, together. */
+    private static final int NDJSON_CHUNK = 1000;
+    private static final int MAX_CONNECTIONS_PAGE = 1000;
+
+    private final RouteTableService routeTableService;
+    private final AccessLog accessLog;
 
     @Autowired
-    public RouterApiService(RouterConfigRepository repository, Map<RouterConfig, RouterServer> routerServerMap) {
-        this.repository = repository;
-        this.routerServerMap = routerServerMap;
+    public RouterApiService(RouteTableService routeTableService, AccessLog accessLog) {
+        this.routeTableService = routeTableService;
+        this.accessLog = accessLog;
     }
 
     @Operation(summary = "Add a new routing rule")
@@ -46,26 +76,181 @@ public class RouterApiService {
                     content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
     })
     @PostMapping("/add")
-    public ResponseEntity<String> addRoutingRule(@Parameter(description = "Routing rule details in CSV format: routingName,enterPort,routingDestination,routingPort,description", example = "exampleRuleName,18888,example.domain.name,8888") @RequestBody String body) {
-        String[] parts = body.split(",");
-        if (parts.length != 5) {
-            return new ResponseEntity<>("Bad request", HttpStatus.BAD_REQUEST);
+    public ResponseEntity<String> addRoutingRule(@Parameter(description = "Routing rule details in CSV format: routingName,enterPort,routingDestination,routingPort,description[,options]. The routing destination may list several backends as host[:port][*weight] separated by |", example = "exampleRuleName,18888,app1.example:8888*2|app2.example,8888,Example rule,lb=weighted-round-robin") @RequestBody String body) {
+        try {
+            RouterConfig config = parseRoutingRule(body);
+            if (config == null) {
+                return new ResponseEntity<>("Bad request", HttpStatus.BAD_REQUEST);
+            }
+            // Validates the route before anything is persisted, then binds its port.
+            routeTableService.add(config);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+
+        return new ResponseEntity<>("Routing rule added successfully", HttpStatus.OK);
+    }
+
+    @Operation(summary = "Update a routing rule in place")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Routing rule updated successfully",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "404", description = "Not found",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @PutMapping("/update")
+    public ResponseEntity<String> updateRoutingRule(@Parameter(description = "Routing rule details in the same CSV format as /add, matched by routing name. New connections use the new destination at once, open connections finish on the old one", example = "exampleRuleName,18888,app3.example,8888,Moved rule") @RequestBody String body) {
+        try {
+            RouterConfig config = parseRoutingRule(body);
+            if (config == null) {
+                return new ResponseEntity<>("Bad request", HttpStatus.BAD_REQUEST);
+            }
+            if (!routeTableService.update(config)) {
+                return new ResponseEntity<>("Not found", HttpStatus.NOT_FOUND);
+            }
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+
+        return new ResponseEntity<>("Routing rule updated successfully", HttpStatus.OK);
+    }
+
+    @Operation(summary = "Add or update many routing rules from a JSON array")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Every routing rule was applied, with a result per rule",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = BulkResult.class)) }),
+            @ApiResponse(responseCode = "207", description = "Some routing rules failed, with a result per rule",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = BulkResult.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @PostMapping("/bulk/json")
+    public ResponseEntity<String> bulkJson(@Parameter(description = "Routing rules with the fields of /list/json. Options may also be given as \"key=value;...\" or as an object of keys and values. The valid rules are saved in one write and their ports bound in parallel", example = "[{\"routingName\":\"exampleRuleName\",\"enterPort\":18888,\"routingDestination\":\"app1.example\",\"routingPort\":8888,\"options\":\"lb=round-robin\"}]") @RequestBody String body) {
+        List<Object> entries;
+        try {
+            entries = BulkRouteParser.parseJsonArray(body);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+        List<BulkResult> results = applyBulk(entries);
+        return new ResponseEntity<>(new Gson().toJson(results), bulkStatus(results));
+    }
+
+    @Operation(summary = "Add or update many routing rules from a CSV file")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Every routing rule was applied, with a result per rule",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = BulkResult.class)) }),
+            @ApiResponse(responseCode = "207", description = "Some routing rules failed, with a result per rule",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = BulkResult.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @PostMapping("/bulk/csv")
+    public ResponseEntity<String> bulkCsv(@Parameter(description = "Routing rules in the format of /list/csv, header first", example = "RoutingName,EnterPort,RoutingDestination,RoutingPort,Description,Options\nexampleRuleName,18888,app1.example,8888,Example rule,") @RequestBody String body) {
+        List<Object> entries;
+        try {
+            entries = BulkRouteParser.parseCsv(new StringReader(body));
+        } catch (IOException | IllegalArgumentException e) {
+            return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+        List<BulkResult> results = applyBulk(entries);
+        return new ResponseEntity<>(new Gson().toJson(results), bulkStatus(results));
+    }
+
+    @Operation(summary = "Add or update many routing rules from newline-delimited JSON")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Every routing rule was applied, with a result per line",
+                    content = { @Content(mediaType = "application/x-ndjson", schema = @Schema(implementation = BulkResult.class)) }),
+            @ApiResponse(responseCode = "207", description = "Some routing rules failed, with a result per line",
+                    content = { @Content(mediaType = "application/x-ndjson", schema = @Schema(implementation = BulkResult.class)) })
+    })
+    @PostMapping(value = "/bulk/ndjson", produces = "application/x-ndjson")
+    public ResponseEntity<String> bulkNdjson(@Parameter(description = "One routing rule per line, each a JSON object as in /bulk/json. The body is read as it arrives and applied every " + NDJSON_CHUNK + " rules") InputStream body) throws IOException {
+        Gson gson = new Gson();
+        StringBuilder out = new StringBuilder();
+        boolean failed = false;
+        List<Object> chunk = new ArrayList<>(NDJSON_CHUNK);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        long lineNumber = 0;
+        for (String line; (line = reader.readLine()) != null; ) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            chunk.add(BulkRouteParser.parseJsonLine(line, lineNumber));
+            if (chunk.size() == NDJSON_CHUNK) {
+                failed |= appendNdjson(gson, out, applyBulk(chunk));
+                chunk.clear();
+            }
+        }
+        failed |= appendNdjson(gson, out, applyBulk(chunk));
+        return new ResponseEntity<>(out.toString(), failed ? HttpStatus.MULTI_STATUS : HttpStatus.OK);
+    }
+
+    /**
+     * @return whether any of the results is a failure
+     */
+    private static boolean appendNdjson(Gson gson, StringBuilder out, List<BulkResult> results) {
+        boolean failed = false;
+        for (BulkResult result : results) {
+            out.append(gson.toJson(result)).append('\n');
+            failed |= !result.isSuccess();
         }
+        return failed;
+    }
+
+    /**
+     * Applies the parsed routes as one batch and returns a result per entry in their order,
+     * entries that could not be parsed keeping the failure they were parsed into.
+     */
+    private List<BulkResult> applyBulk(List<Object> entries) {
+        List<RouterConfig> configs = new ArrayList<>(entries.size());
+        for (Object entry : entries) {
+            if (entry instanceof RouterConfig config) {
+                configs.add(config);
+            }
+        }
+        Iterator<BulkResult> applied = configs.isEmpty() ? Collections.emptyIterator() : routeTableService.apply(configs).iterator();
+        List<BulkResult> results = new ArrayList<>(entries.size());
+        for (Object entry : entries) {
+            results.add(entry instanceof BulkResult failure ? failure : applied.next());
+        }
+        return results;
+    }
+
+    private static HttpStatus bulkStatus(List<BulkResult> results) {
+        return results.stream().allMatch(BulkResult::isSuccess) ? HttpStatus.OK : HttpStatus.MULTI_STATUS;
+    }
 
+    /**
+     * @return the targets of every listener, serving or draining
+     */
+    private List<RouteTarget> routeTargets() {
+        List<RouteTarget> targets = new ArrayList<>();
+        for (RouterServer server : routeTableService.getListeners()) {
+            targets.addAll(server.getTargets());
+        }
+        return targets;
+    }
+
+    /**
+     * @return the parsed rule, or null if it has the wrong number of fields
+     * @throws IllegalArgumentException if a field is invalid
+     */
+    private static RouterConfig parseRoutingRule(String body) {
+        String[] parts = body.split(",");
+        if (parts.length != 5 && parts.length != 6) {
+            return null;
+        }
         String routingName = parts[0].trim();
         int enterPort = Integer.parseInt(parts[1].trim());
         String routingDestination = parts[2].trim();
         int routingPort = Integer.parseInt(parts[3].trim());
         String description = parts[4].trim();
-
-        RouterConfig config = new RouterConfig(routingName, enterPort, routingDestination, routingPort, description);
-        repository.create(config);
-
-        RouterServer routerServer = new RouterServer(config.getEnterPort(), config.getRoutingDestination(), config.getRoutingPort());
-        routerServer.runDaemon();
-        routerServerMap.put(config, routerServer);
-
-        return new ResponseEntity<>("Routing rule added successfully", HttpStatus.OK);
+        RouteOptions options = parts.length == 6 ? RouteOptions.parse(parts[5]) : RouteOptions.EMPTY;
+        return new RouterConfig(routingName, enterPort, routingDestination, routingPort, description, options);
     }
 
     @Operation(summary = "Delete a routing rule")
@@ -79,17 +264,10 @@ public class RouterApiService {
     public ResponseEntity<String> deleteRoutingRule(@Parameter(description = "Routing name to delete", example = "ruleNameToBeDeleted") @RequestBody String body) throws Exception {
         String routingName = body.trim();
 
-        RouterConfig config = repository.read(routingName);
-        if (config == null) {
+        if (!routeTableService.remove(routingName)) {
             return new ResponseEntity<>("Not found", HttpStatus.NOT_FOUND);
         }
 
-        repository.delete(routingName);
-        RouterServer routerServer = routerServerMap.remove(config);
-        if (routerServer != null) {
-            routerServer.shutdown();
-        }
-
         return new ResponseEntity<>("Routing rule deleted successfully", HttpStatus.OK);
     }
 
@@ -100,11 +278,230 @@ public class RouterApiService {
     })
     @GetMapping("/list/json")
     public ResponseEntity<String> listRoutingRulesJson() {
-        List<RouterConfig> configs = repository.findAll();
+        List<RouterConfig> configs = routeTableService.current().getRoutes();
         String json = new Gson().toJson(configs);
         return new ResponseEntity<>(json, HttpStatus.OK);
     }
 
+    @Operation(summary = "Find routing rules by routing name, enter port or backend in JSON format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Matching routing rules, empty if none",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = RouterConfig.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/find/json")
+    public ResponseEntity<String> findRoutingRulesJson(
+            @Parameter(description = "Routing name", example = "exampleRuleName") @RequestParam(required = false) String name,
+            @Parameter(description = "Enter port", example = "18888") @RequestParam(required = false) Integer port,
+            @Parameter(description = "Backend as host:port, matching routes that relay to it with any weight", example = "app1.example:8888") @RequestParam(required = false) String backend) {
+        RouteTable table = routeTableService.current();
+        List<RouterConfig> configs;
+        if (name != null) {
+            RouterConfig config = table.get(name);
+            configs = config == null ? List.of() : List.of(config);
+        } else if (port != null) {
+            configs = table.getByPort(port);
+        } else if (backend != null) {
+            int separator = backend.lastIndexOf(':');
+            if (separator <= 0) {
+                return new ResponseEntity<>("Bad request: backend must be host:port", HttpStatus.BAD_REQUEST);
+            }
+            try {
+                configs = table.getByBackend(backend.substring(0, separator).replace("[", "").replace("]", ""),
+                        Integer.parseInt(backend.substring(separator + 1)));
+            } catch (NumberFormatException e) {
+                return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+        } else {
+            return new ResponseEntity<>("Bad request: give a name, port or backend", HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<>(new Gson().toJson(configs), HttpStatus.OK);
+    }
+
+    @Operation(summary = "Show the health of every route's backends in JSON format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Backend health per route",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/health/json")
+    public ResponseEntity<String> listBackendHealthJson() {
+        List<Map<String, Object>> routes = new ArrayList<>();
+        for (RouteTarget target : routeTargets()) {
+            List<Map<String, Object>> backends = new ArrayList<>();
+            for (BackendNode node : target.getBackendNodes()) {
+                Map<String, Object> backend = new LinkedHashMap<>();
+                backend.put("backend", node.toString());
+                backend.put("available", node.isAvailable());
+                backend.put("activeConnections", node.getActiveConnections());
+                backend.put("consecutiveFailures", node.getHealth().getConsecutiveFailures());
+                backend.put("ejections", node.getHealth().getEjections());
+                backend.put("ejectedForMillis", node.getHealth().getEjectedForMillis());
+                backends.add(backend);
+            }
+            Map<String, Object> route = new LinkedHashMap<>();
+            route.put("routingName", target.getConfig().getRoutingName());
+            route.put("backends", backends);
+            routes.add(route);
+        }
+        String json = new Gson().toJson(routes);
+        return new ResponseEntity<>(json, HttpStatus.OK);
+    }
+
+    @Operation(summary = "Drain every listener before a shutdown or a hand-over to a new process")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "202", description = "Draining started, follow it at /drain/json",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @PostMapping("/drain")
+    public ResponseEntity<String> drain(@Parameter(description = "Milliseconds open connections may take to finish before they are closed, defaults to router.drain.timeout.ms", example = "30000") @RequestBody(required = false) String body) {
+        long timeoutMillis;
+        try {
+            timeoutMillis = body == null || body.isBlank() ? routeTableService.getDrainTimeoutMillis() : Long.parseLong(body.trim());
+        } catch (NumberFormatException e) {
+            return new ResponseEntity<>("Bad request: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+        routeTableService.drainAll(timeoutMillis);
+        return new ResponseEntity<>("Draining started", HttpStatus.ACCEPTED);
+    }
+
+    @Operation(summary = "Show the drain progress of every listener in JSON format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "State and open connections per listener",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/drain/json")
+    public ResponseEntity<String> drainStatusJson() {
+        List<Map<String, Object>> listeners = new ArrayList<>();
+        for (RouterServer server : routeTableService.getListeners()) {
+            Map<String, Object> listener = new LinkedHashMap<>();
+            listener.put("routingName", server.getTargets().stream().map(target -> target.getConfig().getRoutingName()).collect(Collectors.joining(",")));
+            listener.put("enterPort", server.getEnterPort());
+            listener.put("state", server.isDrained() ? "drained" : server.isDraining() ? "draining" : "serving");
+            listener.put("openConnections", server.getOpenConnections());
+            listener.put("drainRemainingMillis", server.getDrainRemainingMillis());
+            listeners.add(listener);
+        }
+        String json = new Gson().toJson(listeners);
+        return new ResponseEntity<>(json, HttpStatus.OK);
+    }
+
+    @Operation(summary = "List open client connections with their byte counters and age in JSON format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One page of connections, oldest first, and the total",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "400", description = "Bad request",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/connections/json")
+    public ResponseEntity<String> listConnectionsJson(
+            @Parameter(description = "Routing name, all routes if missing", example = "exampleRuleName") @RequestParam(required = false) String route,
+            @Parameter(description = "Connections to skip", example = "0") @RequestParam(defaultValue = "0") int offset,
+            @Parameter(description = "Connections per page, at most " + MAX_CONNECTIONS_PAGE, example = "100") @RequestParam(defaultValue = "100") int limit) {
+        if (offset < 0 || limit <= 0 || limit > MAX_CONNECTIONS_PAGE) {
+            return new ResponseEntity<>("Bad request: offset must not be negative and limit must be 1 to " + MAX_CONNECTIONS_PAGE, HttpStatus.BAD_REQUEST);
+        }
+        List<Channel> channels = routeTableService.getConnections(route);
+        List<Map<String, Object>> page = new ArrayList<>();
+        for (Channel channel : channels.subList(Math.min(offset, channels.size()), Math.min(offset + limit, channels.size()))) {
+            ConnectionInfo info = ConnectionInfo.of(channel);
+            Map<String, Object> connection = new LinkedHashMap<>();
+            connection.put("id", channel.id().asLongText());
+            connection.put("routingName", info.getRoute());
+            connection.put("client", ConnectionInfo.format(info.getClient()));
+            connection.put("backend", ConnectionInfo.format(info.getBackend()));
+            connection.put("ageMillis", info.getAgeMillis());
+            connection.put("bytesIn", info.getBytesIn());
+            connection.put("bytesOut", info.getBytesOut());
+            connection.put("capturing", info.getCapture() != null);
+            page.add(connection);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", channels.size());
+        result.put("offset", offset);
+        result.put("connections", page);
+        return new ResponseEntity<>(new Gson().toJson(result), HttpStatus.OK);
+    }
+
+    @Operation(summary = "Close a client connection and its upstream at once")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Connection closed",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "404", description = "Not found",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @DeleteMapping("/connections")
+    public ResponseEntity<String> closeConnection(@Parameter(description = "Connection id as listed by /connections/json") @RequestParam String id) {
+        Channel channel = routeTableService.findConnection(id);
+        if (channel == null) {
+            return new ResponseEntity<>("Not found", HttpStatus.NOT_FOUND);
+        }
+        channel.close();
+        return new ResponseEntity<>("Connection closed", HttpStatus.OK);
+    }
+
+    @Operation(summary = "Capture the bytes of an open connection to the capture file of its route")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Capture started, written once the bytes are captured or the connection closes",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "404", description = "Not found",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) }),
+            @ApiResponse(responseCode = "409", description = "The connection is already captured or closed",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @PostMapping("/connections/capture")
+    public ResponseEntity<String> captureConnection(
+            @Parameter(description = "Connection id as listed by /connections/json") @RequestParam String id,
+            @Parameter(description = "Bytes to capture, both directions together, defaults to the route's captureBytes", example = "65536") @RequestParam(defaultValue = "0") int bytes) throws InterruptedException {
+        Channel channel = routeTableService.findConnection(id);
+        ConnectionInfo info = channel == null ? null : ConnectionInfo.of(channel);
+        if (info == null) {
+            return new ResponseEntity<>("Not found", HttpStatus.NOT_FOUND);
+        }
+        boolean started;
+        try {
+            // The pipeline is changed on the connection's own event loop, between two reads.
+            started = channel.eventLoop().submit(() -> info.startCapture(channel, bytes)).get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            started = false;
+        }
+        if (!started) {
+            return new ResponseEntity<>("Connection already captured or closed", HttpStatus.CONFLICT);
+        }
+        return new ResponseEntity<>("Capturing to " + info.getCaptureSettings().getWriter().getFile(), HttpStatus.OK);
+    }
+
+    @Operation(summary = "Export per-route traffic metrics in Prometheus text format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Route metrics",
+                    content = { @Content(mediaType = "text/plain", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/metrics")
+    public ResponseEntity<String> metrics() {
+        // A route being replaced or drained has several targets of one name, their counters add up.
+        Map<String, List<RouteMetrics>> metrics = new LinkedHashMap<>();
+        for (RouteTarget target : routeTargets()) {
+            metrics.computeIfAbsent(target.getConfig().getRoutingName(), name -> new ArrayList<>()).add(target.getMetrics());
+        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_TYPE, PrometheusFormat.CONTENT_TYPE)
+                .body(PrometheusFormat.render(metrics) + PrometheusFormat.render(AllocatorStats.snapshot())
+                        + PrometheusFormat.render(accessLog));
+    }
+
+    @Operation(summary = "Show the buffer allocator's arenas and the direct memory in use in JSON format")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Pooled allocator and direct memory statistics",
+                    content = { @Content(mediaType = "application/json", schema = @Schema(implementation = String.class)) })
+    })
+    @GetMapping("/buffers/json")
+    public ResponseEntity<String> bufferStatsJson() {
+        String json = new Gson().toJson(AllocatorStats.snapshot().toMap());
+        return new ResponseEntity<>(json, HttpStatus.OK);
+    }
+
     @Operation(summary = "List all routing rules in CSV format")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "List of routing rules",
@@ -114,10 +511,10 @@ public class RouterApiService {
     })
     @GetMapping("/list/csv")
     public ResponseEntity<String> listRoutingRulesCsv() {
-        List<RouterConfig> configs = repository.findAll();
+        List<RouterConfig> configs = routeTableService.current().getRoutes();
 
         try (Writer writer = new StringWriter();
-             CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader("routingName", "enterPort", "routingDestination", "routingPort", "description"))) {
+             CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader("routingName", "enterPort", "routingDestination", "routingPort", "description", "options"))) {
 
             for (RouterConfig config : configs) {
                 csvPrinter.printRecord(
@@ -125,7 +522,8 @@ public class RouterApiService {
                         config.getEnterPort(),
                         config.getRoutingDestination(),
                         config.getRoutingPort(),
-                        config.getDescription()
+                        config.getDescription(),
+                        config.getOptions()
                 );
             }
             // Ensure the CSVPrinter flushes the content
@@ -0,0 +1,66 @@
+package org.opensource.proxy.balancer;
+
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.health.BackendHealth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime state of one backend of a route, shared by the load balancer and the relay.
+ */
+public class BackendNode {
+
+    private final int index;
+    private final Backend backend;
+    private final BackendHealth health;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    public BackendNode(int index, Backend backend, BackendHealth health) {
+        this.index = index;
+        this.backend = backend;
+        this.health = health;
+    }
+
+    /**
+     * @return the position of this backend in the route's backend list
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    public BackendHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return false while the backend is ejected by the health checks
+     */
+    public boolean isAvailable() {
+        return health.isAvailable();
+    }
+
+    public int getWeight() {
+        return backend.getWeight();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return backend.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.opensource.proxy.balancer;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * Sticky selection by client IP on a consistent-hash ring, so a client keeps its backend and
+ * adding or removing a backend only moves the clients of that backend.
+ * <p>
+ * Each backend gets {@link #POINTS_PER_WEIGHT} points per unit of weight. The ring is stored as
+ * sorted parallel arrays, so a lookup is one binary search. A route whose weights add up to a ring
+ * of more than {@link #MAX_POINTS} points is refused.
+ */
+public class ConsistentHashBalancer implements LoadBalancer {
+
+    static final int POINTS_PER_WEIGHT = 100;
+    static final int MAX_POINTS = 1 << 20;
+
+    private final long[] ringHashes;
+    private final BackendNode[] ringNodes;
+
+    public ConsistentHashBalancer(BackendNode[] nodes) {
+        long total = 0;
+        for (BackendNode node : nodes) {
+            total += (long) node.getWeight() * POINTS_PER_WEIGHT;
+        }
+        if (total > MAX_POINTS) {
+            throw new IllegalArgumentException("Backend weights need a consistent-hash ring of " + total
+                    + " points, at most " + MAX_POINTS + " are allowed");
+        }
+        int points = (int) total;
+        long[][] entries = new long[points][];
+        int n = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            String key = nodes[i].getBackend().getHost() + ":" + nodes[i].getBackend().getPort();
+            for (int replica = 0; replica < nodes[i].getWeight() * POINTS_PER_WEIGHT; replica++) {
+                entries[n++] = new long[]{hash(key + "#" + replica), i};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.ringHashes = new long[points];
+        this.ringNodes = new BackendNode[points];
+        for (int i = 0; i < points; i++) {
+            ringHashes[i] = entries[i][0];
+            ringNodes[i] = nodes[(int) entries[i][1]];
+        }
+    }
+
+    @Override
+    public BackendNode select(SocketAddress clientAddress) {
+        long hash = mix(LoadBalancer.clientHash(clientAddress));
+        int index = Arrays.binarySearch(ringHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        int start = index == ringNodes.length ? 0 : index;
+        // Walk clockwise past ejected backends; their clients move to the next backend on the ring.
+        for (int i = 0; i < ringNodes.length; i++) {
+            BackendNode node = ringNodes[(start + i) % ringNodes.length];
+            if (node.isAvailable()) {
+                return node;
+            }
+        }
+        return ringNodes[start];
+    }
+
+    /**
+     * 64-bit FNV-1a of the ring point key, finished with the same mixer as client hashes.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads nearby inputs such as consecutive IPs over the ring.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,44 @@
+package org.opensource.proxy.balancer;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the backend with the fewest active connections relative to its weight.
+ * The scan starts at a random backend so ties are spread instead of piling onto the first one.
+ */
+public class LeastConnectionsBalancer implements LoadBalancer {
+
+    private final BackendNode[] nodes;
+
+    public LeastConnectionsBalancer(BackendNode[] nodes) {
+        this.nodes = nodes;
+    }
+
+    @Override
+    public BackendNode select(SocketAddress clientAddress) {
+        int start = nodes.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(nodes.length);
+        return leastLoaded(nodes, start);
+    }
+
+    /**
+     * Scans all available nodes starting at {@code start}, falling back to {@code nodes[start]}.
+     */
+    static BackendNode leastLoaded(BackendNode[] nodes, int start) {
+        BackendNode best = null;
+        for (int i = 0; i < nodes.length; i++) {
+            BackendNode candidate = nodes[(start + i) % nodes.length];
+            if (candidate.isAvailable() && (best == null || lessLoaded(candidate, best))) {
+                best = candidate;
+            }
+        }
+        return best != null ? best : nodes[start];
+    }
+
+    /**
+     * Compares active/weight of both nodes without dividing.
+     */
+    static boolean lessLoaded(BackendNode a, BackendNode b) {
+        return (long) a.getActiveConnections() * b.getWeight() < (long) b.getActiveConnections() * a.getWeight();
+    }
+}
@@ -0,0 +1,51 @@
+package org.opensource.proxy.balancer;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the backend for each new client connection of a route.
+ * <p>
+ * {@link #select(SocketAddress)} runs on the I/O threads for every accepted connection, so
+ * implementations must be lock-free and must not allocate. Backends ejected by the health checks
+ * are skipped; if every backend is ejected the strategy's first pick is returned anyway, since
+ * trying a possibly dead backend beats refusing every client.
+ */
+public interface LoadBalancer {
+
+    BackendNode select(SocketAddress clientAddress);
+
+    /**
+     * Creates the strategy named by the route's {@code lb} option:
+     * {@code round-robin} (default), {@code weighted-round-robin}, {@code least-connections},
+     * {@code power-of-two} or {@code consistent-hash}.
+     */
+    static LoadBalancer create(String name, List<BackendNode> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A route needs at least one backend");
+        }
+        BackendNode[] array = nodes.toArray(new BackendNode[0]);
+        String normalized = name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+        return switch (normalized) {
+            case "", "round-robin" -> new RoundRobinBalancer(array);
+            case "weighted-round-robin" -> new WeightedRoundRobinBalancer(array);
+            case "least-connections" -> new LeastConnectionsBalancer(array);
+            case "power-of-two" -> new PowerOfTwoChoicesBalancer(array);
+            case "consistent-hash" -> new ConsistentHashBalancer(array);
+            default -> throw new IllegalArgumentException("Unknown load balancer: " + name);
+        };
+    }
+
+    /**
+     * Hash of the client IP without its port, so every connection from one host hashes the same.
+     */
+    static int clientHash(SocketAddress clientAddress) {
+        if (clientAddress instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) clientAddress;
+            return address.getAddress() != null ? address.getAddress().hashCode() : address.getHostString().hashCode();
+        }
+        return clientAddress == null ? 0 : clientAddress.hashCode();
+    }
+}
@@ -0,0 +1,40 @@
+package org.opensource.proxy.balancer;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples two distinct backends at random and takes the less loaded one. This stays close to
+ * least-connections while only reading two counters per selection.
+ */
+public class PowerOfTwoChoicesBalancer implements LoadBalancer {
+
+    private final BackendNode[] nodes;
+
+    public PowerOfTwoChoicesBalancer(BackendNode[] nodes) {
+        this.nodes = nodes;
+    }
+
+    @Override
+    public BackendNode select(SocketAddress clientAddress) {
+        if (nodes.length == 1) {
+            return nodes[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(nodes.length);
+        int second = random.nextInt(nodes.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        BackendNode a = nodes[first];
+        BackendNode b = nodes[second];
+        if (a.isAvailable() && b.isAvailable()) {
+            return LeastConnectionsBalancer.lessLoaded(b, a) ? b : a;
+        }
+        if (a.isAvailable() || b.isAvailable()) {
+            return a.isAvailable() ? a : b;
+        }
+        // Both samples are ejected, look at everything else.
+        return LeastConnectionsBalancer.leastLoaded(nodes, first);
+    }
+}
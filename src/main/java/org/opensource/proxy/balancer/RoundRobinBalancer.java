@@ -0,0 +1,29 @@
+package org.opensource.proxy.balancer;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cycles through the backends in order, ignoring their weights.
+ */
+public class RoundRobinBalancer implements LoadBalancer {
+
+    private final BackendNode[] nodes;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RoundRobinBalancer(BackendNode[] nodes) {
+        this.nodes = nodes;
+    }
+
+    @Override
+    public BackendNode select(SocketAddress clientAddress) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % nodes.length;
+        for (int i = 0; i < nodes.length; i++) {
+            BackendNode node = nodes[(start + i) % nodes.length];
+            if (node.isAvailable()) {
+                return node;
+            }
+        }
+        return nodes[start];
+    }
+}
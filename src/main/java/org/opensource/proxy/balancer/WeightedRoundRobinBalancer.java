@@ -0,0 +1,66 @@
+package org.opensource.proxy.balancer;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Round robin in proportion to the backend weights.
+ * <p>
+ * The order is computed once with the smooth weighted round-robin algorithm, which interleaves
+ * the backends instead of sending a burst to the heaviest one, so selection is just an index
+ * into a precomputed schedule. The schedule has one slot per unit of the weights divided by their
+ * greatest common divisor, and a route that needs more than {@link #MAX_SLOTS} slots is refused.
+ */
+public class WeightedRoundRobinBalancer implements LoadBalancer {
+
+    static final int MAX_SLOTS = 1 << 20;
+
+    private final BackendNode[] schedule;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public WeightedRoundRobinBalancer(BackendNode[] nodes) {
+        int gcd = 0;
+        for (BackendNode node : nodes) {
+            gcd = gcd(gcd, node.getWeight());
+        }
+        long slots = 0;
+        for (BackendNode node : nodes) {
+            slots += node.getWeight() / gcd;
+        }
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Backend weights need a weighted round-robin schedule of " + slots
+                    + " slots, at most " + MAX_SLOTS + " are allowed");
+        }
+        int total = (int) slots;
+
+        this.schedule = new BackendNode[total];
+        int[] current = new int[nodes.length];
+        for (int slot = 0; slot < total; slot++) {
+            int best = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                current[i] += nodes[i].getWeight() / gcd;
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[slot] = nodes[best];
+        }
+    }
+
+    @Override
+    public BackendNode select(SocketAddress clientAddress) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % schedule.length;
+        for (int i = 0; i < schedule.length; i++) {
+            BackendNode node = schedule[(start + i) % schedule.length];
+            if (node.isAvailable()) {
+                return node;
+            }
+        }
+        return schedule[start];
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -1,22 +1,82 @@
 package org.opensource.proxy.config;
 
 import lombok.Data;
+import org.opensource.proxy.ControlPlane;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.Transport;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.boot.web.servlet.server.ConfigurableServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 @Data
 @Component
 public class ApplicationConfig {
     @Value("${router.config.path:./config.csv}")
     private String filePath;
+    @Value("${router.store.path:./routes}")
+    private String storePath;
+    @Value("${router.store.compact.after:10000}")
+    private Integer storeCompactAfter;
     @Value("${api.port: 8081}")
     private Integer apiPort;
+    @Value("${router.transport:auto}")
+    private String transport;
+    @Value("${router.boss.threads:1}")
+    private Integer bossThreads;
+    @Value("${router.worker.threads:0}")
+    private Integer workerThreads;
+    @Value("${router.drain.timeout.ms:30000}")
+    private Long drainTimeoutMillis;
+    @Value("${router.bind.parallelism:16}")
+    private Integer bindParallelism = 16;
+    @Value("${router.accesslog.enabled:true}")
+    private Boolean accessLogEnabled = true;
+    @Value("${router.accesslog.path:./logs/access}")
+    private String accessLogPath = "./logs/access";
+    @Value("${router.accesslog.ring.size:65536}")
+    private Integer accessLogRingSize = 65536;
+    @Value("${router.accesslog.file.size.mb:64}")
+    private Integer accessLogFileSizeMb = 64;
+    @Value("${router.accesslog.max.files:16}")
+    private Integer accessLogMaxFiles = 16;
+    @Value("${router.api.virtual.threads:true}")
+    private Boolean apiVirtualThreads = true;
 
     @Bean
     public WebServerFactoryCustomizer<ConfigurableServletWebServerFactory> webServerFactoryCustomizer() {
         return factory -> factory.setPort(apiPort); // Set your desired port number here
     }
+
+    // API requests wait on disk writes and binds, so on Java 21 each gets a virtual thread instead of a pool thread.
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> controlPlaneExecutorCustomizer() {
+        return protocolHandler -> {
+            if (apiVirtualThreads && ControlPlane.isVirtual()) {
+                protocolHandler.setExecutor(ControlPlane.virtualExecutor());
+            }
+        };
+    }
+
+    @Bean(destroyMethod = "close")
+    public AccessLog accessLog() throws IOException {
+        if (!accessLogEnabled) {
+            return AccessLog.DISABLED;
+        }
+        AccessLog accessLog = new AccessLog(Path.of(accessLogPath), accessLogRingSize, accessLogFileSizeMb * 1024L * 1024L, accessLogMaxFiles);
+        accessLog.start();
+        return accessLog;
+    }
+
+    // Closed after the runtime, so the records of connections closed on shutdown are written.
+    @Bean(destroyMethod = "shutdown")
+    public EventLoopRuntime eventLoopRuntime(AccessLog accessLog) {
+        return new EventLoopRuntime(Transport.select(transport), bossThreads, workerThreads, accessLog); // Shared by every route listener
+    }
 }
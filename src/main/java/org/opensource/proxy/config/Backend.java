@@ -0,0 +1,132 @@
+package org.opensource.proxy.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One upstream server of a route.
+ * <p>
+ * A route's routing destination holds one or more backends separated by {@code |}, each written as
+ * {@code host[:port][*weight]}, for example {@code app1:8080*3|app2:8080|[::1]:8081}. A backend
+ * without a port uses the route's routing port, and the weight defaults to 1 and may be at most
+ * {@link #MAX_WEIGHT}.
+ */
+public class Backend {
+
+    /**
+     * Upper bound of a weight, which keeps the schedules and rings the balancers build from the
+     * weights small.
+     */
+    public static final int MAX_WEIGHT = 10_000;
+
+    private final String host;
+    private final int port;
+    private final int weight;
+
+    public Backend(String host, int port, int weight) {
+        if (host == null || host.isBlank()) {
+            throw new IllegalArgumentException("Backend host must not be empty");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Backend port out of range: " + port);
+        }
+        if (weight <= 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Backend weight must be between 1 and " + MAX_WEIGHT + ": " + weight);
+        }
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+    }
+
+    public static List<Backend> parseList(String destinations, int defaultPort) {
+        if (destinations == null || destinations.isBlank()) {
+            throw new IllegalArgumentException("Routing destination must not be empty");
+        }
+        List<Backend> backends = new ArrayList<>();
+        for (String entry : destinations.split("\\|")) {
+            backends.add(parse(entry.trim(), defaultPort));
+        }
+        return Collections.unmodifiableList(backends);
+    }
+
+    private static Backend parse(String entry, int defaultPort) {
+        int weight = 1;
+        int star = entry.lastIndexOf('*');
+        if (star >= 0) {
+            weight = parseNumber(entry.substring(star + 1), entry);
+            entry = entry.substring(0, star);
+        }
+
+        String host = entry;
+        int port = defaultPort;
+        if (entry.startsWith("[")) {
+            // Bracketed IPv6 literal, optionally followed by :port
+            int close = entry.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Unterminated IPv6 address in backend: " + entry);
+            }
+            host = entry.substring(1, close);
+            if (entry.length() > close + 1) {
+                if (entry.charAt(close + 1) != ':') {
+                    throw new IllegalArgumentException("Invalid backend: " + entry);
+                }
+                port = parseNumber(entry.substring(close + 2), entry);
+            }
+        } else {
+            int colon = entry.lastIndexOf(':');
+            // More than one colon without brackets is a bare IPv6 literal without a port.
+            if (colon >= 0 && entry.indexOf(':') == colon) {
+                host = entry.substring(0, colon);
+                port = parseNumber(entry.substring(colon + 1), entry);
+            }
+        }
+        return new Backend(host, port, weight);
+    }
+
+    private static int parseNumber(String value, String entry) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid backend: " + entry, e);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + host.hashCode();
+        result = prime * result + port;
+        result = prime * result + weight;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        Backend other = (Backend) obj;
+        return port == other.port && weight == other.weight && host.equals(other.host);
+    }
+
+    @Override
+    public String toString() {
+        String address = host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+        return weight == 1 ? address : address + "*" + weight;
+    }
+}
@@ -0,0 +1,99 @@
+package org.opensource.proxy.config;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Optional per-route settings, written as {@code key=value} pairs separated by {@code ;}
+ * so they fit in a single CSV column, for example {@code tcpNoDelay=true;splice=true}.
+ */
+public class RouteOptions {
+
+    public static final RouteOptions EMPTY = new RouteOptions(Collections.emptyMap());
+
+    private final Map<String, String> values;
+
+    private RouteOptions(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public static RouteOptions parse(String text) {
+        if (text == null || text.isBlank()) {
+            return EMPTY;
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String pair : text.split(";")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Route option must be in key=value format: " + pair);
+            }
+            values.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+        }
+        return new RouteOptions(Collections.unmodifiableMap(values));
+    }
+
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Route option " + key + " must be an integer: " + value, e);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Route option " + key + " must be a number: " + value, e);
+        }
+    }
+
+    public Map<String, String> asMap() {
+        return values;
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        return values.equals(((RouteOptions) obj).values);
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(";");
+        values.forEach((key, value) -> joiner.add(key + "=" + value));
+        return joiner.toString();
+    }
+}
@@ -1,18 +1,30 @@
 package org.opensource.proxy.config;
 
+import java.util.List;
+import java.util.Objects;
+
 public class RouterConfig {
     private String routingName;
     private int enterPort;
     private String routingDestination;
     private int routingPort;
     private String description;
+    private RouteOptions options;
+    // Derived from routingDestination, so it is not serialized on its own.
+    private transient List<Backend> backends;
 
     public RouterConfig(String routingName, int enterPort, String routingDestination, int routingPort, String description) {
+        this(routingName, enterPort, routingDestination, routingPort, description, RouteOptions.EMPTY);
+    }
+
+    public RouterConfig(String routingName, int enterPort, String routingDestination, int routingPort, String description, RouteOptions options) {
         this.routingName = routingName;
         this.enterPort = enterPort;
         this.routingDestination = routingDestination;
         this.routingPort = routingPort;
         this.description = description;
+        this.options = options;
+        this.backends = Backend.parseList(routingDestination, routingPort);
     }
 
     public String getRoutingName() {
@@ -35,6 +47,30 @@ public class RouterConfig {
         return description;
     }
 
+    public RouteOptions getOptions() {
+        return options;
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * Compares every field, unlike {@link #equals}, which only looks at the endpoints and the options.
+     */
+    public boolean sameAs(RouterConfig other) {
+        if (this == other)
+            return true;
+        if (other == null)
+            return false;
+        return enterPort == other.enterPort
+                && routingPort == other.routingPort
+                && Objects.equals(routingName, other.routingName)
+                && Objects.equals(routingDestination, other.routingDestination)
+                && Objects.equals(description, other.description)
+                && Objects.equals(options, other.options);
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -42,6 +78,8 @@ public class RouterConfig {
         result = prime * result + enterPort;
         result = prime * result + ((routingDestination == null) ? 0 : routingDestination.hashCode());
         result = prime * result + routingPort;
+        // Routes sharing a port and backend differ by their sni, host or path options.
+        result = prime * result + ((options == null) ? 0 : options.hashCode());
         return result;
     }
 
@@ -63,7 +101,7 @@ public class RouterConfig {
             return false;
         if (routingPort != other.routingPort)
             return false;
-        return true;
+        return Objects.equals(options, other.options);
     }
 
     @Override
@@ -74,6 +112,7 @@ public class RouterConfig {
                 ", routingDestination='" + routingDestination + '\'' +
                 ", routingPort=" + routingPort +
                 ", description='" + description + '\'' +
+                ", options='" + options + '\'' +
                 '}';
     }
 }
\ No newline at end of file
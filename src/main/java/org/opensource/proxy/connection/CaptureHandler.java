@@ -0,0 +1,153 @@
+package org.opensource.proxy.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.ssl.SslHandler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Copies the bytes a client connection reads and writes, up to a limit, and hands them to a
+ * {@link CaptureWriter} once the limit is reached or the connection closes. It sits right after
+ * the TLS handler if there is one, so it sees plaintext, and removes itself when done.
+ */
+public final class CaptureHandler extends ChannelDuplexHandler {
+
+    static final String NAME = "capture";
+
+    private final Channel channel;
+    private final ConnectionInfo info;
+    private final CaptureWriter writer;
+    private final int limit;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private int captured;
+    private boolean truncated;
+    private boolean finished;
+
+    private CaptureHandler(Channel channel, ConnectionInfo info, CaptureWriter writer, int limit) {
+        this.channel = channel;
+        this.info = info;
+        this.writer = writer;
+        this.limit = limit;
+    }
+
+    /**
+     * Starts capturing {@code channel}. Must run on its event loop.
+     *
+     * @return false if the connection is closed or already captured
+     */
+    static boolean install(Channel channel, ConnectionInfo info, CaptureWriter writer, int limit) {
+        if (!channel.isActive() || info.getCapture() != null) {
+            return false;
+        }
+        CaptureHandler capture = new CaptureHandler(channel, info, writer, limit);
+        ChannelPipeline pipeline = channel.pipeline();
+        ChannelHandlerContext tls = pipeline.context(SslHandler.class);
+        if (tls != null) {
+            pipeline.addAfter(tls.name(), NAME, capture);
+        } else {
+            pipeline.addFirst(NAME, capture);
+        }
+        info.setCapture(capture);
+        return true;
+    }
+
+    /**
+     * Records bytes of the connection that did not pass this handler, such as the first bytes read
+     * before it was added.
+     *
+     * @param fromClient whether the client sent them
+     */
+    public void record(boolean fromClient, ByteBuf buf) {
+        if (finished) {
+            return;
+        }
+        int length = Math.min(buf.readableBytes(), limit - captured);
+        if (length < buf.readableBytes()) {
+            truncated = true;
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(fromClient, System.nanoTime(), ByteBufUtil.getBytes(buf, buf.readerIndex(), length)));
+            captured += length;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            record(true, (ByteBuf) msg);
+        }
+        ctx.fireChannelRead(msg);
+        removeIfFull(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            record(false, (ByteBuf) msg);
+        }
+        ctx.write(msg, promise);
+        removeIfFull(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // Also called for every handler when the channel closes.
+        if (!finished) {
+            finished = true;
+            info.setCapture(null);
+            writer.submit(this);
+        }
+    }
+
+    private void removeIfFull(ChannelHandlerContext ctx) {
+        if (captured >= limit && !ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * Renders the capture as a hex dump per buffer, {@code >} from the client and {@code <} to it.
+     * Called by the writer thread once the capture is finished.
+     */
+    String format() {
+        StringBuilder text = new StringBuilder(captured * 5 + 256);
+        text.append("=== ").append(Instant.ofEpochMilli(info.getOpenedAtMillis()))
+            .append(' ').append(channel.id().asLongText())
+            .append(" route=").append(info.getRoute())
+            .append(" client=").append(ConnectionInfo.format(info.getClient()))
+            .append(" backend=").append(ConnectionInfo.format(info.getBackend()))
+            .append(" bytes=").append(captured)
+            .append(truncated ? " truncated" : "")
+            .append('\n');
+        for (Chunk chunk : chunks) {
+            text.append(chunk.fromClient ? "> " : "< ")
+                .append(String.format(Locale.ROOT, "+%.3f ms", (chunk.nanos - info.getOpenedAtNanos()) / 1e6))
+                .append(' ').append(chunk.bytes.length).append(" bytes\n");
+            ByteBufUtil.appendPrettyHexDump(text, Unpooled.wrappedBuffer(chunk.bytes));
+            text.append('\n');
+        }
+        return text.append('\n').toString();
+    }
+
+    private static final class Chunk {
+        final boolean fromClient;
+        final long nanos;
+        final byte[] bytes;
+
+        Chunk(boolean fromClient, long nanos, byte[] bytes) {
+            this.fromClient = fromClient;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.opensource.proxy.connection;
+
+import org.opensource.proxy.config.RouteOptions;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-route byte capture for debugging, read from {@link RouteOptions}:
+ * <ul>
+ *     <li>{@code captureSample} - capture one in this many new connections of the route; 0, the
+ *     default, captures none unless asked for through the API</li>
+ *     <li>{@code captureBytes} - bytes captured per connection, both directions together, default 65536</li>
+ *     <li>{@code captureFile} - file the captures are appended to, default {@code logs/capture/<route>.log}</li>
+ *     <li>{@code captureMaxMb} - size the file may grow to, captures that do not fit are dropped; default 64</li>
+ * </ul>
+ * A route that captures nothing adds no handler to its connections.
+ */
+public final class CaptureSettings {
+
+    /** Settings of connections that belong to no route. */
+    public static final CaptureSettings NONE = new CaptureSettings("none", RouteOptions.EMPTY);
+
+    private final int sample;
+    private final int bytesPerConnection;
+    private final CaptureWriter writer;
+
+    /**
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    public CaptureSettings(String routingName, RouteOptions options) {
+        this.sample = options.getInt("captureSample", 0);
+        this.bytesPerConnection = options.getInt("captureBytes", 65_536);
+        long maxMb = options.getLong("captureMaxMb", 64);
+        if (sample < 0) {
+            throw new IllegalArgumentException("captureSample must not be negative: " + sample);
+        }
+        if (bytesPerConnection <= 0) {
+            throw new IllegalArgumentException("captureBytes must be positive: " + bytesPerConnection);
+        }
+        if (maxMb <= 0) {
+            throw new IllegalArgumentException("captureMaxMb must be positive: " + maxMb);
+        }
+        Path file = Path.of(options.getString("captureFile", "logs/capture/" + routingName + ".log"));
+        this.writer = new CaptureWriter(file, maxMb * 1024 * 1024);
+    }
+
+    /**
+     * @return whether a new connection is picked for capture
+     */
+    public boolean sample() {
+        return sample > 0 && (sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0);
+    }
+
+    public int getBytesPerConnection() {
+        return bytesPerConnection;
+    }
+
+    public CaptureWriter getWriter() {
+        return writer;
+    }
+}
@@ -0,0 +1,92 @@
+package org.opensource.proxy.connection;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Appends finished captures to a file of bounded size. Captures are formatted and written by one
+ * thread shared by every route, started with the first capture, so an I/O thread only hands a
+ * capture over. Captures that find the queue full or would grow the file past its size are dropped
+ * and counted.
+ */
+public final class CaptureWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureWriter.class);
+
+    private static final int MAX_QUEUED = 64;
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED), new DefaultThreadFactory("connection-capture-writer", true));
+
+    private final Path file;
+    private final long maxBytes;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // Only touched by the writer thread.
+    private boolean full;
+
+    CaptureWriter(Path file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return captures appended to the file
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    void submit(CaptureHandler capture) {
+        try {
+            EXECUTOR.execute(() -> write(capture));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    private void write(CaptureHandler capture) {
+        byte[] text = capture.format().getBytes(StandardCharsets.UTF_8);
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            long size = Files.exists(file) ? Files.size(file) : 0;
+            if (size + text.length > maxBytes) {
+                if (!full) {
+                    logger.warn("Capture file {} is full, dropping captures", file);
+                    full = true;
+                }
+                dropped.increment();
+                return;
+            }
+            Files.write(file, text, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            full = false;
+            written.increment();
+        } catch (IOException e) {
+            logger.warn("Cannot write capture file {}", file, e);
+            dropped.increment();
+        }
+    }
+}
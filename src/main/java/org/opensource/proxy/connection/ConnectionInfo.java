@@ -0,0 +1,139 @@
+package org.opensource.proxy.connection;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.NetUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the connection API shows of a client connection, kept as an attribute of its channel from
+ * the moment its route is known.
+ * <p>
+ * The counters are plain fields written by the connection's event loop and read by the API from
+ * other threads without synchronization, so the relay pays no more than an add per buffer and a
+ * reader may see them slightly behind.
+ */
+public final class ConnectionInfo {
+
+    private static final AttributeKey<ConnectionInfo> KEY = AttributeKey.valueOf(ConnectionInfo.class, "info");
+
+    private final String route;
+    private final SocketAddress client;
+    private final long openedAtMillis;
+    private final long openedAtNanos;
+    private final CaptureSettings captureSettings;
+    private SocketAddress backend;
+    private long bytesIn;
+    private long bytesOut;
+    private volatile CaptureHandler capture;
+
+    /**
+     * @param client the client, the PROXY header's source when accepted with one
+     * @param captureSettings where captures of the connection go
+     */
+    public ConnectionInfo(String route, SocketAddress client, CaptureSettings captureSettings) {
+        this.route = route;
+        this.client = client;
+        this.captureSettings = captureSettings;
+        this.openedAtMillis = System.currentTimeMillis();
+        this.openedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the info of {@code channel}, or null if it was never given a route
+     */
+    public static ConnectionInfo of(Channel channel) {
+        return channel.hasAttr(KEY) ? channel.attr(KEY).get() : null;
+    }
+
+    public void attach(Channel channel) {
+        channel.attr(KEY).set(this);
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public SocketAddress getClient() {
+        return client;
+    }
+
+    /**
+     * @return the current backend, or null while none is connected
+     */
+    public SocketAddress getBackend() {
+        return backend;
+    }
+
+    public void setBackend(SocketAddress backend) {
+        this.backend = backend;
+    }
+
+    public long getOpenedAtMillis() {
+        return openedAtMillis;
+    }
+
+    public long getOpenedAtNanos() {
+        return openedAtNanos;
+    }
+
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAtNanos);
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn += bytes;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut += bytes;
+    }
+
+    /**
+     * @return the capture running on this connection, or null
+     */
+    public CaptureHandler getCapture() {
+        return capture;
+    }
+
+    void setCapture(CaptureHandler capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Starts capturing {@code channel}, the channel of this connection, to the file of its route.
+     * Must run on its event loop.
+     *
+     * @param bytes bytes to capture, or 0 for the route's {@code captureBytes}
+     * @return false if the connection is closed or already captured
+     */
+    public boolean startCapture(Channel channel, int bytes) {
+        return CaptureHandler.install(channel, this, captureSettings.getWriter(),
+                bytes > 0 ? bytes : captureSettings.getBytesPerConnection());
+    }
+
+    public CaptureSettings getCaptureSettings() {
+        return captureSettings;
+    }
+
+    /**
+     * @return {@code address} as {@code host:port}, or an empty string for null
+     */
+    public static String format(SocketAddress address) {
+        if (address == null) {
+            return "";
+        }
+        return address instanceof InetSocketAddress ? NetUtil.toSocketAddressString((InetSocketAddress) address) : address.toString();
+    }
+}
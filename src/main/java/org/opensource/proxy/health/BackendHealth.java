@@ -0,0 +1,104 @@
+package org.opensource.proxy.health;
+
+import org.opensource.proxy.config.RouteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Health state of one backend, fed by active probes and by the relay's own connect results.
+ * <p>
+ * After {@code ejectAfter} consecutive failures the backend is ejected for {@code ejectBaseMs},
+ * doubling on every further ejection up to {@code ejectMaxMs}. Once the ejection expires the
+ * backend is on probation: a single failure ejects it again with the next back-off, while a
+ * success restores it and resets the back-off. {@code ejectAfter=0} disables ejection.
+ * <p>
+ * {@link #isAvailable()} is read by the load balancers for every connection, so it only reads
+ * one volatile field.
+ */
+public class BackendHealth {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackendHealth.class);
+
+    private final String name;
+    private final int ejectAfter;
+    private final long ejectBaseNanos;
+    private final long ejectMaxNanos;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+    private volatile int ejections;
+
+    public BackendHealth(String name, RouteOptions options) {
+        this.name = name;
+        this.ejectAfter = options.getInt("ejectAfter", 3);
+        this.ejectBaseNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("ejectBaseMs", 1_000));
+        this.ejectMaxNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("ejectMaxMs", 60_000));
+    }
+
+    public boolean isAvailable() {
+        return !ejected || System.nanoTime() - ejectedUntil >= 0;
+    }
+
+    public void recordSuccess() {
+        // Avoid writing shared state on the common path where nothing changes.
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (ejections != 0) {
+            restore();
+        }
+    }
+
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (ejectAfter <= 0) {
+            return;
+        }
+        // On probation after an earlier ejection a single failure is enough.
+        if (failures >= ejectAfter || (ejections != 0 && isAvailable())) {
+            eject();
+        }
+    }
+
+    private synchronized void eject() {
+        if (!isAvailable()) {
+            return;
+        }
+        int count = ejections + 1;
+        long backoff = Math.min(ejectBaseNanos << Math.min(count - 1, 30), ejectMaxNanos);
+        ejections = count;
+        ejectedUntil = System.nanoTime() + backoff;
+        ejected = true;
+        consecutiveFailures.set(0);
+        logger.warn("Backend {} ejected for {} ms after repeated failures (ejection #{})",
+                name, TimeUnit.NANOSECONDS.toMillis(backoff), count);
+    }
+
+    private synchronized void restore() {
+        if (ejections != 0) {
+            ejections = 0;
+            ejected = false;
+            logger.info("Backend {} restored", name);
+        }
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public int getEjections() {
+        return ejections;
+    }
+
+    /**
+     * @return milliseconds until the current ejection ends, 0 if the backend is available
+     */
+    public long getEjectedForMillis() {
+        long remaining = ejectedUntil - System.nanoTime();
+        return ejected && remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining) : 0;
+    }
+}
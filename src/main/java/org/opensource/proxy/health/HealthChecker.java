@@ -0,0 +1,76 @@
+package org.opensource.proxy.health;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.config.RouteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active health checks of a route's backends: every {@code healthCheckMs} each backend gets a
+ * plain TCP connect, bounded by {@code healthTimeoutMs}, whose result feeds its
+ * {@link BackendHealth}. The probes run on the shared I/O event loops, so they cost no threads.
+ * Active checks are off unless {@code healthCheckMs} is set; passive checks always run.
+ */
+public class HealthChecker {
+
+    private static final Logger logger = LoggerFactory.getLogger(HealthChecker.class);
+
+    private final List<BackendNode> nodes;
+    private final EventLoopRuntime runtime;
+    private final long intervalMillis;
+    private final int timeoutMillis;
+    private final List<ScheduledFuture<?>> probes = new CopyOnWriteArrayList<>();
+
+    public HealthChecker(List<BackendNode> nodes, RouteOptions options, EventLoopRuntime runtime) {
+        this.nodes = nodes;
+        this.runtime = runtime;
+        this.intervalMillis = options.getLong("healthCheckMs", 0);
+        this.timeoutMillis = options.getInt("healthTimeoutMs", 1_000);
+    }
+
+    public void start() {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        for (BackendNode node : nodes) {
+            EventLoop loop = runtime.getWorkerGroup().next();
+            probes.add(loop.scheduleWithFixedDelay(() -> probe(loop, node), 0, intervalMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    public void stop() {
+        for (ScheduledFuture<?> probe : probes) {
+            probe.cancel(false);
+        }
+        probes.clear();
+    }
+
+    private void probe(EventLoop loop, BackendNode node) {
+        Bootstrap b = new Bootstrap();
+        b.group(loop)
+         .channel(runtime.getTransport().socketChannelClass())
+         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+         .option(ChannelOption.AUTO_READ, false)
+         .handler(new ChannelInboundHandlerAdapter());
+        b.connect(node.getBackend().getHost(), node.getBackend().getPort()).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                node.getHealth().recordSuccess();
+                future.channel().close();
+            } else {
+                logger.debug("Health check of {} failed", node, future.cause());
+                node.getHealth().recordFailure();
+            }
+        });
+    }
+}
@@ -0,0 +1,508 @@
+package org.opensource.proxy.http;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SniHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FutureListener;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.accesslog.CloseReason;
+import org.opensource.proxy.admission.AdmissionControl;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.metrics.RouteMetrics;
+import org.opensource.proxy.timeout.ConnectionTimeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * Client side of a listener in {@code mode=http}.
+ * <p>
+ * Every request is routed on its Host header and path, then sent over a keep-alive upstream
+ * connection taken from the route's pool and given back once the response is complete, so many
+ * client connections share a few upstream connections. Bodies are relayed chunk by chunk as the
+ * codec decodes them and never aggregated, and either side is only read while the other side is
+ * writable. Both channels run on the same event loop, so the state below needs no locking.
+ * <p>
+ * Requests a client pipelines are queued and sent one exchange at a time. Protocol upgrades such
+ * as WebSocket are refused, they need a TCP route.
+ */
+public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpProxyHandler.class);
+
+    static final AsciiString X_FORWARDED_FOR = AsciiString.cached("x-forwarded-for");
+    static final AsciiString X_FORWARDED_HOST = AsciiString.cached("x-forwarded-host");
+    static final AsciiString X_FORWARDED_PORT = AsciiString.cached("x-forwarded-port");
+    static final AsciiString X_FORWARDED_PROTO = AsciiString.cached("x-forwarded-proto");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+    // HttpHeaderNames.KEEP_ALIVE is deprecated, the header itself is still hop-by-hop.
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+
+    private final RouterServer routerServer;
+    // Decoded messages that arrived before their exchange could forward them.
+    private final ArrayDeque<HttpObject> pending = new ArrayDeque<>();
+
+    private ChannelHandlerContext ctx;
+    // The route of the first request owns the connection in the metrics and the access log.
+    private RouteTarget owner;
+    // Registered with the route of the first request, like the metrics.
+    private ConnectionInfo connection;
+    // For the access log: why the connection ended if known before it closed.
+    private CloseReason closeReason;
+    private long openedAt;
+    private boolean secure;
+    private ConnectionTimeout timeout;
+
+    // The exchange in flight, from its request until its response is complete.
+    private boolean inFlight;
+    private boolean requestComplete;
+    private boolean headRequest;
+    private boolean keepAlive;
+    private RouteTarget target;
+    private BackendNode backend;
+    private Channel upstream;
+
+    public HttpProxyHandler(RouterServer routerServer) {
+        this.routerServer = routerServer;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        openedAt = System.nanoTime();
+        secure = ctx.pipeline().get(SniHandler.class) != null || ctx.pipeline().get(SslHandler.class) != null;
+        // Requests of one connection may go to several routes, the port's first route times it out.
+        RouteTarget first = routerServer.getRoutes().getDefault();
+        timeout = ConnectionTimeout.start(first.getTimerWheel(ctx.channel().eventLoop()), first.getTimeouts(), ctx.channel());
+        ctx.read();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (timeout != null) {
+            timeout.readFromClient();
+        }
+        if (!(msg instanceof HttpObject)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        HttpObject obj = (HttpObject) msg;
+        if (!pending.isEmpty() || inFlight && (upstream == null || requestComplete)) {
+            // Still connecting, or a pipelined request: it waits for its turn and nothing more is read.
+            pending.add(obj);
+        } else if (obj instanceof HttpRequest) {
+            startExchange((HttpRequest) obj);
+        } else if (inFlight) {
+            forward(obj);
+            upstream.flush();
+            readClientIfWritable();
+        } else {
+            // Body of a request that was already answered with an error.
+            ReferenceCountUtil.release(obj);
+        }
+    }
+
+    private void startExchange(HttpRequest request) {
+        if (request.decoderResult().isFailure()) {
+            respondError(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        if (request.headers().contains(HttpHeaderNames.UPGRADE)) {
+            respondError(HttpResponseStatus.NOT_IMPLEMENTED);
+            return;
+        }
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        RouteTarget route = routerServer.getRoutes().getHttpMatcher().match(host, request.uri());
+        if (route == null) {
+            respondError(HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        if (owner == null) {
+            // The route of the first request also admits the connection.
+            AdmissionControl.Rejection rejection = route.getAdmission().admit(ctx.channel());
+            if (rejection != null) {
+                respondError(rejection.isRate() ? HttpResponseStatus.TOO_MANY_REQUESTS : HttpResponseStatus.SERVICE_UNAVAILABLE);
+                return;
+            }
+            route.getAdmission().shapeClient(ctx.channel());
+            owner = route;
+            route.getMetrics().connectionAccepted();
+            connection = route.track(ctx.channel(), ctx.channel().remoteAddress());
+        }
+
+        inFlight = true;
+        requestComplete = false;
+        headRequest = HttpMethod.HEAD.equals(request.method());
+        keepAlive = HttpUtil.isKeepAlive(request);
+        target = route;
+        addForwardingHeaders(request, host);
+        pending.addFirst(request);
+
+        final RouteMetrics metrics = route.getMetrics();
+        final BackendNode node = route.getLoadBalancer().select(ctx.channel().remoteAddress());
+        final long connectStart = System.nanoTime();
+        backend = node;
+        node.connectionOpened();
+        route.getUpstreamPool(node).acquire(ctx.channel().eventLoop()).addListener((FutureListener<Channel>) future -> {
+            if (!ctx.channel().isActive()) {
+                // The client went away while we were connecting; channelInactive already cleaned up.
+                if (future.isSuccess()) {
+                    route.getUpstreamPool(node).release(future.getNow());
+                }
+                return;
+            }
+            if (!future.isSuccess()) {
+                logger.warn("Failed to connect to {}", node, future.cause());
+                node.connectionClosed();
+                inFlight = false;
+                // Only I/O errors count against the backend, not our own connection cap.
+                if (future.cause() instanceof IOException) {
+                    node.getHealth().recordFailure();
+                    metrics.upstreamConnectFailed();
+                    closeReason = CloseReason.CONNECT_FAILED;
+                    respondError(HttpResponseStatus.BAD_GATEWAY);
+                } else {
+                    metrics.connectionRejected();
+                    closeReason = CloseReason.REJECTED;
+                    respondError(HttpResponseStatus.SERVICE_UNAVAILABLE);
+                }
+                return;
+            }
+            node.getHealth().recordSuccess();
+            metrics.upstreamConnected(System.nanoTime() - connectStart);
+            attach(future.getNow());
+        });
+    }
+
+    private void attach(Channel channel) {
+        upstream = channel;
+        connection.setBackend(channel.remoteAddress());
+        target.getAdmission().shapeUpstream(channel);
+        // A pooled connection of a TLS route keeps its SslHandler, and with it the session.
+        if (target.getTls().isOriginating() && channel.pipeline().get(SslHandler.class) == null) {
+            channel.pipeline().addLast(target.getTls().newUpstreamHandler(channel.alloc(), backend.getBackend()));
+        }
+        // A fresh codec per exchange: it tracks the request methods to frame HEAD responses.
+        channel.pipeline().addLast(new HttpClientCodec(), new UpstreamHandler());
+        // The response may start before the request body ends, so read the upstream right away.
+        channel.read();
+        HttpObject obj;
+        while (!requestComplete && (obj = pending.poll()) != null) {
+            forward(obj);
+        }
+        channel.flush();
+        readClientIfWritable();
+    }
+
+    private void forward(HttpObject obj) {
+        if (obj instanceof HttpContent) {
+            int bytes = ((HttpContent) obj).content().readableBytes();
+            target.getMetrics().bytesIn(bytes);
+            connection.addBytesIn(bytes);
+            if (obj instanceof LastHttpContent) {
+                requestComplete = true;
+            }
+        }
+        upstream.write(obj).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+    }
+
+    private void readClientIfWritable() {
+        if (inFlight && !requestComplete && upstream != null && upstream.isWritable()) {
+            ctx.read();
+        }
+    }
+
+    /**
+     * Called once the last part of the response was flushed to the client.
+     */
+    private void finishExchange(UpstreamHandler handler) {
+        Channel channel = upstream;
+        upstream = null;
+        inFlight = false;
+        backend.connectionClosed();
+
+        // Removing the codec hands any bytes it still buffers to the handler, which marks the channel dirty.
+        channel.pipeline().remove(HttpClientCodec.class);
+        channel.pipeline().remove(handler);
+        AdmissionControl.unshapeUpstream(channel);
+        if (handler.reusable && requestComplete && !handler.dirty && channel.isActive()) {
+            target.getUpstreamPool(backend).release(channel);
+        } else {
+            channel.close();
+        }
+        target = null;
+        backend = null;
+
+        if (!keepAlive || !requestComplete) {
+            ctx.close();
+            return;
+        }
+        HttpObject next = pending.poll();
+        if (next instanceof HttpRequest) {
+            startExchange((HttpRequest) next);
+        } else if (next != null) {
+            ReferenceCountUtil.release(next);
+            ctx.close();
+        } else {
+            ctx.read();
+        }
+    }
+
+    private void addForwardingHeaders(HttpRequest request, String host) {
+        HttpHeaders headers = request.headers();
+        stripHopByHopHeaders(headers);
+        SocketAddress remote = ctx.channel().remoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            String client = ((InetSocketAddress) remote).getAddress().getHostAddress();
+            String forwardedFor = headers.get(X_FORWARDED_FOR);
+            headers.set(X_FORWARDED_FOR, forwardedFor == null ? client : forwardedFor + ", " + client);
+        }
+        if (host != null) {
+            headers.set(X_FORWARDED_HOST, host);
+        }
+        headers.set(X_FORWARDED_PORT, routerServer.getEnterPort());
+        headers.set(X_FORWARDED_PROTO, secure ? "https" : "http");
+    }
+
+    /**
+     * Removes the headers that only apply to one hop, including any listed in Connection.
+     * Transfer-Encoding stays, chunked bodies are relayed as they are.
+     */
+    static void stripHopByHopHeaders(HttpHeaders headers) {
+        for (String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : connection.split(",")) {
+                headers.remove(name.trim());
+            }
+        }
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove(KEEP_ALIVE);
+        headers.remove(PROXY_CONNECTION);
+        headers.remove(HttpHeaderNames.TE);
+        headers.remove(HttpHeaderNames.UPGRADE);
+    }
+
+    private void respondError(HttpResponseStatus status) {
+        releasePending();
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.copiedBuffer(status + "\r\n", CharsetUtil.US_ASCII));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void releasePending() {
+        HttpObject obj;
+        while ((obj = pending.poll()) != null) {
+            ReferenceCountUtil.release(obj);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // The client drained below the low water mark, so pull more of the response.
+        if (ctx.channel().isWritable() && upstream != null) {
+            upstream.read();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (owner != null) {
+            owner.getMetrics().connectionClosed(System.nanoTime() - openedAt);
+            logAccess();
+        }
+        releasePending();
+        if (inFlight) {
+            inFlight = false;
+            backend.connectionClosed();
+            if (upstream != null) {
+                // The response was cut short, so the upstream connection cannot be reused.
+                upstream.close();
+                upstream = null;
+            }
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (cause instanceof IOException) {
+            // Resets are how many clients hang up; the access log has the record.
+            logger.debug("Client connection failed: {}", cause.toString());
+            closeReason = closeReason != null ? closeReason : CloseReason.CLIENT_CLOSED;
+        } else {
+            logger.error("Exception caught", cause);
+            closeReason = closeReason != null ? closeReason : CloseReason.CLIENT_ERROR;
+        }
+        ctx.close();
+    }
+
+    /**
+     * Records the connection under the route of its first request, like
+     * {@link org.opensource.proxy.RouterClientHandler} does for TCP routes. The bytes are those of
+     * the request and response bodies.
+     */
+    private void logAccess() {
+        CloseReason reason = closeReason;
+        if (reason == null) {
+            reason = timeout != null && timeout.isExpired() ? CloseReason.TIMEOUT : CloseReason.CLIENT_CLOSED;
+        }
+        owner.getAccessLog().append(connection.getOpenedAtMillis(), (System.nanoTime() - openedAt) / 1000, owner.getConfig().getRoutingName(),
+                routerServer.getEnterPort(), connection.getClient(), connection.getBackend(), connection.getBytesIn(),
+                connection.getBytesOut(), reason);
+    }
+
+    /**
+     * Relays one response from the upstream to the client.
+     */
+    private class UpstreamHandler extends ChannelInboundHandlerAdapter {
+
+        private boolean informational;
+        private boolean responseStarted;
+        private boolean complete;
+        // Whether the upstream keeps the connection open after this response.
+        boolean reusable;
+        // Bytes arrived that are not part of this response, so the connection cannot be reused.
+        boolean dirty;
+
+        @Override
+        public void channelRead(ChannelHandlerContext uctx, Object msg) throws Exception {
+            if (complete || !(msg instanceof HttpObject)) {
+                ReferenceCountUtil.release(msg);
+                dirty = true;
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                responseStarted = true;
+                informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+                if (!informational) {
+                    reusable = HttpUtil.isKeepAlive(response) && !response.decoderResult().isFailure();
+                    stripHopByHopHeaders(response.headers());
+                    // Without a length the client can only find the end of the body by the connection closing.
+                    if (!isDelimited(response)) {
+                        keepAlive = false;
+                    }
+                    HttpUtil.setKeepAlive(response, keepAlive);
+                }
+            }
+            if (msg instanceof HttpContent) {
+                int bytes = ((HttpContent) msg).content().readableBytes();
+                target.getMetrics().bytesOut(bytes);
+                connection.addBytesOut(bytes);
+            }
+            if (timeout != null) {
+                timeout.writtenToClient();
+            }
+            if (msg instanceof LastHttpContent && informational) {
+                // End of a 100 Continue, the real response follows.
+                informational = false;
+                ctx.write(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            } else if (msg instanceof LastHttpContent) {
+                complete = true;
+                ctx.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        // Leave the codec's decode loop before taking it out of the pipeline.
+                        future.channel().eventLoop().execute(() -> finishExchange(this));
+                    } else {
+                        future.channel().close();
+                    }
+                });
+            } else {
+                ctx.write(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+        }
+
+        private boolean isDelimited(HttpResponse response) {
+            int code = response.status().code();
+            return headRequest || code == 204 || code == 304
+                    || HttpUtil.isContentLengthSet(response) || HttpUtil.isTransferEncodingChunked(response);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext uctx) throws Exception {
+            if (complete) {
+                return;
+            }
+            ctx.flush();
+            // Keep reading only while the client still accepts writes,
+            // otherwise the client handler resumes us once it drains.
+            if (ctx.channel().isWritable()) {
+                uctx.read();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext uctx) throws Exception {
+            // The upstream drained below the low water mark, so pull more of the request body.
+            readClientIfWritable();
+            uctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext uctx) throws Exception {
+            if (complete || upstream != uctx.channel()) {
+                return;
+            }
+            // The upstream closed before the response was complete.
+            if (closeReason == null) {
+                closeReason = CloseReason.UPSTREAM_CLOSED;
+            }
+            upstream = null;
+            inFlight = false;
+            backend.connectionClosed();
+            if (responseStarted) {
+                ctx.flush().close();
+            } else {
+                respondError(HttpResponseStatus.BAD_GATEWAY);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext uctx, Throwable cause) throws Exception {
+            logger.warn("Upstream {} failed", backend, cause);
+            // Connection resets and other I/O errors from the upstream count as passive health failures.
+            if (cause instanceof IOException && backend != null) {
+                backend.getHealth().recordFailure();
+            }
+            if (closeReason == null) {
+                closeReason = CloseReason.UPSTREAM_ERROR;
+            }
+            uctx.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.opensource.proxy.http;
+
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the route of an HTTP request from its Host header and path.
+ * <p>
+ * Route options:
+ * <ul>
+ *     <li>{@code host} - exact host such as {@code api.example.com}, or {@code *.example.com} for any
+ *     subdomain; without it the route matches every host</li>
+ *     <li>{@code pathPrefix} - the request path must start with it, default {@code /}</li>
+ * </ul>
+ * An exact host wins over a wildcard, a wildcard over a route without host, and within a host
+ * the longest matching path prefix wins. The tables are built once per route change, so a
+ * request costs one or two hash lookups and a few prefix checks.
+ */
+public final class HttpRouteMatcher {
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private final Map<String, Entry[]> exactHosts = new HashMap<>();
+    // Keyed by the suffix after the '*', for example ".example.com".
+    private final Map<String, Entry[]> wildcardHosts = new HashMap<>();
+    private final Entry[] anyHost;
+
+    /**
+     * @throws IllegalArgumentException if two routes claim the same host and path prefix
+     */
+    public HttpRouteMatcher(List<RouteTarget> targets) {
+        Map<String, List<Entry>> exact = new HashMap<>();
+        Map<String, List<Entry>> wildcard = new HashMap<>();
+        List<Entry> any = new ArrayList<>();
+        Set<String> claimed = new HashSet<>();
+        for (RouteTarget target : targets) {
+            RouteOptions options = target.getConfig().getOptions();
+            String host = options.getString("host", "").trim().toLowerCase(Locale.ROOT);
+            String prefix = options.getString("pathPrefix", "/").trim();
+            if (!prefix.startsWith("/")) {
+                throw new IllegalArgumentException("pathPrefix must start with /: " + prefix);
+            }
+            if (!claimed.add(host + prefix)) {
+                throw new IllegalArgumentException("Host '" + host + "' and path prefix " + prefix + " are claimed by two routes on port "
+                        + target.getConfig().getEnterPort());
+            }
+            Entry entry = new Entry(prefix, target);
+            if (host.isEmpty()) {
+                any.add(entry);
+            } else if (host.startsWith("*.")) {
+                wildcard.computeIfAbsent(host.substring(1), h -> new ArrayList<>()).add(entry);
+            } else {
+                exact.computeIfAbsent(host, h -> new ArrayList<>()).add(entry);
+            }
+        }
+        exact.forEach((host, entries) -> exactHosts.put(host, sorted(entries)));
+        wildcard.forEach((suffix, entries) -> wildcardHosts.put(suffix, sorted(entries)));
+        this.anyHost = sorted(any);
+    }
+
+    /**
+     * @param host the Host header, with or without port, may be null
+     * @param path the request target
+     * @return the matching route, or null if none matches
+     */
+    public RouteTarget match(String host, String path) {
+        String name = hostName(host);
+        if (name != null) {
+            RouteTarget target = match(exactHosts.get(name), path);
+            if (target != null) {
+                return target;
+            }
+            if (!wildcardHosts.isEmpty()) {
+                // Try every parent domain: a.b.example.com checks .b.example.com, .example.com, .com
+                for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+                    target = match(wildcardHosts.get(name.substring(dot)), path);
+                    if (target != null) {
+                        return target;
+                    }
+                }
+            }
+        }
+        return match(anyHost, path);
+    }
+
+    private static RouteTarget match(Entry[] entries, String path) {
+        if (entries == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (path.startsWith(entry.prefix)) {
+                return entry.target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the lower-case host without port, or null if there is none
+     */
+    public static String hostName(String host) {
+        if (host == null || host.isEmpty()) {
+            return null;
+        }
+        int end = host.length();
+        if (host.charAt(0) == '[') {
+            int close = host.indexOf(']');
+            end = close > 0 ? close + 1 : end;
+        } else {
+            int colon = host.lastIndexOf(':');
+            end = colon >= 0 ? colon : end;
+        }
+        return host.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static Entry[] sorted(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return NONE;
+        }
+        entries.sort(Comparator.comparingInt((Entry e) -> e.prefix.length()).reversed());
+        return entries.toArray(NONE);
+    }
+
+    private static class Entry {
+        final String prefix;
+        final RouteTarget target;
+
+        Entry(String prefix, RouteTarget target) {
+            this.prefix = prefix;
+            this.target = target;
+        }
+    }
+}
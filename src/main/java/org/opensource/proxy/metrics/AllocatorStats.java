@@ -0,0 +1,114 @@
+package org.opensource.proxy.metrics;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.util.internal.PlatformDependent;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the shared pooled allocator, which every route with {@code allocator=pooled} draws
+ * from, and of the process's direct memory. The allocator counts are read without a lock, so they
+ * are only consistent with each other as far as no buffer was allocated meanwhile.
+ */
+public final class AllocatorStats {
+
+    private final PooledByteBufAllocator allocator;
+    private final long usedDirectMemory;
+    private final long usedHeapMemory;
+    private final long pinnedDirectMemory;
+    private final long directMemoryLimit;
+    private final long nettyDirectMemory;
+    private final long jdkDirectMemory;
+    private final long jdkDirectBuffers;
+    private final List<Map<String, Object>> directArenas;
+
+    private AllocatorStats(PooledByteBufAllocator allocator) {
+        this.allocator = allocator;
+        PooledByteBufAllocatorMetric metric = allocator.metric();
+        this.usedDirectMemory = metric.usedDirectMemory();
+        this.usedHeapMemory = metric.usedHeapMemory();
+        this.pinnedDirectMemory = allocator.pinnedDirectMemory();
+        this.directMemoryLimit = PlatformDependent.maxDirectMemory();
+        // -1 unless Netty allocates direct memory itself, without the JDK's cleaner.
+        this.nettyDirectMemory = PlatformDependent.usedDirectMemory();
+        long jdkMemory = 0;
+        long jdkBuffers = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                jdkMemory = pool.getMemoryUsed();
+                jdkBuffers = pool.getCount();
+            }
+        }
+        this.jdkDirectMemory = jdkMemory;
+        this.jdkDirectBuffers = jdkBuffers;
+        this.directArenas = new ArrayList<>(metric.numDirectArenas());
+        for (PoolArenaMetric arena : metric.directArenas()) {
+            Map<String, Object> arenaStats = new LinkedHashMap<>();
+            arenaStats.put("threadCaches", arena.numThreadCaches());
+            arenaStats.put("activeAllocations", arena.numActiveAllocations());
+            arenaStats.put("activeBytes", arena.numActiveBytes());
+            arenaStats.put("allocations", arena.numAllocations());
+            arenaStats.put("deallocations", arena.numDeallocations());
+            directArenas.add(arenaStats);
+        }
+    }
+
+    public static AllocatorStats snapshot() {
+        return new AllocatorStats(PooledByteBufAllocator.DEFAULT);
+    }
+
+    /** Bytes of direct memory held by the pooled allocator's chunks, in use or not. */
+    public long getUsedDirectMemory() {
+        return usedDirectMemory;
+    }
+
+    public long getUsedHeapMemory() {
+        return usedHeapMemory;
+    }
+
+    /** Bytes of the pooled direct memory taken by buffers that were not released yet. */
+    public long getPinnedDirectMemory() {
+        return pinnedDirectMemory;
+    }
+
+    public long getDirectMemoryLimit() {
+        return directMemoryLimit;
+    }
+
+    /** Direct memory of the JDK's direct buffers, which back the pooled chunks too. */
+    public long getJdkDirectMemory() {
+        return jdkDirectMemory;
+    }
+
+    public Map<String, Object> toMap() {
+        PooledByteBufAllocatorMetric metric = allocator.metric();
+        Map<String, Object> pooled = new LinkedHashMap<>();
+        pooled.put("usedDirectMemory", usedDirectMemory);
+        pooled.put("usedHeapMemory", usedHeapMemory);
+        pooled.put("pinnedDirectMemory", pinnedDirectMemory);
+        pooled.put("chunkSize", metric.chunkSize());
+        pooled.put("threadLocalCaches", metric.numThreadLocalCaches());
+        pooled.put("smallCacheSize", metric.smallCacheSize());
+        pooled.put("normalCacheSize", metric.normalCacheSize());
+        pooled.put("heapArenas", metric.numHeapArenas());
+        pooled.put("directArenas", directArenas);
+
+        Map<String, Object> direct = new LinkedHashMap<>();
+        direct.put("limit", directMemoryLimit);
+        direct.put("nettyUsed", nettyDirectMemory);
+        direct.put("jdkUsed", jdkDirectMemory);
+        direct.put("jdkBuffers", jdkDirectBuffers);
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pooledAllocator", pooled);
+        stats.put("directMemory", direct);
+        return stats;
+    }
+}
@@ -0,0 +1,143 @@
+package org.opensource.proxy.metrics;
+
+import org.opensource.proxy.accesslog.AccessLog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Renders route metrics in the Prometheus text exposition format, version 0.0.4.
+ * Every route sample carries a {@code route} label with the routing name and sums the metrics of
+ * every target of that name, so a route being replaced or drained is still one series; the
+ * allocator and access log samples are process-wide and carry none.
+ */
+public final class PrometheusFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "netty_proxy_";
+
+    /** Histogram bucket bounds in seconds. */
+    private static final double[] BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600
+    };
+
+    private PrometheusFormat() {
+    }
+
+    /**
+     * @param routes metrics keyed by routing name, more than one while a target of that name is
+     *               replaced or drained
+     */
+    public static String render(Map<String, List<RouteMetrics>> routes) {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, routes, "active_connections", "Client connections currently open", RouteMetrics::getActiveConnections);
+        counter(sb, routes, "accepted_connections_total", "Client connections accepted", RouteMetrics::getAcceptedConnections);
+        counter(sb, routes, "rejected_connections_total", "Client connections turned away by a proxy limit", RouteMetrics::getRejectedConnections);
+        counter(sb, routes, "upstream_connect_failures_total", "Failed upstream connection attempts", RouteMetrics::getFailedConnects);
+        counter(sb, routes, "bytes_in_total", "Bytes relayed from clients to upstreams", RouteMetrics::getBytesIn);
+        counter(sb, routes, "bytes_out_total", "Bytes relayed from upstreams to clients", RouteMetrics::getBytesOut);
+        counter(sb, routes, "dropped_datagrams_total", "UDP datagrams dropped because the socket they were bound for was full", RouteMetrics::getDroppedDatagrams);
+        histogram(sb, routes, "upstream_connect_seconds", "Time to obtain an upstream connection", RouteMetrics::getUpstreamConnectTime);
+        histogram(sb, routes, "connection_lifetime_seconds", "Lifetime of closed client connections", RouteMetrics::getConnectionLifetime);
+        return sb.toString();
+    }
+
+    /**
+     * Renders the process-wide buffer memory, to be appended to the route metrics.
+     */
+    public static String render(AllocatorStats stats) {
+        StringBuilder sb = new StringBuilder(1024);
+        gauge(sb, "pooled_direct_memory_bytes", "Direct memory held by the pooled allocator's chunks", stats.getUsedDirectMemory());
+        gauge(sb, "pooled_pinned_direct_memory_bytes", "Pooled direct memory taken by unreleased buffers", stats.getPinnedDirectMemory());
+        gauge(sb, "pooled_heap_memory_bytes", "Heap memory held by the pooled allocator's chunks", stats.getUsedHeapMemory());
+        gauge(sb, "direct_memory_bytes", "Direct memory of all direct buffers", stats.getJdkDirectMemory());
+        gauge(sb, "direct_memory_limit_bytes", "Direct memory the process may allocate", stats.getDirectMemoryLimit());
+        return sb.toString();
+    }
+
+    /**
+     * Renders the counters of the access log, to be appended to the route metrics; nothing if it is disabled.
+     */
+    public static String render(AccessLog accessLog) {
+        if (!accessLog.isEnabled()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(256);
+        counter(sb, "access_log_records_total", "Connection records written to the access log", accessLog.getWritten());
+        counter(sb, "access_log_dropped_records_total", "Connection records dropped because the access log fell behind", accessLog.getDropped());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, Map<String, List<RouteMetrics>> routes, String name, String help,
+                              ToLongFunction<RouteMetrics> value) {
+        header(sb, name, help, "gauge");
+        routes.forEach((route, metrics) -> sample(sb, name, route, null, sum(metrics, value)));
+    }
+
+    private static void counter(StringBuilder sb, Map<String, List<RouteMetrics>> routes, String name, String help,
+                                ToLongFunction<RouteMetrics> value) {
+        header(sb, name, help, "counter");
+        routes.forEach((route, metrics) -> sample(sb, name, route, null, sum(metrics, value)));
+    }
+
+    private static void histogram(StringBuilder sb, Map<String, List<RouteMetrics>> routes, String name, String help,
+                                  Function<RouteMetrics, LatencyHistogram> histogram) {
+        header(sb, name, help, "histogram");
+        routes.forEach((route, metrics) -> {
+            // Read the count first: concurrent records may make buckets run ahead of it, never behind.
+            long count = sum(metrics, m -> histogram.apply(m).getCount());
+            long sum = sum(metrics, m -> histogram.apply(m).getSum());
+            for (double bound : BUCKETS) {
+                long nanos = (long) (bound * 1e9);
+                long bucket = Math.min(count, sum(metrics, m -> histogram.apply(m).countAtOrBelow(nanos)));
+                sample(sb, name + "_bucket", route, Double.toString(bound), bucket);
+            }
+            sample(sb, name + "_bucket", route, "+Inf", count);
+            sb.append(PREFIX).append(name).append("_sum{route=\"").append(escape(route)).append("\"} ")
+              .append(sum / 1e9).append('\n');
+            sample(sb, name + "_count", route, null, count);
+        });
+    }
+
+    private static long sum(List<RouteMetrics> metrics, ToLongFunction<RouteMetrics> value) {
+        long sum = 0;
+        for (RouteMetrics m : metrics) {
+            sum += value.applyAsLong(m);
+        }
+        return sum;
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String route, String le, long value) {
+        sb.append(PREFIX).append(name).append("{route=\"").append(escape(route)).append('"');
+        if (le != null) {
+            sb.append(",le=\"").append(le).append('"');
+        }
+        sb.append("} ").append(value).append('\n');
+    }
+
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,109 @@
+package org.opensource.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of one route.
+ * <p>
+ * Every counter is a {@link LongAdder}, which stripes updates over per-thread cells when event
+ * loops contend, so the hot path of a read is one uncontended add. Sums are only computed when
+ * the metrics are scraped. Times are recorded in nanoseconds.
+ */
+public class RouteMetrics {
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder failedConnects = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder droppedDatagrams = new LongAdder();
+    private final LatencyHistogram upstreamConnectTime = new LatencyHistogram();
+    private final LatencyHistogram connectionLifetime = new LatencyHistogram();
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    /**
+     * @param lifetimeNanos how long the client connection was open
+     */
+    public void connectionClosed(long lifetimeNanos) {
+        activeConnections.decrement();
+        connectionLifetime.record(lifetimeNanos);
+    }
+
+    /**
+     * A client that was turned away by a limit of the proxy rather than by the backend.
+     */
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public void upstreamConnected(long connectNanos) {
+        upstreamConnectTime.record(connectNanos);
+    }
+
+    public void upstreamConnectFailed() {
+        failedConnects.increment();
+    }
+
+    /**
+     * @param bytes read from a client and relayed upstream
+     */
+    public void bytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes read from an upstream and relayed to the client
+     */
+    public void bytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * A datagram of {@code mode=udp} that was not relayed because the socket it was bound for
+     * could not take it.
+     */
+    public void datagramDropped() {
+        droppedDatagrams.increment();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getFailedConnects() {
+        return failedConnects.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+
+    public LatencyHistogram getUpstreamConnectTime() {
+        return upstreamConnectTime;
+    }
+
+    public LatencyHistogram getConnectionLifetime() {
+        return connectionLifetime;
+    }
+}
@@ -0,0 +1,151 @@
+package org.opensource.proxy.proxyprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Encodes PROXY protocol headers, and remembers the client a connection was accepted for when it
+ * arrived with one.
+ * <p>
+ * A header is encoded into a pooled direct buffer of its exact size, or of the longest possible
+ * v1 line, in one pass without building a string.
+ */
+public final class ProxyHeader {
+
+    static final byte[] V2_SIGNATURE = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+    static final int V1_MAX_LENGTH = 107;
+    private static final byte[] V1_UNKNOWN = "PROXY UNKNOWN\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final int V2_PROXY = 0x21;
+    private static final int V2_LOCAL = 0x20;
+    private static final int V2_TCP4 = 0x11;
+    private static final int V2_TCP6 = 0x21;
+
+    private static final AttributeKey<InetSocketAddress> SOURCE = AttributeKey.valueOf(ProxyHeader.class, "source");
+    private static final AttributeKey<InetSocketAddress> DESTINATION = AttributeKey.valueOf(ProxyHeader.class, "destination");
+
+    private ProxyHeader() {
+    }
+
+    /**
+     * @return the client of {@code channel}: the source of the PROXY header it was accepted with,
+     * or its remote address
+     */
+    public static SocketAddress clientAddress(Channel channel) {
+        InetSocketAddress source = channel.hasAttr(SOURCE) ? channel.attr(SOURCE).get() : null;
+        return source != null ? source : channel.remoteAddress();
+    }
+
+    /**
+     * @return the address the client connected to: the destination of the PROXY header
+     * {@code channel} was accepted with, or its local address
+     */
+    public static SocketAddress destinationAddress(Channel channel) {
+        InetSocketAddress destination = channel.hasAttr(DESTINATION) ? channel.attr(DESTINATION).get() : null;
+        return destination != null ? destination : channel.localAddress();
+    }
+
+    static void setAddresses(Channel channel, InetSocketAddress source, InetSocketAddress destination) {
+        channel.attr(SOURCE).set(source);
+        channel.attr(DESTINATION).set(destination);
+    }
+
+    /**
+     * Encodes a v1 line for TCP over IPv4 or IPv6, or {@code PROXY UNKNOWN} if an address is not
+     * an IP socket address.
+     */
+    public static ByteBuf encodeV1(ByteBufAllocator alloc, SocketAddress source, SocketAddress destination) {
+        InetAddress[] addresses = addresses(source, destination);
+        if (addresses == null) {
+            return alloc.directBuffer(V1_UNKNOWN.length).writeBytes(V1_UNKNOWN);
+        }
+        ByteBuf buf = alloc.directBuffer(V1_MAX_LENGTH);
+        buf.writeCharSequence(addresses[0] instanceof Inet4Address ? "PROXY TCP4 " : "PROXY TCP6 ", CharsetUtil.US_ASCII);
+        buf.writeCharSequence(NetUtil.toAddressString(addresses[0]), CharsetUtil.US_ASCII);
+        buf.writeByte(' ');
+        buf.writeCharSequence(NetUtil.toAddressString(addresses[1]), CharsetUtil.US_ASCII);
+        buf.writeByte(' ');
+        writeDecimal(buf, ((InetSocketAddress) source).getPort());
+        buf.writeByte(' ');
+        writeDecimal(buf, ((InetSocketAddress) destination).getPort());
+        buf.writeByte('\r').writeByte('\n');
+        return buf;
+    }
+
+    /**
+     * Encodes a v2 header for TCP over IPv4 or IPv6, or a LOCAL header without addresses if an
+     * address is not an IP socket address.
+     */
+    public static ByteBuf encodeV2(ByteBufAllocator alloc, SocketAddress source, SocketAddress destination) {
+        InetAddress[] addresses = addresses(source, destination);
+        if (addresses == null) {
+            ByteBuf buf = alloc.directBuffer(V2_SIGNATURE.length + 4);
+            return buf.writeBytes(V2_SIGNATURE).writeByte(V2_LOCAL).writeByte(0).writeShort(0);
+        }
+        boolean ipv4 = addresses[0] instanceof Inet4Address;
+        int addressLength = ipv4 ? 12 : 36;
+        ByteBuf buf = alloc.directBuffer(V2_SIGNATURE.length + 4 + addressLength);
+        buf.writeBytes(V2_SIGNATURE)
+           .writeByte(V2_PROXY)
+           .writeByte(ipv4 ? V2_TCP4 : V2_TCP6)
+           .writeShort(addressLength)
+           .writeBytes(addresses[0].getAddress())
+           .writeBytes(addresses[1].getAddress())
+           .writeShort(((InetSocketAddress) source).getPort())
+           .writeShort(((InetSocketAddress) destination).getPort());
+        return buf;
+    }
+
+    /**
+     * @return both addresses in one family, an IPv4 one mapped into IPv6 if the other is IPv6, or
+     * null if either is not a resolved IP socket address
+     */
+    private static InetAddress[] addresses(SocketAddress source, SocketAddress destination) {
+        if (!(source instanceof InetSocketAddress) || !(destination instanceof InetSocketAddress)) {
+            return null;
+        }
+        InetAddress from = ((InetSocketAddress) source).getAddress();
+        InetAddress to = ((InetSocketAddress) destination).getAddress();
+        if (from == null || to == null) {
+            return null;
+        }
+        if (from instanceof Inet4Address != to instanceof Inet4Address) {
+            from = toIpv6(from);
+            to = toIpv6(to);
+        }
+        return new InetAddress[]{from, to};
+    }
+
+    private static InetAddress toIpv6(InetAddress address) {
+        if (!(address instanceof Inet4Address)) {
+            return address;
+        }
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(address.getAddress(), 0, mapped, 12, 4);
+        try {
+            // getByAddress would turn a mapped address back into IPv4.
+            return Inet6Address.getByAddress(null, mapped, -1);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeDecimal(ByteBuf buf, int value) {
+        if (value >= 10) {
+            writeDecimal(buf, value / 10);
+        }
+        buf.writeByte('0' + value % 10);
+    }
+}
@@ -0,0 +1,111 @@
+package org.opensource.proxy.proxyprotocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.RouterClientHandler;
+import org.opensource.proxy.RouterServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sits behind a {@link HAProxyMessageDecoder} on a connection of a route with
+ * {@code acceptProxyProtocol=true}. Once the header is decoded it records the addresses it
+ * carries on the channel, then sets the connection up like the listener does for any other:
+ * admission, TLS termination and a {@link RouterClientHandler}. The decoder removes itself after
+ * the header and passes the bytes that came with it on to the relay. A connection that does not
+ * send a valid header in time is closed.
+ */
+public class ProxyProtocolHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProxyProtocolHandler.class);
+
+    private final RouterServer routerServer;
+    private final RouteTarget target;
+    private ScheduledFuture<?> timeout;
+
+    public ProxyProtocolHandler(RouterServer routerServer, RouteTarget target) {
+        this.routerServer = routerServer;
+        this.target = target;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        long timeoutMillis = target.getProxyProtocol().getAcceptTimeoutMillis();
+        timeout = ctx.executor().schedule(() -> {
+            logger.debug("No PROXY header from {} within {} ms", ctx.channel().remoteAddress(), timeoutMillis);
+            ctx.close();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        // The decoder asks for more on its own until the header is complete.
+        ctx.read();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof HAProxyMessage)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        HAProxyMessage header = (HAProxyMessage) msg;
+        try {
+            // LOCAL headers, such as the balancer's own health checks, and unknown protocols keep the socket addresses.
+            if (header.command() == HAProxyCommand.PROXY && (header.proxiedProtocol() == HAProxyProxiedProtocol.TCP4
+                    || header.proxiedProtocol() == HAProxyProxiedProtocol.TCP6)) {
+                ProxyHeader.setAddresses(ctx.channel(),
+                        address(header.sourceAddress(), header.sourcePort()),
+                        address(header.destinationAddress(), header.destinationPort()));
+            }
+        } finally {
+            header.release();
+        }
+        handOff(ctx);
+    }
+
+    private void handOff(ChannelHandlerContext ctx) {
+        timeout.cancel(false);
+        if (target.getAdmission().admit(ctx.channel()) != null) {
+            ctx.close();
+            return;
+        }
+        ChannelPipeline pipeline = ctx.pipeline();
+        // Replaced in place, so the bytes the decoder still holds go through TLS and into the relay.
+        pipeline.replace(this, null, new RouterClientHandler(routerServer, target, null));
+        if (target.getTls().isTerminating()) {
+            pipeline.addAfter(pipeline.context(HAProxyMessageDecoder.class).name(), null,
+                    target.getTls().newServerHandler(ctx.alloc()));
+        }
+        target.getAdmission().shapeClient(pipeline.channel());
+        pipeline.fireChannelActive();
+    }
+
+    private static InetSocketAddress address(String ip, int port) {
+        // The decoder validated the address, so this never resolves a name.
+        InetAddress address = NetUtil.createInetAddressFromIpAddressString(ip);
+        return new InetSocketAddress(address, port);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.debug("Invalid PROXY header from {}: {}", ctx.channel().remoteAddress(), cause.toString());
+        ctx.close();
+    }
+}
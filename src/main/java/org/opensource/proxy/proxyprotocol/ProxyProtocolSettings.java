@@ -0,0 +1,76 @@
+package org.opensource.proxy.proxyprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.Locale;
+
+/**
+ * Per-route PROXY protocol, read from {@link RouteOptions}, so a backend or this proxy learns the
+ * address of the client behind a TCP relay:
+ * <ul>
+ *     <li>{@code proxyProtocol} - header sent to the backend ahead of the client's bytes,
+ *     {@code v1} (text) or {@code v2} (binary); none by default</li>
+ *     <li>{@code acceptProxyProtocol} - every client starts with a v1 or v2 header, as sent by a load
+ *     balancer in front of us, and its source address is used for balancing, admission and our own
+ *     header; connections without one are closed. Default false</li>
+ *     <li>{@code proxyProtocolTimeoutMs} - how long an accepted connection may take to send its
+ *     header, default 3000</li>
+ * </ul>
+ * Both apply to {@code mode=tcp}; a {@code mode=sniff} route may also send a header.
+ */
+public final class ProxyProtocolSettings {
+
+    public enum Version { NONE, V1, V2 }
+
+    private final Version send;
+    private final boolean accept;
+    private final long acceptTimeoutMillis;
+
+    /**
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    public ProxyProtocolSettings(RouteOptions options) {
+        String version = options.getString("proxyProtocol", "none").trim().toLowerCase(Locale.ROOT);
+        this.send = switch (version) {
+            case "none", "" -> Version.NONE;
+            case "v1" -> Version.V1;
+            case "v2" -> Version.V2;
+            default -> throw new IllegalArgumentException("Unknown proxyProtocol: " + version);
+        };
+        this.accept = options.getBoolean("acceptProxyProtocol", false);
+        this.acceptTimeoutMillis = options.getLong("proxyProtocolTimeoutMs", 3_000);
+        if (acceptTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("proxyProtocolTimeoutMs must be positive: " + acceptTimeoutMillis);
+        }
+    }
+
+    public Version getSend() {
+        return send;
+    }
+
+    public boolean isSending() {
+        return send != Version.NONE;
+    }
+
+    public boolean isAccepting() {
+        return accept;
+    }
+
+    public long getAcceptTimeoutMillis() {
+        return acceptTimeoutMillis;
+    }
+
+    /**
+     * @return the header to send upstream for {@code client}, or null if the route sends none
+     */
+    public ByteBuf encodeHeader(ByteBufAllocator alloc, Channel client) {
+        return switch (send) {
+            case NONE -> null;
+            case V1 -> ProxyHeader.encodeV1(alloc, ProxyHeader.clientAddress(client), ProxyHeader.destinationAddress(client));
+            case V2 -> ProxyHeader.encodeV2(alloc, ProxyHeader.clientAddress(client), ProxyHeader.destinationAddress(client));
+        };
+    }
+}
@@ -2,7 +2,6 @@ package org.opensource.proxy.repository;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.opensource.proxy.config.ApplicationConfig;
 import org.opensource.proxy.config.RouterConfig;
@@ -10,17 +9,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Keeps the routes in the CSV file at {@code router.config.path}, rewritten as a whole on every
+ * change. The default store, selected with {@code router.store=csv}.
+ */
 @Repository
+@ConditionalOnProperty(name = "router.store", havingValue = "csv", matchIfMissing = true)
 public class CSVRouterConfigRepository implements RouterConfigRepository, InitializingBean {
     @Autowired
     ApplicationConfig applicationConfig;
@@ -37,14 +51,11 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
     @Override
     public void create(RouterConfig config) {
         if (cacheSet.contains(config)) {
-            throw new IllegalArgumentException("The combination of enter port, routing destination, and routing port must be unique.");
-        }
-        try (CSVPrinter printer = new CSVPrinter(new FileWriter(applicationConfig.getFilePath(), true), CSVFormat.DEFAULT.withHeader("RoutingName", "EnterPort", "RoutingDestination", "RoutingPort", "Description"))) {
-            printer.printRecord(config.getRoutingName(), config.getEnterPort(), config.getRoutingDestination(), config.getRoutingPort(), config.getDescription());
-            cacheSet.add(config);
-        } catch (IOException e) {
-            logger.error("Error creating RouterConfig in CSV file", e);
+            throw new IllegalArgumentException("The combination of enter port, routing destination, routing port and options must be unique.");
         }
+        List<RouterConfig> configs = findAll();
+        configs.add(config);
+        saveAll(configs);
     }
 
     @Override
@@ -52,13 +63,7 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
         try (CSVParser parser = new CSVParser(new FileReader(applicationConfig.getFilePath()), CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
             for (CSVRecord record : parser) {
                 if (record.get("RoutingName").equals(routingName)) {
-                    return new RouterConfig(
-                            record.get("RoutingName"),
-                            Integer.parseInt(record.get("EnterPort")),
-                            record.get("RoutingDestination"),
-                            Integer.parseInt(record.get("RoutingPort")),
-                            record.get("Description")
-                    );
+                    return RouterConfigCsv.parseRecord(record);
                 }
             }
         } catch (IOException e) {
@@ -69,17 +74,16 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
 
     @Override
     public void update(RouterConfig config) {
-        if (cacheSet.contains(config)) {
-            throw new IllegalArgumentException("The combination of enter port, routing destination, and routing port must be unique.");
+        // Only another route may clash with the new endpoints, the route being updated may keep them.
+        for (RouterConfig existing : cacheSet) {
+            if (existing.equals(config) && !existing.getRoutingName().equals(config.getRoutingName())) {
+                throw new IllegalArgumentException("The combination of enter port, routing destination, routing port and options must be unique.");
+            }
         }
         List<RouterConfig> configs = findAll();
         configs.removeIf(c -> c.getRoutingName().equals(config.getRoutingName()));
         configs.add(config);
         saveAll(configs);
-
-        cacheSet.remove(config);
-        cacheSet.add(config);
-
     }
 
     @Override
@@ -87,8 +91,29 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
         List<RouterConfig> configs = findAll();
         configs.removeIf(c -> c.getRoutingName().equals(routingName));
         saveAll(configs);
+    }
 
-        cacheSet.removeIf(c -> c.getRoutingName().equals(routingName));
+    /**
+     * Rewrites the file once for the whole batch.
+     *
+     * @throws IllegalArgumentException if a route clashes with another one, in which case nothing is written
+     */
+    @Override
+    public void saveBatch(Collection<RouterConfig> configs) {
+        Map<String, RouterConfig> byName = new LinkedHashMap<>();
+        for (RouterConfig config : findAll()) {
+            byName.put(config.getRoutingName(), config);
+        }
+        for (RouterConfig config : configs) {
+            byName.put(config.getRoutingName(), config);
+        }
+        Set<RouterConfig> endpoints = new HashSet<>();
+        for (RouterConfig config : byName.values()) {
+            if (!endpoints.add(config)) {
+                throw new IllegalArgumentException("The combination of enter port, routing destination, routing port and options must be unique: " + config.getRoutingName());
+            }
+        }
+        saveAll(new ArrayList<>(byName.values()));
     }
 
     @Override
@@ -98,13 +123,7 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
         List<RouterConfig> configs = new ArrayList<>();
         try (CSVParser parser = new CSVParser(new FileReader(applicationConfig.getFilePath()), CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
             for (CSVRecord record : parser) {
-                configs.add(new RouterConfig(
-                        record.get("RoutingName"),
-                        Integer.parseInt(record.get("EnterPort")),
-                        record.get("RoutingDestination"),
-                        Integer.parseInt(record.get("RoutingPort")),
-                        record.get("Description")
-                ));
+                configs.add(RouterConfigCsv.parseRecord(record));
             }
         } catch (IOException e) {
             logger.error("Error finding all RouterConfigs from CSV file", e);
@@ -112,16 +131,36 @@ public class CSVRouterConfigRepository implements RouterConfigRepository, Initia
         return configs;
     }
 
-    private void saveAll(List<RouterConfig> configs) {
-        try (CSVPrinter printer = new CSVPrinter(new FileWriter(applicationConfig.getFilePath()), CSVFormat.DEFAULT.withHeader("RoutingName", "EnterPort", "RoutingDestination", "RoutingPort", "Description"))) {
-            for (RouterConfig config : configs) {
-                printer.printRecord(config.getRoutingName(), config.getEnterPort(), config.getRoutingDestination(), config.getRoutingPort(), config.getDescription());
-            }
+    @Override
+    public Path getWatchedFile() {
+        return Paths.get(applicationConfig.getFilePath());
+    }
 
+    @Override
+    public List<RouterConfig> reload() throws IOException {
+        List<RouterConfig> configs;
+        try (Reader reader = new FileReader(applicationConfig.getFilePath())) {
+            configs = RouterConfigCsv.read(reader);
+        }
+        cacheSet.clear();
+        cacheSet.addAll(configs);
+        return configs;
+    }
+
+    private void saveAll(List<RouterConfig> configs) {
+        // Write a sibling file and move it over the original, so the file watcher never sees a half-written table.
+        Path path = Paths.get(applicationConfig.getFilePath()).toAbsolutePath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            RouterConfigCsv.write(Files.newBufferedWriter(temp), configs);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            cacheSet.clear();
             cacheSet.addAll(configs);
         } catch (IOException e) {
-            logger.error("Error saving all RouterConfigs to CSV file", e);
+            // The change must fail, so the caller does not swap in a table the file does not hold.
+            throw new UncheckedIOException("Cannot write the route file " + path, e);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package org.opensource.proxy.repository;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The CSV layout of the route config file, shared by the CSV store and the imports and exports of
+ * the other stores.
+ */
+public final class RouterConfigCsv {
+
+    static final String[] HEADER = {"RoutingName", "EnterPort", "RoutingDestination", "RoutingPort", "Description", "Options"};
+
+    private RouterConfigCsv() {
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or holds an invalid route, naming its line
+     */
+    public static List<RouterConfig> read(Reader reader) throws IOException {
+        List<RouterConfig> configs = new ArrayList<>();
+        try (CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build())) {
+            for (CSVRecord record : parser) {
+                try {
+                    configs.add(parseRecord(record));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid route in line " + parser.getCurrentLineNumber() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return configs;
+    }
+
+    public static void write(Writer writer, Iterable<RouterConfig> configs) throws IOException {
+        try (CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader(HEADER).build())) {
+            for (RouterConfig config : configs) {
+                printRecord(printer, config);
+            }
+        }
+    }
+
+    public static RouterConfig parseRecord(CSVRecord record) {
+        // Files written before the Options column existed have only five columns.
+        String options = record.isMapped("Options") && record.isSet("Options") ? record.get("Options") : "";
+        return new RouterConfig(
+                record.get("RoutingName"),
+                Integer.parseInt(record.get("EnterPort")),
+                record.get("RoutingDestination"),
+                Integer.parseInt(record.get("RoutingPort")),
+                record.get("Description"),
+                RouteOptions.parse(options)
+        );
+    }
+
+    static void printRecord(CSVPrinter printer, RouterConfig config) throws IOException {
+        printer.printRecord(config.getRoutingName(), config.getEnterPort(), config.getRoutingDestination(), config.getRoutingPort(), config.getDescription(), config.getOptions());
+    }
+}
@@ -2,6 +2,9 @@ package org.opensource.proxy.repository;
 
 import org.opensource.proxy.config.RouterConfig;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 
 public interface RouterConfigRepository {
@@ -10,4 +13,37 @@ public interface RouterConfigRepository {
     void update(RouterConfig config);
     void delete(String routingName);
     List<RouterConfig> findAll();
-}
\ No newline at end of file
+
+    /**
+     * Creates or replaces, by routing name, every route in {@code configs}. Stores that can write
+     * them all at once do so.
+     *
+     * @throws IllegalArgumentException if a route clashes with another one
+     * @throws java.io.UncheckedIOException if the store cannot be written
+     */
+    default void saveBatch(Collection<RouterConfig> configs) {
+        for (RouterConfig config : configs) {
+            if (read(config.getRoutingName()) == null) {
+                create(config);
+            } else {
+                update(config);
+            }
+        }
+    }
+
+    /**
+     * Re-reads the backing store after it was changed outside of this repository.
+     *
+     * @return every route now in the store
+     * @throws IOException if the store cannot be read, in which case the cached routes are kept
+     */
+    List<RouterConfig> reload() throws IOException;
+
+    /**
+     * @return the file edited by hand to change the routes, which is watched for changes, or null
+     * if the store is only changed through this interface
+     */
+    default Path getWatchedFile() {
+        return null;
+    }
+}
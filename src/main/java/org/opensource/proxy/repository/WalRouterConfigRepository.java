@@ -0,0 +1,462 @@
+package org.opensource.proxy.repository;
+
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the routes in memory, indexed by routing name, and makes every change durable by appending
+ * it to a write-ahead log that is fsync'd before the change returns. Once the log holds
+ * {@code router.store.compact.after} records, the routes are written to a snapshot and the log
+ * starts over, so a change costs one small write however many routes there are. Selected with
+ * {@code router.store=wal}, the files live in {@code router.store.path}.
+ * <p>
+ * A store that does not exist yet is seeded from the CSV file at {@code router.config.path}. At
+ * startup the snapshot is read and the log replayed on top of it; a record cut short by a crash
+ * ends the log and is cut off.
+ */
+@Repository
+@ConditionalOnProperty(name = "router.store", havingValue = "wal")
+public class WalRouterConfigRepository implements RouterConfigRepository, InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WalRouterConfigRepository.class);
+
+    static final String SNAPSHOT = "routes.snapshot";
+    static final String LOG = "routes.wal";
+
+    private static final int SNAPSHOT_MAGIC = 0x52545331; // "RTS1"
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // Body length and CRC32 of the body.
+    private static final int RECORD_HEADER = 8;
+
+    private final Path directory;
+    private final Path seedCsv;
+    private final int compactAfter;
+    private final Map<String, RouterConfig> byName = new ConcurrentHashMap<>();
+    // Routing name by endpoints and options, which must be unique. Guarded by this, like the log.
+    private final Map<RouterConfig, String> byEndpoints = new ConcurrentHashMap<>();
+    private FileChannel log;
+    private int logRecords;
+
+    @Autowired
+    public WalRouterConfigRepository(ApplicationConfig applicationConfig) {
+        this(Paths.get(applicationConfig.getStorePath()), Paths.get(applicationConfig.getFilePath()),
+                applicationConfig.getStoreCompactAfter());
+    }
+
+    /**
+     * @param seedCsv routes to start a new store with, may be null
+     * @param compactAfter log records that trigger a snapshot
+     */
+    public WalRouterConfigRepository(Path directory, Path seedCsv, int compactAfter) {
+        if (compactAfter <= 0) {
+            throw new IllegalArgumentException("router.store.compact.after must be positive: " + compactAfter);
+        }
+        this.directory = directory.toAbsolutePath();
+        this.seedCsv = seedCsv;
+        this.compactAfter = compactAfter;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        open();
+    }
+
+    /**
+     * Reads the store from disk, creating it if needed.
+     *
+     * @throws IOException if the files cannot be read, or the snapshot or a record before the last
+     * one of the log is damaged
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT);
+        Path logFile = directory.resolve(LOG);
+        boolean fresh = !Files.exists(snapshot) && !Files.exists(logFile);
+        if (Files.exists(snapshot)) {
+            readSnapshot(snapshot);
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid;
+        try {
+            valid = replay();
+        } catch (IOException e) {
+            log.close();
+            log = null;
+            throw e;
+        }
+        if (valid < log.size()) {
+            logger.warn("Cutting off {} bytes of an unfinished record at the end of {}", log.size() - valid, logFile);
+            log.truncate(valid);
+            log.force(true);
+        }
+        log.position(valid);
+
+        if (fresh && seedCsv != null && Files.exists(seedCsv)) {
+            List<RouterConfig> imported;
+            try (Reader reader = Files.newBufferedReader(seedCsv)) {
+                imported = RouterConfigCsv.read(reader);
+            }
+            imported.forEach(this::index);
+            compact();
+            logger.info("Imported {} routes from {}", imported.size(), seedCsv);
+        } else if (logRecords >= compactAfter) {
+            compact();
+        }
+        logger.info("Loaded {} routes from {}", byName.size(), directory);
+    }
+
+    @Override
+    public synchronized void destroy() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    @Override
+    public synchronized void create(RouterConfig config) {
+        if (byName.containsKey(config.getRoutingName())) {
+            throw new IllegalArgumentException("Routing name already exists: " + config.getRoutingName());
+        }
+        checkEndpoints(config);
+        append(encode(PUT, config.getRoutingName(), config));
+        index(config);
+        compactIfDue();
+    }
+
+    @Override
+    public RouterConfig read(String routingName) {
+        return byName.get(routingName);
+    }
+
+    @Override
+    public synchronized void update(RouterConfig config) {
+        checkEndpoints(config);
+        append(encode(PUT, config.getRoutingName(), config));
+        index(config);
+        compactIfDue();
+    }
+
+    /**
+     * Appends the whole batch with one write and one fsync.
+     *
+     * @throws IllegalArgumentException if a route clashes with another one, in which case nothing is written
+     */
+    @Override
+    public synchronized void saveBatch(Collection<RouterConfig> configs) {
+        if (configs.isEmpty()) {
+            return;
+        }
+        Map<RouterConfig, String> batchEndpoints = new HashMap<>();
+        for (RouterConfig config : configs) {
+            checkEndpoints(config);
+            String other = batchEndpoints.put(config, config.getRoutingName());
+            if (other != null && !other.equals(config.getRoutingName())) {
+                throw new IllegalArgumentException("The combination of enter port, routing destination, routing port and options must be unique: " + config.getRoutingName());
+            }
+        }
+        ByteBuffer[] records = new ByteBuffer[configs.size()];
+        int i = 0;
+        for (RouterConfig config : configs) {
+            records[i++] = encode(PUT, config.getRoutingName(), config);
+        }
+        append(records);
+        configs.forEach(this::index);
+        compactIfDue();
+    }
+
+    @Override
+    public synchronized void delete(String routingName) {
+        if (!byName.containsKey(routingName)) {
+            return;
+        }
+        append(encode(DELETE, routingName, null));
+        unindex(routingName);
+        compactIfDue();
+    }
+
+    @Override
+    public List<RouterConfig> findAll() {
+        return new ArrayList<>(byName.values());
+    }
+
+    /**
+     * Nothing but this repository writes the store, so there is nothing to re-read.
+     */
+    @Override
+    public List<RouterConfig> reload() {
+        return findAll();
+    }
+
+    private void checkEndpoints(RouterConfig config) {
+        // Only another route may clash with the new endpoints, the route being updated may keep them.
+        String owner = byEndpoints.get(config);
+        if (owner != null && !owner.equals(config.getRoutingName())) {
+            throw new IllegalArgumentException("The combination of enter port, routing destination, routing port and options must be unique.");
+        }
+    }
+
+    private void index(RouterConfig config) {
+        RouterConfig previous = byName.put(config.getRoutingName(), config);
+        if (previous != null) {
+            byEndpoints.remove(previous, config.getRoutingName());
+        }
+        byEndpoints.put(config, config.getRoutingName());
+    }
+
+    private void unindex(String routingName) {
+        RouterConfig previous = byName.remove(routingName);
+        if (previous != null) {
+            byEndpoints.remove(previous, routingName);
+        }
+    }
+
+    private void append(ByteBuffer... records) {
+        long start;
+        try {
+            start = log.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            while (records[records.length - 1].hasRemaining()) {
+                log.write(records);
+            }
+            log.force(false);
+            logRecords += records.length;
+        } catch (IOException e) {
+            // Do not leave a half-written record for the next append to follow.
+            try {
+                log.truncate(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new UncheckedIOException("Cannot append to the route log", e);
+        }
+    }
+
+    private void compactIfDue() {
+        if (logRecords < compactAfter) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            // The log still holds every change, so only the next startup gets slower.
+            logger.warn("Cannot write the route snapshot, keeping the log: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes every route to a new snapshot and empties the log. Replaying the old log over the new
+     * snapshot changes nothing, so a crash between the two steps loses nothing.
+     */
+    private void compact() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT);
+        Path temp = directory.resolve(SNAPSHOT + ".tmp");
+        List<RouterConfig> configs = findAll();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(configs.size());
+            for (RouterConfig config : configs) {
+                ByteBuffer record = encode(PUT, config.getRoutingName(), config);
+                out.write(record.array(), 0, record.limit());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        log.truncate(0);
+        log.force(true);
+        logRecords = 0;
+        logger.debug("Compacted {} routes into {}", configs.size(), snapshot);
+    }
+
+    private void syncDirectory() {
+        // Makes the rename durable; not every platform can open a directory.
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Cannot sync {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private void readSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a route snapshot: " + snapshot);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Damaged route snapshot " + snapshot + " at route " + i);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (crc != crc(body, 0, length)) {
+                    throw new IOException("Damaged route snapshot " + snapshot + " at route " + i);
+                }
+                apply(body, 0, length);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated route snapshot " + snapshot, e);
+        }
+    }
+
+    /**
+     * Applies the records of the log. Only the last record may be incomplete or fail its checksum,
+     * as left by a crash while appending it; damage anywhere else would drop the changes after it.
+     *
+     * @return the length of the log up to the end of its last complete record
+     * @throws IOException if a record before the last one is damaged
+     */
+    private long replay() throws IOException {
+        long size = log.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Route log too large to replay: " + size + " bytes");
+        }
+        // Read the whole log at once, it is compacted long before it gets large.
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        log.position(0);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        byte[] bytes = buffer.array();
+        int valid = 0;
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length > buffer.remaining()) {
+                // Runs past the end of the file.
+                break;
+            }
+            int offset = buffer.position();
+            if (length < 0 || crc != crc(bytes, offset, length)) {
+                if (length >= 0 && offset + length == size) {
+                    break;
+                }
+                throw new IOException("Damaged route log record at offset " + valid + " of " + size + " bytes in " + directory.resolve(LOG));
+            }
+            apply(bytes, offset, length);
+            buffer.position(offset + length);
+            valid = buffer.position();
+            logRecords++;
+        }
+        return valid;
+    }
+
+    private void apply(byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        byte op = in.readByte();
+        String routingName = readString(in);
+        if (op == DELETE) {
+            unindex(routingName);
+        } else if (op == PUT) {
+            int enterPort = in.readInt();
+            String routingDestination = readString(in);
+            int routingPort = in.readInt();
+            String description = readString(in);
+            String options = readString(in);
+            try {
+                index(new RouterConfig(routingName, enterPort, routingDestination, routingPort, description, RouteOptions.parse(options)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid stored route " + routingName + ": " + e.getMessage(), e);
+            }
+        } else {
+            throw new IOException("Unknown route log record type " + op);
+        }
+    }
+
+    /**
+     * @return the record, ready to be written
+     */
+    private static ByteBuffer encode(byte op, String routingName, RouterConfig config) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(op);
+            writeString(out, routingName);
+            if (config != null) {
+                out.writeInt(config.getEnterPort());
+                writeString(out, config.getRoutingDestination());
+                out.writeInt(config.getRoutingPort());
+                writeString(out, config.getDescription());
+                writeString(out, config.getOptions().toString());
+            }
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.limit() - RECORD_HEADER;
+            record.putInt(0, length);
+            record.putInt(4, crc(record.array(), RECORD_HEADER, length));
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length in route record: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,59 @@
+package org.opensource.proxy.routing;
+
+/**
+ * The outcome of one route of a bulk change, serialized as is into the API response.
+ */
+public final class BulkResult {
+
+    public enum Status {
+        ADDED,
+        UPDATED,
+        /** Equal to the route already in the table, nothing was written. */
+        UNCHANGED,
+        /** Rejected before anything was persisted. */
+        FAILED,
+        /** Persisted and in the table, but its listener could not bind the port. */
+        BIND_FAILED
+    }
+
+    private final String routingName;
+    private final Status status;
+    private final String error;
+
+    private BulkResult(String routingName, Status status, String error) {
+        this.routingName = routingName;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static BulkResult of(String routingName, Status status) {
+        return new BulkResult(routingName, status, null);
+    }
+
+    /**
+     * @param routingName the route, or where it was found if it could not be parsed
+     */
+    public static BulkResult failed(String routingName, String error) {
+        return new BulkResult(routingName, Status.FAILED, error);
+    }
+
+    BulkResult bindFailed(String error) {
+        return new BulkResult(routingName, Status.BIND_FAILED, error);
+    }
+
+    public String getRoutingName() {
+        return routingName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return status != Status.FAILED && status != Status.BIND_FAILED;
+    }
+}
@@ -0,0 +1,291 @@
+package org.opensource.proxy.routing;
+
+import org.opensource.proxy.ListenerMode;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, versioned snapshot of every route, indexed by routing name, enter port and
+ * backend. Changes never touch a published table, they build a copy with the next version, which
+ * {@link RouteTableService} swaps in atomically. Readers therefore never lock and always see a
+ * consistent set of routes and indexes.
+ * <p>
+ * A change copies the index maps but rebuilds only the entries it touches, so the per-port and
+ * per-backend lists of other routes are shared with the previous version.
+ * <p>
+ * Routing names are unique within a table. An enter port belongs to one route, unless every route
+ * on it runs in a mode that can share a port.
+ */
+public final class RouteTable {
+
+    public static final RouteTable EMPTY = new Builder().build(0);
+
+    private final long version;
+    // In table order, which is the order routes were added.
+    private final Map<String, RouterConfig> byName;
+    private final Map<Integer, List<RouterConfig>> byPort;
+    private final Map<InetSocketAddress, List<RouterConfig>> byBackend;
+    // Built on first use; a race builds equal lists.
+    private List<RouterConfig> routes;
+
+    private RouteTable(long version, Map<String, RouterConfig> byName, Map<Integer, List<RouterConfig>> byPort,
+                       Map<InetSocketAddress, List<RouterConfig>> byBackend) {
+        this.version = version;
+        this.byName = byName;
+        this.byPort = byPort;
+        this.byBackend = byBackend;
+    }
+
+    private static boolean canSharePort(RouterConfig config) {
+        return ListenerMode.of(config.getOptions()).canSharePort();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<RouterConfig> getRoutes() {
+        List<RouterConfig> list = routes;
+        if (list == null) {
+            list = List.copyOf(byName.values());
+            routes = list;
+        }
+        return list;
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * @return the route with this routing name, or null
+     */
+    public RouterConfig get(String routingName) {
+        return byName.get(routingName);
+    }
+
+    /**
+     * @return the routes listening on this port, empty if none
+     */
+    public List<RouterConfig> getByPort(int enterPort) {
+        return byPort.getOrDefault(enterPort, Collections.emptyList());
+    }
+
+    /**
+     * @return the routes that relay to this backend, with any weight, empty if none
+     */
+    public List<RouterConfig> getByBackend(String host, int port) {
+        return byBackend.getOrDefault(InetSocketAddress.createUnresolved(host, port), Collections.emptyList());
+    }
+
+    /**
+     * @return the routes of every enter port, in table order
+     */
+    public Map<Integer, List<RouterConfig>> getPorts() {
+        return Collections.unmodifiableMap(byPort);
+    }
+
+    /**
+     * @return the next version holding exactly {@code configs}
+     * @throws IllegalArgumentException if two routes share a name or an enter port
+     */
+    public RouteTable withRoutes(Collection<RouterConfig> configs) {
+        Builder builder = new Builder();
+        for (RouterConfig config : configs) {
+            builder.add(config);
+        }
+        return builder.build(version + 1);
+    }
+
+    /**
+     * @return the next version with {@code config} added, or replacing the route of the same name
+     * @throws IllegalArgumentException if another route already uses its enter port
+     */
+    public RouteTable withRoute(RouterConfig config) {
+        Builder builder = edit();
+        builder.put(config);
+        return builder.build(version + 1);
+    }
+
+    /**
+     * @return the next version without the route of this name
+     */
+    public RouteTable withoutRoute(String routingName) {
+        Builder builder = edit();
+        builder.remove(routingName);
+        return builder.build(version + 1);
+    }
+
+    /**
+     * @return a builder of the next version that starts from this one, for changes of many routes
+     */
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return whether this table holds the same routes as {@code configs}, field by field
+     */
+    public boolean sameRoutes(Collection<RouterConfig> configs) {
+        if (configs.size() != byName.size()) {
+            return false;
+        }
+        for (RouterConfig config : configs) {
+            if (!config.sameAs(byName.get(config.getRoutingName()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies of the index maps of one table on their way to the next. A list shared with the
+     * previous table is copied the first time a change touches it and then modified in place, so
+     * adding many routes to one port or backend stays linear. {@link #build} freezes the copies.
+     */
+    static final class Builder {
+
+        private final Map<String, RouterConfig> byName;
+        private final Map<Integer, List<RouterConfig>> byPort;
+        private final Map<InetSocketAddress, List<RouterConfig>> byBackend;
+        // The lists this builder copied and may modify, by identity.
+        private final Set<List<RouterConfig>> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Builder() {
+            byName = new LinkedHashMap<>();
+            byPort = new LinkedHashMap<>();
+            byBackend = new HashMap<>();
+        }
+
+        Builder(RouteTable from) {
+            byName = new LinkedHashMap<>(from.byName);
+            byPort = new LinkedHashMap<>(from.byPort);
+            byBackend = new HashMap<>(from.byBackend);
+        }
+
+        RouterConfig get(String routingName) {
+            return byName.get(routingName);
+        }
+
+        List<RouterConfig> getByPort(int enterPort) {
+            return byPort.getOrDefault(enterPort, Collections.emptyList());
+        }
+
+        /**
+         * Adds {@code config} or replaces the route of the same name.
+         *
+         * @throws IllegalArgumentException if another route already uses its enter port, in which
+         * case nothing changes
+         */
+        void put(RouterConfig config) {
+            RouterConfig previous = byName.get(config.getRoutingName());
+            for (RouterConfig other : getByPort(config.getEnterPort())) {
+                if (other != previous) {
+                    checkSharePort(other, config);
+                    break;
+                }
+            }
+            remove(config.getRoutingName());
+            add(config);
+        }
+
+        void add(RouterConfig config) {
+            if (byName.putIfAbsent(config.getRoutingName(), config) != null) {
+                throw new IllegalArgumentException("Duplicate routing name: " + config.getRoutingName());
+            }
+            List<RouterConfig> onPort = getByPort(config.getEnterPort());
+            if (!onPort.isEmpty()) {
+                try {
+                    checkSharePort(onPort.get(0), config);
+                } catch (IllegalArgumentException e) {
+                    byName.remove(config.getRoutingName());
+                    throw e;
+                }
+            }
+            mutable(byPort, config.getEnterPort()).add(config);
+            for (InetSocketAddress backend : backends(config)) {
+                mutable(byBackend, backend).add(config);
+            }
+        }
+
+        void remove(String routingName) {
+            RouterConfig config = byName.remove(routingName);
+            if (config == null) {
+                return;
+            }
+            removeFrom(byPort, config.getEnterPort(), config);
+            for (InetSocketAddress backend : backends(config)) {
+                removeFrom(byBackend, backend, config);
+            }
+        }
+
+        private static void checkSharePort(RouterConfig existing, RouterConfig config) {
+            if (!(canSharePort(existing) && canSharePort(config))) {
+                throw new IllegalArgumentException("Enter port " + config.getEnterPort() + " is used by both "
+                        + existing.getRoutingName() + " and " + config.getRoutingName());
+            }
+        }
+
+        /**
+         * Freezes the lists this builder modified; the builder must not be used afterwards.
+         */
+        RouteTable build(long version) {
+            byPort.replaceAll((port, routes) -> freeze(routes));
+            byBackend.replaceAll((backend, routes) -> freeze(routes));
+            owned.clear();
+            return new RouteTable(version, byName, byPort, byBackend);
+        }
+
+        /**
+         * @return the list of {@code key}, copied first unless this builder already owns it
+         */
+        private <K> List<RouterConfig> mutable(Map<K, List<RouterConfig>> index, K key) {
+            List<RouterConfig> list = index.get(key);
+            if (list == null || !owned.contains(list)) {
+                list = list == null ? new ArrayList<>() : new ArrayList<>(list);
+                owned.add(list);
+                index.put(key, list);
+            }
+            return list;
+        }
+
+        /**
+         * Removes this very instance from the list of {@code key}, and the key once its list is empty.
+         */
+        private <K> void removeFrom(Map<K, List<RouterConfig>> index, K key, RouterConfig config) {
+            if (!index.containsKey(key)) {
+                return;
+            }
+            List<RouterConfig> list = mutable(index, key);
+            list.removeIf(route -> route == config);
+            if (list.isEmpty()) {
+                index.remove(key);
+                owned.remove(list);
+            }
+        }
+
+        private List<RouterConfig> freeze(List<RouterConfig> list) {
+            return owned.contains(list) ? Collections.unmodifiableList(list) : list;
+        }
+
+        private static Set<InetSocketAddress> backends(RouterConfig config) {
+            Set<InetSocketAddress> addresses = new HashSet<>();
+            for (Backend backend : config.getBackends()) {
+                addresses.add(InetSocketAddress.createUnresolved(backend.getHost(), backend.getPort()));
+            }
+            return addresses;
+        }
+    }
+}
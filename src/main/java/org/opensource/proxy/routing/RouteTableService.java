@@ -0,0 +1,536 @@
+package org.opensource.proxy.routing;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import org.opensource.proxy.ControlPlane;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.connection.ConnectionInfo;
+import org.opensource.proxy.repository.RouterConfigRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the live {@link RouteTable} and keeps the listeners in line with it.
+ * <p>
+ * Every change, whether from the API or from an edit of the config file, builds the next table,
+ * persists it and swaps it in, then reconciles the listeners: ports that are gone are closed, new
+ * ports are bound, and a listener whose route changed is retargeted in place, so the port stays
+ * open and only new connections see the change. Writers are serialized, readers never block: the
+ * API and the listeners look routes up by name, port or backend in the current table, and from
+ * there find the listener serving them.
+ * <p>
+ * Listeners that go away are drained: the port is released at once and open connections get up to
+ * {@code router.drain.timeout.ms} to finish.
+ * <p>
+ * Writers hold a {@link ReentrantLock} rather than a monitor, so a writer on a virtual thread of
+ * the {@link ControlPlane} that waits for the disk does not pin its carrier thread. Nothing under
+ * the lock waits for a port: binds and closes complete on the event loops.
+ */
+@Service
+public class RouteTableService implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RouteTableService.class);
+
+    // Editors often write a file in several steps, so wait for the writes to settle before reloading.
+    private static final long WATCH_SETTLE_MILLIS = 200;
+    private static final long BIND_TIMEOUT_SECONDS = 30;
+
+    private final RouterConfigRepository repository;
+    private final EventLoopRuntime eventLoopRuntime;
+    private final long drainTimeoutMillis;
+    private final int bindParallelism;
+    private final AtomicReference<RouteTable> table = new AtomicReference<>(RouteTable.EMPTY);
+    private final ReentrantLock lock = new ReentrantLock();
+    // Written under lock, read without it.
+    private final Map<Integer, RouterServer> listeners = new ConcurrentHashMap<>();
+    // Listeners of removed routes until their last connection closes.
+    private final Set<RouterServer> draining = ConcurrentHashMap.newKeySet();
+    // Under lock.
+    private CompletableFuture<Void> drainAll;
+    private volatile WatchService watchService;
+
+    @Autowired
+    public RouteTableService(RouterConfigRepository repository, EventLoopRuntime eventLoopRuntime,
+                             ApplicationConfig applicationConfig) {
+        this.repository = repository;
+        this.eventLoopRuntime = eventLoopRuntime;
+        this.drainTimeoutMillis = applicationConfig.getDrainTimeoutMillis();
+        this.bindParallelism = applicationConfig.getBindParallelism();
+        if (bindParallelism <= 0) {
+            throw new IllegalArgumentException("router.bind.parallelism must be positive: " + bindParallelism);
+        }
+    }
+
+    public RouteTable current() {
+        return table.get();
+    }
+
+    /**
+     * @return the listener serving the route of this name, or null if there is none or the proxy
+     * is draining
+     */
+    public RouterServer getListener(String routingName) {
+        RouterConfig config = table.get().get(routingName);
+        return config == null ? null : listeners.get(config.getEnterPort());
+    }
+
+    /**
+     * @return the running target of the route of this name, or null
+     */
+    public RouteTarget getTarget(String routingName) {
+        RouterServer server = getListener(routingName);
+        return server == null ? null : server.getRoutes().get(routingName);
+    }
+
+    /**
+     * Replaces the whole table with {@code configs} without persisting them, used at startup and
+     * after the config file changed.
+     *
+     * @return completes once every new listener is bound or failed to
+     * @throws IllegalArgumentException if a route is invalid, in which case nothing changes
+     */
+    public CompletableFuture<Void> load(Collection<RouterConfig> configs) {
+        Collection<CompletableFuture<Void>> bound;
+        lock.lock();
+        try {
+            RouteTable next = table.get().withRoutes(configs);
+            for (List<RouterConfig> onPort : next.getPorts().values()) {
+                validate(onPort);
+            }
+            bound = swap(next).values();
+        } finally {
+            lock.unlock();
+        }
+        // Failures are logged by the listener, the caller only waits.
+        return CompletableFuture.allOf(bound.stream().map(future -> future.exceptionally(e -> null)).toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Adds or replaces every route in {@code configs} as one change. Each route is validated on
+     * its own and left out if it is invalid; the others are persisted with a single write and
+     * swapped in as one table version, and their new listeners are bound
+     * {@code router.bind.parallelism} at a time.
+     *
+     * @return the outcome of every route in the order given, once its listener is bound or failed to
+     */
+    public List<BulkResult> apply(List<RouterConfig> configs) {
+        List<BulkResult> results = new ArrayList<>(configs.size());
+        Map<Integer, CompletableFuture<Void>> bound;
+        lock.lock();
+        try {
+            bound = applyBatch(configs, results);
+        } finally {
+            lock.unlock();
+        }
+        // One wait for all listeners, each bounded by its own timeout.
+        List<CompletableFuture<BulkResult>> outcomes = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            BulkResult result = results.get(i);
+            int enterPort = configs.get(i).getEnterPort();
+            CompletableFuture<Void> future = bound.get(enterPort);
+            if (future == null || !result.isSuccess()) {
+                outcomes.add(CompletableFuture.completedFuture(result));
+                continue;
+            }
+            // A copy, so the timeout does not fail the listener's own future.
+            outcomes.add(future.copy()
+                    .orTimeout(BIND_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .handle((ignored, e) -> e == null ? result : result.bindFailed(bindError(enterPort, e))));
+        }
+        CompletableFuture.allOf(outcomes.toArray(CompletableFuture<?>[]::new)).join();
+        for (int i = 0; i < results.size(); i++) {
+            results.set(i, outcomes.get(i).join());
+        }
+        return results;
+    }
+
+    private static String bindError(int enterPort, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof TimeoutException) {
+            return "Port " + enterPort + " not bound after " + BIND_TIMEOUT_SECONDS + " s";
+        }
+        return "Cannot bind port " + enterPort + ": " + cause.getMessage();
+    }
+
+    private Map<Integer, CompletableFuture<Void>> applyBatch(List<RouterConfig> configs, List<BulkResult> results) {
+        RouteTable current = table.get();
+        RouteTable.Builder builder = current.edit();
+        List<RouterConfig> accepted = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (RouterConfig config : configs) {
+            String routingName = config.getRoutingName();
+            RouterConfig existing = current.get(routingName);
+            if (!names.add(routingName)) {
+                results.add(BulkResult.failed(routingName, "Routing name appears more than once in the batch"));
+                continue;
+            }
+            if (config.sameAs(existing)) {
+                results.add(BulkResult.of(routingName, BulkResult.Status.UNCHANGED));
+                continue;
+            }
+            try {
+                builder.put(config);
+            } catch (IllegalArgumentException e) {
+                results.add(BulkResult.failed(routingName, e.getMessage()));
+                continue;
+            }
+            try {
+                validate(builder.getByPort(config.getEnterPort()));
+            } catch (IllegalArgumentException e) {
+                builder.remove(routingName);
+                if (existing != null) {
+                    builder.add(existing);
+                }
+                results.add(BulkResult.failed(routingName, e.getMessage()));
+                continue;
+            }
+            accepted.add(config);
+            results.add(BulkResult.of(routingName, existing == null ? BulkResult.Status.ADDED : BulkResult.Status.UPDATED));
+        }
+        if (accepted.isEmpty()) {
+            return Map.of();
+        }
+        try {
+            repository.saveBatch(accepted);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            // Nothing was written, so none of the batch applies.
+            results.replaceAll(result -> result.isSuccess() && result.getStatus() != BulkResult.Status.UNCHANGED
+                    ? BulkResult.failed(result.getRoutingName(), "Batch not saved: " + e.getMessage()) : result);
+            return Map.of();
+        }
+        return swap(builder.build(current.getVersion() + 1));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the route is invalid or clashes with another route
+     */
+    public void add(RouterConfig config) {
+        lock.lock();
+        try {
+            if (table.get().get(config.getRoutingName()) != null) {
+                throw new IllegalArgumentException("Routing name already exists: " + config.getRoutingName());
+            }
+            RouteTable next = table.get().withRoute(config);
+            validate(next.getByPort(config.getEnterPort()));
+            repository.create(config);
+            swap(next);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if there is no route of that name
+     * @throws IllegalArgumentException if the route is invalid or clashes with another route
+     */
+    public boolean update(RouterConfig config) {
+        lock.lock();
+        try {
+            if (table.get().get(config.getRoutingName()) == null) {
+                return false;
+            }
+            RouteTable next = table.get().withRoute(config);
+            validate(next.getByPort(config.getEnterPort()));
+            repository.update(config);
+            swap(next);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if there is no route of that name
+     */
+    public boolean remove(String routingName) {
+        lock.lock();
+        try {
+            if (table.get().get(routingName) == null) {
+                return false;
+            }
+            RouteTable next = table.get().withoutRoute(routingName);
+            repository.delete(routingName);
+            swap(next);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reloads the table whenever {@code file} changes on disk. Our own writes trigger a reload
+     * too, which finds nothing new and changes nothing.
+     */
+    public void watch(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        WatchService service = FileSystems.getDefault().newWatchService();
+        path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchService = service;
+
+        ControlPlane.startThread("route-table-watcher", () -> watchLoop(service, path.getFileName()));
+        logger.info("Watching {} for route changes", path);
+    }
+
+    /**
+     * Drains every listener for a shutdown or a hand-over to a new process. Route changes are
+     * still persisted afterwards but no longer bind ports.
+     *
+     * @return completes once every connection is closed
+     */
+    public CompletableFuture<Void> drainAll(long timeoutMillis) {
+        lock.lock();
+        try {
+            if (drainAll == null) {
+                logger.info("Draining all {} listeners, deadline {} ms", listeners.size(), timeoutMillis);
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (RouterServer server : listeners.values()) {
+                    futures.add(server.drain(timeoutMillis));
+                }
+                futures.addAll(draining.stream().map(server -> server.drain(timeoutMillis)).toList());
+                drainAll = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+            }
+            return drainAll;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return every listener, serving or draining
+     */
+    public List<RouterServer> getListeners() {
+        List<RouterServer> servers = new ArrayList<>(listeners.values());
+        servers.addAll(draining);
+        return servers;
+    }
+
+    /**
+     * Collects the open connections of a route from every listener serving or draining it, so it
+     * only walks the registries of the routes asked for.
+     *
+     * @param routingName the route, or null for every route
+     * @return the connections, oldest first
+     */
+    public List<Channel> getConnections(String routingName) {
+        List<Channel> channels = new ArrayList<>();
+        for (ChannelGroup group : connectionGroups(routingName)) {
+            for (Channel channel : group) {
+                if (ConnectionInfo.of(channel) != null) {
+                    channels.add(channel);
+                }
+            }
+        }
+        channels.sort(Comparator.comparingLong(channel -> ConnectionInfo.of(channel).getOpenedAtNanos()));
+        return channels;
+    }
+
+    /**
+     * @param id the long text of the channel id
+     * @return the open connection of this id, or null
+     */
+    public Channel findConnection(String id) {
+        for (ChannelGroup group : connectionGroups(null)) {
+            for (Channel channel : group) {
+                if (channel.id().asLongText().equals(id)) {
+                    return channel;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Set<ChannelGroup> connectionGroups(String routingName) {
+        // A group is shared by every version of a route, and channel groups compare by content.
+        Set<ChannelGroup> groups = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (RouterServer server : getListeners()) {
+            for (RouteTarget target : server.getTargets()) {
+                if (routingName == null || routingName.equals(target.getConfig().getRoutingName())) {
+                    groups.add(target.getConnections());
+                }
+            }
+        }
+        return groups;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (watchService != null) {
+            watchService.close();
+        }
+        // Runs before the event loops are shut down, which would cut every connection.
+        try {
+            drainAll(drainTimeoutMillis).get(drainTimeoutMillis + 5_000, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Drain did not finish in time, shutting down anyway");
+        }
+    }
+
+    private void watchLoop(WatchService service, Path fileName) {
+        try {
+            for (;;) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= fileName.equals(event.context());
+                    }
+                    key.reset();
+                    Thread.sleep(WATCH_SETTLE_MILLIS);
+                } while ((key = service.poll()) != null);
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.info("Stopped watching the route config file");
+        }
+    }
+
+    void reload() {
+        lock.lock();
+        try {
+            List<RouterConfig> configs;
+            try {
+                configs = repository.reload();
+            } catch (IOException e) {
+                logger.warn("Keeping route table version {}, cannot read the config file: {}", table.get().getVersion(), e.getMessage());
+                return;
+            }
+            if (table.get().sameRoutes(configs)) {
+                return;
+            }
+            try {
+                load(configs);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Keeping route table version {}, the config file is invalid: {}", table.get().getVersion(), e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void validate(List<RouterConfig> onPort) {
+        // A listener opens nothing until it runs, so building one checks the options for free.
+        new RouterServer(eventLoopRuntime, onPort);
+    }
+
+    /**
+     * @return the bind of every listener started, by enter port
+     */
+    private Map<Integer, CompletableFuture<Void>> swap(RouteTable next) {
+        RouteTable previous = table.getAndSet(next);
+        if (drainAll != null) {
+            logger.info("Route table version {} is saved but not applied, the proxy is draining", next.getVersion());
+            return Map.of();
+        }
+        for (Integer enterPort : new ArrayList<>(listeners.keySet())) {
+            if (next.getByPort(enterPort).isEmpty()) {
+                stopListener(enterPort);
+            }
+        }
+        List<List<RouterConfig>> toStart = new ArrayList<>();
+        for (int enterPort : next.getPorts().keySet()) {
+            List<RouterConfig> configs = next.getByPort(enterPort);
+            RouterServer server = listeners.get(enterPort);
+            if (server == null) {
+                toStart.add(configs);
+            } else if (configs == previous.getByPort(enterPort) || server.hasRoutes(configs)) {
+                // A table shares the lists of the ports a change did not touch.
+                continue;
+            } else if (server.canUpdate(configs)) {
+                server.update(configs);
+            } else {
+                stopListener(enterPort);
+                toStart.add(configs);
+            }
+        }
+        Map<Integer, CompletableFuture<Void>> bound = startListeners(toStart);
+        logger.info("Route table version {} is live with {} routes", next.getVersion(), next.size());
+        return bound;
+    }
+
+    /**
+     * Binds the new listeners in parallel, but no more than {@code router.bind.parallelism} at a
+     * time, so a large change does not flood the acceptor threads. Each of that many chains binds a
+     * port and moves on to the next when the bind completes, so the caller never waits. A port
+     * still held by a listener being drained is bound once that listener has released it.
+     */
+    private Map<Integer, CompletableFuture<Void>> startListeners(List<List<RouterConfig>> ports) {
+        Map<Integer, CompletableFuture<Void>> bound = new HashMap<>();
+        Queue<RouterServer> pending = new ConcurrentLinkedQueue<>();
+        for (List<RouterConfig> configs : ports) {
+            RouterServer server = new RouterServer(eventLoopRuntime, configs);
+            listeners.put(server.getEnterPort(), server);
+            bound.put(server.getEnterPort(), server.whenBound());
+            pending.add(server);
+        }
+        for (int i = 0; i < Math.min(bindParallelism, ports.size()); i++) {
+            bindNext(pending);
+        }
+        return bound;
+    }
+
+    private void bindNext(Queue<RouterServer> pending) {
+        RouterServer server = pending.poll();
+        if (server == null) {
+            return;
+        }
+        CompletableFuture<?>[] released = draining.stream()
+                .filter(previous -> previous.getEnterPort() == server.getEnterPort())
+                .map(RouterServer::whenUnbound)
+                .toArray(CompletableFuture<?>[]::new);
+        CompletableFuture.allOf(released)
+                .thenCompose(ignored -> server.start())
+                .whenComplete((ignored, e) -> bindNext(pending));
+    }
+
+    private void stopListener(int enterPort) {
+        RouterServer server = listeners.remove(enterPort);
+        if (server == null) {
+            return;
+        }
+        // The port is released at once, open connections finish in the background.
+        draining.add(server);
+        server.drain(drainTimeoutMillis).whenComplete((ignored, e) -> draining.remove(server));
+    }
+}
@@ -0,0 +1,269 @@
+package org.opensource.proxy.sniff;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+import org.opensource.proxy.http.HttpRouteMatcher;
+
+import java.util.Locale;
+
+/**
+ * Recognizes the first bytes of a connection without consuming them: a TLS ClientHello and its
+ * SNI server name, an HTTP/1.x request and its Host header, or a PROXY protocol v1 or v2 header
+ * and the destination port it carries. Everything is read with absolute getters, so the buffer
+ * can be relayed unchanged afterwards.
+ */
+public final class ProtocolSniffer {
+
+    public enum Protocol { TLS, HTTP, PROXY, UNKNOWN }
+
+    private static final int TLS_HANDSHAKE = 0x16;
+    private static final int TLS_CLIENT_HELLO = 1;
+    private static final int TLS_SERVER_NAME = 0;
+    private static final int TLS_RECORD_HEADER = 5;
+    /** A whole TLS record with the largest plaintext fragment. */
+    public static final int MAX_TLS_RECORD = TLS_RECORD_HEADER + 16 * 1024;
+
+    private static final byte[] PROXY_V1 = "PROXY ".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] PROXY_V2 = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+    private static final int PROXY_V1_MAX_LENGTH = 107;
+    private static final int PROXY_V2_HEADER = 16;
+    private static final int MAX_HTTP_METHOD = 16;
+
+    private ProtocolSniffer() {
+    }
+
+    /**
+     * What the first bytes of a connection turned out to be.
+     */
+    public static final class Result {
+
+        static final Result UNKNOWN = new Result(Protocol.UNKNOWN, null, -1, 0);
+
+        private final Protocol protocol;
+        private final String name;
+        private final int proxyDestinationPort;
+        private final int headerLength;
+
+        Result(Protocol protocol, String name, int proxyDestinationPort, int headerLength) {
+            this.protocol = protocol;
+            this.name = name;
+            this.proxyDestinationPort = proxyDestinationPort;
+            this.headerLength = headerLength;
+        }
+
+        public Protocol getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * @return the lower-case SNI server name or Host header without port, null if absent
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the destination port of a PROXY header, -1 if it carries none
+         */
+        public int getProxyDestinationPort() {
+            return proxyDestinationPort;
+        }
+
+        /**
+         * @return the length of a PROXY header, the connection's own bytes follow it
+         */
+        public int getHeaderLength() {
+            return headerLength;
+        }
+    }
+
+    /**
+     * @param offset where the connection's bytes start in {@code buf}
+     * @return what the bytes are, or null if more bytes are needed to tell
+     */
+    public static Result sniff(ByteBuf buf, int offset) {
+        int readable = buf.writerIndex() - offset;
+        if (readable <= 0) {
+            return null;
+        }
+        int first = buf.getUnsignedByte(offset);
+        if (first == TLS_HANDSHAKE) {
+            return sniffTls(buf, offset, readable);
+        }
+        if (first == PROXY_V2[0] || first == PROXY_V1[0]) {
+            int v2 = startsWith(buf, offset, readable, PROXY_V2);
+            if (v2 != 0) {
+                return v2 < 0 ? null : sniffProxyV2(buf, offset, readable);
+            }
+            int v1 = startsWith(buf, offset, readable, PROXY_V1);
+            if (v1 != 0) {
+                return v1 < 0 ? null : sniffProxyV1(buf, offset, readable);
+            }
+        }
+        return sniffHttp(buf, offset, readable);
+    }
+
+    /**
+     * @return 1 if the bytes start with {@code prefix}, 0 if they don't, -1 if they match so far
+     */
+    private static int startsWith(ByteBuf buf, int offset, int readable, byte[] prefix) {
+        int n = Math.min(readable, prefix.length);
+        for (int i = 0; i < n; i++) {
+            if (buf.getByte(offset + i) != prefix[i]) {
+                return 0;
+            }
+        }
+        return n == prefix.length ? 1 : -1;
+    }
+
+    private static Result sniffTls(ByteBuf buf, int offset, int readable) {
+        if (readable < TLS_RECORD_HEADER) {
+            return null;
+        }
+        if (buf.getUnsignedByte(offset + 1) != 3) {
+            return Result.UNKNOWN;
+        }
+        int end = offset + TLS_RECORD_HEADER + buf.getUnsignedShort(offset + 3);
+        if (buf.writerIndex() < end) {
+            return null;
+        }
+        return new Result(Protocol.TLS, serverName(buf, offset + TLS_RECORD_HEADER, end), -1, 0);
+    }
+
+    /**
+     * Walks a ClientHello that fits in one record, the common case. Any malformed length stops
+     * the walk and yields no name rather than an error.
+     */
+    private static String serverName(ByteBuf buf, int p, int end) {
+        if (p + 4 > end || buf.getUnsignedByte(p) != TLS_CLIENT_HELLO) {
+            return null;
+        }
+        p += 4 + 2 + 32; // handshake header, client version, random
+        if (p + 1 > end) {
+            return null;
+        }
+        p += 1 + buf.getUnsignedByte(p); // session id
+        if (p + 2 > end) {
+            return null;
+        }
+        p += 2 + buf.getUnsignedShort(p); // cipher suites
+        if (p + 1 > end) {
+            return null;
+        }
+        p += 1 + buf.getUnsignedByte(p); // compression methods
+        if (p + 2 > end) {
+            return null;
+        }
+        int extensionsEnd = Math.min(end, p + 2 + buf.getUnsignedShort(p));
+        p += 2;
+        while (p + 4 <= extensionsEnd) {
+            int type = buf.getUnsignedShort(p);
+            int length = buf.getUnsignedShort(p + 2);
+            p += 4;
+            if (p + length > extensionsEnd) {
+                return null;
+            }
+            if (type == TLS_SERVER_NAME) {
+                // server_name_list length, then entries of name type, length and name.
+                for (int q = p + 2; q + 3 <= p + length; ) {
+                    int nameType = buf.getUnsignedByte(q);
+                    int nameLength = buf.getUnsignedShort(q + 1);
+                    q += 3;
+                    if (q + nameLength > p + length) {
+                        return null;
+                    }
+                    if (nameType == 0) {
+                        return buf.toString(q, nameLength, CharsetUtil.US_ASCII).toLowerCase(Locale.ROOT);
+                    }
+                    q += nameLength;
+                }
+                return null;
+            }
+            p += length;
+        }
+        return null;
+    }
+
+    private static Result sniffProxyV1(ByteBuf buf, int offset, int readable) {
+        int lf = buf.indexOf(offset, offset + Math.min(readable, PROXY_V1_MAX_LENGTH), (byte) '\n');
+        if (lf < 0) {
+            return readable < PROXY_V1_MAX_LENGTH ? null : Result.UNKNOWN;
+        }
+        // PROXY TCP4 <src> <dst> <srcport> <dstport>\r\n, or PROXY UNKNOWN ...
+        String[] fields = buf.toString(offset, lf - offset, CharsetUtil.US_ASCII).trim().split(" ");
+        int port = -1;
+        if (fields.length == 6 && !"UNKNOWN".equals(fields[1])) {
+            try {
+                port = Integer.parseInt(fields[5]);
+            } catch (NumberFormatException e) {
+                return Result.UNKNOWN;
+            }
+        }
+        return new Result(Protocol.PROXY, null, port, lf + 1 - offset);
+    }
+
+    private static Result sniffProxyV2(ByteBuf buf, int offset, int readable) {
+        if (readable < PROXY_V2_HEADER) {
+            return null;
+        }
+        int length = PROXY_V2_HEADER + buf.getUnsignedShort(offset + 14);
+        if (readable < length) {
+            return null;
+        }
+        int command = buf.getUnsignedByte(offset + 12) & 0x0F;
+        int family = buf.getUnsignedByte(offset + 13) >> 4;
+        int port = -1;
+        // Addresses are source then destination, followed by source port and destination port.
+        if (command == 1 && family == 1 && length >= PROXY_V2_HEADER + 12) {
+            port = buf.getUnsignedShort(offset + PROXY_V2_HEADER + 10);
+        } else if (command == 1 && family == 2 && length >= PROXY_V2_HEADER + 36) {
+            port = buf.getUnsignedShort(offset + PROXY_V2_HEADER + 34);
+        }
+        return new Result(Protocol.PROXY, null, port, length);
+    }
+
+    private static Result sniffHttp(ByteBuf buf, int offset, int readable) {
+        // The request line starts with an upper-case method token and a space.
+        for (int i = 0; ; i++) {
+            if (i >= readable) {
+                return i < MAX_HTTP_METHOD ? null : Result.UNKNOWN;
+            }
+            byte b = buf.getByte(offset + i);
+            if (b == ' ' && i > 0) {
+                break;
+            }
+            if (b < 'A' || b > 'Z' || i >= MAX_HTTP_METHOD) {
+                return Result.UNKNOWN;
+            }
+        }
+        int end = buf.writerIndex();
+        int line = buf.indexOf(offset, end, (byte) '\n');
+        while (line >= 0) {
+            int start = line + 1;
+            int lf = buf.indexOf(start, end, (byte) '\n');
+            if (lf < 0) {
+                return null;
+            }
+            int length = lf - start;
+            if (length > 0 && buf.getByte(lf - 1) == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                // End of the headers without a Host, as in HTTP/1.0.
+                return new Result(Protocol.HTTP, null, -1, 0);
+            }
+            if (length > 5 && isHostHeader(buf, start)) {
+                String host = buf.toString(start + 5, length - 5, CharsetUtil.US_ASCII).trim();
+                return new Result(Protocol.HTTP, HttpRouteMatcher.hostName(host), -1, 0);
+            }
+            line = lf;
+        }
+        return null;
+    }
+
+    private static boolean isHostHeader(ByteBuf buf, int start) {
+        return (buf.getByte(start) | 0x20) == 'h' && (buf.getByte(start + 1) | 0x20) == 'o'
+                && (buf.getByte(start + 2) | 0x20) == 's' && (buf.getByte(start + 3) | 0x20) == 't'
+                && buf.getByte(start + 4) == ':';
+    }
+}
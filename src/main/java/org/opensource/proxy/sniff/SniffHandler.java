@@ -0,0 +1,138 @@
+package org.opensource.proxy.sniff;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.RouterClientHandler;
+import org.opensource.proxy.RouterServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First handler of a connection on a listener in {@code mode=sniff}. It buffers the first bytes
+ * until {@link ProtocolSniffer} can tell the route, then replaces itself with a
+ * {@link RouterClientHandler} for that route, which sends the buffered bytes to the upstream
+ * ahead of the rest of the stream. The buffer is capped and sniffing has a deadline; hitting
+ * either sends the connection to the fallback route, if there is one.
+ */
+public class SniffHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SniffHandler.class);
+
+    private final RouterServer routerServer;
+    private SniffRouteMatcher matcher;
+    private ByteBuf buffer;
+    private ScheduledFuture<?> timeout;
+
+    public SniffHandler(RouterServer routerServer) {
+        this.routerServer = routerServer;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        // The routes are fixed for this connection when it opens, like in the TCP relay.
+        matcher = routerServer.getRoutes().getSniffMatcher();
+        buffer = ctx.alloc().buffer(Math.min(1024, matcher.getMaxBytes()));
+        timeout = ctx.executor().schedule(() -> {
+            logger.debug("No route recognized from {} within {} ms", ctx.channel().remoteAddress(), matcher.getTimeoutMillis());
+            handOff(ctx, matcher.getFallback());
+        }, matcher.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        ctx.read();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (buffer == null || !(msg instanceof ByteBuf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        try {
+            buffer.writeBytes((ByteBuf) msg);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+
+        int offset = buffer.readerIndex();
+        ProtocolSniffer.Result result = ProtocolSniffer.sniff(buffer, offset);
+        if (result != null && result.getProtocol() == ProtocolSniffer.Protocol.PROXY) {
+            RouteTarget target = matcher.matchProxyPort(result.getProxyDestinationPort());
+            if (target != null) {
+                handOff(ctx, target);
+                return;
+            }
+            // No route for the destination port, so look at what follows the header.
+            result = ProtocolSniffer.sniff(buffer, offset + result.getHeaderLength());
+        }
+        if (result != null) {
+            handOff(ctx, matcher.match(result));
+        } else if (buffer.readableBytes() >= matcher.getMaxBytes()) {
+            logger.debug("No route recognized from {} in the first {} bytes", ctx.channel().remoteAddress(), buffer.readableBytes());
+            handOff(ctx, matcher.getFallback());
+        } else {
+            ctx.read();
+        }
+    }
+
+    private void handOff(ChannelHandlerContext ctx, RouteTarget target) {
+        if (buffer == null) {
+            return;
+        }
+        timeout.cancel(false);
+        ByteBuf firstBytes = buffer;
+        buffer = null;
+        if (target == null || target.getAdmission().admit(ctx.channel()) != null) {
+            firstBytes.release();
+            ctx.close();
+            return;
+        }
+        target.getBuffers().apply(ctx.channel().config());
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (target.getTls().isTerminating()) {
+            // The route terminates TLS with its own certificate: the sniffed ClientHello goes through
+            // the SslHandler like any later record, and the relay only sees decrypted bytes.
+            pipeline.replace(this, null, new RouterClientHandler(routerServer, target, null));
+            pipeline.addFirst(target.getTls().newServerHandler(ctx.alloc()));
+            target.getAdmission().shapeClient(pipeline.channel());
+            pipeline.fireChannelActive();
+            pipeline.fireChannelRead(firstBytes);
+            pipeline.fireChannelReadComplete();
+            return;
+        }
+        pipeline.replace(this, null, new RouterClientHandler(routerServer, target, firstBytes.isReadable() ? firstBytes : null));
+        if (!firstBytes.isReadable()) {
+            firstBytes.release();
+        }
+        target.getAdmission().shapeClient(pipeline.channel());
+        // Only the relay handler is left in the pipeline, it connects the upstream now.
+        pipeline.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (cause instanceof IOException) {
+            // A client that resets before it was routed, nothing to investigate.
+            logger.debug("Client connection failed: {}", cause.toString());
+        } else {
+            logger.error("Exception caught", cause);
+        }
+        ctx.close();
+    }
+}
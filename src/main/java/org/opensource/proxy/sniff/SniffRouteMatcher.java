@@ -0,0 +1,153 @@
+package org.opensource.proxy.sniff;
+
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the route of a sniffed connection.
+ * <p>
+ * Route options:
+ * <ul>
+ *     <li>{@code sni} - TLS server name, exact or {@code *.example.com}</li>
+ *     <li>{@code host} - HTTP Host header, exact or {@code *.example.com}</li>
+ *     <li>{@code proxyDstPort} - destination port in a PROXY protocol header</li>
+ *     <li>{@code sniffMaxBytes} - bytes buffered before giving up, default one whole TLS record</li>
+ *     <li>{@code sniffTimeoutMs} - time to wait for the first bytes, default 5000</li>
+ * </ul>
+ * A route may set several of the keys. The one route without any of them takes every connection
+ * that matches nothing else, including clients that wait for the server to speak first; without
+ * such a route those connections are closed. The buffer and timeout limits are the largest any
+ * route of the port asks for. All lookups are in hash tables built once per route change.
+ */
+public final class SniffRouteMatcher {
+
+    private final NameTable serverNames = new NameTable("sni");
+    private final NameTable hosts = new NameTable("host");
+    private final Map<Integer, RouteTarget> proxyPorts = new HashMap<>();
+    private final RouteTarget fallback;
+    private final int maxBytes;
+    private final long timeoutMillis;
+
+    /**
+     * @throws IllegalArgumentException if two routes claim the same key or more than one claims none
+     */
+    public SniffRouteMatcher(List<RouteTarget> targets) {
+        RouteTarget fallback = null;
+        int maxBytes = 0;
+        long timeoutMillis = 0;
+        for (RouteTarget target : targets) {
+            RouteOptions options = target.getConfig().getOptions();
+            boolean keyed = serverNames.put(options.getString("sni", ""), target);
+            keyed |= hosts.put(options.getString("host", ""), target);
+            int proxyPort = options.getInt("proxyDstPort", 0);
+            if (proxyPort > 0) {
+                keyed = true;
+                RouteTarget previous = proxyPorts.putIfAbsent(proxyPort, target);
+                if (previous != null) {
+                    throw conflict("proxyDstPort " + proxyPort, previous, target);
+                }
+            }
+            if (!keyed) {
+                if (fallback != null) {
+                    throw conflict("the fallback", fallback, target);
+                }
+                fallback = target;
+            }
+            maxBytes = Math.max(maxBytes, options.getInt("sniffMaxBytes", ProtocolSniffer.MAX_TLS_RECORD));
+            timeoutMillis = Math.max(timeoutMillis, options.getLong("sniffTimeoutMs", 5_000));
+        }
+        this.fallback = fallback;
+        this.maxBytes = maxBytes;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the route of the sniffed bytes, the fallback route if none matches, or null
+     */
+    public RouteTarget match(ProtocolSniffer.Result result) {
+        RouteTarget target = null;
+        if (result.getProtocol() == ProtocolSniffer.Protocol.TLS) {
+            target = serverNames.get(result.getName());
+        } else if (result.getProtocol() == ProtocolSniffer.Protocol.HTTP) {
+            target = hosts.get(result.getName());
+        }
+        return target != null ? target : fallback;
+    }
+
+    /**
+     * @return the route of this PROXY header destination port, or null
+     */
+    public RouteTarget matchProxyPort(int port) {
+        return proxyPorts.isEmpty() ? null : proxyPorts.get(port);
+    }
+
+    public RouteTarget getFallback() {
+        return fallback;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    private static IllegalArgumentException conflict(String key, RouteTarget a, RouteTarget b) {
+        return new IllegalArgumentException("Routes " + a.getConfig().getRoutingName() + " and " + b.getConfig().getRoutingName()
+                + " both claim " + key + " on port " + a.getConfig().getEnterPort());
+    }
+
+    /**
+     * Exact names plus {@code *.suffix} wildcards; an exact name wins over a wildcard and a
+     * longer wildcard over a shorter one.
+     */
+    private static final class NameTable {
+
+        private final String option;
+        private final Map<String, RouteTarget> exact = new HashMap<>();
+        // Keyed by the suffix after the '*', for example ".example.com".
+        private final Map<String, RouteTarget> wildcard = new HashMap<>();
+
+        NameTable(String option) {
+            this.option = option;
+        }
+
+        boolean put(String name, RouteTarget target) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) {
+                return false;
+            }
+            Map<String, RouteTarget> table = name.startsWith("*.") ? wildcard : exact;
+            String key = name.startsWith("*.") ? name.substring(1) : name;
+            RouteTarget previous = table.putIfAbsent(key, target);
+            if (previous != null) {
+                throw conflict(option + " " + name, previous, target);
+            }
+            return true;
+        }
+
+        RouteTarget get(String name) {
+            if (name == null) {
+                return null;
+            }
+            RouteTarget target = exact.get(name);
+            if (target != null || wildcard.isEmpty()) {
+                return target;
+            }
+            // Try every parent domain: a.b.example.com checks .b.example.com, .example.com, .com
+            for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+                target = wildcard.get(name.substring(dot));
+                if (target != null) {
+                    return target;
+                }
+            }
+            return null;
+        }
+    }
+}
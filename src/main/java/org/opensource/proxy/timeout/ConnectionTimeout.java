@@ -0,0 +1,114 @@
+package org.opensource.proxy.timeout;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Idle and lifetime timeouts of one client connection and its upstream, on the timer wheel of
+ * their event loop. The handlers timestamp reads and writes with the wheel's clock; the deadline
+ * is only worked out when the wheel gets to it. It leaves the wheel once both channels are closed,
+ * so an upstream still flushing to a peer that stopped reading is closed on time too.
+ */
+public final class ConnectionTimeout extends TimerWheel.Timeout {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionTimeout.class);
+
+    private final TimerWheel wheel;
+    private final TimeoutSettings settings;
+    private final Channel client;
+    private final long openedAt;
+    private final ChannelFutureListener onClose = future -> closed();
+    private Channel upstream;
+    private long lastRead;
+    private long lastWrite;
+    private boolean expired;
+
+    private ConnectionTimeout(TimerWheel wheel, TimeoutSettings settings, Channel client) {
+        this.wheel = wheel;
+        this.settings = settings;
+        this.client = client;
+        this.openedAt = System.nanoTime();
+        this.lastRead = openedAt;
+        this.lastWrite = openedAt;
+    }
+
+    /**
+     * Puts {@code client} on {@code wheel}, which must belong to the client's event loop. Must be
+     * called from that loop.
+     *
+     * @return the timeout to record activity on, or null if the route has none
+     */
+    public static ConnectionTimeout start(TimerWheel wheel, TimeoutSettings settings, Channel client) {
+        if (!settings.hasTimeouts()) {
+            return null;
+        }
+        ConnectionTimeout timeout = new ConnectionTimeout(wheel, settings, client);
+        wheel.add(timeout);
+        client.closeFuture().addListener(timeout.onClose);
+        return timeout;
+    }
+
+    /**
+     * Closes {@code upstream} together with the client on expiry. Must be called from the loop.
+     */
+    public void setUpstream(Channel upstream) {
+        this.upstream = upstream;
+        upstream.closeFuture().addListener(onClose);
+    }
+
+    public void readFromClient() {
+        lastRead = wheel.now();
+    }
+
+    public void writtenToClient() {
+        lastWrite = wheel.now();
+    }
+
+    /**
+     * @return whether this timeout closed the connection
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    private void closed() {
+        if (!client.isOpen() && (upstream == null || !upstream.isOpen())) {
+            wheel.remove(this);
+        }
+    }
+
+    @Override
+    protected long deadline() {
+        long deadline = Long.MAX_VALUE;
+        if (settings.getMaxLifetimeNanos() > 0) {
+            deadline = openedAt + settings.getMaxLifetimeNanos();
+        }
+        if (settings.getReadIdleNanos() > 0) {
+            deadline = earliest(deadline, lastRead + settings.getReadIdleNanos());
+        }
+        if (settings.getWriteIdleNanos() > 0) {
+            deadline = earliest(deadline, lastWrite + settings.getWriteIdleNanos());
+        }
+        if (settings.getIdleNanos() > 0) {
+            long lastActivity = lastRead - lastWrite > 0 ? lastRead : lastWrite;
+            deadline = earliest(deadline, lastActivity + settings.getIdleNanos());
+        }
+        return deadline;
+    }
+
+    private static long earliest(long deadline, long other) {
+        return deadline == Long.MAX_VALUE || other - deadline < 0 ? other : deadline;
+    }
+
+    @Override
+    protected void expire() {
+        logger.debug("Closing {} after a timeout", client);
+        expired = true;
+        client.close();
+        if (upstream != null) {
+            upstream.close();
+        }
+    }
+}
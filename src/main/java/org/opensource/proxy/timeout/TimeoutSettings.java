@@ -0,0 +1,84 @@
+package org.opensource.proxy.timeout;
+
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-route connection timeouts read from {@link RouteOptions}, in milliseconds, 0 disables one:
+ * <ul>
+ *     <li>{@code connectTimeoutMs} - upstream connect, default 10000</li>
+ *     <li>{@code readIdleTimeoutMs} - close when nothing was read from the client for this long</li>
+ *     <li>{@code writeIdleTimeoutMs} - close when nothing was written to the client for this long</li>
+ *     <li>{@code idleTimeoutMs} - close when nothing went either way for this long</li>
+ *     <li>{@code maxLifetimeMs} - close this long after the accept, whatever the traffic</li>
+ *     <li>{@code halfClose} - pass a FIN from one side on to the other and keep relaying the
+ *     other direction, default true; TCP relays that copy plaintext only</li>
+ * </ul>
+ * The connect timeout is the channel's own, every other one runs on the {@link TimerWheel} of
+ * the connection's event loop.
+ */
+public final class TimeoutSettings {
+
+    private final int connectTimeoutMillis;
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final long idleNanos;
+    private final long maxLifetimeNanos;
+    private final boolean halfClose;
+
+    /**
+     * @throws IllegalArgumentException if a timeout is negative
+     */
+    public TimeoutSettings(RouteOptions options) {
+        this.connectTimeoutMillis = (int) millis(options, "connectTimeoutMs", 10_000);
+        this.readIdleNanos = nanos(options, "readIdleTimeoutMs");
+        this.writeIdleNanos = nanos(options, "writeIdleTimeoutMs");
+        this.idleNanos = nanos(options, "idleTimeoutMs");
+        this.maxLifetimeNanos = nanos(options, "maxLifetimeMs");
+        this.halfClose = options.getBoolean("halfClose", true);
+    }
+
+    private static long millis(RouteOptions options, String key, long defaultValue) {
+        long value = options.getLong(key, defaultValue);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(key + " out of range: " + value);
+        }
+        return value;
+    }
+
+    private static long nanos(RouteOptions options, String key) {
+        return TimeUnit.MILLISECONDS.toNanos(millis(options, key, 0));
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public boolean isHalfClose() {
+        return halfClose;
+    }
+
+    /**
+     * @return whether connections need an entry on the timer wheel
+     */
+    public boolean hasTimeouts() {
+        return readIdleNanos > 0 || writeIdleNanos > 0 || idleNanos > 0 || maxLifetimeNanos > 0;
+    }
+
+    long getReadIdleNanos() {
+        return readIdleNanos;
+    }
+
+    long getWriteIdleNanos() {
+        return writeIdleNanos;
+    }
+
+    long getIdleNanos() {
+        return idleNanos;
+    }
+
+    long getMaxLifetimeNanos() {
+        return maxLifetimeNanos;
+    }
+}
@@ -0,0 +1,163 @@
+package org.opensource.proxy.timeout;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel of one event loop, for timeouts that are pushed back far more often than
+ * they fire.
+ * <p>
+ * Entries are kept in slots of {@link #TICK_MILLIS} each and only asked for their deadline when
+ * their slot comes up, so recording activity is a plain field write instead of cancelling and
+ * rescheduling a task. An entry whose deadline moved is put into its new slot, one that passed
+ * it expires. A single task per event loop turns the wheel, and only while it holds entries.
+ * Every method must be called from the event loop, so nothing is locked.
+ */
+public final class TimerWheel {
+
+    /**
+     * Resolution of every timeout: they fire up to one tick late.
+     */
+    public static final long TICK_MILLIS = 100;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int SLOTS = 512;
+
+    private final EventLoop loop;
+    private final Timeout[] slots = new Timeout[SLOTS];
+    private final long origin = System.nanoTime();
+    // The next tick to process, counted from origin.
+    private long tick;
+    private long now = origin;
+    private int size;
+    private ScheduledFuture<?> ticker;
+
+    public TimerWheel(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * @return the time of the last tick, close enough to timestamp activity without a clock read
+     */
+    public long now() {
+        return now;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Puts {@code timeout} on the wheel, unless it already is.
+     */
+    public void add(Timeout timeout) {
+        assert loop.inEventLoop();
+        if (timeout.wheel != null) {
+            return;
+        }
+        timeout.wheel = this;
+        if (size++ == 0) {
+            // Catch up on the time the wheel stood still, the slots are all empty.
+            now = System.nanoTime();
+            tick = (now - origin) / TICK_NANOS + 1;
+            ticker = loop.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        insert(timeout, timeout.deadline());
+    }
+
+    /**
+     * Takes {@code timeout} off the wheel before it expires, if it is on it.
+     */
+    public void remove(Timeout timeout) {
+        assert loop.inEventLoop();
+        if (timeout.wheel != this) {
+            return;
+        }
+        unlink(timeout);
+        timeout.wheel = null;
+        if (--size == 0) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    private void advance() {
+        now = System.nanoTime();
+        long last = (now - origin) / TICK_NANOS;
+        for (; tick <= last && size > 0; tick++) {
+            int slot = (int) (tick & SLOTS - 1);
+            Timeout timeout = slots[slot];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                // Entries of a later round of the wheel share the slot and wait.
+                if (timeout.expireTick <= tick) {
+                    unlink(timeout);
+                    long deadline = timeout.deadline();
+                    if (deadline - now <= 0) {
+                        remove(timeout);
+                        timeout.expire();
+                    } else {
+                        insert(timeout, deadline);
+                    }
+                }
+                timeout = next;
+            }
+        }
+        tick = Math.max(tick, last + 1);
+    }
+
+    private void insert(Timeout timeout, long deadline) {
+        // Round up, so an entry is never looked at before its deadline, and never into the slot being processed.
+        long expireTick = Math.max(tick + 1, (deadline - origin + TICK_NANOS - 1) / TICK_NANOS);
+        int slot = (int) (expireTick & SLOTS - 1);
+        timeout.expireTick = expireTick;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    /**
+     * An entry of the wheel, linked into its slot.
+     */
+    public abstract static class Timeout {
+
+        private TimerWheel wheel;
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+        private long expireTick;
+
+        /**
+         * @return when this entry expires as far as is known now, in {@link System#nanoTime()}
+         */
+        protected abstract long deadline();
+
+        /**
+         * Called from the event loop once the deadline passed, after the entry left the wheel.
+         */
+        protected abstract void expire();
+    }
+}
@@ -0,0 +1,208 @@
+package org.opensource.proxy.tls;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.NetUtil;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-route TLS read from {@link RouteOptions}. A route terminates TLS from clients when it has
+ * a certificate, and re-encrypts towards its backends with {@code upstreamTls=true}:
+ * <ul>
+ *     <li>{@code tlsCert}, {@code tlsKey} - PEM certificate chain and PKCS#8 key files</li>
+ *     <li>{@code tlsKeyPassword} - password of an encrypted key</li>
+ *     <li>{@code tlsCiphers}, {@code tlsProtocols} - comma separated, default the provider's</li>
+ *     <li>{@code tlsAlpn} - comma separated protocols offered to clients, such as {@code http/1.1}</li>
+ *     <li>{@code tlsSessionCacheSize}, {@code tlsSessionTimeoutSec} - server session cache, 0 keeps the
+ *     provider default</li>
+ *     <li>{@code upstreamTls} - connect to the backends with TLS</li>
+ *     <li>{@code upstreamTlsTrust} - PEM CA file, default the JDK trust store</li>
+ *     <li>{@code upstreamTlsVerify} - check the backend certificate and host name, default true</li>
+ *     <li>{@code upstreamTlsServerName} - SNI and verified name, default the backend host</li>
+ *     <li>{@code upstreamTlsCiphers}, {@code upstreamTlsProtocols}, {@code upstreamTlsAlpn}</li>
+ *     <li>{@code upstreamTlsResumption} - resume sessions per backend, default true</li>
+ *     <li>{@code tlsProvider} - {@code auto} (OpenSSL when netty-tcnative loads, else JDK),
+ *     {@code openssl} or {@code jdk}</li>
+ * </ul>
+ * Contexts are built once per route version, so their session caches and ticket keys live as
+ * long as the route is unchanged. Resumed handshakes skip the key exchange and certificate
+ * checks, which is most of the handshake CPU.
+ */
+public final class TlsSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(TlsSettings.class);
+
+    public static final TlsSettings NONE = new TlsSettings();
+
+    private final SslContext serverContext;
+    private final SslContext upstreamContext;
+    private final String upstreamServerName;
+    private final boolean upstreamVerify;
+    private final boolean upstreamResumption;
+
+    private TlsSettings() {
+        this.serverContext = null;
+        this.upstreamContext = null;
+        this.upstreamServerName = null;
+        this.upstreamVerify = false;
+        this.upstreamResumption = false;
+    }
+
+    private TlsSettings(RouteOptions options) {
+        SslProvider provider = provider(options.getString("tlsProvider", "auto"));
+        try {
+            this.serverContext = options.getString("tlsCert", "").isBlank() ? null : buildServer(options, provider);
+            this.upstreamContext = options.getBoolean("upstreamTls", false) ? buildUpstream(options, provider) : null;
+        } catch (SSLException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid TLS options: " + e.getMessage(), e);
+        }
+        String serverName = options.getString("upstreamTlsServerName", "").trim();
+        this.upstreamServerName = serverName.isEmpty() ? null : serverName;
+        this.upstreamVerify = options.getBoolean("upstreamTlsVerify", true);
+        this.upstreamResumption = options.getBoolean("upstreamTlsResumption", true);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a file cannot be read or an option is not supported
+     */
+    public static TlsSettings of(RouteOptions options) {
+        if (options.getString("tlsCert", "").isBlank() && !options.getBoolean("upstreamTls", false)) {
+            return NONE;
+        }
+        return new TlsSettings(options);
+    }
+
+    /**
+     * @return the provider {@code name} asks for, OpenSSL only when its native library loads here
+     */
+    public static SslProvider provider(String name) {
+        String normalized = name.trim().toLowerCase(Locale.ROOT);
+        boolean openSsl = switch (normalized) {
+            case "auto", "" -> OpenSsl.isAvailable();
+            case "openssl" -> true;
+            case "jdk" -> false;
+            default -> throw new IllegalArgumentException("Unknown TLS provider: " + name);
+        };
+        if (openSsl && !OpenSsl.isAvailable()) {
+            logger.warn("OpenSSL is not available on this host, falling back to JDK SSL", OpenSsl.unavailabilityCause());
+            return SslProvider.JDK;
+        }
+        return openSsl ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    private static SslContext buildServer(RouteOptions options, SslProvider provider) throws SSLException {
+        String password = options.getString("tlsKeyPassword", "");
+        SslContextBuilder builder = SslContextBuilder.forServer(
+                        new File(options.getString("tlsCert", "").trim()),
+                        new File(options.getString("tlsKey", "").trim()),
+                        password.isEmpty() ? null : password)
+                .sslProvider(provider)
+                .sessionCacheSize(options.getLong("tlsSessionCacheSize", 0))
+                .sessionTimeout(options.getLong("tlsSessionTimeoutSec", 0));
+        apply(builder, options.getString("tlsCiphers", ""), options.getString("tlsProtocols", ""), options.getString("tlsAlpn", ""));
+        return builder.build();
+    }
+
+    private static SslContext buildUpstream(RouteOptions options, SslProvider provider) throws SSLException {
+        SslContextBuilder builder = SslContextBuilder.forClient().sslProvider(provider);
+        String trust = options.getString("upstreamTlsTrust", "").trim();
+        if (!options.getBoolean("upstreamTlsVerify", true)) {
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        } else if (!trust.isEmpty()) {
+            builder.trustManager(new File(trust));
+        }
+        apply(builder, options.getString("upstreamTlsCiphers", ""), options.getString("upstreamTlsProtocols", ""),
+                options.getString("upstreamTlsAlpn", ""));
+        SslContext context = builder.build();
+        // Netty leaves the OpenSSL client session cache off unless a system property turns it on for every context.
+        if (options.getBoolean("upstreamTlsResumption", true) && context.sessionContext() instanceof OpenSslSessionContext sessions) {
+            sessions.setSessionCacheEnabled(true);
+        }
+        return context;
+    }
+
+    private static void apply(SslContextBuilder builder, String ciphers, String protocols, String alpn) {
+        if (!ciphers.isBlank()) {
+            builder.ciphers(split(ciphers), SupportedCipherSuiteFilter.INSTANCE);
+        }
+        if (!protocols.isBlank()) {
+            builder.protocols(split(protocols));
+        }
+        if (!alpn.isBlank()) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    split(alpn)));
+        }
+    }
+
+    private static List<String> split(String list) {
+        List<String> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    public boolean isTerminating() {
+        return serverContext != null;
+    }
+
+    public boolean isOriginating() {
+        return upstreamContext != null;
+    }
+
+    public SslContext getServerContext() {
+        return serverContext;
+    }
+
+    /**
+     * @return a handler that terminates TLS of a client connection
+     */
+    public SslHandler newServerHandler(ByteBufAllocator alloc) {
+        return serverContext.newHandler(alloc);
+    }
+
+    /**
+     * @return a handler that encrypts an upstream connection to {@code backend}
+     */
+    public SslHandler newUpstreamHandler(ByteBufAllocator alloc, Backend backend) {
+        String serverName = upstreamServerName != null ? upstreamServerName : backend.getHost();
+        // The peer host and port key the client session cache, without them every handshake is a full one.
+        SslHandler handler = upstreamResumption
+                ? upstreamContext.newHandler(alloc, serverName, backend.getPort())
+                : upstreamContext.newHandler(alloc);
+        SSLEngine engine = handler.engine();
+        SSLParameters parameters = engine.getSSLParameters();
+        if (!NetUtil.isValidIpV4Address(serverName) && !NetUtil.isValidIpV6Address(serverName)) {
+            parameters.setServerNames(List.of(new SNIHostName(serverName)));
+        }
+        if (upstreamVerify) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        engine.setSSLParameters(parameters);
+        return handler;
+    }
+}
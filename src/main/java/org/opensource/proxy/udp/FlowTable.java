@@ -0,0 +1,79 @@
+package org.opensource.proxy.udp;
+
+import io.netty.util.collection.LongObjectHashMap;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The open flows of one UDP listener by client address. IPv4 clients, nearly all of them in
+ * practice, are keyed by address and port packed into a {@code long} in an open-addressing map,
+ * so a lookup neither boxes a key nor walks a bucket chain. IPv6 clients do not fit in a
+ * {@code long} and go to a plain map.
+ * <p>
+ * Only used from the listener's event loop, so nothing is locked.
+ */
+final class FlowTable {
+
+    private final LongObjectHashMap<UdpFlow> ipv4 = new LongObjectHashMap<>();
+    private final Map<InetSocketAddress, UdpFlow> ipv6 = new HashMap<>();
+
+    /**
+     * @return the address and port of an IPv4 client as one key, -1 for other clients
+     */
+    static long key(InetSocketAddress client) {
+        InetAddress address = client.getAddress();
+        if (!(address instanceof Inet4Address)) {
+            return -1;
+        }
+        // The hash code of an IPv4 address is the address itself, without copying its bytes out.
+        return (address.hashCode() & 0xFFFF_FFFFL) << 16 | client.getPort();
+    }
+
+    UdpFlow get(InetSocketAddress client) {
+        long key = key(client);
+        return key >= 0 ? ipv4.get(key) : ipv6.get(client);
+    }
+
+    void put(UdpFlow flow) {
+        long key = key(flow.getClient());
+        if (key >= 0) {
+            ipv4.put(key, flow);
+        } else {
+            ipv6.put(flow.getClient(), flow);
+        }
+    }
+
+    /**
+     * Removes {@code flow}, unless a newer flow of the same client took its place.
+     */
+    void remove(UdpFlow flow) {
+        long key = key(flow.getClient());
+        if (key >= 0) {
+            if (ipv4.get(key) == flow) {
+                ipv4.remove(key);
+            }
+        } else {
+            ipv6.remove(flow.getClient(), flow);
+        }
+    }
+
+    int size() {
+        return ipv4.size() + ipv6.size();
+    }
+
+    /**
+     * @return a copy of every flow, to close them without changing the table while iterating
+     */
+    List<UdpFlow> flows() {
+        List<UdpFlow> flows = new ArrayList<>(size());
+        flows.addAll(ipv4.values());
+        flows.addAll(ipv6.values());
+        return flows;
+    }
+}
@@ -0,0 +1,155 @@
+package org.opensource.proxy.udp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.accesslog.CloseReason;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.timeout.TimerWheel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * One client address of a UDP listener and the upstream socket its datagrams are relayed over,
+ * connected to the backend picked when the first datagram arrived. Replies come back on that
+ * socket, so they are sent to the right client without a lookup.
+ * <p>
+ * The flow sits on the timer wheel of its event loop and is closed once nothing went either way
+ * for {@code udpIdleTimeoutMs}; relaying a datagram only stamps {@link #touch(long)}. A closed
+ * flow is one record of the access log.
+ */
+final class UdpFlow extends TimerWheel.Timeout {
+
+    private final FlowTable table;
+    private final TimerWheel wheel;
+    private final InetSocketAddress client;
+    private final RouteTarget target;
+    private final BackendNode node;
+    private final long idleNanos;
+    private final long openedAt = System.nanoTime();
+    private final long openedAtMillis = System.currentTimeMillis();
+    private long lastActive = openedAt;
+    private ChannelFuture connected;
+    // For the access log, all on the event loop.
+    private SocketAddress backend;
+    private long bytesIn;
+    private long bytesOut;
+    private CloseReason closeReason;
+    // Whether the upstream has datagrams written but not flushed yet.
+    boolean unflushed;
+
+    UdpFlow(FlowTable table, TimerWheel wheel, InetSocketAddress client, RouteTarget target, BackendNode node) {
+        this.table = table;
+        this.wheel = wheel;
+        this.client = client;
+        this.target = target;
+        this.node = node;
+        this.idleNanos = target.getUdp().getIdleNanos();
+    }
+
+    /**
+     * Enters the flow into the table and the wheel. Must be called from the event loop.
+     *
+     * @param connected the connect of the upstream socket
+     */
+    void open(ChannelFuture connected) {
+        this.connected = connected;
+        table.put(this);
+        wheel.add(this);
+        target.getMetrics().connectionAccepted();
+        node.connectionOpened();
+        connected.addListener(future -> {
+            if (future.isSuccess()) {
+                target.getMetrics().upstreamConnected(System.nanoTime() - openedAt);
+                backend = connected.channel().remoteAddress();
+            } else {
+                target.getMetrics().upstreamConnectFailed();
+                closeReason = CloseReason.CONNECT_FAILED;
+                connected.channel().close();
+            }
+        });
+        connected.channel().closeFuture().addListener(future -> closed());
+    }
+
+    InetSocketAddress getClient() {
+        return client;
+    }
+
+    RouteTarget getTarget() {
+        return target;
+    }
+
+    Channel upstream() {
+        return connected.channel();
+    }
+
+    boolean isConnected() {
+        return connected.isDone();
+    }
+
+    /**
+     * Sends {@code datagram} once the upstream socket is connected, for the first datagrams of
+     * the flow. Datagrams sent this way keep their order.
+     */
+    void sendWhenConnected(ByteBuf datagram) {
+        connected.addListener(future -> {
+            if (future.isSuccess()) {
+                relayedIn(datagram.readableBytes());
+                upstream().writeAndFlush(datagram, upstream().voidPromise());
+            } else {
+                datagram.release();
+            }
+        });
+    }
+
+    /**
+     * @param now the wheel's clock
+     */
+    void touch(long now) {
+        lastActive = now;
+    }
+
+    /**
+     * Counts a datagram from the client to the backend.
+     */
+    void relayedIn(int bytes) {
+        bytesIn += bytes;
+        target.getMetrics().bytesIn(bytes);
+    }
+
+    /**
+     * Counts a datagram from the backend to the client.
+     */
+    void relayedOut(int bytes) {
+        bytesOut += bytes;
+        target.getMetrics().bytesOut(bytes);
+    }
+
+    void close() {
+        upstream().close();
+    }
+
+    @Override
+    protected long deadline() {
+        return lastActive + idleNanos;
+    }
+
+    @Override
+    protected void expire() {
+        closeReason = CloseReason.TIMEOUT;
+        close();
+    }
+
+    private void closed() {
+        table.remove(this);
+        wheel.remove(this);
+        target.getMetrics().connectionClosed(System.nanoTime() - openedAt);
+        node.connectionClosed();
+        // Otherwise the listener closed, which ends its flows like a client hanging up.
+        CloseReason reason = closeReason != null ? closeReason : CloseReason.CLIENT_CLOSED;
+        target.getAccessLog().append(openedAtMillis, (System.nanoTime() - openedAt) / 1000, target.getConfig().getRoutingName(),
+                target.getConfig().getEnterPort(), client, backend, bytesIn, bytesOut, reason);
+    }
+}
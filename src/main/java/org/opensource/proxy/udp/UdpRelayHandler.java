@@ -0,0 +1,179 @@
+package org.opensource.proxy.udp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.opensource.proxy.RouteTarget;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.timeout.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relays the datagrams of one {@code mode=udp} listener. The first datagram of a client address
+ * opens a {@link UdpFlow}: an upstream socket on the listener's event loop, connected to the
+ * backend the balancer picks. Later datagrams of that client go out on the same socket, and
+ * whatever the backend sends back on it is sent to the client from the listener's port.
+ * <p>
+ * Datagrams are written as they are read and flushed once per read loop, so a burst costs one
+ * send per socket rather than one per datagram. There is no backpressure in UDP: a datagram
+ * bound for a socket that cannot take more is dropped and counted. A listener channel has its
+ * own handler, and every flow of it stays on its event loop.
+ */
+public final class UdpRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpRelayHandler.class);
+
+    private final RouterServer server;
+    private final Transport transport;
+    private final FlowTable flows = new FlowTable();
+    private final List<UdpFlow> unflushed = new ArrayList<>();
+    private Channel listener;
+    private TimerWheel wheel;
+
+    public UdpRelayHandler(RouterServer server, Transport transport) {
+        this.server = server;
+        this.transport = transport;
+    }
+
+    /**
+     * @return the flows open now; only exact when called from the listener's event loop
+     */
+    public int getFlowCount() {
+        return flows.size();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        listener = ctx.channel();
+        wheel = server.getRoutes().getDefault().getTimerWheel(ctx.channel().eventLoop());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        DatagramPacket packet = (DatagramPacket) msg;
+        UdpFlow flow = flows.get(packet.sender());
+        if (flow == null && (flow = open(packet.sender())) == null) {
+            packet.release();
+            return;
+        }
+        ByteBuf datagram = packet.content();
+        if (!flow.isConnected()) {
+            flow.sendWhenConnected(datagram);
+            return;
+        }
+        Channel upstream = flow.upstream();
+        if (!upstream.isWritable()) {
+            flow.getTarget().getMetrics().datagramDropped();
+            datagram.release();
+            return;
+        }
+        flow.touch(wheel.now());
+        flow.relayedIn(datagram.readableBytes());
+        upstream.write(datagram, upstream.voidPromise());
+        if (!flow.unflushed) {
+            flow.unflushed = true;
+            unflushed.add(flow);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        for (int i = 0; i < unflushed.size(); i++) {
+            UdpFlow flow = unflushed.get(i);
+            flow.unflushed = false;
+            flow.upstream().flush();
+        }
+        unflushed.clear();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        List<UdpFlow> open = flows.flows();
+        if (!open.isEmpty()) {
+            logger.info("UDP listener on port {} closed, closing {} flows", server.getEnterPort(), open.size());
+        }
+        for (UdpFlow flow : open) {
+            flow.close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // A failed receive does not break the socket, later datagrams still arrive.
+        logger.warn("UDP listener on port {}: {}", server.getEnterPort(), cause.toString());
+    }
+
+    /**
+     * @return the new flow of {@code client}, or null if the listener has as many as it may
+     */
+    private UdpFlow open(InetSocketAddress client) {
+        RouteTarget target = server.getRoutes().getDefault();
+        UdpSettings settings = target.getUdp();
+        if (flows.size() >= settings.getMaxFlows()) {
+            target.getMetrics().connectionRejected();
+            return null;
+        }
+        BackendNode node = target.getLoadBalancer().select(client);
+        Backend backend = node.getBackend();
+        UdpFlow flow = new UdpFlow(flows, wheel, client, target, node);
+
+        Bootstrap b = new Bootstrap();
+        b.group(listener.eventLoop())
+         .channel(transport.datagramChannelClass())
+         .handler(new UpstreamHandler(flow));
+        target.getBuffers().applyClient(b);
+        b.option(ChannelOption.RCVBUF_ALLOCATOR, settings.getRecvAllocator());
+        flow.open(b.connect(backend.getHost(), backend.getPort()));
+        return flow;
+    }
+
+    /**
+     * Sends what the backend of one flow replies back to its client.
+     */
+    private final class UpstreamHandler extends ChannelInboundHandlerAdapter {
+
+        private final UdpFlow flow;
+
+        UpstreamHandler(UdpFlow flow) {
+            this.flow = flow;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // Native transports hand a connected socket's datagrams over without a sender.
+            ByteBuf datagram = msg instanceof DatagramPacket ? ((DatagramPacket) msg).content() : (ByteBuf) msg;
+            if (!listener.isWritable()) {
+                flow.getTarget().getMetrics().datagramDropped();
+                ReferenceCountUtil.release(datagram);
+                return;
+            }
+            flow.touch(wheel.now());
+            flow.relayedOut(datagram.readableBytes());
+            listener.write(new DatagramPacket(datagram, flow.getClient()), listener.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            listener.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            // Mostly ICMP port unreachable while the backend restarts; the flow stays until it idles out.
+            logger.debug("UDP flow {} of port {}: {}", flow.getClient(), server.getEnterPort(), cause.toString());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.opensource.proxy.udp;
+
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-route settings of {@code mode=udp}, read from {@link RouteOptions}:
+ * <ul>
+ *     <li>{@code udpIdleTimeoutMs} - a client flow and its upstream socket are closed when nothing
+ *     went either way for this long, default 30000</li>
+ *     <li>{@code udpMaxFlows} - flows open at once on the listener, datagrams of new clients
+ *     beyond it are dropped, default 65536</li>
+ *     <li>{@code udpMaxPacket} - largest datagram relayed in bytes, default 2048; longer ones are
+ *     cut off by the socket, so raise it for syslog or EDNS traffic</li>
+ * </ul>
+ */
+public final class UdpSettings {
+
+    private static final int MAX_DATAGRAM = 65_535;
+
+    private final long idleNanos;
+    private final int maxFlows;
+    private final int maxPacket;
+    private final RecvByteBufAllocator recvAllocator;
+
+    /**
+     * @throws IllegalArgumentException if a setting is out of range
+     */
+    public UdpSettings(RouteOptions options) {
+        long idleMillis = options.getLong("udpIdleTimeoutMs", 30_000);
+        if (idleMillis <= 0 || idleMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("udpIdleTimeoutMs out of range: " + idleMillis);
+        }
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.maxFlows = options.getInt("udpMaxFlows", 65_536);
+        if (maxFlows <= 0) {
+            throw new IllegalArgumentException("udpMaxFlows must be positive: " + maxFlows);
+        }
+        this.maxPacket = options.getInt("udpMaxPacket", 2048);
+        if (maxPacket <= 0 || maxPacket > MAX_DATAGRAM) {
+            throw new IllegalArgumentException("udpMaxPacket out of range: " + maxPacket);
+        }
+        this.recvAllocator = new FixedRecvByteBufAllocator(maxPacket);
+    }
+
+    public long getIdleNanos() {
+        return idleNanos;
+    }
+
+    public int getMaxFlows() {
+        return maxFlows;
+    }
+
+    public int getMaxPacket() {
+        return maxPacket;
+    }
+
+    /**
+     * @return reads of exactly one datagram each; an adaptive buffer would cut off a datagram
+     * that arrives after a run of short ones
+     */
+    public RecvByteBufAllocator getRecvAllocator() {
+        return recvAllocator;
+    }
+}
@@ -23,7 +23,8 @@ import org.apache.commons.csv.CSVPrinter;
 
 @SpringBootTest(classes = ProxyApplication.class)
 @TestPropertySource(properties = {
-        "router.config.path=" + ProxyApplicationTest.TEST_CSV
+        "router.config.path=" + ProxyApplicationTest.TEST_CSV,
+        "router.accesslog.path=./target/test-logs/access"
 })
 public class ProxyApplicationTest {
 
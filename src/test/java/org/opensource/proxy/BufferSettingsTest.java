@@ -0,0 +1,135 @@
+package org.opensource.proxy;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.MaxMessagesRecvByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.metrics.AllocatorStats;
+import org.opensource.proxy.metrics.PrometheusFormat;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class BufferSettingsTest {
+
+    private static final int RPC_PORT = 26101;
+    private static final int BULK_PORT = 26102;
+    private static final int BACKEND_PORT = 26111;
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = TestSupport.backend(backendGroup, BACKEND_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("rpc", RPC_PORT, BACKEND_PORT, "bufferProfile=rpc;allocator=unpooled;soSndBuf=32768;soRcvBuf=32768")),
+                new RouterServer(runtime, TestSupport.route("bulk", BULK_PORT, BACKEND_PORT, "bufferProfile=bulk;flush=batch;maxMessagesPerRead=4")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+        }
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testRpcProfileRelays() throws Exception {
+        assertEchoes(RPC_PORT, 100_000);
+    }
+
+    @Test
+    public void testBulkProfileRelays() throws Exception {
+        assertEchoes(BULK_PORT, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void testProfilesSetReadBuffers() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        new BufferSettings(RouteOptions.parse("bufferProfile=rpc;allocator=unpooled")).apply(channel.config());
+        Assertions.assertSame(UnpooledByteBufAllocator.DEFAULT, channel.config().getAllocator());
+        AdaptiveRecvByteBufAllocator adaptive = channel.config().getRecvByteBufAllocator();
+        Assertions.assertEquals(512, adaptive.newHandle().guess());
+
+        new BufferSettings(RouteOptions.parse("bufferProfile=bulk;recvBufFixed=16384;maxMessagesPerRead=4")).apply(channel.config());
+        Assertions.assertSame(PooledByteBufAllocator.DEFAULT, channel.config().getAllocator());
+        Assertions.assertInstanceOf(FixedRecvByteBufAllocator.class, channel.config().getRecvByteBufAllocator());
+        Assertions.assertEquals(16384, channel.config().getRecvByteBufAllocator().newHandle().guess());
+        Assertions.assertEquals(4, ((MaxMessagesRecvByteBufAllocator) channel.config().getRecvByteBufAllocator()).maxMessagesPerRead());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testRejectsInvalidOptions() {
+        for (String options : new String[]{"bufferProfile=huge", "allocator=heap", "recvBufMin=4096;recvBufMax=1024",
+                "recvBufFixed=-1", "maxMessagesPerRead=0", "soRcvBuf=-5"}) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> new BufferSettings(RouteOptions.parse(options)), options);
+        }
+    }
+
+    @Test
+    public void testAllocatorStats() {
+        AllocatorStats stats = AllocatorStats.snapshot();
+        Map<String, Object> map = stats.toMap();
+        Assertions.assertTrue(map.containsKey("pooledAllocator"));
+        Assertions.assertTrue(map.containsKey("directMemory"));
+        Assertions.assertTrue(stats.getDirectMemoryLimit() > 0);
+        String text = PrometheusFormat.render(stats);
+        Assertions.assertTrue(text.contains("# TYPE netty_proxy_pooled_direct_memory_bytes gauge"), text);
+        Assertions.assertTrue(text.contains("netty_proxy_direct_memory_limit_bytes " + stats.getDirectMemoryLimit()), text);
+    }
+
+    private static void assertEchoes(int port, int size) throws Exception {
+        byte[] payload = new byte[size];
+        new Random(port).nextBytes(payload);
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+            socket.setSoTimeout(10_000);
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(payload);
+                    out.flush();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            byte[] received = new byte[size];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            writer.join();
+            Assertions.assertTrue(Arrays.equals(payload, received), "Echo through port " + port + " differs");
+        }
+    }
+}
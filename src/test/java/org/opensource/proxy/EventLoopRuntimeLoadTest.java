@@ -0,0 +1,139 @@
+package org.opensource.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.RouterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Load test for the shared event loop runtime: opening more routes and more connections must
+ * not create more event loop threads, and round-trip latency must stay in the same range.
+ */
+public class EventLoopRuntimeLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopRuntimeLoadTest.class);
+
+    private static final int ECHO_PORT = 27100;
+    private static final int FIRST_ROUTE_PORT = 27001;
+    private static final int PAYLOAD_SIZE = 64;
+
+    private static EventLoopGroup echoGroup;
+    private static Channel echoChannel;
+    private static EventLoopRuntime runtime;
+    private static final List<RouterServer> routerServers = new ArrayList<>();
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        echoGroup = new NioEventLoopGroup(1);
+        echoChannel = TestSupport.backend(echoGroup, ECHO_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(1, 2);
+    }
+
+    @Test
+    public void testThreadsAndLatencyStayFlat() throws Exception {
+        Result small = runRound(1, 10);
+        Result large = runRound(8, 80);
+
+        logger.info("routes=1 connections=10 eventLoopThreads={} p99={}us", small.threads, small.p99Micros);
+        logger.info("routes=8 connections=80 eventLoopThreads={} p99={}us", large.threads, large.p99Micros);
+
+        Assertions.assertEquals(small.threads, large.threads, "Event loop threads with 1 route and with 8");
+        Assertions.assertTrue(large.threads <= 3, "Expected at most 1 boss and 2 worker threads, found " + large.threads);
+        Assertions.assertTrue(large.p99Micros <= small.p99Micros * 10 + 20_000,
+                "p99 grew from " + small.p99Micros + "us to " + large.p99Micros + "us");
+    }
+
+    private Result runRound(int routes, int connections) throws Exception {
+        while (routerServers.size() < routes) {
+            RouterServer routerServer = new RouterServer(runtime, new RouterConfig("load" + routerServers.size(),
+                    FIRST_ROUTE_PORT + routerServers.size(), "localhost", ECHO_PORT, "Load test route"));
+            routerServer.runDaemon();
+            routerServers.add(routerServer);
+        }
+
+        List<Socket> sockets = new ArrayList<>();
+        long[] latencies = new long[connections * 20];
+        int samples = 0;
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = TestSupport.connect(FIRST_ROUTE_PORT + (i % routes));
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+            }
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            byte[] response = new byte[PAYLOAD_SIZE];
+            for (int iteration = 0; iteration < 20; iteration++) {
+                for (Socket socket : sockets) {
+                    long start = System.nanoTime();
+                    OutputStream out = socket.getOutputStream();
+                    out.write(payload);
+                    out.flush();
+                    readFully(socket.getInputStream(), response);
+                    latencies[samples++] = System.nanoTime() - start;
+                }
+            }
+            return new Result(countEventLoopThreads(), percentile(latencies, samples, 0.99) / 1000);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new IOException("Connection closed after " + read + " bytes");
+            }
+            read += n;
+        }
+    }
+
+    private static long percentile(long[] values, int count, double percentile) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+    }
+
+    private static int countEventLoopThreads() {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("router-"))
+                .count();
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer routerServer : routerServers) {
+            routerServer.shutdown();
+        }
+        runtime.shutdown();
+        echoChannel.close().sync();
+        echoGroup.shutdownGracefully();
+    }
+
+    private static class Result {
+        final int threads;
+        final long p99Micros;
+
+        Result(int threads, long p99Micros) {
+            this.threads = threads;
+            this.p99Micros = p99Micros;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.opensource.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+public class FlushModeTest {
+
+    private static final int BATCH_PORT = 26001;
+    private static final int READ_PORT = 26002;
+    private static final int BACKEND_PORT = 26011;
+    private static final int PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = TestSupport.backend(backendGroup, BACKEND_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("batch", BATCH_PORT, BACKEND_PORT, "flush=batch")),
+                new RouterServer(runtime, TestSupport.route("read", READ_PORT, BACKEND_PORT, "flush=read")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+        }
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testBatchFlushRelaysEveryByteInOrder() throws Exception {
+        assertEchoes(BATCH_PORT);
+    }
+
+    @Test
+    public void testReadFlushRelaysEveryByteInOrder() throws Exception {
+        assertEchoes(READ_PORT);
+    }
+
+    @Test
+    public void testRejectsUnknownFlushMode() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FlushMode.of(RouteOptions.parse("flush=never")));
+        Assertions.assertEquals(FlushMode.READ, FlushMode.of(RouteOptions.EMPTY));
+    }
+
+    /**
+     * Sends more than the water marks hold while reading slowly, so the relay has to stop and
+     * resume reading in both directions.
+     */
+    private static void assertEchoes(int port) throws Exception {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        new Random(port).nextBytes(payload);
+        CRC32 sent = new CRC32();
+        sent.update(payload);
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+            socket.setSoTimeout(10_000);
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    for (int offset = 0; offset < payload.length; offset += 1000) {
+                        out.write(payload, offset, Math.min(1000, payload.length - offset));
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            CRC32 received = new CRC32();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[16 * 1024];
+            long total = 0;
+            while (total < payload.length) {
+                int n = in.read(buf);
+                Assertions.assertTrue(n > 0, "Connection closed after " + total + " bytes");
+                received.update(buf, 0, n);
+                total += n;
+                if (total < payload.length / 2 && total % (256 * 1024) < n) {
+                    // Fall behind for a moment while the first half arrives.
+                    Thread.sleep(20);
+                }
+            }
+            writer.join();
+            Assertions.assertEquals(sent.getValue(), received.getValue(), "Echo through port " + port + " differs");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.opensource.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GracefulDrainTest {
+
+    private static final int ECHO_PORT = 27400;
+    private static final int HANDOVER_PORT = 27401;
+    private static final int DEADLINE_PORT = 27402;
+
+    private static EventLoopGroup echoGroup;
+    private static Channel echoChannel;
+    private static EventLoopRuntime runtime;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        echoGroup = new NioEventLoopGroup(1);
+        echoChannel = TestSupport.backend(echoGroup, ECHO_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 2);
+    }
+
+    @AfterAll
+    public static void teardown() {
+        echoChannel.close();
+        echoGroup.shutdownGracefully();
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+    }
+
+    @Test
+    public void testDrainWaitsForStreamingConnectionsAndHandsPortOver() throws Exception {
+        // SO_REUSEPORT needs a native transport; on NIO only the drain itself is checked.
+        boolean handover = runtime.getTransport().isNative();
+        RouteOptions options = RouteOptions.parse(handover ? "reusePort=true" : "");
+        RouterServer old = start(HANDOVER_PORT, options);
+        List<Streamer> streamers = new ArrayList<>();
+        RouterServer successor = null;
+        try {
+            for (int i = 0; i < 3; i++) {
+                streamers.add(Streamer.start(HANDOVER_PORT));
+            }
+            waitFor(() -> streamers.stream().allMatch(s -> s.echoed.get() > 0), "streams to flow");
+
+            if (handover) {
+                // The new process binds the same port before the old one lets go of it.
+                successor = start(HANDOVER_PORT, options);
+                Thread.sleep(200);
+            }
+
+            CompletableFuture<Void> drained = old.drain(10_000);
+            Assertions.assertTrue(old.isDraining());
+            long before = streamers.stream().mapToLong(s -> s.echoed.get()).sum();
+            Thread.sleep(500);
+            Assertions.assertFalse(drained.isDone(), "drain must wait for open connections");
+            Assertions.assertEquals(3, old.getOpenConnections());
+            Assertions.assertTrue(old.getDrainRemainingMillis() > 0);
+            Assertions.assertTrue(streamers.stream().mapToLong(s -> s.echoed.get()).sum() > before, "streams must keep flowing while draining");
+
+            if (handover) {
+                try (Socket socket = TestSupport.connect(HANDOVER_PORT)) {
+                    socket.getOutputStream().write(7);
+                    Assertions.assertEquals(7, socket.getInputStream().read(), "the successor must serve new connections");
+                }
+            }
+
+            for (Streamer streamer : streamers) {
+                streamer.stop();
+                Assertions.assertFalse(streamer.closedByPeer, "no stream may be cut by the drain");
+            }
+            drained.get(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(old.isDrained());
+            Assertions.assertEquals(0, old.getOpenConnections());
+        } finally {
+            for (Streamer streamer : streamers) {
+                streamer.stop();
+            }
+            old.shutdown();
+            if (successor != null) {
+                successor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testDrainDeadlineClosesLingeringConnections() throws Exception {
+        RouterServer server = start(DEADLINE_PORT, RouteOptions.EMPTY);
+        Streamer streamer = Streamer.start(DEADLINE_PORT);
+        try {
+            waitFor(() -> streamer.echoed.get() > 0, "stream to flow");
+            long start = System.nanoTime();
+            server.drain(300).get(5, TimeUnit.SECONDS);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertTrue(elapsedMillis >= 250, "drained after " + elapsedMillis + "ms, before the deadline");
+            waitFor(() -> streamer.closedByPeer, "the lingering stream to be closed");
+        } finally {
+            streamer.stop();
+            server.shutdown();
+        }
+    }
+
+    private static RouterServer start(int port, RouteOptions options) throws Exception {
+        RouterServer server = new RouterServer(runtime, new RouterConfig("drain" + port, port, "localhost", ECHO_PORT, "Drain test route", options));
+        server.runDaemon();
+        TestSupport.connect(port).close();
+        return server;
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.nanoTime() < deadline, "Timed out waiting for " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * A long-lived connection that keeps sending 1 KiB every 10 ms and reading it back.
+     */
+    private static class Streamer implements Runnable {
+        private final Socket socket;
+        private final Thread thread;
+        final AtomicLong echoed = new AtomicLong();
+        volatile boolean running = true;
+        volatile boolean closedByPeer;
+
+        private Streamer(Socket socket) {
+            this.socket = socket;
+            this.thread = new Thread(this, "drain-test-streamer");
+            this.thread.setDaemon(true);
+        }
+
+        static Streamer start(int port) throws Exception {
+            Streamer streamer = new Streamer(TestSupport.connect(port));
+            streamer.thread.start();
+            return streamer;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[1024];
+            try {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                while (running) {
+                    out.write(chunk);
+                    if (in.readNBytes(chunk, 0, chunk.length) < chunk.length) {
+                        closedByPeer = running;
+                        return;
+                    }
+                    echoed.addAndGet(chunk.length);
+                    Thread.sleep(10);
+                }
+            } catch (IOException e) {
+                closedByPeer = running;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void stop() throws Exception {
+            running = false;
+            thread.join(2_000);
+            socket.close();
+        }
+    }
+}
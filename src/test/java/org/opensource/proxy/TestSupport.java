@@ -0,0 +1,102 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixtures shared by the tests that relay through real listeners: backends, routes to them and
+ * client sockets.
+ */
+public final class TestSupport {
+
+    public static final String LOOPBACK = "127.0.0.1";
+
+    private TestSupport() {
+    }
+
+    /**
+     * @return a TCP backend on {@code port} serving every connection with {@code handler}, which
+     * must be sharable
+     */
+    public static Channel backend(EventLoopGroup group, int port, ChannelHandler handler) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(handler)
+                .bind(port).sync().channel();
+    }
+
+    /**
+     * @param options route options in the CSV format, {@code key=value;...}
+     */
+    public static RouterConfig route(String name, int enterPort, int backendPort, String options) {
+        return new RouterConfig(name, enterPort, LOOPBACK, backendPort, "Test route " + name, RouteOptions.parse(options));
+    }
+
+    /**
+     * Connects to a local listener, retrying while it is still binding.
+     *
+     * @return the socket, with a read timeout of five seconds
+     */
+    public static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket(LOOPBACK, port);
+                socket.setSoTimeout(5_000);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Sends {@code text} and reads as many bytes back.
+     */
+    public static String echo(Socket socket, String text) throws Exception {
+        socket.getOutputStream().write(text.getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        return new String(in.readNBytes(text.length()), StandardCharsets.US_ASCII);
+    }
+
+    @ChannelHandler.Sharable
+    public static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    /**
+     * Greets every connection with its id, then echoes.
+     */
+    @ChannelHandler.Sharable
+    public static class IdentifyingEchoHandler extends EchoHandler {
+        private final char id;
+
+        public IdentifyingEchoHandler(char id) {
+            this.id = id;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{(byte) id}));
+        }
+    }
+}
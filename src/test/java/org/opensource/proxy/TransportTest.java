@@ -0,0 +1,82 @@
+package org.opensource.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.incubator.channel.uring.IOUring;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.RouteOptions;
+
+public class TransportTest {
+
+    @Test
+    public void testSelectFallsBackToWhatIsAvailable() {
+        Transport epollOrNio = Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO;
+        Assertions.assertEquals(epollOrNio, Transport.select("auto"));
+        Assertions.assertEquals(epollOrNio, Transport.select(null));
+        Assertions.assertEquals(epollOrNio, Transport.select(""));
+        Assertions.assertEquals(epollOrNio, Transport.select("epoll"));
+        Assertions.assertEquals(IOUring.isAvailable() ? Transport.IO_URING : epollOrNio, Transport.select("io_uring"));
+        Assertions.assertEquals(Transport.NIO, Transport.select(" NIO "));
+        Assertions.assertFalse(Transport.NIO.isNative());
+        Assertions.assertNull(Transport.NIO.tcpQuickAckOption());
+
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> Transport.select("kqueue"));
+        Assertions.assertEquals("Unknown transport: kqueue", e.getMessage());
+    }
+
+    @Test
+    public void testSocketSettingsParseOptions() {
+        SocketSettings defaults = new SocketSettings(RouteOptions.EMPTY);
+        Assertions.assertFalse(defaults.isReusePort());
+        Assertions.assertFalse(defaults.isSplice());
+        Assertions.assertEquals(defaults, new SocketSettings(RouteOptions.parse("tcpNoDelay=true;fastOpen=0")));
+
+        SocketSettings tuned = new SocketSettings(RouteOptions.parse("reusePort=true;splice=true;fastOpen=16"));
+        Assertions.assertTrue(tuned.isReusePort());
+        Assertions.assertTrue(tuned.isSplice());
+        Assertions.assertNotEquals(defaults, tuned);
+        Assertions.assertEquals(tuned.hashCode(), new SocketSettings(RouteOptions.parse("fastOpen=16;splice=true;reusePort=true")).hashCode());
+        Assertions.assertNotEquals(defaults, new SocketSettings(RouteOptions.parse("tcpNoDelay=false")));
+    }
+
+    @Test
+    public void testNioIgnoresNativeOnlyOptions() {
+        SocketSettings settings = new SocketSettings(RouteOptions.parse("tcpNoDelay=false;reusePort=true;quickAck=true;fastOpen=16;fastOpenConnect=true;splice=true"));
+
+        ServerBootstrap server = new ServerBootstrap();
+        settings.applyServer(server, Transport.NIO);
+        Assertions.assertEquals(16, server.config().options().get(ChannelOption.TCP_FASTOPEN));
+        Assertions.assertFalse(server.config().options().containsKey(UnixChannelOption.SO_REUSEPORT));
+        Assertions.assertEquals(false, server.config().childOptions().get(ChannelOption.TCP_NODELAY));
+        Assertions.assertFalse(server.config().childOptions().containsKey(EpollChannelOption.EPOLL_MODE));
+
+        Bootstrap client = new Bootstrap();
+        settings.applyClient(client, Transport.NIO);
+        Assertions.assertEquals(false, client.config().options().get(ChannelOption.TCP_NODELAY));
+        Assertions.assertEquals(true, client.config().options().get(ChannelOption.TCP_FASTOPEN_CONNECT));
+        Assertions.assertFalse(client.config().options().containsKey(EpollChannelOption.EPOLL_MODE));
+    }
+
+    @Test
+    public void testEpollAppliesNativeOptions() {
+        SocketSettings settings = new SocketSettings(RouteOptions.parse("reusePort=true;quickAck=true;splice=true"));
+
+        ServerBootstrap server = new ServerBootstrap();
+        settings.applyServer(server, Transport.EPOLL);
+        Assertions.assertEquals(true, server.config().options().get(UnixChannelOption.SO_REUSEPORT));
+        Assertions.assertEquals(true, server.config().childOptions().get(EpollChannelOption.TCP_QUICKACK));
+        Assertions.assertEquals(EpollMode.LEVEL_TRIGGERED, server.config().childOptions().get(EpollChannelOption.EPOLL_MODE));
+        Assertions.assertEquals(true, server.config().childOptions().get(ChannelOption.TCP_NODELAY));
+
+        Bootstrap client = new Bootstrap();
+        settings.applyClient(client, Transport.EPOLL);
+        Assertions.assertEquals(true, client.config().options().get(EpollChannelOption.TCP_QUICKACK));
+        Assertions.assertEquals(EpollMode.LEVEL_TRIGGERED, client.config().options().get(EpollChannelOption.EPOLL_MODE));
+    }
+}
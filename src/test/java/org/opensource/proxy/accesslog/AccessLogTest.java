@@ -0,0 +1,289 @@
+package org.opensource.proxy.accesslog;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class AccessLogTest {
+
+    private static final int ECHO_ROUTE_PORT = 26401;
+    private static final int CLOSING_ROUTE_PORT = 26402;
+    private static final int DEAD_ROUTE_PORT = 26403;
+    private static final int HTTP_ROUTE_PORT = 26404;
+    private static final int UDP_ROUTE_PORT = 26405;
+    private static final int ECHO_BACKEND_PORT = 26411;
+    private static final int CLOSING_BACKEND_PORT = 26412;
+    private static final int DEAD_BACKEND_PORT = 26413;
+    private static final int HTTP_BACKEND_PORT = 26414;
+    private static final int UDP_BACKEND_PORT = 26415;
+
+    @TempDir
+    static Path relayLogDirectory;
+
+    private static EventLoopGroup backendGroup;
+    private static List<Channel> backends;
+    private static AccessLog relayLog;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backends = List.of(
+                TestSupport.backend(backendGroup, ECHO_BACKEND_PORT, new TestSupport.EchoHandler()),
+                TestSupport.backend(backendGroup, CLOSING_BACKEND_PORT, new ByeHandler()),
+                TestSupport.backend(backendGroup, HTTP_BACKEND_PORT, new OkHandler()),
+                new Bootstrap()
+                        .group(backendGroup)
+                        .channel(NioDatagramChannel.class)
+                        .handler(new DatagramEchoHandler())
+                        .bind(TestSupport.LOOPBACK, UDP_BACKEND_PORT).sync().channel());
+        relayLog = new AccessLog(relayLogDirectory, 1024, 1024 * 1024, 4);
+        relayLog.start();
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1, relayLog);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("echo", ECHO_ROUTE_PORT, ECHO_BACKEND_PORT, "connectTimeoutMs=2000")),
+                new RouterServer(runtime, TestSupport.route("bye", CLOSING_ROUTE_PORT, CLOSING_BACKEND_PORT, "connectTimeoutMs=2000")),
+                new RouterServer(runtime, TestSupport.route("dead", DEAD_ROUTE_PORT, DEAD_BACKEND_PORT, "connectTimeoutMs=2000")),
+                new RouterServer(runtime, TestSupport.route("http", HTTP_ROUTE_PORT, HTTP_BACKEND_PORT, "mode=http")),
+                new RouterServer(runtime, TestSupport.route("udp", UDP_ROUTE_PORT, UDP_BACKEND_PORT, "mode=udp;udpIdleTimeoutMs=200")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+            server.whenBound().get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        relayLog.close();
+        backends.forEach(Channel::close);
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testRecordsRelayedConnections() throws Exception {
+        int echoClientPort;
+        try (Socket socket = TestSupport.connect(ECHO_ROUTE_PORT)) {
+            echoClientPort = socket.getLocalPort();
+            socket.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertEquals("hello", new String(socket.getInputStream().readNBytes(5), StandardCharsets.US_ASCII));
+        }
+        try (Socket socket = TestSupport.connect(CLOSING_ROUTE_PORT)) {
+            Assertions.assertEquals("bye", new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+        }
+        try (Socket socket = TestSupport.connect(DEAD_ROUTE_PORT)) {
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+        }
+
+        AccessLogRecord echo = awaitRecord("echo");
+        Assertions.assertEquals(ECHO_ROUTE_PORT, echo.getEnterPort());
+        Assertions.assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), echoClientPort), echo.getClient());
+        Assertions.assertEquals(ECHO_BACKEND_PORT, echo.getBackend().getPort());
+        Assertions.assertEquals(5, echo.getBytesIn());
+        Assertions.assertEquals(5, echo.getBytesOut());
+        Assertions.assertEquals(CloseReason.CLIENT_CLOSED, echo.getReason());
+        Assertions.assertTrue(Math.abs(System.currentTimeMillis() - echo.getStartMillis()) < 60_000);
+
+        AccessLogRecord bye = awaitRecord("bye");
+        Assertions.assertEquals(3, bye.getBytesOut());
+        Assertions.assertEquals(CloseReason.UPSTREAM_CLOSED, bye.getReason());
+
+        AccessLogRecord dead = awaitRecord("dead");
+        Assertions.assertEquals(CloseReason.CONNECT_FAILED, dead.getReason());
+        Assertions.assertEquals(0, dead.getBackend().getPort());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccessLogReader.print(List.of(relayLogDirectory), true, new PrintStream(out, true, StandardCharsets.UTF_8));
+        Assertions.assertTrue(out.toString(StandardCharsets.UTF_8).contains("\"route\":\"bye\",\"enterPort\":" + CLOSING_ROUTE_PORT), out.toString());
+        Assertions.assertEquals(0, relayLog.getDropped());
+    }
+
+    @Test
+    public void testRecordsHttpConnections() throws Exception {
+        try (Socket socket = TestSupport.connect(HTTP_ROUTE_PORT)) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: site.test\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            StringBuilder response = new StringBuilder();
+            while (!response.toString().endsWith("\r\n\r\nok")) {
+                int b = socket.getInputStream().read();
+                Assertions.assertNotEquals(-1, b, response.toString());
+                response.append((char) b);
+            }
+        }
+
+        AccessLogRecord http = awaitRecord("http");
+        Assertions.assertEquals(HTTP_ROUTE_PORT, http.getEnterPort());
+        Assertions.assertEquals(HTTP_BACKEND_PORT, http.getBackend().getPort());
+        Assertions.assertEquals(0, http.getBytesIn());
+        Assertions.assertEquals(2, http.getBytesOut());
+        Assertions.assertEquals(CloseReason.CLIENT_CLOSED, http.getReason());
+    }
+
+    @Test
+    public void testRecordsUdpFlowsWhenTheyIdleOut() throws Exception {
+        int clientPort;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5_000);
+            clientPort = socket.getLocalPort();
+            byte[] ping = "ping".getBytes(StandardCharsets.US_ASCII);
+            socket.send(new java.net.DatagramPacket(ping, ping.length, InetAddress.getLoopbackAddress(), UDP_ROUTE_PORT));
+            java.net.DatagramPacket reply = new java.net.DatagramPacket(new byte[16], 16);
+            socket.receive(reply);
+            Assertions.assertEquals(4, reply.getLength());
+        }
+
+        AccessLogRecord udp = awaitRecord("udp");
+        Assertions.assertEquals(UDP_ROUTE_PORT, udp.getEnterPort());
+        Assertions.assertEquals(clientPort, udp.getClient().getPort());
+        Assertions.assertEquals(UDP_BACKEND_PORT, udp.getBackend().getPort());
+        Assertions.assertEquals(4, udp.getBytesIn());
+        Assertions.assertEquals(4, udp.getBytesOut());
+        Assertions.assertEquals(CloseReason.TIMEOUT, udp.getReason());
+    }
+
+    @Test
+    public void testDropsWhenFullAndKeepsWhatWasQueued(@TempDir Path directory) throws Exception {
+        AccessLog log = new AccessLog(directory, 3, 1024 * 1024, 1);
+        InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::7"), 443);
+        InetSocketAddress v4 = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 8080);
+        for (int i = 0; i < 6; i++) {
+            // Rounded up to four records, none taken while the writer is not running.
+            Assertions.assertEquals(i < 4, log.append(1_000L + i, 250, "a-route-name-longer-than-the-field", 80, v6, v4, i, 2L * i, CloseReason.TIMEOUT));
+        }
+        Assertions.assertEquals(2, log.getDropped());
+        log.start();
+        log.close();
+
+        List<AccessLogRecord> records = readAll(directory);
+        Assertions.assertEquals(4, records.size());
+        AccessLogRecord last = records.get(3);
+        Assertions.assertEquals(1_003L, last.getStartMillis());
+        Assertions.assertEquals("a-route-name-longer-than", last.getRoute());
+        Assertions.assertEquals(v6, last.getClient());
+        Assertions.assertEquals(v4, last.getBackend());
+        Assertions.assertEquals(3, last.getBytesIn());
+        Assertions.assertEquals(6, last.getBytesOut());
+        Assertions.assertEquals(CloseReason.TIMEOUT, last.getReason());
+        Assertions.assertEquals("1970-01-01T00:00:01.003Z a-route-name-longer-than :80 [2001:db8::7]:443 -> 192.0.2.1:8080 in=3 out=6 0.250ms timeout",
+                last.toText());
+    }
+
+    @Test
+    public void testRotatesAndKeepsNewestFiles(@TempDir Path directory) throws Exception {
+        AccessLog log = new AccessLog(directory, 16, AccessLog.FILE_HEADER + 2 * AccessLogRecord.SIZE, 2);
+        for (int i = 0; i < 5; i++) {
+            log.append(i, 0, "r" + i, 80, null, null, 0, 0, CloseReason.CLIENT_CLOSED);
+        }
+        log.start();
+        log.close();
+
+        // Three files were written, the oldest was deleted, and the last one was cut after its record.
+        List<Path> files = AccessLog.files(directory);
+        Assertions.assertEquals(2, files.size());
+        Assertions.assertEquals(AccessLog.FILE_HEADER + AccessLogRecord.SIZE, files.get(1).toFile().length());
+        Assertions.assertEquals(List.of("r2", "r3", "r4"), readAll(directory).stream().map(AccessLogRecord::getRoute).toList());
+        Assertions.assertEquals(5, log.getWritten());
+
+        // A new log continues the numbering, so its files sort after these.
+        AccessLog next = new AccessLog(directory, 16, AccessLog.FILE_HEADER + 2 * AccessLogRecord.SIZE, 2);
+        next.append(5, 0, "r5", 80, null, null, 0, 0, CloseReason.CLIENT_CLOSED);
+        next.start();
+        next.close();
+        Assertions.assertEquals(List.of("r4", "r5"), readAll(directory).stream().map(AccessLogRecord::getRoute).toList());
+    }
+
+    @Test
+    public void testRejectsInvalidSettings(@TempDir Path directory) {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AccessLog(directory, 0, 1024, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AccessLog(directory, 16, 64, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AccessLog(directory, 16, 1024, 0));
+        Assertions.assertFalse(AccessLog.DISABLED.append(0, 0, "r", 80, null, null, 0, 0, CloseReason.CLIENT_CLOSED));
+    }
+
+    private static AccessLogRecord awaitRecord(String route) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            for (AccessLogRecord record : readAll(relayLogDirectory)) {
+                if (record.getRoute().equals(route)) {
+                    return record;
+                }
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("No record of " + route);
+    }
+
+    private static List<AccessLogRecord> readAll(Path directory) throws Exception {
+        List<AccessLogRecord> records = new ArrayList<>();
+        for (Path file : AccessLog.files(directory)) {
+            AccessLogReader.read(file, records::add);
+        }
+        return records;
+    }
+
+    /**
+     * Speaks first and hangs up.
+     */
+    @ChannelHandler.Sharable
+    private static class ByeHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(Unpooled.copiedBuffer("bye", StandardCharsets.US_ASCII)).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Answers every read with a two byte response, enough for one small request per read.
+     */
+    @ChannelHandler.Sharable
+    private static class OkHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            ctx.writeAndFlush(Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static class DatagramEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            ctx.writeAndFlush(new DatagramPacket(packet.content(), packet.sender()));
+        }
+    }
+}
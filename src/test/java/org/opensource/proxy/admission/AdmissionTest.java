@@ -0,0 +1,181 @@
+package org.opensource.proxy.admission;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionTest {
+
+    private static final int CAPPED_PORT = 27801;
+    private static final int RATE_PORT = 27802;
+    private static final int SHAPED_PORT = 27803;
+    private static final int BACKEND_PORT = 27811;
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = TestSupport.backend(backendGroup, BACKEND_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("capped", CAPPED_PORT, BACKEND_PORT, "maxConnections=3;maxConnectionsPerIp=2")),
+                new RouterServer(runtime, TestSupport.route("rate", RATE_PORT, BACKEND_PORT, "connectRatePerIp=1;connectBurstPerIp=2")),
+                new RouterServer(runtime, TestSupport.route("shaped", SHAPED_PORT, BACKEND_PORT, "bandwidthOut=65536")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+        }
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testCapsConnectionsPerAddressAndRoute() throws Exception {
+        List<Socket> open = new ArrayList<>();
+        try {
+            open.add(admitted(CAPPED_PORT, "127.0.0.1"));
+            open.add(admitted(CAPPED_PORT, "127.0.0.1"));
+            assertRejected(CAPPED_PORT, "127.0.0.1");
+            // Another address has its own allowance, until the route is full.
+            open.add(admitted(CAPPED_PORT, "127.0.0.2"));
+            assertRejected(CAPPED_PORT, "127.0.0.3");
+
+            // A closed connection frees its slot.
+            open.remove(0).close();
+            Thread.sleep(200);
+            open.add(admitted(CAPPED_PORT, "127.0.0.1"));
+        } finally {
+            for (Socket socket : open) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLimitsConnectRatePerAddress() throws Exception {
+        admitted(RATE_PORT, "127.0.0.4").close();
+        admitted(RATE_PORT, "127.0.0.4").close();
+        assertRejected(RATE_PORT, "127.0.0.4");
+        admitted(RATE_PORT, "127.0.0.5").close();
+        // The bucket refills at one connection per second.
+        Thread.sleep(1100);
+        admitted(RATE_PORT, "127.0.0.4").close();
+    }
+
+    @Test
+    public void testShapesBandwidthTowardsClients() throws Exception {
+        byte[] payload = new byte[160 * 1024];
+        long start = System.nanoTime();
+        try (Socket socket = connect(SHAPED_PORT, "127.0.0.1")) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write(payload);
+            InputStream in = socket.getInputStream();
+            int total = 0;
+            byte[] buf = new byte[8192];
+            while (total < payload.length) {
+                int n = in.read(buf);
+                Assertions.assertTrue(n > 0, "Connection closed early");
+                total += n;
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 160 KiB at 64 KiB/s: the first second's worth may pass at once, the rest is delayed.
+        Assertions.assertTrue(millis >= 1000, "Echo took only " + millis + " ms");
+    }
+
+    @Test
+    public void testBoundsTheAddressTable() throws Exception {
+        IpTable table = new IpTable(256);
+        for (int i = 0; i < 100_000; i++) {
+            table.get(InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}), 0);
+        }
+        Assertions.assertTrue(table.size() <= 256, "Table holds " + table.size() + " addresses");
+
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        Assertions.assertTrue(bucket.tryAcquire(now));
+        Assertions.assertTrue(bucket.tryAcquire(now));
+        Assertions.assertTrue(bucket.tryAcquire(now));
+        Assertions.assertFalse(bucket.tryAcquire(now));
+        Assertions.assertTrue(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+    }
+
+    @Test
+    public void testKeepsAddressesInUse() throws Exception {
+        // One stripe of one entry.
+        IpTable table = new IpTable(1);
+        InetAddress client = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+        InetAddress scanner = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+        IpTable.Entry entry = table.get(client, 0);
+        entry.connections = 1;
+        Assertions.assertNull(table.get(scanner, 0), "an address with an open connection was forgotten");
+        Assertions.assertSame(entry, table.get(client, 0));
+
+        // Closed, but its token bucket is still refilling.
+        entry.connections = 0;
+        entry.bucket = 1_000;
+        Assertions.assertNull(table.get(scanner, 0));
+        Assertions.assertNotNull(table.get(scanner, 1_000));
+        Assertions.assertNotSame(entry, table.get(client, 1_000));
+    }
+
+    private static Socket admitted(int port, String localAddress) throws IOException {
+        Socket socket = connect(port, localAddress);
+        socket.setSoTimeout(2000);
+        socket.getOutputStream().write('x');
+        Assertions.assertEquals('x', socket.getInputStream().read(), "Connection from " + localAddress + " was not relayed");
+        return socket;
+    }
+
+    private static void assertRejected(int port, String localAddress) throws IOException {
+        try (Socket socket = connect(port, localAddress)) {
+            socket.setSoTimeout(2000);
+            socket.getOutputStream().write('x');
+            Assertions.assertEquals(-1, socket.getInputStream().read(), "Connection from " + localAddress + " was relayed");
+        } catch (SocketTimeoutException e) {
+            Assertions.fail("Connection from " + localAddress + " was neither relayed nor closed");
+        } catch (IOException e) {
+            // Reset by the proxy, also a rejection.
+        }
+    }
+
+    private static Socket connect(int port, String localAddress) throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+        return socket;
+    }
+}
@@ -0,0 +1,93 @@
+package org.opensource.proxy.api;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.repository.WalRouterConfigRepository;
+import org.opensource.proxy.routing.RouteTableService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BulkRouteApiTest {
+
+    private static final int FIRST_PORT = 26601;
+    private static final int SECOND_PORT = 26602;
+    private static final int WEIGHTED_PORT = 26603;
+
+    @TempDir
+    static Path directory;
+
+    private static EventLoopRuntime runtime;
+    private static WalRouterConfigRepository repository;
+    private static RouteTableService service;
+    private static RouterApiService api;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        runtime = new EventLoopRuntime(1, 1);
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        repository = new WalRouterConfigRepository(directory.resolve("store"), null, 100);
+        repository.open();
+        service = new RouteTableService(repository, runtime, applicationConfig);
+        api = new RouterApiService(service, AccessLog.DISABLED);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        service.drainAll(0).get(5, TimeUnit.SECONDS);
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        repository.destroy();
+    }
+
+    @Test
+    public void testListCsvExportImportsThroughBulkCsv() {
+        ResponseEntity<String> added = api.bulkJson("["
+                + "{\"routingName\":\"first\",\"enterPort\":" + FIRST_PORT + ",\"routingDestination\":\"127.0.0.1\",\"routingPort\":9001,\"description\":\"First, with a comma\",\"options\":\"connectTimeoutMs=2000\"},"
+                + "{\"routingName\":\"second\",\"enterPort\":" + SECOND_PORT + ",\"routingDestination\":\"127.0.0.1\",\"routingPort\":9002}]");
+        Assertions.assertEquals(HttpStatus.OK, added.getStatusCode(), added.getBody());
+
+        // The export names its columns in lower case, the config file capitalizes them.
+        String export = api.listRoutingRulesCsv().getBody();
+        Assertions.assertTrue(export.startsWith("routingName,enterPort,"), export);
+        Assertions.assertEquals(List.of("UNCHANGED", "UNCHANGED"), statuses(api.bulkCsv(export)));
+
+        Assertions.assertEquals(List.of("UPDATED", "UNCHANGED"), statuses(api.bulkCsv(export.replace("First, with a comma", "First, moved"))));
+        Assertions.assertEquals("First, moved", service.current().get("first").getDescription());
+        Assertions.assertEquals("2000", service.current().get("first").getOptions().getString("connectTimeoutMs", null));
+    }
+
+    @Test
+    public void testOversizedWeightsAreBadRequests() {
+        ResponseEntity<String> tooHeavy = api.addRoutingRule("heavy," + WEIGHTED_PORT + ",a*1000000|b*999999,9003,Heavy");
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, tooHeavy.getStatusCode(), tooHeavy.getBody());
+
+        ResponseEntity<String> ring = api.addRoutingRule("ring," + WEIGHTED_PORT + ",a*10000|b*9999,9003,Ring,lb=consistent-hash");
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ring.getStatusCode(), ring.getBody());
+        Assertions.assertNull(service.current().get("ring"));
+        Assertions.assertNull(repository.read("ring"));
+    }
+
+    private static List<String> statuses(ResponseEntity<String> response) {
+        List<String> statuses = new ArrayList<>();
+        for (JsonElement result : JsonParser.parseString(response.getBody()).getAsJsonArray()) {
+            statuses.add(result.getAsJsonObject().get("status").getAsString());
+        }
+        return statuses;
+    }
+}
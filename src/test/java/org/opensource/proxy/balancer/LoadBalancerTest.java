@@ -0,0 +1,111 @@
+package org.opensource.proxy.balancer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.health.BackendHealth;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LoadBalancerTest {
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 40000);
+
+    @Test
+    public void testParseBackends() {
+        List<Backend> backends = Backend.parseList("app1:8080*3|app2|[::1]:9090", 7000);
+        Assertions.assertEquals(new Backend("app1", 8080, 3), backends.get(0));
+        Assertions.assertEquals(new Backend("app2", 7000, 1), backends.get(1));
+        Assertions.assertEquals(new Backend("::1", 9090, 1), backends.get(2));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Backend.parseList("app1:port", 7000));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Backend.parseList("app1*0", 7000));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Backend.parseList("app1*" + (Backend.MAX_WEIGHT + 1), 7000));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Backend.parseList("app1*99999999999", 7000));
+    }
+
+    @Test
+    public void testRefusesSchedulesThatAreTooLarge() {
+        // Coprime weights leave nothing to divide out, so the schedule grows with their sum.
+        StringBuilder destinations = new StringBuilder();
+        for (int i = 0; i < 110; i++) {
+            destinations.append(i == 0 ? "" : "|").append("b").append(i).append('*').append(Backend.MAX_WEIGHT - i);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LoadBalancer.create("weighted-round-robin", nodes(destinations.toString())));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LoadBalancer.create("consistent-hash", nodes("a*10000|b*9999")));
+
+        LoadBalancer balancer = LoadBalancer.create("weighted-round-robin", nodes("a*10000|b*9999"));
+        Map<String, Integer> counts = count(balancer, 19999);
+        Assertions.assertEquals(10000, counts.get("a:80*10000"));
+        Assertions.assertEquals(9999, counts.get("b:80*9999"));
+    }
+
+    @Test
+    public void testWeightedRoundRobinFollowsWeights() {
+        LoadBalancer balancer = LoadBalancer.create("weighted-round-robin", nodes("a*3|b*1|c*2"));
+        Map<String, Integer> counts = count(balancer, 600);
+        Assertions.assertEquals(300, counts.get("a:80*3"));
+        Assertions.assertEquals(100, counts.get("b:80"));
+        Assertions.assertEquals(200, counts.get("c:80*2"));
+    }
+
+    @Test
+    public void testRoundRobinVisitsEveryBackend() {
+        LoadBalancer balancer = LoadBalancer.create("round-robin", nodes("a|b|c"));
+        Map<String, Integer> counts = count(balancer, 300);
+        Assertions.assertEquals(3, counts.size());
+        counts.values().forEach(count -> Assertions.assertEquals(100, count));
+    }
+
+    @Test
+    public void testLeastConnectionsAndPowerOfTwoPreferIdleBackend() {
+        List<BackendNode> nodes = nodes("a|b");
+        for (int i = 0; i < 10; i++) {
+            nodes.get(0).connectionOpened();
+        }
+        Assertions.assertSame(nodes.get(1), LoadBalancer.create("least-connections", nodes).select(CLIENT));
+        Assertions.assertSame(nodes.get(1), LoadBalancer.create("power-of-two", nodes).select(CLIENT));
+    }
+
+    @Test
+    public void testConsistentHashIsStickyAndStable() {
+        LoadBalancer balancer = LoadBalancer.create("consistent-hash", nodes("a|b|c|d"));
+        Map<Integer, String> assignment = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            InetSocketAddress client = new InetSocketAddress("10.0." + (i / 256) + "." + (i % 256), 1000 + i);
+            String backend = balancer.select(client).toString();
+            // Another connection from the same IP but a different port goes to the same backend.
+            Assertions.assertEquals(backend, balancer.select(new InetSocketAddress(client.getAddress(), 50000)).toString());
+            assignment.put(i, backend);
+        }
+
+        // Removing one backend only moves the clients that were on it.
+        LoadBalancer reduced = LoadBalancer.create("consistent-hash", nodes("a|b|c"));
+        for (int i = 0; i < 1000; i++) {
+            InetSocketAddress client = new InetSocketAddress("10.0." + (i / 256) + "." + (i % 256), 1000 + i);
+            if (!assignment.get(i).equals("d:80")) {
+                Assertions.assertEquals(assignment.get(i), reduced.select(client).toString());
+            }
+        }
+    }
+
+    private static List<BackendNode> nodes(String destinations) {
+        List<BackendNode> nodes = new ArrayList<>();
+        for (Backend backend : Backend.parseList(destinations, 80)) {
+            nodes.add(new BackendNode(nodes.size(), backend, new BackendHealth(backend.toString(), RouteOptions.EMPTY)));
+        }
+        return nodes;
+    }
+
+    private static Map<String, Integer> count(LoadBalancer balancer, int selections) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < selections; i++) {
+            counts.merge(balancer.select(CLIENT).toString(), 1, Integer::sum);
+        }
+        return counts;
+    }
+}
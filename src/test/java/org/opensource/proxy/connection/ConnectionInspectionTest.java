@@ -0,0 +1,170 @@
+package org.opensource.proxy.connection;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.accesslog.AccessLog;
+import org.opensource.proxy.api.RouterApiService;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.repository.WalRouterConfigRepository;
+import org.opensource.proxy.routing.RouteTableService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionInspectionTest {
+
+    private static final int INSPECT_ROUTE_PORT = 26501;
+    private static final int SAMPLED_ROUTE_PORT = 26502;
+    private static final int BACKEND_PORT = 26511;
+
+    @TempDir
+    static Path directory;
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static WalRouterConfigRepository repository;
+    private static RouteTableService service;
+    private static RouterApiService api;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = TestSupport.backend(backendGroup, BACKEND_PORT, new TestSupport.EchoHandler());
+        runtime = new EventLoopRuntime(1, 2);
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        repository = new WalRouterConfigRepository(directory.resolve("store"), null, 100);
+        repository.open();
+        service = new RouteTableService(repository, runtime, applicationConfig);
+        service.apply(List.of(
+                TestSupport.route("inspect", INSPECT_ROUTE_PORT, BACKEND_PORT, "captureFile=" + directory.resolve("inspect.log")),
+                TestSupport.route("sampled", SAMPLED_ROUTE_PORT, BACKEND_PORT, "captureSample=1;captureBytes=8;captureFile=" + directory.resolve("sampled.log"))));
+        api = new RouterApiService(service, AccessLog.DISABLED);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        service.drainAll(0).get(5, TimeUnit.SECONDS);
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        repository.destroy();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testListsPagesAndClosesConnections() throws Exception {
+        try (Socket first = TestSupport.connect(INSPECT_ROUTE_PORT)) {
+            Assertions.assertEquals("hello", TestSupport.echo(first, "hello"));
+            Socket second = TestSupport.connect(INSPECT_ROUTE_PORT);
+            Assertions.assertEquals("hi", TestSupport.echo(second, "hi"));
+            // Connections of other tests may still be closing.
+            awaitTotal("inspect", 2);
+
+            JsonObject page = list("inspect", 0, 1);
+            JsonArray connections = page.getAsJsonArray("connections");
+            Assertions.assertEquals(1, connections.size());
+            JsonObject oldest = connections.get(0).getAsJsonObject();
+            Assertions.assertEquals("inspect", oldest.get("routingName").getAsString());
+            Assertions.assertEquals("127.0.0.1:" + first.getLocalPort(), oldest.get("client").getAsString());
+            Assertions.assertEquals("127.0.0.1:" + BACKEND_PORT, oldest.get("backend").getAsString());
+            Assertions.assertEquals(5, oldest.get("bytesIn").getAsLong());
+            Assertions.assertEquals(5, oldest.get("bytesOut").getAsLong());
+            Assertions.assertFalse(oldest.get("capturing").getAsBoolean());
+            Assertions.assertEquals(2, list("inspect", 1, 10).getAsJsonArray("connections").get(0).getAsJsonObject().get("bytesIn").getAsLong());
+
+            // A new version of the route keeps the registry, so connections of the old one stay listed.
+            service.update(TestSupport.route("inspect", INSPECT_ROUTE_PORT, BACKEND_PORT, "captureFile=" + directory.resolve("inspect.log") + ";connectTimeoutMs=2000"));
+            Assertions.assertEquals(2, list("inspect", 0, 10).get("total").getAsInt());
+
+            ResponseEntity<String> closed = api.closeConnection(oldest.get("id").getAsString());
+            Assertions.assertEquals(HttpStatus.OK, closed.getStatusCode());
+            Assertions.assertEquals(-1, first.getInputStream().read());
+            Assertions.assertEquals("again", TestSupport.echo(second, "again"));
+            awaitTotal("inspect", 1);
+            second.close();
+        }
+        Assertions.assertEquals(HttpStatus.NOT_FOUND, api.closeConnection("unknown").getStatusCode());
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, api.listConnectionsJson(null, 0, 0).getStatusCode());
+    }
+
+    @Test
+    public void testSampledCaptureStopsAtItsLimit() throws Exception {
+        try (Socket socket = TestSupport.connect(SAMPLED_ROUTE_PORT)) {
+            Assertions.assertEquals("hello world", TestSupport.echo(socket, "hello world"));
+        }
+        String capture = awaitFile(directory.resolve("sampled.log"));
+        Assertions.assertTrue(capture.contains(" route=sampled client=127.0.0.1:"), capture);
+        Assertions.assertTrue(capture.contains(" bytes=8 truncated\n> +"), capture);
+        Assertions.assertTrue(capture.contains("|hello wo        |"), capture);
+        // The limit was reached on the way in, so the echo was not captured.
+        Assertions.assertFalse(capture.contains("\n< +"), capture);
+    }
+
+    @Test
+    public void testCapturesAnOpenConnectionOnRequest() throws Exception {
+        try (Socket socket = TestSupport.connect(INSPECT_ROUTE_PORT)) {
+            Assertions.assertEquals("before", TestSupport.echo(socket, "before"));
+            String id = findId(socket.getLocalPort());
+            Assertions.assertEquals(HttpStatus.OK, api.captureConnection(id, 0).getStatusCode());
+            Assertions.assertEquals(HttpStatus.CONFLICT, api.captureConnection(id, 0).getStatusCode());
+            Assertions.assertEquals("after", TestSupport.echo(socket, "after"));
+        }
+        String capture = awaitFile(directory.resolve("inspect.log"));
+        Assertions.assertTrue(capture.contains(" bytes=10\n"), capture);
+        Assertions.assertTrue(capture.contains("|after           |"), capture);
+        Assertions.assertTrue(capture.contains("\n< +"), capture);
+        Assertions.assertFalse(capture.contains("before"), capture);
+        Assertions.assertEquals(HttpStatus.NOT_FOUND, api.captureConnection("unknown", 0).getStatusCode());
+    }
+
+    private static JsonObject list(String route, int offset, int limit) {
+        ResponseEntity<String> response = api.listConnectionsJson(route, offset, limit);
+        Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+        return JsonParser.parseString(response.getBody()).getAsJsonObject();
+    }
+
+    private static String findId(int clientPort) {
+        for (var element : list(null, 0, 1000).getAsJsonArray("connections")) {
+            JsonObject connection = element.getAsJsonObject();
+            if (connection.get("client").getAsString().endsWith(":" + clientPort)) {
+                return connection.get("id").getAsString();
+            }
+        }
+        throw new AssertionError("No connection from port " + clientPort);
+    }
+
+    private static void awaitTotal(String route, int total) throws InterruptedException {
+        for (int i = 0; i < 50 && list(route, 0, 10).get("total").getAsInt() != total; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(total, list(route, 0, 10).get("total").getAsInt());
+    }
+
+    private static String awaitFile(Path file) throws Exception {
+        // A capture ends with an empty line.
+        for (int i = 0; i < 50 && !(Files.exists(file) && Files.readString(file).endsWith("\n\n")); i++) {
+            Thread.sleep(100);
+        }
+        return Files.readString(file);
+    }
+}
@@ -0,0 +1,119 @@
+package org.opensource.proxy.health;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.balancer.BackendNode;
+import org.opensource.proxy.balancer.LoadBalancer;
+import org.opensource.proxy.config.Backend;
+import org.opensource.proxy.config.RouteOptions;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+public class HealthCheckerTest {
+
+    private static final int STAND_IN_PORT = 27201;
+    private static final int HEALTHY_PORT = 27202;
+    private static final RouteOptions OPTIONS =
+            RouteOptions.parse("healthCheckMs=50;healthTimeoutMs=200;ejectAfter=2;ejectBaseMs=300;ejectMaxMs=1000");
+
+    private static EventLoopRuntime runtime;
+
+    @BeforeAll
+    public static void setup() {
+        runtime = new EventLoopRuntime(1, 1);
+    }
+
+    @Test
+    public void testActiveCheckEjectsAndRestoresBackend() throws Exception {
+        BackendNode failing = node(0, STAND_IN_PORT);
+        BackendNode healthy = node(1, HEALTHY_PORT);
+        LoadBalancer balancer = LoadBalancer.create("round-robin", List.of(failing, healthy));
+        HealthChecker checker = new HealthChecker(List.of(failing, healthy), OPTIONS, runtime);
+
+        // The kernel completes the handshake for a bound ServerSocket, which is all a probe needs.
+        ServerSocket standIn = bind(STAND_IN_PORT);
+        ServerSocket healthyBackend = bind(HEALTHY_PORT);
+        try {
+            checker.start();
+            Thread.sleep(200);
+            Assertions.assertTrue(failing.isAvailable());
+
+            // The stand-in goes down: the probes eject it and traffic only goes to the healthy backend.
+            standIn.close();
+            waitFor(() -> !failing.isAvailable(), "backend to be ejected");
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertSame(healthy, balancer.select(new InetSocketAddress("127.0.0.1", 40000 + i)));
+            }
+            Assertions.assertTrue(healthy.isAvailable());
+
+            // Staying down doubles the back-off on every ejection.
+            waitFor(() -> failing.getHealth().getEjections() >= 2, "second ejection");
+
+            // The stand-in comes back: the next probe restores it.
+            standIn = bind(STAND_IN_PORT);
+            waitFor(failing::isAvailable, "backend to be restored");
+            Assertions.assertEquals(0, failing.getHealth().getEjections());
+        } finally {
+            checker.stop();
+            standIn.close();
+            healthyBackend.close();
+        }
+    }
+
+    @Test
+    public void testPassiveFailuresEjectWithBackoff() throws Exception {
+        BackendHealth health = new BackendHealth("passive", OPTIONS);
+        health.recordFailure();
+        Assertions.assertTrue(health.isAvailable());
+        health.recordFailure();
+        Assertions.assertFalse(health.isAvailable());
+        Assertions.assertTrue(health.getEjectedForMillis() > 0);
+
+        // After the back-off the backend is on probation and one failure ejects it again.
+        waitFor(health::isAvailable, "ejection to expire");
+        health.recordFailure();
+        Assertions.assertFalse(health.isAvailable());
+        Assertions.assertEquals(2, health.getEjections());
+
+        // A success after the back-off restores it completely.
+        waitFor(health::isAvailable, "second ejection to expire");
+        health.recordSuccess();
+        health.recordFailure();
+        Assertions.assertTrue(health.isAvailable());
+        Assertions.assertEquals(0, health.getEjections());
+    }
+
+    private static BackendNode node(int index, int port) {
+        Backend backend = new Backend("127.0.0.1", port, 1);
+        return new BackendNode(index, backend, new BackendHealth(backend.toString(), OPTIONS));
+    }
+
+    private static ServerSocket bind(int port) throws Exception {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return socket;
+    }
+
+    private static void waitFor(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail("Timed out waiting for " + description);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @AfterAll
+    public static void teardown() {
+        runtime.shutdown();
+    }
+}
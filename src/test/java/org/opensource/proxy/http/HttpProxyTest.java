@@ -0,0 +1,184 @@
+package org.opensource.proxy.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HttpProxyTest {
+
+    private static final int ROUTE_PORT = 27501;
+    private static final int BACKEND_A_PORT = 27511;
+    private static final int BACKEND_B_PORT = 27512;
+
+    private static HttpServer backendA;
+    private static HttpServer backendB;
+    // Client ports the backends saw, one per upstream connection of the proxy.
+    private static final Set<Integer> upstreamConnections = ConcurrentHashMap.newKeySet();
+    private static EventLoopRuntime runtime;
+    private static RouterServer routerServer;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendA = backend("A", BACKEND_A_PORT);
+        backendB = backend("B", BACKEND_B_PORT);
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServer = new RouterServer(runtime, List.of(
+                TestSupport.route("site", ROUTE_PORT, BACKEND_A_PORT, "mode=http;host=site.test"),
+                TestSupport.route("api", ROUTE_PORT, BACKEND_B_PORT, "mode=http;host=*.api.test;pathPrefix=/v1"),
+                TestSupport.route("static", ROUTE_PORT, BACKEND_A_PORT, "mode=http;pathPrefix=/static")));
+        routerServer.runDaemon();
+        TestSupport.connect(ROUTE_PORT).close();
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        routerServer.shutdown();
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backendA.stop(0);
+        backendB.stop(0);
+    }
+
+    @Test
+    public void testRoutesOnHostAndPathPrefix() throws Exception {
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            Assertions.assertTrue(get(socket, "site.test", "/index").startsWith("A /index "));
+            Assertions.assertTrue(get(socket, "eu.api.test:" + ROUTE_PORT, "/v1/users").startsWith("B /v1/users "));
+            Assertions.assertTrue(get(socket, "other.test", "/static/app.js").startsWith("A /static/app.js "));
+        }
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            Assertions.assertEquals("404", status(exchange(socket, "eu.api.test", "/v2")));
+        }
+    }
+
+    @Test
+    public void testAddsForwardingHeaders() throws Exception {
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            String body = get(socket, "site.test", "/headers");
+            Assertions.assertTrue(body.contains("for=127.0.0.1;"), body);
+            Assertions.assertTrue(body.contains("host=site.test;"), body);
+            Assertions.assertTrue(body.contains("port=" + ROUTE_PORT + ";"), body);
+        }
+    }
+
+    @Test
+    public void testReusesUpstreamConnections() throws Exception {
+        upstreamConnections.clear();
+        for (int client = 0; client < 5; client++) {
+            try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertTrue(get(socket, "site.test", "/" + i).startsWith("A /" + i + " "));
+                }
+            }
+        }
+        // Requests are sequential, so one pooled upstream connection serves all fifty.
+        Assertions.assertTrue(upstreamConnections.size() <= 2, "upstream connections: " + upstreamConnections.size());
+    }
+
+    @Test
+    public void testStreamsChunkedBody() throws Exception {
+        byte[] chunk = new byte[32 * 1024];
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /v1/upload HTTP/1.1\r\nHost: eu.api.test\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 32; i++) {
+                out.write((Integer.toHexString(chunk.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(chunk);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String response = readResponse(socket.getInputStream());
+            Assertions.assertEquals("200", status(response));
+            Assertions.assertTrue(response.contains("received=" + 32 * chunk.length + ";"), response);
+            // The connection is still usable afterwards.
+            Assertions.assertTrue(get(socket, "site.test", "/after").startsWith("A /after "));
+        }
+    }
+
+    private static HttpServer backend(String name, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", exchange -> respond(name, exchange));
+        server.start();
+        return server;
+    }
+
+    private static void respond(String name, HttpExchange exchange) throws IOException {
+        upstreamConnections.add(exchange.getRemoteAddress().getPort());
+        long received = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                received += n;
+            }
+        }
+        String body = name + " " + exchange.getRequestURI().getPath()
+                + " for=" + exchange.getRequestHeaders().getFirst("X-Forwarded-For")
+                + "; host=" + exchange.getRequestHeaders().getFirst("X-Forwarded-Host")
+                + "; port=" + exchange.getRequestHeaders().getFirst("X-Forwarded-Port")
+                + "; received=" + received + ";";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String get(Socket socket, String host, String path) throws IOException {
+        String response = exchange(socket, host, path);
+        Assertions.assertEquals("200", status(response), response);
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static String exchange(Socket socket, String host, String path) throws IOException {
+        String request = "GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        return readResponse(socket.getInputStream());
+    }
+
+    private static String status(String response) {
+        return response.substring(9, 12);
+    }
+
+    /**
+     * Reads one response framed by Content-Length, which is all the backends and the proxy's errors use.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed after " + head);
+            }
+            head.write(b);
+        }
+        String headers = head.toString(StandardCharsets.US_ASCII);
+        int length = 0;
+        for (String line : headers.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return headers + new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package org.opensource.proxy.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class RouteMetricsTest {
+
+    @Test
+    public void testHistogramBucketsStayWithinPrecision() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            Assertions.assertTrue(highest >= value, "bucket of " + value + " ends at " + highest);
+            Assertions.assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS, "bucket of " + value + " is too wide");
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assertions.assertEquals(1000, histogram.getCount());
+        Assertions.assertEquals(500_500_000L, histogram.getSum());
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        Assertions.assertTrue(p50 >= 500_000 && p50 <= 500_000 * 17 / 16, "p50 " + p50);
+        Assertions.assertTrue(p99 >= 990_000 && p99 <= 990_000 * 17 / 16, "p99 " + p99);
+        Assertions.assertEquals(1000, histogram.countAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPrometheusRendering() {
+        RouteMetrics metrics = new RouteMetrics();
+        metrics.connectionAccepted();
+        metrics.connectionAccepted();
+        metrics.connectionClosed(2_000_000);
+        metrics.bytesIn(100);
+        metrics.bytesOut(250);
+        metrics.upstreamConnected(300_000);
+
+        String text = PrometheusFormat.render(Map.of("web \"a\"", List.of(metrics)));
+        Assertions.assertTrue(text.contains("# TYPE netty_proxy_active_connections gauge\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_active_connections{route=\"web \\\"a\\\"\"} 1\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_accepted_connections_total{route=\"web \\\"a\\\"\"} 2\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_bytes_in_total{route=\"web \\\"a\\\"\"} 100\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_bytes_out_total{route=\"web \\\"a\\\"\"} 250\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_upstream_connect_seconds_bucket{route=\"web \\\"a\\\"\",le=\"2.5E-4\"} 0\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_upstream_connect_seconds_bucket{route=\"web \\\"a\\\"\",le=\"5.0E-4\"} 1\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_connection_lifetime_seconds_count{route=\"web \\\"a\\\"\"} 1\n"));
+    }
+
+    @Test
+    public void testPrometheusSumsTargetsOfOneRoute() {
+        // The target being drained and the one replacing it.
+        RouteMetrics draining = new RouteMetrics();
+        draining.connectionAccepted();
+        draining.bytesIn(100);
+        draining.upstreamConnected(300_000);
+        RouteMetrics serving = new RouteMetrics();
+        serving.connectionAccepted();
+        serving.connectionAccepted();
+        serving.bytesIn(50);
+        serving.upstreamConnected(2_000_000);
+
+        String text = PrometheusFormat.render(Map.of("web", List.of(draining, serving)));
+        Assertions.assertTrue(text.contains("netty_proxy_active_connections{route=\"web\"} 3\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_accepted_connections_total{route=\"web\"} 3\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_bytes_in_total{route=\"web\"} 150\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_upstream_connect_seconds_bucket{route=\"web\",le=\"5.0E-4\"} 1\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_upstream_connect_seconds_bucket{route=\"web\",le=\"0.0025\"} 2\n"));
+        Assertions.assertTrue(text.contains("netty_proxy_upstream_connect_seconds_count{route=\"web\"} 2\n"));
+        Assertions.assertEquals(1, text.split("netty_proxy_bytes_in_total\\{").length - 1);
+    }
+}
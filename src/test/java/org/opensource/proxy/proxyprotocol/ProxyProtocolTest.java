@@ -0,0 +1,198 @@
+package org.opensource.proxy.proxyprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.AttributeKey;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ProxyProtocolTest {
+
+    private static final int V1_PORT = 26301;
+    private static final int V2_PORT = 26302;
+    private static final int ACCEPT_PORT = 26303;
+    private static final int BACKEND_PORT = 26311;
+
+    private static final BlockingQueue<Integer> firstReads = new LinkedBlockingQueue<>();
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = TestSupport.backend(backendGroup, BACKEND_PORT, new FirstReadRecordingHandler());
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("v1", V1_PORT, BACKEND_PORT, "proxyProtocol=v1")),
+                new RouterServer(runtime, TestSupport.route("v2", V2_PORT, BACKEND_PORT, "proxyProtocol=v2")),
+                new RouterServer(runtime, TestSupport.route("behind-lb", ACCEPT_PORT, BACKEND_PORT, "acceptProxyProtocol=true;proxyProtocolTimeoutMs=300;proxyProtocol=v1")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+            server.whenBound().get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testSendsV1HeaderWithFirstBytes() throws Exception {
+        firstReads.clear();
+        try (Socket socket = TestSupport.connect(V1_PORT)) {
+            socket.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+            String expected = "PROXY TCP4 127.0.0.1 127.0.0.1 " + socket.getLocalPort() + " " + V1_PORT + "\r\nhello";
+            Assertions.assertEquals(expected, new String(read(socket.getInputStream(), expected.length()), StandardCharsets.US_ASCII));
+            // Header and payload left in one write, so the backend got them in one read.
+            Assertions.assertEquals(expected.length(), firstReads.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testSendsV2Header() throws Exception {
+        try (Socket socket = TestSupport.connect(V2_PORT)) {
+            socket.getOutputStream().write('x');
+            byte[] received = read(socket.getInputStream(), 29);
+            ByteBuf header = Unpooled.wrappedBuffer(received);
+            Assertions.assertArrayEquals(ProxyHeader.V2_SIGNATURE, ByteBufUtil.getBytes(header, 0, 12));
+            Assertions.assertEquals(0x21, header.getUnsignedByte(12));
+            Assertions.assertEquals(0x11, header.getUnsignedByte(13));
+            Assertions.assertEquals(12, header.getUnsignedShort(14));
+            Assertions.assertEquals(0x7F000001, header.getInt(16));
+            Assertions.assertEquals(0x7F000001, header.getInt(20));
+            Assertions.assertEquals(socket.getLocalPort(), header.getUnsignedShort(24));
+            Assertions.assertEquals(V2_PORT, header.getUnsignedShort(26));
+            Assertions.assertEquals('x', header.getByte(28));
+        }
+    }
+
+    @Test
+    public void testFlushesHeaderWhenClientWaitsForServer() throws Exception {
+        try (Socket socket = TestSupport.connect(V1_PORT)) {
+            String expected = "PROXY TCP4 127.0.0.1 127.0.0.1 " + socket.getLocalPort() + " " + V1_PORT + "\r\n";
+            Assertions.assertEquals(expected, new String(read(socket.getInputStream(), expected.length()), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testAcceptsHeaderAndPassesClientOn() throws Exception {
+        try (Socket socket = TestSupport.connect(ACCEPT_PORT)) {
+            String header = "PROXY TCP4 203.0.113.7 198.51.100.1 40000 443\r\n";
+            socket.getOutputStream().write((header + "ping").getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertEquals(header + "ping", new String(read(socket.getInputStream(), header.length() + 4), StandardCharsets.US_ASCII));
+        }
+        try (Socket socket = TestSupport.connect(ACCEPT_PORT)) {
+            // The balancer's own health check: the socket addresses are passed on.
+            byte[] local = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A, 0x20, 0x00, 0x00, 0x00, 'p'};
+            socket.getOutputStream().write(local);
+            String expected = "PROXY TCP4 127.0.0.1 127.0.0.1 " + socket.getLocalPort() + " " + ACCEPT_PORT + "\r\np";
+            Assertions.assertEquals(expected, new String(read(socket.getInputStream(), expected.length()), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testClosesClientsWithoutHeader() throws Exception {
+        try (Socket socket = TestSupport.connect(ACCEPT_PORT)) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: example\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = TestSupport.connect(ACCEPT_PORT)) {
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testEncodesHeaders() throws Exception {
+        ByteBufAllocator alloc = UnpooledByteBufAllocator.DEFAULT;
+        InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 5000);
+        InetSocketAddress v4 = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 80);
+        Assertions.assertEquals("PROXY TCP6 2001:db8::1 ::ffff:c000:201 5000 80\r\n", text(ProxyHeader.encodeV1(alloc, v6, v4)));
+        Assertions.assertEquals("PROXY TCP4 192.0.2.1 192.0.2.1 80 80\r\n", text(ProxyHeader.encodeV1(alloc, v4, v4)));
+        Assertions.assertEquals("PROXY UNKNOWN\r\n", text(ProxyHeader.encodeV1(alloc, v4, null)));
+        ByteBuf v2 = ProxyHeader.encodeV2(alloc, v6, v4);
+        Assertions.assertEquals(16 + 36, v2.readableBytes());
+        Assertions.assertEquals(0x21, v2.getUnsignedByte(13));
+        Assertions.assertEquals(0xFFFF, v2.getUnsignedShort(16 + 16 + 10));
+        v2.release();
+        ByteBuf local = ProxyHeader.encodeV2(alloc, null, v4);
+        Assertions.assertEquals(16, local.readableBytes());
+        Assertions.assertEquals(0x20, local.getUnsignedByte(12));
+        local.release();
+    }
+
+    @Test
+    public void testRejectsInvalidRoutes() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, TestSupport.route("bad", 1, BACKEND_PORT, "proxyProtocol=v3")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, TestSupport.route("bad", 1, BACKEND_PORT, "proxyProtocol=v1;mode=http")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, TestSupport.route("bad", 1, BACKEND_PORT, "proxyProtocol=v2;mode=udp")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, TestSupport.route("bad", 1, BACKEND_PORT, "acceptProxyProtocol=true;mode=sniff")));
+        new RouterServer(runtime, TestSupport.route("sniffed", 1, BACKEND_PORT, "proxyProtocol=v2;mode=sniff"));
+    }
+
+    private static byte[] read(InputStream in, int length) throws Exception {
+        byte[] bytes = in.readNBytes(length);
+        Assertions.assertEquals(length, bytes.length);
+        return bytes;
+    }
+
+    private static String text(ByteBuf buf) {
+        try {
+            return buf.toString(StandardCharsets.US_ASCII);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Echoes everything and records the size of the first read of every connection.
+     */
+    @ChannelHandler.Sharable
+    private static class FirstReadRecordingHandler extends ChannelInboundHandlerAdapter {
+
+        private static final AttributeKey<Boolean> SEEN = AttributeKey.valueOf("proxyProtocolTest.seen");
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (ctx.channel().attr(SEEN).setIfAbsent(true) == null) {
+                firstReads.add(((ByteBuf) msg).readableBytes());
+            }
+            ctx.writeAndFlush(msg);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.opensource.proxy.repository;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.routing.BulkResult;
+import org.opensource.proxy.routing.RouteTableService;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class CSVRouterConfigRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    private static EventLoopRuntime runtime;
+
+    @BeforeAll
+    public static void setup() {
+        runtime = new EventLoopRuntime(1, 1);
+    }
+
+    @AfterAll
+    public static void teardown() {
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+    }
+
+    @Test
+    public void testFailedWriteFailsTheChange() throws Exception {
+        Path file = directory.resolve("routes.csv");
+        Files.writeString(file, "RoutingName,EnterPort,RoutingDestination,RoutingPort,Description,Options\n");
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setFilePath(file.toString());
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        CSVRouterConfigRepository repository = new CSVRouterConfigRepository();
+        repository.applicationConfig = applicationConfig;
+        repository.afterPropertiesSet();
+        // The sibling file the table is written to first cannot be created.
+        Files.createDirectories(directory.resolve("routes.csv.tmp").resolve("blocked"));
+
+        Assertions.assertThrows(UncheckedIOException.class, () -> repository.create(TestSupport.route("a", 26801, 8080, "")));
+        Assertions.assertTrue(repository.findAll().isEmpty());
+
+        RouteTableService service = new RouteTableService(repository, runtime, applicationConfig);
+        List<BulkResult> results = service.apply(List.of(TestSupport.route("b", 26802, 8080, "")));
+        Assertions.assertEquals(BulkResult.Status.FAILED, results.get(0).getStatus());
+        Assertions.assertNull(service.current().get("b"));
+        Assertions.assertNull(service.getListener("b"));
+    }
+}
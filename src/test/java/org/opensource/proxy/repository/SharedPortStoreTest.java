@@ -0,0 +1,93 @@
+package org.opensource.proxy.repository;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.routing.RouteTableService;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SharedPortStoreTest {
+
+    private static final int CSV_PORT = 26701;
+    private static final int WAL_PORT = 26702;
+    private static final int BACKEND_PORT = 26711;
+
+    @TempDir
+    Path directory;
+
+    private static EventLoopRuntime runtime;
+
+    @BeforeAll
+    public static void setup() {
+        runtime = new EventLoopRuntime(1, 1);
+    }
+
+    @AfterAll
+    public static void teardown() {
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+    }
+
+    @Test
+    public void testCsvStoreKeepsHttpRoutesToOneBackend() throws Exception {
+        Path file = directory.resolve("routes.csv");
+        Files.writeString(file, "RoutingName,EnterPort,RoutingDestination,RoutingPort,Description,Options\n");
+        ApplicationConfig applicationConfig = applicationConfig();
+        applicationConfig.setFilePath(file.toString());
+        CSVRouterConfigRepository repository = new CSVRouterConfigRepository();
+        repository.applicationConfig = applicationConfig;
+        repository.afterPropertiesSet();
+
+        addHttpRoutes(repository, applicationConfig, CSV_PORT);
+        Assertions.assertEquals(List.of("api", "site"), names(repository.reload()));
+    }
+
+    @Test
+    public void testWalStoreKeepsHttpRoutesToOneBackend() throws Exception {
+        WalRouterConfigRepository repository = new WalRouterConfigRepository(directory.resolve("store"), null, 100);
+        repository.open();
+        addHttpRoutes(repository, applicationConfig(), WAL_PORT);
+        repository.destroy();
+
+        WalRouterConfigRepository reopened = new WalRouterConfigRepository(directory.resolve("store"), null, 100);
+        reopened.open();
+        Assertions.assertEquals(List.of("api", "site"), names(reopened.findAll()));
+        reopened.destroy();
+    }
+
+    /**
+     * Adds two HTTP routes on one port to the same backend, told apart only by host and path.
+     */
+    private static void addHttpRoutes(RouterConfigRepository repository, ApplicationConfig applicationConfig, int port) throws Exception {
+        RouteTableService service = new RouteTableService(repository, runtime, applicationConfig);
+        try {
+            service.add(TestSupport.route("site", port, BACKEND_PORT, "mode=http;host=site.test"));
+            service.add(TestSupport.route("api", port, BACKEND_PORT, "mode=http;host=site.test;pathPrefix=/api"));
+            Assertions.assertEquals(List.of("api", "site"), names(service.current().getByPort(port)));
+        } finally {
+            service.drainAll(0).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ApplicationConfig applicationConfig() {
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        return applicationConfig;
+    }
+
+    private static List<String> names(List<RouterConfig> configs) {
+        return configs.stream().map(RouterConfig::getRoutingName).sorted().toList();
+    }
+}
@@ -0,0 +1,165 @@
+package org.opensource.proxy.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class WalRouterConfigRepositoryTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<WalRouterConfigRepository> opened = new ArrayList<>();
+
+    @AfterEach
+    public void closeAll() throws IOException {
+        for (WalRouterConfigRepository repository : opened) {
+            repository.destroy();
+        }
+    }
+
+    @Test
+    public void testChangesSurviveReopen() throws Exception {
+        WalRouterConfigRepository repository = open(100);
+        repository.create(TestSupport.route("a", 20001, 8080, "tcpNoDelay=false"));
+        repository.create(TestSupport.route("b", 20002, 8080, ""));
+        repository.update(new RouterConfig("a", 20001, "app.example|app2.example", 9090, "Moved", RouteOptions.parse("lb=least-connections")));
+        repository.delete("b");
+        repository.create(TestSupport.route("c", 20003, 8080, ""));
+        repository.destroy();
+
+        WalRouterConfigRepository reopened = open(100);
+        Assertions.assertEquals(List.of("a", "c"), names(reopened));
+        RouterConfig a = reopened.read("a");
+        Assertions.assertTrue(a.sameAs(new RouterConfig("a", 20001, "app.example|app2.example", 9090, "Moved", RouteOptions.parse("lb=least-connections"))));
+        Assertions.assertNull(reopened.read("b"));
+    }
+
+    @Test
+    public void testCompactsIntoSnapshot() throws Exception {
+        WalRouterConfigRepository repository = open(10);
+        for (int i = 0; i < 25; i++) {
+            repository.create(TestSupport.route("r" + i, 21000 + i, 8080, ""));
+        }
+        for (int i = 0; i < 25; i += 2) {
+            repository.delete("r" + i);
+        }
+        // 38 records with a snapshot every 10: only the last 8 are still in the log.
+        Assertions.assertTrue(Files.size(dir.resolve(WalRouterConfigRepository.SNAPSHOT)) > 0);
+        Assertions.assertTrue(Files.size(dir.resolve(WalRouterConfigRepository.LOG)) < 8 * 64);
+        repository.destroy();
+
+        WalRouterConfigRepository reopened = open(10);
+        Assertions.assertEquals(12, reopened.findAll().size());
+        Assertions.assertNotNull(reopened.read("r1"));
+        Assertions.assertNull(reopened.read("r2"));
+    }
+
+    @Test
+    public void testCutsOffTornRecord() throws Exception {
+        WalRouterConfigRepository repository = open(100);
+        repository.create(TestSupport.route("a", 20001, 8080, ""));
+        repository.create(TestSupport.route("b", 20002, 8080, ""));
+        repository.destroy();
+        Path log = dir.resolve(WalRouterConfigRepository.LOG);
+        long complete = Files.size(log);
+        // A crash in the middle of the next append: a length that promises more than was written.
+        Files.write(log, new byte[]{0, 0, 0, 90, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        WalRouterConfigRepository reopened = open(100);
+        Assertions.assertEquals(List.of("a", "b"), names(reopened));
+        Assertions.assertEquals(complete, Files.size(log));
+        reopened.create(TestSupport.route("c", 20003, 8080, ""));
+        reopened.destroy();
+        Assertions.assertEquals(List.of("a", "b", "c"), names(open(100)));
+    }
+
+    @Test
+    public void testRefusesDamagedRecordBeforeTheLast() throws Exception {
+        WalRouterConfigRepository repository = open(100);
+        repository.create(TestSupport.route("a", 20001, 8080, ""));
+        long second = Files.size(dir.resolve(WalRouterConfigRepository.LOG));
+        repository.create(TestSupport.route("b", 20002, 8080, ""));
+        repository.create(TestSupport.route("c", 20003, 8080, ""));
+        repository.destroy();
+        Path log = dir.resolve(WalRouterConfigRepository.LOG);
+        byte[] bytes = Files.readAllBytes(log);
+        // Flip a byte in the body of the second record, past its length and checksum.
+        bytes[(int) second + 12] ^= 1;
+        Files.write(log, bytes);
+
+        IOException e = Assertions.assertThrows(IOException.class, () -> open(100));
+        Assertions.assertTrue(e.getMessage().contains("offset " + second), e.getMessage());
+        // Nothing was cut off, so the log can still be repaired by hand.
+        Assertions.assertEquals(bytes.length, Files.size(log));
+    }
+
+    @Test
+    public void testRejectsClashes() throws Exception {
+        WalRouterConfigRepository repository = open(100);
+        repository.create(TestSupport.route("a", 20001, 8080, ""));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.create(TestSupport.route("a", 20009, 8080, "")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.create(TestSupport.route("b", 20001, 8080, "")));
+        // Routes sharing a port and a backend are told apart by their options.
+        repository.create(TestSupport.route("b", 20001, 8080, "mode=sniff;sni=b.test"));
+        repository.create(TestSupport.route("c", 20001, 8080, "mode=sniff;sni=c.test"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.create(TestSupport.route("d", 20001, 8080, "mode=sniff;sni=c.test")));
+        // The route itself may keep its endpoints.
+        repository.update(new RouterConfig("a", 20001, "localhost", 8080, "Renamed description"));
+        Assertions.assertEquals("Renamed description", repository.read("a").getDescription());
+    }
+
+    @Test
+    public void testSeedsFromCsvAndExports() throws Exception {
+        Path csv = dir.resolve("seed.csv");
+        Files.writeString(csv, "RoutingName,EnterPort,RoutingDestination,RoutingPort,Description,Options\n"
+                + "a,20001,localhost,8080,First,tcpNoDelay=false\n"
+                + "b,20002,localhost,8081,Second,\n");
+        WalRouterConfigRepository repository = track(new WalRouterConfigRepository(dir.resolve("store"), csv, 100));
+        repository.open();
+        Assertions.assertEquals(List.of("a", "b"), names(repository));
+
+        StringWriter exported = new StringWriter();
+        List<RouterConfig> configs = repository.findAll();
+        configs.sort(Comparator.comparing(RouterConfig::getRoutingName));
+        RouterConfigCsv.write(exported, configs);
+        List<RouterConfig> reimported = RouterConfigCsv.read(new StringReader(exported.toString()));
+        Assertions.assertTrue(reimported.get(0).sameAs(repository.read("a")));
+
+        // Once the store exists, the CSV file no longer matters.
+        Files.writeString(csv, "RoutingName,EnterPort,RoutingDestination,RoutingPort,Description\n");
+        repository.destroy();
+        WalRouterConfigRepository reopened = track(new WalRouterConfigRepository(dir.resolve("store"), csv, 100));
+        reopened.open();
+        Assertions.assertEquals(List.of("a", "b"), names(reopened));
+    }
+
+    private WalRouterConfigRepository open(int compactAfter) throws IOException {
+        WalRouterConfigRepository repository = track(new WalRouterConfigRepository(dir, null, compactAfter));
+        repository.open();
+        return repository;
+    }
+
+    private WalRouterConfigRepository track(WalRouterConfigRepository repository) {
+        opened.add(repository);
+        return repository;
+    }
+
+    private static List<String> names(WalRouterConfigRepository repository) {
+        return repository.findAll().stream().map(RouterConfig::getRoutingName).sorted().toList();
+    }
+}
@@ -0,0 +1,293 @@
+package org.opensource.proxy.routing;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.config.ApplicationConfig;
+import org.opensource.proxy.config.RouteOptions;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.repository.RouterConfigRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RouteTableServiceTest {
+
+    private static final int ROUTE_PORT = 27301;
+    private static final int BACKEND_A_PORT = 27311;
+    private static final int BACKEND_B_PORT = 27312;
+    private static final int BULK_PORT = 27321;
+    private static final int REBIND_PORT = 27331;
+
+    private static EventLoopRuntime runtime;
+    private static EventLoopGroup backendGroup;
+    private static Channel backendA;
+    private static Channel backendB;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        runtime = new EventLoopRuntime(1, 2);
+        backendGroup = new NioEventLoopGroup(1);
+        backendA = TestSupport.backend(backendGroup, BACKEND_A_PORT, new TestSupport.IdentifyingEchoHandler('A'));
+        backendB = TestSupport.backend(backendGroup, BACKEND_B_PORT, new TestSupport.IdentifyingEchoHandler('B'));
+    }
+
+    @AfterAll
+    public static void teardown() {
+        backendA.close();
+        backendB.close();
+        backendGroup.shutdownGracefully();
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+    }
+
+    @Test
+    public void testTableIsCopyOnWrite() {
+        RouteTable first = RouteTable.EMPTY.withRoute(TestSupport.route("a", 1000, BACKEND_A_PORT, ""));
+        RouteTable second = first.withRoute(TestSupport.route("b", 1001, BACKEND_B_PORT, ""));
+        Assertions.assertEquals(1, first.getRoutes().size());
+        Assertions.assertEquals(2, second.getRoutes().size());
+        Assertions.assertEquals(first.getVersion() + 1, second.getVersion());
+        Assertions.assertEquals("b", second.getByPort(1001).get(0).getRoutingName());
+
+        RouteTable moved = second.withRoute(TestSupport.route("a", 1002, BACKEND_A_PORT, ""));
+        Assertions.assertTrue(moved.getByPort(1000).isEmpty());
+        Assertions.assertEquals(1002, moved.get("a").getEnterPort());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> second.withRoute(TestSupport.route("c", 1001, BACKEND_A_PORT, "")));
+        Assertions.assertTrue(moved.withoutRoute("a").sameRoutes(List.of(TestSupport.route("b", 1001, BACKEND_B_PORT, ""))));
+    }
+
+    @Test
+    public void testIndexesFollowChanges() {
+        RouteTable table = RouteTable.EMPTY.withRoutes(List.of(
+                TestSupport.route("a", 1000, BACKEND_A_PORT, ""),
+                new RouterConfig("b", 1001, TestSupport.LOOPBACK + "|other.example:9000*3", BACKEND_A_PORT, "", RouteOptions.EMPTY),
+                TestSupport.route("c", 1002, BACKEND_B_PORT, "")));
+        Assertions.assertEquals(List.of("a", "b"), names(table.getByBackend(TestSupport.LOOPBACK, BACKEND_A_PORT)));
+        Assertions.assertEquals(List.of("b"), names(table.getByBackend("other.example", 9000)));
+
+        RouteTable moved = table.withRoute(TestSupport.route("a", 1000, BACKEND_B_PORT, ""));
+        Assertions.assertEquals(List.of("b"), names(moved.getByBackend(TestSupport.LOOPBACK, BACKEND_A_PORT)));
+        Assertions.assertEquals(List.of("c", "a"), names(moved.getByBackend(TestSupport.LOOPBACK, BACKEND_B_PORT)));
+        // Ports the change did not touch keep their list.
+        Assertions.assertSame(table.getByPort(1002), moved.getByPort(1002));
+
+        RouteTable removed = moved.withoutRoute("b");
+        Assertions.assertTrue(removed.getByBackend("other.example", 9000).isEmpty());
+        Assertions.assertTrue(removed.getByPort(1001).isEmpty());
+        Assertions.assertEquals(2, removed.size());
+        Assertions.assertEquals(List.of("a", "b"), names(table.getByBackend(TestSupport.LOOPBACK, BACKEND_A_PORT)));
+    }
+
+    @Test
+    public void testSharedPortListsStayFrozen() {
+        List<RouterConfig> configs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            configs.add(TestSupport.route("r" + i, 1000, BACKEND_A_PORT, "mode=sniff;sni=r" + i + ".test"));
+        }
+        RouteTable table = RouteTable.EMPTY.withRoutes(configs);
+        Assertions.assertEquals(1000, table.getByPort(1000).size());
+        Assertions.assertEquals(1000, table.getByBackend(TestSupport.LOOPBACK, BACKEND_A_PORT).size());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> table.getByPort(1000).clear());
+
+        // The next version copies the list it changes, the published one stays as it was.
+        RouteTable next = table.withRoute(TestSupport.route("extra", 1000, BACKEND_A_PORT, "mode=sniff;sni=extra.test")).withoutRoute("r0");
+        Assertions.assertEquals(1000, next.getByPort(1000).size());
+        Assertions.assertEquals("r0", table.getByPort(1000).get(0).getRoutingName());
+        Assertions.assertEquals("extra", next.getByPort(1000).get(999).getRoutingName());
+    }
+
+    private static List<String> names(List<RouterConfig> configs) {
+        return configs.stream().map(RouterConfig::getRoutingName).toList();
+    }
+
+    @Test
+    public void testRetargetKeepsListenerAndDrainsOldConnections() throws Exception {
+        InMemoryRepository repository = new InMemoryRepository();
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        RouteTableService service = new RouteTableService(repository, runtime, applicationConfig);
+        try {
+            service.add(TestSupport.route("hot", ROUTE_PORT, BACKEND_A_PORT, ""));
+            RouterServer listener = service.getListener("hot");
+
+            Socket oldConnection = TestSupport.connect(ROUTE_PORT);
+            Assertions.assertEquals('A', oldConnection.getInputStream().read());
+
+            // Same listener settings: the port stays bound and only new connections move to B.
+            Assertions.assertTrue(service.update(TestSupport.route("hot", ROUTE_PORT, BACKEND_B_PORT, "")));
+            Assertions.assertSame(listener, service.getListener("hot"));
+            try (Socket newConnection = TestSupport.connect(ROUTE_PORT)) {
+                Assertions.assertEquals('B', newConnection.getInputStream().read());
+            }
+            Assertions.assertEquals("x", TestSupport.echo(oldConnection, "x"));
+            oldConnection.close();
+
+            // An edit of the backing file arrives through reload and is applied the same way.
+            repository.configs.set(0, TestSupport.route("hot", ROUTE_PORT, BACKEND_A_PORT, ""));
+            long version = service.current().getVersion();
+            service.reload();
+            Assertions.assertEquals(version + 1, service.current().getVersion());
+            try (Socket connection = TestSupport.connect(ROUTE_PORT)) {
+                Assertions.assertEquals('A', connection.getInputStream().read());
+            }
+
+            // Reloading unchanged routes is a no-op.
+            service.reload();
+            Assertions.assertEquals(version + 1, service.current().getVersion());
+
+            // Listener settings that differ need a fresh listener on the same port.
+            service.update(TestSupport.route("hot", ROUTE_PORT, BACKEND_B_PORT, "tcpNoDelay=false"));
+            Assertions.assertNotSame(listener, service.getListener("hot"));
+            // The update returns before the port is bound again.
+            service.getListener("hot").whenBound().get(5, TimeUnit.SECONDS);
+            try (Socket connection = TestSupport.connect(ROUTE_PORT)) {
+                Assertions.assertEquals('B', connection.getInputStream().read());
+            }
+
+            Assertions.assertTrue(service.remove("hot"));
+            Assertions.assertNull(service.getListener("hot"));
+            Assertions.assertTrue(repository.configs.isEmpty());
+        } finally {
+            for (RouterServer server : service.getListeners()) {
+                server.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testBulkApplyReportsEachRouteAndSavesOnce() throws Exception {
+        InMemoryRepository repository = new InMemoryRepository();
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        RouteTableService service = new RouteTableService(repository, runtime, applicationConfig);
+        ServerSocket taken = new ServerSocket(BULK_PORT + 3);
+        try {
+            service.add(TestSupport.route("existing", BULK_PORT, BACKEND_A_PORT, ""));
+            List<BulkResult> results = service.apply(List.of(
+                    TestSupport.route("existing", BULK_PORT, BACKEND_A_PORT, ""),
+                    TestSupport.route("a", BULK_PORT + 1, BACKEND_A_PORT, ""),
+                    TestSupport.route("b", BULK_PORT + 2, BACKEND_B_PORT, ""),
+                    TestSupport.route("a", BULK_PORT + 4, BACKEND_B_PORT, ""),
+                    TestSupport.route("clash", BULK_PORT + 1, BACKEND_B_PORT, ""),
+                    TestSupport.route("bad", BULK_PORT + 5, BACKEND_B_PORT, "lb=nonsense"),
+                    TestSupport.route("blocked", BULK_PORT + 3, BACKEND_B_PORT, "")));
+
+            Assertions.assertEquals(List.of(BulkResult.Status.UNCHANGED, BulkResult.Status.ADDED, BulkResult.Status.ADDED,
+                    BulkResult.Status.FAILED, BulkResult.Status.FAILED, BulkResult.Status.FAILED, BulkResult.Status.BIND_FAILED),
+                    results.stream().map(BulkResult::getStatus).toList());
+            Assertions.assertEquals(1, repository.batches);
+            Assertions.assertEquals(List.of("existing", "a", "b", "blocked"), names(repository.configs));
+            try (Socket a = TestSupport.connect(BULK_PORT + 1); Socket b = TestSupport.connect(BULK_PORT + 2)) {
+                Assertions.assertEquals('A', a.getInputStream().read());
+                Assertions.assertEquals('B', b.getInputStream().read());
+            }
+
+            // A batch that cannot be saved changes nothing.
+            repository.failNextBatch = true;
+            results = service.apply(List.of(TestSupport.route("c", BULK_PORT + 6, BACKEND_A_PORT, "")));
+            Assertions.assertEquals(BulkResult.Status.FAILED, results.get(0).getStatus());
+            Assertions.assertNull(service.current().get("c"));
+        } finally {
+            taken.close();
+            for (RouterServer server : service.getListeners()) {
+                server.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRebindWaitsForThePreviousListenerWithoutBlocking() throws Exception {
+        InMemoryRepository repository = new InMemoryRepository();
+        ApplicationConfig applicationConfig = new ApplicationConfig();
+        applicationConfig.setDrainTimeoutMillis(1_000L);
+        RouteTableService service = new RouteTableService(repository, runtime, applicationConfig);
+        try {
+            service.add(TestSupport.route("flip", REBIND_PORT, BACKEND_A_PORT, ""));
+            List<RouterServer> replaced = new ArrayList<>();
+            // Each change needs a new listener on the port the previous one is still closing.
+            for (int i = 0; i < 6; i++) {
+                replaced.add(service.getListener("flip"));
+                service.update(TestSupport.route("flip", REBIND_PORT, i % 2 == 0 ? BACKEND_B_PORT : BACKEND_A_PORT, "tcpNoDelay=" + (i % 2 != 0)));
+            }
+            service.getListener("flip").whenBound().get(5, TimeUnit.SECONDS);
+            for (RouterServer server : replaced) {
+                Assertions.assertTrue(server.whenUnbound().isDone());
+            }
+            try (Socket connection = TestSupport.connect(REBIND_PORT)) {
+                Assertions.assertEquals('A', connection.getInputStream().read());
+            }
+        } finally {
+            for (RouterServer server : service.getListeners()) {
+                server.shutdown();
+            }
+        }
+
+        // A listener drained before it was started never binds.
+        RouterServer unstarted = new RouterServer(runtime, TestSupport.route("unstarted", REBIND_PORT, BACKEND_A_PORT, ""));
+        unstarted.drain(0).get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(unstarted.whenUnbound().isDone());
+        Assertions.assertTrue(unstarted.start().isDone());
+    }
+
+    private static class InMemoryRepository implements RouterConfigRepository {
+        final List<RouterConfig> configs = new ArrayList<>();
+        int batches;
+        boolean failNextBatch;
+
+        @Override
+        public void saveBatch(Collection<RouterConfig> batch) {
+            if (failNextBatch) {
+                failNextBatch = false;
+                throw new UncheckedIOException(new IOException("Disk full"));
+            }
+            batches++;
+            RouterConfigRepository.super.saveBatch(batch);
+        }
+
+        @Override
+        public void create(RouterConfig config) {
+            configs.add(config);
+        }
+
+        @Override
+        public RouterConfig read(String routingName) {
+            return configs.stream().filter(c -> c.getRoutingName().equals(routingName)).findFirst().orElse(null);
+        }
+
+        @Override
+        public void update(RouterConfig config) {
+            configs.replaceAll(c -> c.getRoutingName().equals(config.getRoutingName()) ? config : c);
+        }
+
+        @Override
+        public void delete(String routingName) {
+            configs.removeIf(c -> c.getRoutingName().equals(routingName));
+        }
+
+        @Override
+        public List<RouterConfig> findAll() {
+            return new ArrayList<>(configs);
+        }
+
+        @Override
+        public List<RouterConfig> reload() {
+            return findAll();
+        }
+    }
+}
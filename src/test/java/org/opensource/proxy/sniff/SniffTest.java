@@ -0,0 +1,162 @@
+package org.opensource.proxy.sniff;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouterConfig;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class SniffTest {
+
+    private static final int ROUTE_PORT = 27601;
+    private static final int BACKEND_A_PORT = 27611;
+    private static final int BACKEND_B_PORT = 27612;
+    private static final int BACKEND_C_PORT = 27613;
+    private static final int BACKEND_D_PORT = 27614;
+
+    private static EventLoopGroup backendGroup;
+    private static List<Channel> backends;
+    private static EventLoopRuntime runtime;
+    private static RouterServer routerServer;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backends = List.of(
+                TestSupport.backend(backendGroup, BACKEND_A_PORT, new TestSupport.IdentifyingEchoHandler('A')),
+                TestSupport.backend(backendGroup, BACKEND_B_PORT, new TestSupport.IdentifyingEchoHandler('B')),
+                TestSupport.backend(backendGroup, BACKEND_C_PORT, new TestSupport.IdentifyingEchoHandler('C')),
+                TestSupport.backend(backendGroup, BACKEND_D_PORT, new TestSupport.IdentifyingEchoHandler('D')));
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        routerServer = new RouterServer(runtime, List.of(
+                route("tls", BACKEND_A_PORT, "sni=*.a.test"),
+                route("web", BACKEND_B_PORT, "host=b.test"),
+                route("fallback", BACKEND_C_PORT, ""),
+                route("lb", BACKEND_D_PORT, "proxyDstPort=8443")));
+        routerServer.runDaemon();
+        TestSupport.connect(ROUTE_PORT).close();
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        routerServer.shutdown();
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backends.forEach(Channel::close);
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testSniffsTlsServerName() throws Exception {
+        byte[] hello = clientHello("www.a.test");
+        ProtocolSniffer.Result result = ProtocolSniffer.sniff(Unpooled.wrappedBuffer(hello), 0);
+        Assertions.assertEquals(ProtocolSniffer.Protocol.TLS, result.getProtocol());
+        Assertions.assertEquals("www.a.test", result.getName());
+        // Every prefix of the record asks for more bytes.
+        Assertions.assertNull(ProtocolSniffer.sniff(Unpooled.wrappedBuffer(Arrays.copyOf(hello, hello.length - 1)), 0));
+    }
+
+    @Test
+    public void testSniffsHttpHostAndProxyHeaders() {
+        ProtocolSniffer.Result http = sniff("GET / HTTP/1.1\r\nAccept: */*\r\nHOST: B.test:80\r\n\r\n");
+        Assertions.assertEquals(ProtocolSniffer.Protocol.HTTP, http.getProtocol());
+        Assertions.assertEquals("b.test", http.getName());
+        Assertions.assertNull(sniff("GET / HTTP/1.1\r\nAccept: */*\r\n"));
+        Assertions.assertEquals(ProtocolSniffer.Protocol.UNKNOWN, sniff("SSH-2.0-OpenSSH_9.0\r\n").getProtocol());
+
+        ProtocolSniffer.Result v1 = sniff("PROXY TCP4 10.0.0.1 10.0.0.2 40000 8443\r\nGET /");
+        Assertions.assertEquals(ProtocolSniffer.Protocol.PROXY, v1.getProtocol());
+        Assertions.assertEquals(8443, v1.getProxyDestinationPort());
+        Assertions.assertEquals(41, v1.getHeaderLength());
+        Assertions.assertNull(sniff("PROX"));
+
+        ByteBuf v2 = Unpooled.buffer();
+        v2.writeBytes(new byte[]{0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A, 0x21, 0x11});
+        v2.writeShort(12).writeInt(0x0A000001).writeInt(0x0A000002).writeShort(40000).writeShort(8443);
+        ProtocolSniffer.Result result = ProtocolSniffer.sniff(v2, 0);
+        Assertions.assertEquals(8443, result.getProxyDestinationPort());
+        Assertions.assertEquals(28, result.getHeaderLength());
+    }
+
+    @Test
+    public void testRoutesOnFirstBytes() throws Exception {
+        Assertions.assertEquals('A', firstReply(clientHello("www.a.test")));
+        Assertions.assertEquals('B', firstReply("GET / HTTP/1.1\r\nHost: b.test\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        Assertions.assertEquals('C', firstReply("GET / HTTP/1.1\r\nHost: other.test\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        Assertions.assertEquals('D', firstReply("PROXY TCP4 10.0.0.1 10.0.0.2 40000 8443\r\n".getBytes(StandardCharsets.US_ASCII)));
+        // A PROXY header for another port is followed by the real protocol.
+        Assertions.assertEquals('B', firstReply("PROXY TCP4 10.0.0.1 10.0.0.2 40000 80\r\nGET / HTTP/1.1\r\nHost: b.test\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testRelaysSniffedBytesAndSilentClients() throws Exception {
+        byte[] request = "GET / HTTP/1.1\r\nHost: b.test\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            // Split the request so sniffing needs a second read.
+            out.write(request, 0, 10);
+            out.flush();
+            Thread.sleep(50);
+            out.write(request, 10, request.length - 10);
+            InputStream in = socket.getInputStream();
+            Assertions.assertEquals('B', in.read());
+            Assertions.assertArrayEquals(request, in.readNBytes(request.length));
+        }
+        // A client that waits for the server to speak goes to the fallback after the timeout.
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            Assertions.assertEquals('C', socket.getInputStream().read());
+        }
+    }
+
+    private static int firstReply(byte[] bytes) throws Exception {
+        try (Socket socket = TestSupport.connect(ROUTE_PORT)) {
+            socket.getOutputStream().write(bytes);
+            return socket.getInputStream().read();
+        }
+    }
+
+    private static ProtocolSniffer.Result sniff(String text) {
+        return ProtocolSniffer.sniff(Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII), 0);
+    }
+
+    private static byte[] clientHello(String serverName) throws Exception {
+        SSLEngine engine = SSLContext.getDefault().createSSLEngine(serverName, 443);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(List.of(new SNIHostName(serverName)));
+        engine.setSSLParameters(parameters);
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static RouterConfig route(String name, int backendPort, String options) {
+        return TestSupport.route(name, ROUTE_PORT, backendPort, "mode=sniff;sniffTimeoutMs=300;" + options);
+    }
+}
@@ -0,0 +1,221 @@
+package org.opensource.proxy.timeout;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TimeoutTest {
+
+    private static final int HALF_CLOSE_PORT = 27901;
+    private static final int IDLE_PORT = 27902;
+    private static final int LIFETIME_PORT = 27903;
+    private static final int COUNTING_BACKEND_PORT = 27911;
+    private static final int SILENT_BACKEND_PORT = 27912;
+
+    private static EventLoopGroup backendGroup;
+    private static List<Channel> backends;
+    private static EventLoopRuntime runtime;
+    private static List<RouterServer> routerServers;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backends = List.of(
+                backend(COUNTING_BACKEND_PORT, new CountingHandler(), true),
+                backend(SILENT_BACKEND_PORT, new SilentHandler(), false));
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 2);
+        routerServers = List.of(
+                new RouterServer(runtime, TestSupport.route("halfclose", HALF_CLOSE_PORT, COUNTING_BACKEND_PORT, "idleTimeoutMs=5000")),
+                new RouterServer(runtime, TestSupport.route("idle", IDLE_PORT, SILENT_BACKEND_PORT, "idleTimeoutMs=300")),
+                new RouterServer(runtime, TestSupport.route("lifetime", LIFETIME_PORT, SILENT_BACKEND_PORT, "maxLifetimeMs=500;idleTimeoutMs=5000")));
+        for (RouterServer server : routerServers) {
+            server.runDaemon();
+        }
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : routerServers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backends.forEach(Channel::close);
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testPassesHalfCloseOn() throws Exception {
+        try (Socket socket = TestSupport.connect(HALF_CLOSE_PORT)) {
+            socket.getOutputStream().write("hello world".getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            // The backend only answers once it saw our FIN, so the other direction must stay open.
+            Assertions.assertEquals("11", readAll(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testClosesIdleConnections() throws Exception {
+        try (Socket socket = TestSupport.connect(IDLE_PORT)) {
+            socket.getOutputStream().write('x');
+            long start = System.nanoTime();
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            Assertions.assertTrue(millis >= 250, "Closed after " + millis + " ms");
+        }
+    }
+
+    @Test
+    public void testClosesAtMaxLifetime() throws Exception {
+        try (Socket socket = TestSupport.connect(LIFETIME_PORT)) {
+            long start = System.nanoTime();
+            try {
+                // Busy, so only the lifetime can end it.
+                for (int i = 0; i < 30; i++) {
+                    socket.getOutputStream().write('x');
+                    Thread.sleep(100);
+                }
+                Assertions.fail("Connection outlived its lifetime");
+            } catch (IOException e) {
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                Assertions.assertTrue(millis >= 450, "Closed after " + millis + " ms");
+            }
+        }
+    }
+
+    @Test
+    public void testFileDescriptorsReturnToBaseline() throws Exception {
+        Path fds = Path.of("/proc/self/fd");
+        Assumptions.assumeTrue(Files.isDirectory(fds), "Needs /proc to count file descriptors");
+        // Warm up so lazily opened descriptors, such as the selector of a new event loop, are in the baseline.
+        for (int port : new int[]{HALF_CLOSE_PORT, IDLE_PORT}) {
+            try (Socket socket = TestSupport.connect(port)) {
+                socket.getOutputStream().write('x');
+                socket.shutdownOutput();
+                readAll(socket.getInputStream());
+            }
+        }
+        long baseline = count(fds);
+
+        for (int round = 0; round < 5; round++) {
+            List<Socket> silent = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                // Clients that vanish without a word, left to the idle timeout.
+                Socket socket = TestSupport.connect(IDLE_PORT);
+                socket.getOutputStream().write('x');
+                silent.add(socket);
+                // And clients that finish with a half-close.
+                try (Socket halfClosed = TestSupport.connect(HALF_CLOSE_PORT)) {
+                    halfClosed.getOutputStream().write('x');
+                    halfClosed.shutdownOutput();
+                    Assertions.assertEquals("1", readAll(halfClosed.getInputStream()));
+                }
+            }
+            for (Socket socket : silent) {
+                Assertions.assertEquals(-1, socket.getInputStream().read());
+                socket.close();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        long open = count(fds);
+        while (open > baseline + 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            open = count(fds);
+        }
+        Assertions.assertTrue(open <= baseline + 5, "Open descriptors " + open + ", baseline " + baseline);
+    }
+
+    private static long count(Path fds) throws IOException {
+        try (Stream<Path> list = Files.list(fds)) {
+            return list.count();
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static Channel backend(int port, ChannelInboundHandlerAdapter handler, boolean halfClose) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(backendGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, halfClose)
+                .childHandler(handler)
+                .bind(port).sync().channel();
+    }
+
+    /**
+     * Counts what the client sends and answers with the count once the client half-closed.
+     */
+    @ChannelHandler.Sharable
+    private static class CountingHandler extends ChannelInboundHandlerAdapter {
+
+        private static final AttributeKey<Integer> COUNT = AttributeKey.valueOf("count");
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            Integer count = ctx.channel().attr(COUNT).get();
+            ctx.channel().attr(COUNT).set((count == null ? 0 : count) + buf.readableBytes());
+            buf.release();
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof ChannelInputShutdownEvent) {
+                Integer count = ctx.channel().attr(COUNT).get();
+                ctx.writeAndFlush(Unpooled.copiedBuffer(String.valueOf(count == null ? 0 : count), StandardCharsets.US_ASCII))
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+
+    /**
+     * Reads and never answers.
+     */
+    @ChannelHandler.Sharable
+    private static class SilentHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
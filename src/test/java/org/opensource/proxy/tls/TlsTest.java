@@ -0,0 +1,192 @@
+package org.opensource.proxy.tls;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouterConfig;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TlsTest {
+
+    private static final int JDK_PORT = 27701;
+    private static final int OPENSSL_PORT = 27702;
+    private static final int SNIFF_PORT = 27703;
+    private static final int BACKEND_PORT = 27711;
+
+    private static final String CA = resource("tls/ca.crt");
+    private static final String SERVER_CERT = resource("tls/server.crt");
+    private static final String SERVER_KEY = resource("tls/server.key");
+    private static final String OTHER_CERT = resource("tls/other.crt");
+    private static final String OTHER_KEY = resource("tls/other.key");
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+    private static final List<RouterServer> servers = new ArrayList<>();
+    private static SSLContext clientContext;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        // The backend speaks TLS itself, so the proxy terminates and re-encrypts.
+        SslContext backendTls = SslContextBuilder.forServer(new File(SERVER_CERT), new File(SERVER_KEY)).build();
+        backendGroup = new NioEventLoopGroup(1);
+        backend = new ServerBootstrap()
+                .group(backendGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(backendTls.newHandler(ch.alloc()), new TestSupport.EchoHandler());
+                    }
+                })
+                .bind(BACKEND_PORT).sync().channel();
+
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+        String upstream = ";upstreamTls=true;upstreamTlsTrust=" + CA + ";upstreamTlsServerName=localhost";
+        start(List.of(TestSupport.route("jdk", JDK_PORT, BACKEND_PORT, "tlsProvider=jdk;tlsCert=" + SERVER_CERT + ";tlsKey=" + SERVER_KEY + upstream)));
+        start(List.of(TestSupport.route("openssl", OPENSSL_PORT, BACKEND_PORT, "tlsProvider=openssl;tlsCert=" + SERVER_CERT + ";tlsKey=" + SERVER_KEY + upstream)));
+        start(List.of(
+                TestSupport.route("main", SNIFF_PORT, BACKEND_PORT, "mode=sniff;sni=localhost;tlsCert=" + SERVER_CERT + ";tlsKey=" + SERVER_KEY),
+                TestSupport.route("other", SNIFF_PORT, BACKEND_PORT, "mode=sniff;sni=other.test;tlsCert=" + OTHER_CERT + ";tlsKey=" + OTHER_KEY + upstream)));
+        clientContext = clientContext();
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        for (RouterServer server : servers) {
+            server.shutdown();
+        }
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testTerminatesAndReencryptsWithJdk() throws Exception {
+        try (SSLSocket socket = connect(JDK_PORT, "localhost")) {
+            Assertions.assertEquals("hello", TestSupport.echo(socket, "hello"));
+        }
+    }
+
+    @Test
+    public void testTerminatesAndReencryptsWithOpenSsl() throws Exception {
+        Assumptions.assumeTrue(OpenSsl.isAvailable(), "netty-tcnative is not available here");
+        try (SSLSocket socket = connect(OPENSSL_PORT, "localhost")) {
+            Assertions.assertEquals("hello", TestSupport.echo(socket, "hello"));
+        }
+    }
+
+    @Test
+    public void testPicksCertificateOfSniffedRoute() throws Exception {
+        try (SSLSocket socket = connect(SNIFF_PORT, "other.test")) {
+            Assertions.assertEquals("ping", TestSupport.echo(socket, "ping"));
+            X509Certificate certificate = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+            Assertions.assertTrue(certificate.getSubjectX500Principal().getName().contains("CN=other"));
+        }
+    }
+
+    @Test
+    public void testResumesClientSessions() throws Exception {
+        assertResumes(JDK_PORT);
+        if (OpenSsl.isAvailable()) {
+            assertResumes(OPENSSL_PORT);
+        }
+    }
+
+    /**
+     * Over TLS 1.2 a resumed session keeps the id of the session it resumes.
+     */
+    private static void assertResumes(int port) throws Exception {
+        byte[] first = null;
+        for (int i = 0; i < 3; i++) {
+            try (SSLSocket socket = connect(port, "localhost")) {
+                socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+                Assertions.assertEquals("x", TestSupport.echo(socket, "x"));
+                if (first == null) {
+                    first = socket.getSession().getId();
+                    Assertions.assertTrue(first.length > 0);
+                } else {
+                    Assertions.assertArrayEquals(first, socket.getSession().getId(), "session of port " + port + " was not resumed");
+                }
+            }
+        }
+    }
+
+    private static void start(List<RouterConfig> configs) {
+        RouterServer server = new RouterServer(runtime, configs);
+        server.runDaemon();
+        servers.add(server);
+    }
+
+    private static SSLSocket connect(int port, String serverName) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port);
+                SSLParameters parameters = socket.getSSLParameters();
+                parameters.setServerNames(List.of(new SNIHostName(serverName)));
+                socket.setSSLParameters(parameters);
+                socket.setSoTimeout(5_000);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static SSLContext clientContext() throws Exception {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        try (InputStream in = new FileInputStream(CA)) {
+            trustStore.setCertificateEntry("ca", CertificateFactory.getInstance("X.509").generateCertificate(in));
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private static String resource(String name) {
+        try {
+            return new File(TlsTest.class.getClassLoader().getResource(name).toURI()).getAbsolutePath();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.opensource.proxy.udp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensource.proxy.EventLoopRuntime;
+import org.opensource.proxy.RouterServer;
+import org.opensource.proxy.TestSupport;
+import org.opensource.proxy.Transport;
+import org.opensource.proxy.config.RouterConfig;
+import org.opensource.proxy.metrics.RouteMetrics;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class UdpRelayTest {
+
+    private static final int ROUTE_PORT = 26201;
+    private static final int LIMITED_PORT = 26202;
+    private static final int BACKEND_PORT = 26211;
+
+    private static EventLoopGroup backendGroup;
+    private static Channel backend;
+    private static EventLoopRuntime runtime;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = new Bootstrap()
+                .group(backendGroup)
+                .channel(NioDatagramChannel.class)
+                .handler(new PortEchoHandler())
+                .bind(BACKEND_PORT).sync().channel();
+        runtime = new EventLoopRuntime(Transport.select("auto"), 1, 1);
+    }
+
+    @AfterAll
+    public static void teardown() {
+        runtime.shutdown();
+        // Other tests in this JVM count the event loop threads.
+        runtime.getBossGroup().terminationFuture().syncUninterruptibly();
+        runtime.getWorkerGroup().terminationFuture().syncUninterruptibly();
+        backend.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testFlowPerClientExpiresWhenIdle() throws Exception {
+        RouterServer server = start(route("dns", ROUTE_PORT, "udpIdleTimeoutMs=300"));
+        RouteMetrics metrics = server.getTargets().get(0).getMetrics();
+        try (DatagramSocket first = client(); DatagramSocket second = client()) {
+            String reply = exchange(first, ROUTE_PORT, "one");
+            Assertions.assertTrue(reply.endsWith(":one"), reply);
+            // The same client keeps its upstream socket, so the backend sees the same source port.
+            Assertions.assertEquals(reply.replace(":one", ":two"), exchange(first, ROUTE_PORT, "two"));
+            String other = exchange(second, ROUTE_PORT, "one");
+            Assertions.assertNotEquals(reply, other);
+            Assertions.assertEquals(2, metrics.getActiveConnections());
+            Assertions.assertEquals(2, metrics.getAcceptedConnections());
+            Assertions.assertEquals(9, metrics.getBytesIn());
+            Assertions.assertEquals(metrics.getBytesOut(), reply.length() * 2L + other.length());
+
+            awaitActive(metrics, 0);
+            // A client that comes back after its flow expired gets a new one.
+            Assertions.assertTrue(exchange(first, ROUTE_PORT, "three").endsWith(":three"));
+            Assertions.assertEquals(3, metrics.getAcceptedConnections());
+        } finally {
+            server.shutdown();
+        }
+        awaitActive(metrics, 0);
+    }
+
+    @Test
+    public void testDropsNewClientsBeyondMaxFlows() throws Exception {
+        RouterServer server = start(route("syslog", LIMITED_PORT, "udpMaxFlows=1"));
+        RouteMetrics metrics = server.getTargets().get(0).getMetrics();
+        try (DatagramSocket first = client(); DatagramSocket second = client()) {
+            Assertions.assertTrue(exchange(first, LIMITED_PORT, "in").endsWith(":in"));
+            second.setSoTimeout(300);
+            Assertions.assertThrows(SocketTimeoutException.class, () -> exchange(second, LIMITED_PORT, "out"));
+            Assertions.assertEquals(1, metrics.getRejectedConnections());
+            Assertions.assertTrue(exchange(first, LIMITED_PORT, "again").endsWith(":again"));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidRoutes() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, route("bad", 1, "udpIdleTimeoutMs=0")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, route("bad", 1, "udpMaxPacket=70000")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RouterServer(runtime, List.of(
+                route("a", 1, ""), route("b", 1, ""))));
+    }
+
+    @Test
+    public void testFlowKeys() throws Exception {
+        InetSocketAddress a = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 53);
+        InetSocketAddress b = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 54);
+        InetSocketAddress c = new InetSocketAddress(InetAddress.getByName("255.255.255.255"), 65535);
+        Assertions.assertEquals(0x0A00_0001_0035L, FlowTable.key(a));
+        Assertions.assertNotEquals(FlowTable.key(a), FlowTable.key(b));
+        Assertions.assertEquals(0xFFFF_FFFF_FFFFL, FlowTable.key(c));
+        Assertions.assertEquals(-1, FlowTable.key(new InetSocketAddress(InetAddress.getByName("::1"), 53)));
+    }
+
+    private static RouterServer start(RouterConfig config) throws Exception {
+        RouterServer server = new RouterServer(runtime, config);
+        server.runDaemon();
+        server.whenBound().get(5, TimeUnit.SECONDS);
+        return server;
+    }
+
+    private static RouterConfig route(String name, int port, String options) {
+        return TestSupport.route(name, port, BACKEND_PORT, "mode=udp;" + options);
+    }
+
+    private static DatagramSocket client() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static String exchange(DatagramSocket socket, int port, String text) throws Exception {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        socket.send(new java.net.DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port));
+        java.net.DatagramPacket reply = new java.net.DatagramPacket(new byte[512], 512);
+        socket.receive(reply);
+        Assertions.assertEquals(port, reply.getPort());
+        return new String(reply.getData(), 0, reply.getLength(), StandardCharsets.US_ASCII);
+    }
+
+    private static void awaitActive(RouteMetrics metrics, long expected) throws InterruptedException {
+        for (int i = 0; i < 50 && metrics.getActiveConnections() != expected; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(expected, metrics.getActiveConnections());
+    }
+
+    /**
+     * Answers every datagram with the sender's port and the payload, so a test sees which
+     * upstream socket a datagram came from.
+     */
+    @ChannelHandler.Sharable
+    private static class PortEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            ByteBuf reply = ctx.alloc().buffer();
+            reply.writeCharSequence(packet.sender().getPort() + ":", StandardCharsets.US_ASCII);
+            reply.writeBytes(packet.content());
+            ctx.writeAndFlush(new DatagramPacket(reply, packet.sender()));
+            packet.release();
+        }
+    }
+}